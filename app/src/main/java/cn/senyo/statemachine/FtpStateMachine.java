@@ -6,7 +6,12 @@ import androidx.annotation.NonNull;
 
 import com.senyo.android.logger.Log;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
 import cn.senyo.state.IState;
+import cn.senyo.state.LooperPool;
 import cn.senyo.state.State;
 import cn.senyo.state.StateMachine;
 
@@ -32,7 +37,7 @@ public class FtpStateMachine extends StateMachine {
     public static final int STATE_STOP = 11;
     public static final int STATE_STOP_FAILED = 12;
     public static final int STATE_EXIT = 13;
-    private final int mSaveNum;
+    private int mSaveNum;
     private int mNum;
     private DefaultState mDefaultState = new DefaultState();
     private StartState mStartState = new StartState();
@@ -49,8 +54,34 @@ public class FtpStateMachine extends StateMachine {
 
     public FtpStateMachine(String name, int num) {
         super(name);
+        init(num);
+    }
+
+    /**
+     * Share the threads of pool with other sessions instead of starting one per session.
+     */
+    public FtpStateMachine(String name, int num, LooperPool pool) {
+        super(name, pool);
+        init(num);
+    }
+
+    /**
+     * Resume a session saved by {@link #snapshot()}, e.g. in another process.
+     */
+    public FtpStateMachine(String name, @NonNull byte[] snapshot, LooperPool pool) {
+        super(name, pool);
+        addStates();
+        restore(snapshot);
+    }
+
+    private void init(int num) {
         mSaveNum = num;
         mNum = num;
+        addStates();
+        start();
+    }
+
+    private void addStates() {
         addState(mDefaultState);
         addState(mStartState);
         addState(mLoginState);
@@ -62,8 +93,31 @@ public class FtpStateMachine extends StateMachine {
         addState(mFirstDataState);
         addState(mLastDataState);
         addState(mStopState);
+        addTransition(STATE_DEFAULT, STATE_START, STATE_START);
+        addTransition(STATE_START, STATE_LOGIN, STATE_LOGIN);
+        addTransition(STATE_START, STATE_STOP, STATE_STOP);
+        addTransition(STATE_LOGIN, STATE_CONNECTED, STATE_CONNECTED);
+        addTransition(STATE_LOGIN, STATE_STOP, STATE_STOP);
+        addTransition(STATE_LOGIN_FAILED, STATE_LOGIN_FAILED, STATE_STOP);
+        addTransition(STATE_CONNECTED, STATE_FIRST_DATA, STATE_FIRST_DATA);
+        addTransition(STATE_CONNECTED, STATE_STOP, STATE_DISCONNECTED);
+        addTransition(STATE_CONNECT_FAILED, STATE_CONNECT_FAILED, STATE_STOP);
+        addTransition(STATE_DISCONNECTED, STATE_DISCONNECTED, STATE_STOP);
+        addTransition(STATE_DISCONNECTED, STATE_STOP, STATE_STOP);
+        addTimeout(STATE_LOGIN, 10000, STATE_LOGIN_FAILED);
         setInitialState(mDefaultState);
-        start();
+    }
+
+    @Override
+    protected void onSaveState(@NonNull DataOutput out) throws IOException {
+        out.writeInt(mSaveNum);
+        out.writeInt(mNum);
+    }
+
+    @Override
+    protected void onRestoreState(@NonNull DataInput in) throws IOException {
+        mSaveNum = in.readInt();
+        mNum = in.readInt();
     }
 
     public void setOnMultiStateListener(OnMultiStateListener listener) {
@@ -95,9 +149,6 @@ public class FtpStateMachine extends StateMachine {
 
         @Override
         public boolean processMessage(@NonNull Message msg) {
-            if (msg.what == STATE_START) {
-                transitionTo(mStartState);
-            }
             return HANDLED;
         }
     }
@@ -110,15 +161,9 @@ public class FtpStateMachine extends StateMachine {
         @Override
         public boolean processMessage(@NonNull Message msg) {
             switch (msg.what) {
-                case STATE_LOGIN:
-                    transitionTo(mLoginState);
-                    break;
                 case STATE_LOGIN_FAILED:
                     checkAndTransitionTo(mLoginFailedState);
                     break;
-                case STATE_STOP:
-                    transitionTo(mStopState);
-                    break;
                 default:
                     break;
             }
@@ -134,15 +179,13 @@ public class FtpStateMachine extends StateMachine {
         @Override
         public boolean processMessage(@NonNull Message msg) {
             switch (msg.what) {
-                case STATE_CONNECTED:
-                    transitionTo(mConnectedState);
-                    break;
                 case STATE_LOGIN_FAILED:
                 case STATE_CONNECT_FAILED:
                     checkAndTransitionTo(mConnectFailedState);
                     break;
-                case STATE_STOP:
-                    transitionTo(mStopState);
+                case STATE_FIRST_DATA:
+                    // data may overtake the connected event, keep it for ConnectedState
+                    deferMessage(msg);
                     break;
                 default:
                     break;
@@ -158,14 +201,6 @@ public class FtpStateMachine extends StateMachine {
 
         @Override
         public boolean processMessage(@NonNull Message msg) {
-            switch (msg.what) {
-                case STATE_LOGIN_FAILED:
-                    transitionTo(mStopState);
-                    break;
-                case STATE_STOP:
-                default:
-                    break;
-            }
             return HANDLED;
         }
     }
@@ -183,12 +218,6 @@ public class FtpStateMachine extends StateMachine {
                 case STATE_DROP:
                     checkAndTransitionTo(mDropState);
                     break;
-                case STATE_FIRST_DATA:
-                    transitionTo(mFirstDataState);
-                    break;
-                case STATE_STOP:
-                    transitionTo(mDisconnectedState);
-                    break;
                 default:
                     break;
             }
@@ -203,14 +232,6 @@ public class FtpStateMachine extends StateMachine {
 
         @Override
         public boolean processMessage(@NonNull Message msg) {
-            switch (msg.what) {
-                case STATE_CONNECT_FAILED:
-                    transitionTo(mStopState);
-                    break;
-                case STATE_STOP:
-                default:
-                    break;
-            }
             return HANDLED;
         }
     }
@@ -295,14 +316,6 @@ public class FtpStateMachine extends StateMachine {
 
         @Override
         public boolean processMessage(@NonNull Message msg) {
-            switch (msg.what) {
-                case STATE_DISCONNECTED:
-                case STATE_STOP:
-                    transitionTo(mStopState);
-                    break;
-                default:
-                    break;
-            }
             return HANDLED;
         }
     }
@@ -1,6 +1,8 @@
 package cn.senyo.statemachine;
 
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.text.method.ScrollingMovementMethod;
 import android.view.View;
 
@@ -9,8 +11,11 @@ import androidx.appcompat.app.AppCompatActivity;
 import com.senyo.android.logger.Log;
 import com.senyo.android.toasty.Toasty;
 
+import java.util.concurrent.Executor;
+
 import cn.senyo.state.IState;
 import cn.senyo.state.StateMachine;
+import cn.senyo.state.core.AsyncStateListener;
 import cn.senyo.statemachine.databinding.ActivityMainBinding;
 
 /**
@@ -30,7 +35,14 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
         setContentView(mBinding.getRoot());
         Log.initialization(this, "StateMachine", android.util.Log.DEBUG, 10 * 1024 * 1024);
         mStateMachine = new FtpStateMachine("FtpStateMachine", 10);
-        mStateMachine.setOnStateListener(this);
+        final Handler mainHandler = new Handler(Looper.getMainLooper());
+        // setText must run on the main thread, keep every state for the log view
+        mStateMachine.setOnStateListener(this, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                mainHandler.post(command);
+            }
+        }, AsyncStateListener.POLICY_ALL, 64);
         mStateMachine.setOnMultiStateListener(this);
         mStateMachine.setDbg(true);
         mBinding.btStart.setOnClickListener(this);
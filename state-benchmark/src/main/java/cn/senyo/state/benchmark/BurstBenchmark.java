@@ -0,0 +1,62 @@
+package cn.senyo.state.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bursts of events sent to a machine on its own EventLoop thread, handled one per
+ * dispatch (batchSize 1) or drained in batches.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BurstBenchmark {
+    private static final int BURST = 64;
+
+    @Param({"1", "16", "64"})
+    public int batchSize;
+
+    private LatencyBenchmark.PingMachine mMachine;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        mMachine = new LatencyBenchmark.PingMachine();
+        mMachine.setBatchSize(batchSize);
+        mMachine.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mMachine.quitNow();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BURST)
+    public long burst() {
+        long target = mMachine.mProcessed + BURST;
+        for (int i = 0; i < BURST; i++) {
+            mMachine.sendMessage(LatencyBenchmark.EV_PING);
+        }
+        while (mMachine.mProcessed < target) {
+            // spin until the whole burst is handled
+        }
+        return target;
+    }
+}
@@ -0,0 +1,58 @@
+package cn.senyo.state.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of addState for every state plus start(), i.e. completeConstruction and the
+ * initial enter walk, for large state counts. Run with {@code -prof gc} for the bytes
+ * allocated per machine, ftp against ftpFlyweight shows the per session memory of a
+ * StateMachine and of a MachineInstance of a shared definition.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ConstructionBenchmark {
+
+    @Param({"16", "256", "4096"})
+    public int states;
+
+    @Benchmark
+    public SyntheticMachine flat() {
+        SyntheticMachine sm = new SyntheticMachine();
+        sm.buildFlat(states);
+        sm.start();
+        return sm;
+    }
+
+    @Benchmark
+    public SyntheticMachine tree() {
+        SyntheticMachine sm = new SyntheticMachine();
+        sm.buildTree(states, 4);
+        sm.start();
+        return sm;
+    }
+
+    @Benchmark
+    public FtpSessionMachine ftp() {
+        return new FtpSessionMachine(new DirectDispatcher(), 0);
+    }
+
+    @Benchmark
+    public Object ftpFlyweight() {
+        return FtpSessionDefinition.newSession(new DirectDispatcher(), 0);
+    }
+}
@@ -0,0 +1,111 @@
+package cn.senyo.state.benchmark;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+import cn.senyo.state.core.Dispatcher;
+import cn.senyo.state.core.Event;
+
+/**
+ * Dispatcher running the events on the sending thread so the engine can be measured
+ * without a queue hop. Events sent while dispatching are queued and run to completion
+ * before the outer send returns. Delays are ignored.
+ */
+final class DirectDispatcher implements Dispatcher {
+    private final ArrayDeque<Event> mQueue = new ArrayDeque<>();
+    private Target mTarget;
+    private boolean mDispatching;
+    private boolean mReleased;
+
+    @Override
+    public void setTarget(@NonNull Target target) {
+        mTarget = target;
+    }
+
+    @Override
+    public boolean sendEvent(@NonNull Event event) {
+        if (mReleased) {
+            return false;
+        }
+        mQueue.addLast(event);
+        drain();
+        return true;
+    }
+
+    @Override
+    public boolean sendEventDelayed(@NonNull Event event, long delayMillis) {
+        return sendEvent(event);
+    }
+
+    @Override
+    public boolean sendEventAtFrontOfQueue(@NonNull Event event) {
+        if (mReleased) {
+            return false;
+        }
+        mQueue.addFirst(event);
+        drain();
+        return true;
+    }
+
+    @Override
+    public void sendEventsAtFrontOfQueue(@NonNull Event[] events, int count) {
+        if (!mReleased) {
+            for (int i = count - 1; i >= 0; i--) {
+                mQueue.addFirst(events[i]);
+            }
+        }
+        drain();
+    }
+
+    @Override
+    public void removeEvents(int what) {
+        for (Iterator<Event> it = mQueue.iterator(); it.hasNext(); ) {
+            if (it.next().what == what) {
+                it.remove();
+            }
+        }
+    }
+
+    @Override
+    public void removeEvents(int what, @NonNull Object obj) {
+        for (Iterator<Event> it = mQueue.iterator(); it.hasNext(); ) {
+            Event event = it.next();
+            if (event.what == what && event.obj == obj) {
+                it.remove();
+            }
+        }
+    }
+
+    @Override
+    public void cancelEvent(@NonNull Event event) {
+        mQueue.remove(event);
+    }
+
+    @Override
+    public void setBatchSize(int maxEvents) {
+        // Events already run to completion on the caller thread.
+    }
+
+    @Override
+    public void release() {
+        mReleased = true;
+        mQueue.clear();
+    }
+
+    private void drain() {
+        if (mDispatching) {
+            return;
+        }
+        mDispatching = true;
+        try {
+            Event event;
+            while (!mReleased && (event = mQueue.pollFirst()) != null) {
+                mTarget.handleEvent(event);
+            }
+        } finally {
+            mDispatching = false;
+        }
+    }
+}
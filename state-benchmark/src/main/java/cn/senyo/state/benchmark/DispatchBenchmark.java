@@ -0,0 +1,106 @@
+package cn.senyo.state.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import cn.senyo.state.core.StateMachine;
+
+/**
+ * Throughput of SmHandler.processMsg: one event handled by the current state of a flat
+ * machine, or walked up a chain of the given depth before the root handles it, or sent
+ * straight to the root when the states declare their events.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DispatchBenchmark {
+
+    @Param({"1", "4", "16"})
+    public int depth;
+
+    @Param({"8"})
+    public int flatStates;
+
+    private SyntheticMachine mFlat;
+    private SyntheticMachine mFlatMetrics;
+    private SyntheticMachine mFlatTraced;
+    private SyntheticMachine mDeep;
+    private SyntheticMachine mDeepDeclared;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        mFlat = SyntheticMachine.flat(flatStates);
+        mFlatMetrics = new SyntheticMachine();
+        mFlatMetrics.buildFlat(flatStates);
+        mFlatMetrics.setMetricsEnabled(true);
+        mFlatMetrics.start();
+        mFlatTraced = new SyntheticMachine();
+        mFlatTraced.buildFlat(flatStates);
+        mFlatTraced.setTraceCapacity(StateMachine.DEFAULT_TRACE_CAPACITY);
+        mFlatTraced.start();
+        mDeep = SyntheticMachine.deep(depth);
+        mDeepDeclared = SyntheticMachine.deep(depth, true);
+    }
+
+    @Benchmark
+    public long flat() {
+        mFlat.sendMessage(SyntheticMachine.EV_PING);
+        return mFlat.mHandled;
+    }
+
+    /**
+     * Carrying a byte count in the primitive payload, no boxing and no allocation once
+     * the event pool is warm (check with -prof gc).
+     */
+    @Benchmark
+    public long flatPayload() {
+        mFlat.sendMessage(SyntheticMachine.EV_PING, 0, 0, mFlat.mHandled, null);
+        return mFlat.mHandled;
+    }
+
+    /**
+     * flat with StateMetrics enabled, the difference is the cost of recording.
+     */
+    @Benchmark
+    public long flatMetrics() {
+        mFlatMetrics.sendMessage(SyntheticMachine.EV_PING);
+        return mFlatMetrics.mHandled;
+    }
+
+    /**
+     * flat with the default TransitionTrace. DirectDispatcher has no queue time to reuse,
+     * so this includes one clock read per event.
+     */
+    @Benchmark
+    public long flatTraced() {
+        mFlatTraced.sendMessage(SyntheticMachine.EV_PING);
+        return mFlatTraced.mHandled;
+    }
+
+    @Benchmark
+    public long deep() {
+        mDeep.sendMessage(SyntheticMachine.EV_PING);
+        return mDeep.mHandled;
+    }
+
+    @Benchmark
+    public long deepDeclared() {
+        mDeepDeclared.sendMessage(SyntheticMachine.EV_PING);
+        return mDeepDeclared.mHandled;
+    }
+}
@@ -0,0 +1,193 @@
+package cn.senyo.state.benchmark;
+
+import androidx.annotation.NonNull;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import cn.senyo.state.core.MachineFleet;
+import cn.senyo.state.core.MappedFleetStore;
+
+import static cn.senyo.state.benchmark.FtpSessionMachine.STATE_CONNECTED;
+import static cn.senyo.state.benchmark.FtpSessionMachine.STATE_CONNECT_FAILED;
+import static cn.senyo.state.benchmark.FtpSessionMachine.STATE_DEFAULT;
+import static cn.senyo.state.benchmark.FtpSessionMachine.STATE_DISCONNECTED;
+import static cn.senyo.state.benchmark.FtpSessionMachine.STATE_DROP;
+import static cn.senyo.state.benchmark.FtpSessionMachine.STATE_FIRST_DATA;
+import static cn.senyo.state.benchmark.FtpSessionMachine.STATE_LAST_DATA;
+import static cn.senyo.state.benchmark.FtpSessionMachine.STATE_LOGIN;
+import static cn.senyo.state.benchmark.FtpSessionMachine.STATE_LOGIN_FAILED;
+import static cn.senyo.state.benchmark.FtpSessionMachine.STATE_START;
+import static cn.senyo.state.benchmark.FtpSessionMachine.STATE_STOP;
+
+/**
+ * Batches of FTP session events for random machines, applied by a {@link MachineFleet}
+ * of flat machines in arrays, by one whose records are in a {@link MappedFleetStore} file,
+ * and by {@link FtpSessionMachine} objects with the same declared transitions on the
+ * caller thread. The objects are ten thousand only, a million of them would take
+ * gigabytes.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = {"-Xmx2g"})
+public class FleetBenchmark {
+    static final int BATCH = 65536;
+    static final int OBJECT_MACHINES = 10000;
+
+    private static final int[] WHATS = {STATE_START, STATE_LOGIN, STATE_CONNECTED,
+            STATE_FIRST_DATA, STATE_LAST_DATA, STATE_STOP};
+
+    @State(Scope.Thread)
+    public static class Fleet {
+        @Param({"1000000"})
+        public int machines;
+
+        MachineFleet mFleet;
+        MachineFleet mListenedFleet;
+        MachineFleet mMappedFleet;
+        MappedFleetStore mStore;
+        final int[] mMachines = new int[BATCH];
+        final int[] mWhats = new int[BATCH];
+        long mNotified;
+
+        @Setup(Level.Trial)
+        public void setup() throws IOException {
+            mFleet = buildFtpFleet(machines);
+            mListenedFleet = buildFtpFleet(machines);
+            File file = File.createTempFile("fleet", ".fleet");
+            file.deleteOnExit();
+            if (!file.delete()) {
+                throw new IOException("cannot delete " + file);
+            }
+            mStore = MappedFleetStore.open(file, machines);
+            mMappedFleet = ftpTransitions(new MachineFleet.Builder()).build(mStore);
+            mListenedFleet.setListener(new MachineFleet.Listener() {
+                @Override
+                public void onTransitions(@NonNull int[] machines, @NonNull int[] fromStates,
+                                          @NonNull int[] toStates, int count) {
+                    mNotified += count;
+                }
+            });
+            fillBatch(mMachines, mWhats, machines);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            mStore.close();
+            if (!mStore.getFile().delete()) {
+                mStore.getFile().deleteOnExit();
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Objects {
+        FtpSessionMachine[] mSessions;
+        final int[] mMachines = new int[BATCH];
+        final int[] mWhats = new int[BATCH];
+
+        @Setup(Level.Trial)
+        public void setup() {
+            mSessions = new FtpSessionMachine[OBJECT_MACHINES];
+            for (int i = 0; i < OBJECT_MACHINES; i++) {
+                mSessions[i] = new FtpSessionMachine(new DirectDispatcher(), 0, true);
+            }
+            fillBatch(mMachines, mWhats, OBJECT_MACHINES);
+        }
+    }
+
+    /**
+     * The declared transitions of FtpSessionMachine, plus the data ones it takes in
+     * processEvent.
+     */
+    static MachineFleet buildFtpFleet(int machines) {
+        return ftpTransitions(new MachineFleet.Builder()).build(machines);
+    }
+
+    @NonNull
+    static MachineFleet.Builder ftpTransitions(@NonNull MachineFleet.Builder builder) {
+        return builder
+                .addState(STATE_DEFAULT)
+                .addState(STATE_START)
+                .addState(STATE_LOGIN)
+                .addState(STATE_LOGIN_FAILED)
+                .addState(STATE_CONNECTED)
+                .addState(STATE_CONNECT_FAILED)
+                .addState(STATE_DROP)
+                .addState(STATE_DISCONNECTED)
+                .addState(STATE_FIRST_DATA)
+                .addState(STATE_LAST_DATA)
+                .addState(STATE_STOP)
+                .setInitialState(STATE_DEFAULT)
+                .addTransition(STATE_DEFAULT, STATE_START, STATE_START)
+                .addTransition(STATE_START, STATE_LOGIN, STATE_LOGIN)
+                .addTransition(STATE_START, STATE_STOP, STATE_STOP)
+                .addTransition(STATE_LOGIN, STATE_CONNECTED, STATE_CONNECTED)
+                .addTransition(STATE_LOGIN, STATE_STOP, STATE_STOP)
+                .addTransition(STATE_LOGIN_FAILED, STATE_LOGIN_FAILED, STATE_STOP)
+                .addTransition(STATE_CONNECTED, STATE_FIRST_DATA, STATE_FIRST_DATA)
+                .addTransition(STATE_CONNECTED, STATE_STOP, STATE_DISCONNECTED)
+                .addTransition(STATE_CONNECT_FAILED, STATE_CONNECT_FAILED, STATE_STOP)
+                .addTransition(STATE_FIRST_DATA, STATE_LAST_DATA, STATE_LAST_DATA)
+                .addTransition(STATE_LAST_DATA, STATE_LAST_DATA, STATE_DISCONNECTED)
+                .addTransition(STATE_DISCONNECTED, STATE_DISCONNECTED, STATE_STOP)
+                .addTransition(STATE_DISCONNECTED, STATE_STOP, STATE_STOP)
+                .addTransition(STATE_STOP, STATE_START, STATE_START);
+    }
+
+    static void fillBatch(@NonNull int[] machineIds, @NonNull int[] whats, int machines) {
+        Random random = new Random(42);
+        for (int i = 0; i < BATCH; i++) {
+            machineIds[i] = random.nextInt(machines);
+            whats[i] = WHATS[random.nextInt(WHATS.length)];
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public int fleet(Fleet state) {
+        return state.mFleet.apply(state.mMachines, state.mWhats, BATCH);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public int fleetListened(Fleet state) {
+        return state.mListenedFleet.apply(state.mMachines, state.mWhats, BATCH);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public int fleetMapped(Fleet state) {
+        return state.mMappedFleet.apply(state.mMachines, state.mWhats, BATCH);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void objects(Objects state) {
+        FtpSessionMachine[] sessions = state.mSessions;
+        int[] machines = state.mMachines;
+        int[] whats = state.mWhats;
+        for (int i = 0; i < BATCH; i++) {
+            sessions[machines[i]].sendMessage(whats[i]);
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package cn.senyo.state.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import cn.senyo.state.core.EventPool;
+import cn.senyo.state.core.MachineInstance;
+
+/**
+ * One full FTP session (start, login, connect, first data, last data down to the stop
+ * state) on the FtpStateMachine topology, on the caller thread. sessionTable declares
+ * the unconditional transitions in the transition table, sessionFlyweight runs a
+ * MachineInstance of the shared {@link FtpSessionDefinition}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FtpBenchmark {
+
+    private FtpSessionMachine mMachine;
+    private FtpSessionMachine mTableMachine;
+    private MachineInstance<FtpSessionDefinition.Session> mInstance;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        mMachine = new FtpSessionMachine(new DirectDispatcher(), 0);
+        mTableMachine = new FtpSessionMachine(new DirectDispatcher(), 0, true);
+        mInstance = FtpSessionDefinition.newSession(new DirectDispatcher(), 0, new EventPool());
+    }
+
+    @Benchmark
+    public Object session() {
+        mMachine.runSession();
+        return mMachine.getCurrentState();
+    }
+
+    @Benchmark
+    public Object sessionTable() {
+        mTableMachine.runSession();
+        return mTableMachine.getCurrentState();
+    }
+
+    @Benchmark
+    public int sessionFlyweight() {
+        FtpSessionDefinition.runSession(mInstance);
+        return mInstance.getCurrentStateCode();
+    }
+}
@@ -0,0 +1,329 @@
+package cn.senyo.state.benchmark;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import cn.senyo.state.core.Dispatcher;
+import cn.senyo.state.core.Event;
+import cn.senyo.state.core.EventPool;
+import cn.senyo.state.core.MachineInstance;
+import cn.senyo.state.core.SharedState;
+import cn.senyo.state.core.StateMachineDefinition;
+
+import static cn.senyo.state.benchmark.FtpSessionMachine.STATE_CONNECTED;
+import static cn.senyo.state.benchmark.FtpSessionMachine.STATE_CONNECT_FAILED;
+import static cn.senyo.state.benchmark.FtpSessionMachine.STATE_DEFAULT;
+import static cn.senyo.state.benchmark.FtpSessionMachine.STATE_DISCONNECTED;
+import static cn.senyo.state.benchmark.FtpSessionMachine.STATE_DROP;
+import static cn.senyo.state.benchmark.FtpSessionMachine.STATE_FIRST_DATA;
+import static cn.senyo.state.benchmark.FtpSessionMachine.STATE_LAST_DATA;
+import static cn.senyo.state.benchmark.FtpSessionMachine.STATE_LOGIN;
+import static cn.senyo.state.benchmark.FtpSessionMachine.STATE_LOGIN_FAILED;
+import static cn.senyo.state.benchmark.FtpSessionMachine.STATE_START;
+import static cn.senyo.state.benchmark.FtpSessionMachine.STATE_STOP;
+
+/**
+ * The {@link FtpSessionMachine} topology as one shared {@link StateMachineDefinition},
+ * a session is a {@link MachineInstance} with a {@link Session} context.
+ */
+final class FtpSessionDefinition {
+    static final StateMachineDefinition<Session> DEFINITION = build();
+
+    private FtpSessionDefinition() {
+    }
+
+    /**
+     * Extended state of one session
+     */
+    static final class Session {
+        final int mSaveNum;
+        int mNum;
+
+        Session(int num) {
+            mSaveNum = num;
+            mNum = num;
+        }
+    }
+
+    @NonNull
+    static MachineInstance<Session> newSession(@NonNull Dispatcher dispatcher, int num) {
+        return newSession(dispatcher, num, null);
+    }
+
+    @NonNull
+    static MachineInstance<Session> newSession(@NonNull Dispatcher dispatcher, int num,
+                                               @Nullable EventPool pool) {
+        MachineInstance<Session> machine = new MachineInstance<>(DEFINITION, dispatcher,
+                new Session(num), pool);
+        machine.start();
+        return machine;
+    }
+
+    /**
+     * @see FtpSessionMachine#runSession()
+     */
+    static void runSession(@NonNull MachineInstance<Session> machine) {
+        machine.sendMessage(STATE_START);
+        machine.sendMessage(STATE_LOGIN);
+        machine.sendMessage(STATE_CONNECTED);
+        machine.sendMessage(STATE_FIRST_DATA);
+        machine.sendMessage(STATE_LAST_DATA);
+    }
+
+    private static StateMachineDefinition<Session> build() {
+        DefaultState defaultState = new DefaultState();
+        return new StateMachineDefinition.Builder<Session>()
+                .addState(defaultState)
+                .addState(new StartState())
+                .addState(new LoginState())
+                .addState(new LoginFailedState())
+                .addState(new ConnectedState())
+                .addState(new ConnectFailedState())
+                .addState(new DropState())
+                .addState(new DisconnectedState())
+                .addState(new FirstDataState())
+                .addState(new LastDataState())
+                .addState(new StopState())
+                .setInitialState(defaultState)
+                .build();
+    }
+
+    private static void checkAndTransitionTo(@NonNull MachineInstance<Session> machine,
+                                             int code) {
+        Session session = machine.getContext();
+        if (session.mNum <= 0 || --session.mNum <= 0) {
+            machine.transitionTo(code);
+        }
+    }
+
+    private static final class DefaultState extends SharedState<Session> {
+        DefaultState() {
+            super(STATE_DEFAULT);
+        }
+
+        @Override
+        public boolean processEvent(@NonNull MachineInstance<Session> machine,
+                                    @NonNull Event event) {
+            if (event.what == STATE_START) {
+                machine.transitionTo(STATE_START);
+            }
+            return HANDLED;
+        }
+    }
+
+    private static final class StartState extends SharedState<Session> {
+        StartState() {
+            super(STATE_START);
+        }
+
+        @Override
+        public boolean processEvent(@NonNull MachineInstance<Session> machine,
+                                    @NonNull Event event) {
+            switch (event.what) {
+                case STATE_LOGIN:
+                    machine.transitionTo(STATE_LOGIN);
+                    break;
+                case STATE_LOGIN_FAILED:
+                    checkAndTransitionTo(machine, STATE_LOGIN_FAILED);
+                    break;
+                case STATE_STOP:
+                    machine.transitionTo(STATE_STOP);
+                    break;
+                default:
+                    break;
+            }
+            return HANDLED;
+        }
+    }
+
+    private static final class LoginState extends SharedState<Session> {
+        LoginState() {
+            super(STATE_LOGIN);
+        }
+
+        @Override
+        public boolean processEvent(@NonNull MachineInstance<Session> machine,
+                                    @NonNull Event event) {
+            switch (event.what) {
+                case STATE_CONNECTED:
+                    machine.transitionTo(STATE_CONNECTED);
+                    break;
+                case STATE_LOGIN_FAILED:
+                case STATE_CONNECT_FAILED:
+                    checkAndTransitionTo(machine, STATE_CONNECT_FAILED);
+                    break;
+                case STATE_STOP:
+                    machine.transitionTo(STATE_STOP);
+                    break;
+                default:
+                    break;
+            }
+            return HANDLED;
+        }
+    }
+
+    private static final class LoginFailedState extends SharedState<Session> {
+        LoginFailedState() {
+            super(STATE_LOGIN_FAILED);
+        }
+
+        @Override
+        public boolean processEvent(@NonNull MachineInstance<Session> machine,
+                                    @NonNull Event event) {
+            if (event.what == STATE_LOGIN_FAILED) {
+                machine.transitionTo(STATE_STOP);
+            }
+            return HANDLED;
+        }
+    }
+
+    private static final class ConnectedState extends SharedState<Session> {
+        ConnectedState() {
+            super(STATE_CONNECTED);
+        }
+
+        @Override
+        public boolean processEvent(@NonNull MachineInstance<Session> machine,
+                                    @NonNull Event event) {
+            switch (event.what) {
+                case STATE_CONNECT_FAILED:
+                case STATE_LOGIN_FAILED:
+                case STATE_DROP:
+                    checkAndTransitionTo(machine, STATE_DROP);
+                    break;
+                case STATE_FIRST_DATA:
+                    machine.transitionTo(STATE_FIRST_DATA);
+                    break;
+                case STATE_STOP:
+                    machine.transitionTo(STATE_DISCONNECTED);
+                    break;
+                default:
+                    break;
+            }
+            return HANDLED;
+        }
+    }
+
+    private static final class ConnectFailedState extends SharedState<Session> {
+        ConnectFailedState() {
+            super(STATE_CONNECT_FAILED);
+        }
+
+        @Override
+        public boolean processEvent(@NonNull MachineInstance<Session> machine,
+                                    @NonNull Event event) {
+            if (event.what == STATE_CONNECT_FAILED) {
+                machine.transitionTo(STATE_STOP);
+            }
+            return HANDLED;
+        }
+    }
+
+    private static final class DropState extends SharedState<Session> {
+        DropState() {
+            super(STATE_DROP);
+        }
+
+        @Override
+        public boolean processEvent(@NonNull MachineInstance<Session> machine,
+                                    @NonNull Event event) {
+            if (event.what == STATE_DROP) {
+                checkAndTransitionTo(machine, STATE_STOP);
+            }
+            return HANDLED;
+        }
+    }
+
+    private static final class FirstDataState extends SharedState<Session> {
+        FirstDataState() {
+            super(STATE_FIRST_DATA);
+        }
+
+        @Override
+        public boolean processEvent(@NonNull MachineInstance<Session> machine,
+                                    @NonNull Event event) {
+            switch (event.what) {
+                case STATE_CONNECT_FAILED:
+                case STATE_LOGIN_FAILED:
+                case STATE_DROP:
+                    checkAndTransitionTo(machine, STATE_DROP);
+                    break;
+                case STATE_DISCONNECTED:
+                case STATE_LAST_DATA:
+                    checkAndTransitionTo(machine, STATE_LAST_DATA);
+                    break;
+                case STATE_STOP:
+                    machine.transitionTo(STATE_LAST_DATA);
+                    break;
+                default:
+                    break;
+            }
+            return HANDLED;
+        }
+    }
+
+    private static final class LastDataState extends SharedState<Session> {
+        LastDataState() {
+            super(STATE_LAST_DATA);
+        }
+
+        @Override
+        public boolean processEvent(@NonNull MachineInstance<Session> machine,
+                                    @NonNull Event event) {
+            switch (event.what) {
+                case STATE_CONNECT_FAILED:
+                case STATE_LOGIN_FAILED:
+                case STATE_DROP:
+                    checkAndTransitionTo(machine, STATE_DROP);
+                    break;
+                case STATE_DISCONNECTED:
+                case STATE_LAST_DATA:
+                    checkAndTransitionTo(machine, STATE_DISCONNECTED);
+                    break;
+                case STATE_STOP:
+                    machine.transitionTo(STATE_DISCONNECTED);
+                    break;
+                default:
+                    break;
+            }
+            return HANDLED;
+        }
+    }
+
+    private static final class DisconnectedState extends SharedState<Session> {
+        DisconnectedState() {
+            super(STATE_DISCONNECTED);
+        }
+
+        @Override
+        public boolean processEvent(@NonNull MachineInstance<Session> machine,
+                                    @NonNull Event event) {
+            switch (event.what) {
+                case STATE_DISCONNECTED:
+                case STATE_STOP:
+                    machine.transitionTo(STATE_STOP);
+                    break;
+                default:
+                    break;
+            }
+            return HANDLED;
+        }
+    }
+
+    private static final class StopState extends SharedState<Session> {
+        StopState() {
+            super(STATE_STOP);
+        }
+
+        @Override
+        public boolean processEvent(@NonNull MachineInstance<Session> machine,
+                                    @NonNull Event event) {
+            if (event.what == STATE_START) {
+                Session session = machine.getContext();
+                session.mNum = session.mSaveNum;
+                machine.transitionTo(STATE_START);
+            }
+            return HANDLED;
+        }
+    }
+}
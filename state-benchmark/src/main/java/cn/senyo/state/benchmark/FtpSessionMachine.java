@@ -0,0 +1,313 @@
+package cn.senyo.state.benchmark;
+
+import androidx.annotation.NonNull;
+
+import cn.senyo.state.core.Dispatcher;
+import cn.senyo.state.core.Event;
+import cn.senyo.state.core.IState;
+import cn.senyo.state.core.State;
+import cn.senyo.state.core.StateMachine;
+
+/**
+ * Same topology and transitions as the app's FtpStateMachine, on the core engine and
+ * without logging. With declarative set the unconditional transitions are declared
+ * with addTransition instead of being taken in processEvent.
+ */
+final class FtpSessionMachine extends StateMachine {
+    static final int STATE_DEFAULT = 0;
+    static final int STATE_START = 1;
+    static final int STATE_LOGIN = 2;
+    static final int STATE_LOGIN_FAILED = 3;
+    static final int STATE_CONNECTED = 4;
+    static final int STATE_CONNECT_FAILED = 5;
+    static final int STATE_FIRST_DATA = 6;
+    static final int STATE_LAST_DATA = 7;
+    static final int STATE_DISCONNECTED = 8;
+    static final int STATE_DROP = 10;
+    static final int STATE_STOP = 11;
+    private final int mSaveNum;
+    private int mNum;
+    private final DefaultState mDefaultState = new DefaultState();
+    private final StartState mStartState = new StartState();
+    private final LoginState mLoginState = new LoginState();
+    private final LoginFailedState mLoginFailedState = new LoginFailedState();
+    private final ConnectedState mConnectedState = new ConnectedState();
+    private final ConnectFailedState mConnectFailedState = new ConnectFailedState();
+    private final DropState mDropState = new DropState();
+    private final DisconnectedState mDisconnectedState = new DisconnectedState();
+    private final FirstDataState mFirstDataState = new FirstDataState();
+    private final LastDataState mLastDataState = new LastDataState();
+    private final StopState mStopState = new StopState();
+
+    FtpSessionMachine(@NonNull Dispatcher dispatcher, int num) {
+        this(dispatcher, num, false);
+    }
+
+    FtpSessionMachine(@NonNull Dispatcher dispatcher, int num, boolean declarative) {
+        super("FtpSession", dispatcher);
+        mSaveNum = num;
+        mNum = num;
+        addState(mDefaultState);
+        addState(mStartState);
+        addState(mLoginState);
+        addState(mLoginFailedState);
+        addState(mConnectedState);
+        addState(mConnectFailedState);
+        addState(mDropState);
+        addState(mDisconnectedState);
+        addState(mFirstDataState);
+        addState(mLastDataState);
+        addState(mStopState);
+        if (declarative) {
+            addTransition(STATE_DEFAULT, STATE_START, STATE_START);
+            addTransition(STATE_START, STATE_LOGIN, STATE_LOGIN);
+            addTransition(STATE_START, STATE_STOP, STATE_STOP);
+            addTransition(STATE_LOGIN, STATE_CONNECTED, STATE_CONNECTED);
+            addTransition(STATE_LOGIN, STATE_STOP, STATE_STOP);
+            addTransition(STATE_LOGIN_FAILED, STATE_LOGIN_FAILED, STATE_STOP);
+            addTransition(STATE_CONNECTED, STATE_FIRST_DATA, STATE_FIRST_DATA);
+            addTransition(STATE_CONNECTED, STATE_STOP, STATE_DISCONNECTED);
+            addTransition(STATE_CONNECT_FAILED, STATE_CONNECT_FAILED, STATE_STOP);
+            addTransition(STATE_DISCONNECTED, STATE_DISCONNECTED, STATE_STOP);
+            addTransition(STATE_DISCONNECTED, STATE_STOP, STATE_STOP);
+        }
+        setInitialState(mDefaultState);
+        start();
+    }
+
+    /**
+     * Drive one full session: start, login, connect, first and last data, down to StopState.
+     */
+    void runSession() {
+        sendMessage(STATE_START);
+        sendMessage(STATE_LOGIN);
+        sendMessage(STATE_CONNECTED);
+        sendMessage(STATE_FIRST_DATA);
+        sendMessage(STATE_LAST_DATA);
+    }
+
+    private void checkAndTransitionTo(IState state) {
+        if (mNum <= 0 || --mNum <= 0) {
+            transitionTo(state);
+        }
+    }
+
+    private class DefaultState extends State {
+        DefaultState() {
+            super(STATE_DEFAULT);
+        }
+
+        @Override
+        public boolean processEvent(@NonNull Event event) {
+            if (event.what == STATE_START) {
+                transitionTo(mStartState);
+            }
+            return HANDLED;
+        }
+    }
+
+    private class StartState extends State {
+        StartState() {
+            super(STATE_START);
+        }
+
+        @Override
+        public boolean processEvent(@NonNull Event event) {
+            switch (event.what) {
+                case STATE_LOGIN:
+                    transitionTo(mLoginState);
+                    break;
+                case STATE_LOGIN_FAILED:
+                    checkAndTransitionTo(mLoginFailedState);
+                    break;
+                case STATE_STOP:
+                    transitionTo(mStopState);
+                    break;
+                default:
+                    break;
+            }
+            return HANDLED;
+        }
+    }
+
+    private class LoginState extends State {
+        LoginState() {
+            super(STATE_LOGIN);
+        }
+
+        @Override
+        public boolean processEvent(@NonNull Event event) {
+            switch (event.what) {
+                case STATE_CONNECTED:
+                    transitionTo(mConnectedState);
+                    break;
+                case STATE_LOGIN_FAILED:
+                case STATE_CONNECT_FAILED:
+                    checkAndTransitionTo(mConnectFailedState);
+                    break;
+                case STATE_STOP:
+                    transitionTo(mStopState);
+                    break;
+                default:
+                    break;
+            }
+            return HANDLED;
+        }
+    }
+
+    private class LoginFailedState extends State {
+        LoginFailedState() {
+            super(STATE_LOGIN_FAILED);
+        }
+
+        @Override
+        public boolean processEvent(@NonNull Event event) {
+            if (event.what == STATE_LOGIN_FAILED) {
+                transitionTo(mStopState);
+            }
+            return HANDLED;
+        }
+    }
+
+    private class ConnectedState extends State {
+        ConnectedState() {
+            super(STATE_CONNECTED);
+        }
+
+        @Override
+        public boolean processEvent(@NonNull Event event) {
+            switch (event.what) {
+                case STATE_CONNECT_FAILED:
+                case STATE_LOGIN_FAILED:
+                case STATE_DROP:
+                    checkAndTransitionTo(mDropState);
+                    break;
+                case STATE_FIRST_DATA:
+                    transitionTo(mFirstDataState);
+                    break;
+                case STATE_STOP:
+                    transitionTo(mDisconnectedState);
+                    break;
+                default:
+                    break;
+            }
+            return HANDLED;
+        }
+    }
+
+    private class ConnectFailedState extends State {
+        ConnectFailedState() {
+            super(STATE_CONNECT_FAILED);
+        }
+
+        @Override
+        public boolean processEvent(@NonNull Event event) {
+            if (event.what == STATE_CONNECT_FAILED) {
+                transitionTo(mStopState);
+            }
+            return HANDLED;
+        }
+    }
+
+    private class DropState extends State {
+        DropState() {
+            super(STATE_DROP);
+        }
+
+        @Override
+        public boolean processEvent(@NonNull Event event) {
+            if (event.what == STATE_DROP) {
+                checkAndTransitionTo(mStopState);
+            }
+            return HANDLED;
+        }
+    }
+
+    private class FirstDataState extends State {
+        FirstDataState() {
+            super(STATE_FIRST_DATA);
+        }
+
+        @Override
+        public boolean processEvent(@NonNull Event event) {
+            switch (event.what) {
+                case STATE_CONNECT_FAILED:
+                case STATE_LOGIN_FAILED:
+                case STATE_DROP:
+                    checkAndTransitionTo(mDropState);
+                    break;
+                case STATE_DISCONNECTED:
+                case STATE_LAST_DATA:
+                    checkAndTransitionTo(mLastDataState);
+                    break;
+                case STATE_STOP:
+                    transitionTo(mLastDataState, event.what);
+                    break;
+                default:
+                    break;
+            }
+            return HANDLED;
+        }
+    }
+
+    private class LastDataState extends State {
+        LastDataState() {
+            super(STATE_LAST_DATA);
+        }
+
+        @Override
+        public boolean processEvent(@NonNull Event event) {
+            switch (event.what) {
+                case STATE_CONNECT_FAILED:
+                case STATE_LOGIN_FAILED:
+                case STATE_DROP:
+                    checkAndTransitionTo(mDropState);
+                    break;
+                case STATE_DISCONNECTED:
+                case STATE_LAST_DATA:
+                    checkAndTransitionTo(mDisconnectedState);
+                    break;
+                case STATE_STOP:
+                    transitionTo(mDisconnectedState, event.what);
+                    break;
+                default:
+                    break;
+            }
+            return HANDLED;
+        }
+    }
+
+    private class DisconnectedState extends State {
+        DisconnectedState() {
+            super(STATE_DISCONNECTED);
+        }
+
+        @Override
+        public boolean processEvent(@NonNull Event event) {
+            switch (event.what) {
+                case STATE_DISCONNECTED:
+                case STATE_STOP:
+                    transitionTo(mStopState);
+                    break;
+                default:
+                    break;
+            }
+            return HANDLED;
+        }
+    }
+
+    private class StopState extends State {
+        StopState() {
+            super(STATE_STOP);
+        }
+
+        @Override
+        public boolean processEvent(@NonNull Event event) {
+            if (event.what == STATE_START) {
+                mNum = mSaveNum;
+                transitionTo(mStartState);
+            }
+            return HANDLED;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package cn.senyo.state.benchmark;
+
+import androidx.annotation.NonNull;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import cn.senyo.state.core.Event;
+import cn.senyo.state.core.StateMachine;
+
+/**
+ * End to end latency from sendMessage on the benchmark thread to processEvent on the
+ * machine's own EventLoop thread.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class LatencyBenchmark {
+    static final int EV_PING = 1;
+
+    static final class PingMachine extends StateMachine {
+        volatile long mProcessed;
+
+        PingMachine() {
+            super("PingMachine");
+            PingState state = new PingState();
+            addState(state);
+            setInitialState(state);
+        }
+
+        final class PingState extends cn.senyo.state.core.State {
+            PingState() {
+                super(0);
+            }
+
+            @Override
+            public boolean processEvent(@NonNull Event event) {
+                if (event.what == EV_PING) {
+                    mProcessed++;
+                }
+                return HANDLED;
+            }
+        }
+    }
+
+    private PingMachine mMachine;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        mMachine = new PingMachine();
+        mMachine.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mMachine.quitNow();
+    }
+
+    @Benchmark
+    public long sendToProcess() {
+        long target = mMachine.mProcessed + 1;
+        mMachine.sendMessage(EV_PING);
+        while (mMachine.mProcessed < target) {
+            // spin, the machine thread is busy handling the ping
+        }
+        return target;
+    }
+}
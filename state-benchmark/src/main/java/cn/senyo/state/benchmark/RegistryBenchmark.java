@@ -0,0 +1,159 @@
+package cn.senyo.state.benchmark;
+
+import androidx.annotation.NonNull;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import cn.senyo.state.core.Dispatcher;
+import cn.senyo.state.core.Event;
+import cn.senyo.state.core.StateMachine;
+import cn.senyo.state.core.StateMachineRegistry;
+
+/**
+ * Lookup and routing by session id in a {@link StateMachineRegistry} of many live
+ * sessions from all cores at once. The machines drop what they get, so only the registry
+ * and the send path are measured, not the machine threads.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(Threads.MAX)
+@State(Scope.Benchmark)
+public class RegistryBenchmark {
+    static final int EV_PROBE = 1;
+
+    @Param({"100000"})
+    public int sessions;
+
+    private StateMachineRegistry<String, SessionMachine> mRegistry;
+    private String[] mKeys;
+
+    static final class SessionMachine extends StateMachine {
+        SessionMachine(String name) {
+            super(name, new SinkDispatcher());
+            setTraceCapacity(0);
+            cn.senyo.state.core.State state = new cn.senyo.state.core.State(0) {
+            };
+            addState(state);
+            setInitialState(state);
+        }
+    }
+
+    /**
+     * Recycles every event right away.
+     */
+    static final class SinkDispatcher implements Dispatcher {
+        @Override
+        public void setTarget(@NonNull Target target) {
+        }
+
+        @Override
+        public boolean sendEvent(@NonNull Event event) {
+            event.recycle();
+            return true;
+        }
+
+        @Override
+        public boolean sendEventDelayed(@NonNull Event event, long delayMillis) {
+            return sendEvent(event);
+        }
+
+        @Override
+        public boolean sendEventAtFrontOfQueue(@NonNull Event event) {
+            return sendEvent(event);
+        }
+
+        @Override
+        public void sendEventsAtFrontOfQueue(@NonNull Event[] events, int count) {
+            for (int i = 0; i < count; i++) {
+                events[i].recycle();
+            }
+        }
+
+        @Override
+        public void removeEvents(int what) {
+        }
+
+        @Override
+        public void removeEvents(int what, @NonNull Object obj) {
+        }
+
+        @Override
+        public void cancelEvent(@NonNull Event event) {
+        }
+
+        @Override
+        public void setBatchSize(int maxEvents) {
+        }
+
+        @Override
+        public void release() {
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int mSeed = (int) System.nanoTime() | 1;
+
+        int next(int bound) {
+            // xorshift, cheap and thread local
+            int x = mSeed;
+            x ^= x << 13;
+            x ^= x >>> 17;
+            x ^= x << 5;
+            mSeed = x;
+            return (x & Integer.MAX_VALUE) % bound;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() {
+        mRegistry = new StateMachineRegistry<>(
+                new StateMachineRegistry.Factory<String, SessionMachine>() {
+                    @NonNull
+                    @Override
+                    public SessionMachine create(@NonNull String key) {
+                        SessionMachine machine = new SessionMachine(key);
+                        machine.start();
+                        return machine;
+                    }
+                });
+        mKeys = new String[sessions];
+        for (int i = 0; i < sessions; i++) {
+            mKeys[i] = "session-" + i;
+            mRegistry.getOrCreate(mKeys[i]);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mRegistry.close();
+    }
+
+    @Benchmark
+    public Object lookup(Cursor cursor) {
+        return mRegistry.get(mKeys[cursor.next(sessions)]);
+    }
+
+    @Benchmark
+    public void route(Cursor cursor) {
+        mRegistry.sendMessage(mKeys[cursor.next(sessions)], EV_PROBE);
+    }
+}
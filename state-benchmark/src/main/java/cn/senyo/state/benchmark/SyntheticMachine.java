@@ -0,0 +1,192 @@
+package cn.senyo.state.benchmark;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import cn.senyo.state.core.Dispatcher;
+import cn.senyo.state.core.Event;
+import cn.senyo.state.core.State;
+import cn.senyo.state.core.StateMachine;
+
+/**
+ * State machine with generated topologies, driven on the caller thread by a
+ * {@link DirectDispatcher} unless another dispatcher is given.
+ */
+final class SyntheticMachine extends StateMachine {
+    /**
+     * Handled by the states flagged with handlesPing, walks up the hierarchy otherwise
+     */
+    static final int EV_PING = 1;
+
+    /**
+     * Transition to the toggle target of the state handling it
+     */
+    static final int EV_TOGGLE = 2;
+
+    /**
+     * State codes start here so the state events never collide with EV_*
+     */
+    private static final int CODE_BASE = 1000;
+
+    final List<Node> mNodes = new ArrayList<>();
+    long mHandled;
+    long mUnhandled;
+
+    SyntheticMachine() {
+        this(new DirectDispatcher());
+    }
+
+    SyntheticMachine(@NonNull Dispatcher dispatcher) {
+        super("Synthetic", dispatcher);
+        // measure the engine alone, DispatchBenchmark.flatTraced covers the trace
+        setTraceCapacity(0);
+    }
+
+    final class Node extends State {
+        Node mToggleTarget;
+        boolean mHandlesPing;
+
+        Node(int code) {
+            super(code);
+        }
+
+        /**
+         * Declare the events processEvent handles as configured, see State#setHandledEvents
+         */
+        void declareHandledEvents() {
+            if (mHandlesPing && mToggleTarget != null) {
+                setHandledEvents(EV_PING, EV_TOGGLE);
+            } else if (mHandlesPing) {
+                setHandledEvents(EV_PING);
+            } else if (mToggleTarget != null) {
+                setHandledEvents(EV_TOGGLE);
+            } else {
+                setHandledEvents();
+            }
+        }
+
+        @Override
+        public boolean processEvent(@NonNull Event event) {
+            switch (event.what) {
+                case EV_PING:
+                    if (mHandlesPing) {
+                        mHandled++;
+                        return HANDLED;
+                    }
+                    return NOT_HANDLED;
+                case EV_TOGGLE:
+                    if (mToggleTarget != null) {
+                        transitionTo(mToggleTarget);
+                        return HANDLED;
+                    }
+                    return NOT_HANDLED;
+                default:
+                    return NOT_HANDLED;
+            }
+        }
+    }
+
+    @Override
+    protected void unhandledEvent(@NonNull Event event) {
+        // State events re-posted by transitionTo end up here, don't log them.
+        mUnhandled++;
+    }
+
+    Node node(Node parent) {
+        Node node = new Node(CODE_BASE + mNodes.size());
+        mNodes.add(node);
+        addState(node, parent);
+        return node;
+    }
+
+    Node chain(Node parent, int length) {
+        Node node = parent;
+        for (int i = 0; i < length; i++) {
+            node = node(node);
+        }
+        return node;
+    }
+
+    /**
+     * count sibling states without parent, each handles EV_PING and EV_TOGGLE moves
+     * to the next one.
+     */
+    @NonNull
+    static SyntheticMachine flat(int count) {
+        SyntheticMachine sm = new SyntheticMachine();
+        sm.buildFlat(count);
+        sm.start();
+        return sm;
+    }
+
+    void buildFlat(int count) {
+        for (int i = 0; i < count; i++) {
+            node(null).mHandlesPing = true;
+        }
+        for (int i = 0; i < count; i++) {
+            mNodes.get(i).mToggleTarget = mNodes.get((i + 1) % count);
+        }
+        setInitialState(mNodes.get(0));
+    }
+
+    /**
+     * A single chain depth states deep, only the root handles EV_PING so every ping
+     * is rejected by depth - 1 states first.
+     */
+    @NonNull
+    static SyntheticMachine deep(int depth) {
+        return deep(depth, false);
+    }
+
+    /**
+     * @param declared true for the states to declare their events, so pings skip the
+     *                 chain and go straight to the root
+     */
+    @NonNull
+    static SyntheticMachine deep(int depth, boolean declared) {
+        SyntheticMachine sm = new SyntheticMachine();
+        Node root = sm.node(null);
+        root.mHandlesPing = true;
+        Node leaf = sm.chain(root, depth - 1);
+        leaf.mToggleTarget = leaf;
+        if (declared) {
+            for (Node node : sm.mNodes) {
+                node.declareHandledEvents();
+            }
+        }
+        sm.setInitialState(leaf);
+        sm.start();
+        return sm;
+    }
+
+    /**
+     * Two branches of branchDepth states below a common root, EV_TOGGLE moves between
+     * the two leaves so every transition exits and enters branchDepth states.
+     */
+    @NonNull
+    static SyntheticMachine fork(int rootDepth, int branchDepth) {
+        SyntheticMachine sm = new SyntheticMachine();
+        Node lca = sm.chain(null, rootDepth);
+        Node left = sm.chain(lca, branchDepth);
+        Node right = sm.chain(lca, branchDepth);
+        left.mToggleTarget = right;
+        right.mToggleTarget = left;
+        sm.setInitialState(left);
+        sm.start();
+        return sm;
+    }
+
+    /**
+     * A tree of count states with the given fanout, used for construction cost.
+     */
+    void buildTree(int count, int fanout) {
+        Node root = node(null);
+        for (int i = 1; i < count; i++) {
+            node(mNodes.get((i - 1) / fanout));
+        }
+        setInitialState(mNodes.get(count - 1));
+        root.mHandlesPing = true;
+    }
+}
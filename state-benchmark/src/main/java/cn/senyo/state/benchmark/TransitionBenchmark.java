@@ -0,0 +1,71 @@
+package cn.senyo.state.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of performTransitions. Each operation is one transition plus its re-posted
+ * state event.
+ * <ul>
+ * <li>lca: toggle between two leaves whose common ancestor is rootDepth deep, so
+ * branchDepth states are exited and branchDepth entered.</li>
+ * <li>self: transition of the leaf of a rootDepth + branchDepth deep chain to itself,
+ * the minimal enter/exit walk at that depth.</li>
+ * <li>flat: toggle between sibling states without hierarchy.</li>
+ * </ul>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TransitionBenchmark {
+
+    @Param({"1", "4"})
+    public int rootDepth;
+
+    @Param({"1", "2", "4", "8"})
+    public int branchDepth;
+
+    private SyntheticMachine mFork;
+    private SyntheticMachine mSelf;
+    private SyntheticMachine mFlat;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        mFork = SyntheticMachine.fork(rootDepth, branchDepth);
+        mSelf = SyntheticMachine.deep(rootDepth + branchDepth);
+        mFlat = SyntheticMachine.flat(2);
+    }
+
+    @Benchmark
+    public long lca() {
+        mFork.sendMessage(SyntheticMachine.EV_TOGGLE);
+        return mFork.mUnhandled;
+    }
+
+    @Benchmark
+    public long self() {
+        mSelf.sendMessage(SyntheticMachine.EV_TOGGLE);
+        return mSelf.mUnhandled;
+    }
+
+    @Benchmark
+    public long flat() {
+        mFlat.sendMessage(SyntheticMachine.EV_TOGGLE);
+        return mFlat.mUnhandled;
+    }
+}
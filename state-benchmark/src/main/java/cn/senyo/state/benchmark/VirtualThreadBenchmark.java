@@ -0,0 +1,162 @@
+package cn.senyo.state.benchmark;
+
+import androidx.annotation.NonNull;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import cn.senyo.state.core.Event;
+import cn.senyo.state.core.EventLoop;
+import cn.senyo.state.core.StateMachine;
+import cn.senyo.state.core.VirtualThreads;
+
+/**
+ * One event to each of many machines, every one switching state and blocking in enter()
+ * like a socket connect, until all are handled. The machines either run on a fixed pool
+ * of one platform EventLoop per core, or each on its own loop on a virtual thread.
+ * <p>
+ * The virtual backend needs JDK 21 to run: {@code -Pjmh.include=VirtualThreadBenchmark}.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = {"-Xmx4g"})
+@State(Scope.Benchmark)
+public class VirtualThreadBenchmark {
+    static final int EV_CONNECT = 1;
+
+    @Param({"pool", "virtual"})
+    public String backend;
+
+    @Param({"10000", "100000"})
+    public int machines;
+
+    /**
+     * Time blocked in each enter(), 0 for pure dispatch
+     */
+    @Param({"0", "1"})
+    public int blockMillis;
+
+    private SessionMachine[] mMachines;
+    private EventLoop[] mLoops;
+    volatile CountDownLatch mDone;
+
+    final class SessionMachine extends StateMachine {
+        private int mEnters;
+
+        SessionMachine(String name, @NonNull ThreadFactory threadFactory) {
+            super(name, threadFactory);
+            init();
+        }
+
+        SessionMachine(String name, @NonNull EventLoop loop) {
+            super(name, loop);
+            init();
+        }
+
+        private void init() {
+            setTraceCapacity(0);
+            Session idle = new Session(0);
+            Session connected = new Session(1);
+            idle.mNext = connected;
+            connected.mNext = idle;
+            addState(idle);
+            addState(connected);
+            setInitialState(idle);
+        }
+
+        final class Session extends cn.senyo.state.core.State {
+            Session mNext;
+
+            Session(int code) {
+                super(code);
+            }
+
+            @Override
+            public void enter() {
+                if (mEnters++ == 0) {
+                    // the initial state
+                    return;
+                }
+                if (blockMillis > 0) {
+                    try {
+                        Thread.sleep(blockMillis);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                mDone.countDown();
+            }
+
+            @Override
+            public boolean processEvent(@NonNull Event event) {
+                if (event.what == EV_CONNECT) {
+                    transitionTo(mNext);
+                }
+                return HANDLED;
+            }
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() {
+        mMachines = new SessionMachine[machines];
+        if ("virtual".equals(backend)) {
+            ThreadFactory factory = VirtualThreads.factory();
+            for (int i = 0; i < machines; i++) {
+                mMachines[i] = new SessionMachine("session-" + i, factory);
+            }
+        } else {
+            mLoops = new EventLoop[Runtime.getRuntime().availableProcessors()];
+            for (int i = 0; i < mLoops.length; i++) {
+                mLoops[i] = new EventLoop("pool-" + i);
+                mLoops[i].start();
+            }
+            for (int i = 0; i < machines; i++) {
+                mMachines[i] = new SessionMachine("session-" + i, mLoops[i % mLoops.length]);
+            }
+        }
+        for (SessionMachine machine : mMachines) {
+            machine.start();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        for (SessionMachine machine : mMachines) {
+            machine.quitNow();
+        }
+        if (mLoops != null) {
+            for (EventLoop loop : mLoops) {
+                loop.quit();
+            }
+        }
+    }
+
+    @Benchmark
+    public long connectAll() throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(machines);
+        mDone = done;
+        for (SessionMachine machine : mMachines) {
+            machine.sendMessage(EV_CONNECT);
+        }
+        done.await();
+        return done.getCount();
+    }
+}
@@ -0,0 +1,192 @@
+package cn.senyo.state.core;
+
+import androidx.annotation.NonNull;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * {@link StateMachine.OnStateListener} handing the state changes to another listener on an
+ * executor, so a slow listener never stalls the machine thread. The machine thread only
+ * stores the state and schedules a drain, it never waits for the consumer.
+ * <p>
+ * With {@link #POLICY_LATEST} only the most recent state is delivered, the states it
+ * replaced are counted as dropped. With {@link #POLICY_ALL} every state is delivered in
+ * order through a bounded ring buffer, states arriving while it is full are dropped and
+ * counted.
+ *
+ * @author: Rony
+ * @email: luojun@skyruler.cn
+ * @date: Created 2021/1/5 15:45
+ */
+public final class AsyncStateListener implements StateMachine.OnStateListener {
+    /**
+     * Deliver only the latest state
+     */
+    public static final int POLICY_LATEST = 0;
+
+    /**
+     * Deliver every state while the buffer has room
+     */
+    public static final int POLICY_ALL = 1;
+
+    private static final String TAG = "AsyncStateListener";
+
+    private final StateMachine.OnStateListener mListener;
+    private final Executor mExecutor;
+    private final int mPolicy;
+
+    /**
+     * POLICY_LATEST: the state not delivered yet
+     */
+    private final AtomicReference<IState> mLatest = new AtomicReference<>();
+
+    /**
+     * POLICY_ALL: bounded ring, mSequences[i] tells whether slot i is free for the producer
+     * at position p (== p) or holds the state of position p for the consumer (== p + 1)
+     */
+    private final IState[] mBuffer;
+    private final AtomicLongArray mSequences;
+    private final int mMask;
+    private final AtomicLong mTail = new AtomicLong();
+
+    /**
+     * Only touched by the drain, which never runs twice at the same time
+     */
+    private long mHead;
+
+    private final AtomicBoolean mScheduled = new AtomicBoolean();
+    private final AtomicLong mDropped = new AtomicLong();
+
+    private final Runnable mDrain = new Runnable() {
+        @Override
+        public void run() {
+            do {
+                try {
+                    deliverPending();
+                } finally {
+                    mScheduled.set(false);
+                }
+            } while (hasPending() && mScheduled.compareAndSet(false, true));
+        }
+    };
+
+    /**
+     * Deliver only the latest state on executor.
+     */
+    public AsyncStateListener(@NonNull StateMachine.OnStateListener listener,
+                              @NonNull Executor executor) {
+        this(listener, executor, POLICY_LATEST, 1);
+    }
+
+    /**
+     * @param capacity size of the ring buffer for POLICY_ALL, rounded up to a power of two
+     */
+    public AsyncStateListener(@NonNull StateMachine.OnStateListener listener,
+                              @NonNull Executor executor, int policy, int capacity) {
+        if (policy != POLICY_LATEST && policy != POLICY_ALL) {
+            throw new IllegalArgumentException("unknown policy: " + policy);
+        }
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        mListener = listener;
+        mExecutor = executor;
+        mPolicy = policy;
+        if (policy == POLICY_ALL) {
+            int size = Integer.highestOneBit(capacity);
+            if (size < capacity) {
+                size <<= 1;
+            }
+            mBuffer = new IState[size];
+            mSequences = new AtomicLongArray(size);
+            for (int i = 0; i < size; i++) {
+                mSequences.set(i, i);
+            }
+            mMask = size - 1;
+        } else {
+            mBuffer = null;
+            mSequences = null;
+            mMask = 0;
+        }
+    }
+
+    /**
+     * @return states not delivered, because the buffer was full or a newer state
+     * replaced them
+     */
+    public long getDroppedCount() {
+        return mDropped.get();
+    }
+
+    @Override
+    public void onStateChanged(IState state) {
+        if (mPolicy == POLICY_LATEST) {
+            if (mLatest.getAndSet(state) != null) {
+                mDropped.incrementAndGet();
+            }
+        } else if (!offer(state)) {
+            mDropped.incrementAndGet();
+            return;
+        }
+        if (mScheduled.compareAndSet(false, true)) {
+            try {
+                mExecutor.execute(mDrain);
+            } catch (RejectedExecutionException e) {
+                mScheduled.set(false);
+                Log.e(TAG, "onStateChanged: executor rejected the delivery of " + state);
+            }
+        }
+    }
+
+    private boolean offer(IState state) {
+        for (; ; ) {
+            long tail = mTail.get();
+            int i = (int) tail & mMask;
+            long sequence = mSequences.get(i);
+            if (sequence == tail) {
+                if (mTail.compareAndSet(tail, tail + 1)) {
+                    mBuffer[i] = state;
+                    mSequences.lazySet(i, tail + 1);
+                    return true;
+                }
+            } else if (sequence < tail) {
+                // the consumer has not freed the slot yet, the ring is full
+                return false;
+            }
+        }
+    }
+
+    private boolean hasPending() {
+        if (mPolicy == POLICY_LATEST) {
+            return mLatest.get() != null;
+        }
+        return mSequences.get((int) mHead & mMask) == mHead + 1;
+    }
+
+    private void deliverPending() {
+        if (mPolicy == POLICY_LATEST) {
+            IState state = mLatest.getAndSet(null);
+            if (state != null) {
+                mListener.onStateChanged(state);
+            }
+            return;
+        }
+        for (; ; ) {
+            long head = mHead;
+            int i = (int) head & mMask;
+            if (mSequences.get(i) != head + 1) {
+                return;
+            }
+            IState state = mBuffer[i];
+            mBuffer[i] = null;
+            mSequences.lazySet(i, head + mMask + 1);
+            mHead = head + 1;
+            mListener.onStateChanged(state);
+        }
+    }
+}
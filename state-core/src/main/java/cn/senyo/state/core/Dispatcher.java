@@ -0,0 +1,82 @@
+package cn.senyo.state.core;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Delivers the events of one state machine to its {@link Target}, one at a time.
+ * <p>
+ * The default implementation is {@link LoopDispatcher}, platform adapters provide their
+ * own (e.g. an android.os.Handler backed one).
+ *
+ * @author: Rony
+ * @email: luojun@skyruler.cn
+ * @date: Created 2021/1/5 15:45
+ */
+public interface Dispatcher {
+
+    /**
+     * Receiver of the dispatched events.
+     */
+    interface Target {
+        void handleEvent(@NonNull Event event);
+    }
+
+    /**
+     * Target able to handle several queued events in one dispatch.
+     */
+    interface BatchTarget extends Target {
+        void handleEvents(@NonNull EventBatch batch);
+    }
+
+    void setTarget(@NonNull Target target);
+
+    /**
+     * Enqueue an event, the dispatcher owns the event afterwards.
+     *
+     * @return false if the event was dropped because the dispatcher is released
+     */
+    boolean sendEvent(@NonNull Event event);
+
+    boolean sendEventDelayed(@NonNull Event event, long delayMillis);
+
+    boolean sendEventAtFrontOfQueue(@NonNull Event event);
+
+    /**
+     * Put count events at the front of the queue in one go, events[0] first. The array
+     * is not kept, the events are.
+     */
+    void sendEventsAtFrontOfQueue(@NonNull Event[] events, int count);
+
+    /**
+     * Remove all pending events with the given what.
+     */
+    void removeEvents(int what);
+
+    /**
+     * Remove all pending events with the given what and obj, compared by identity. Unlike
+     * {@link #cancelEvent(Event)} it also finds events a dispatcher copied into its own
+     * queue.
+     */
+    void removeEvents(int what, @NonNull Object obj);
+
+    /**
+     * Best effort removal of an event sent before and not dispatched yet, O(1) where the
+     * dispatcher keeps the event itself. Dispatchers that copy events into their own
+     * queue cannot find it and ignore the call, so the sender must tolerate the event
+     * still being delivered. Must be called on the dispatching thread.
+     */
+    void cancelEvent(@NonNull Event event);
+
+    /**
+     * Deliver up to maxEvents pending events of the machine in one dispatch to a
+     * {@link BatchTarget}, 1 (the default) dispatches every event on its own.
+     * Dispatchers that cannot batch ignore it.
+     */
+    void setBatchSize(int maxEvents);
+
+    /**
+     * Called once the state machine has quit. Pending events are dropped and
+     * any thread created for this dispatcher is stopped.
+     */
+    void release();
+}
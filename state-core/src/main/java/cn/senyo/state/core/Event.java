@@ -0,0 +1,176 @@
+package cn.senyo.state.core;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Platform neutral event delivered to a {@link StateMachine}, the counterpart of
+ * android.os.Message.
+ *
+ * @author: Rony
+ * @email: luojun@skyruler.cn
+ * @date: Created 2021/1/5 15:40
+ */
+public final class Event {
+    /**
+     * User-defined event code
+     */
+    public int what;
+
+    /**
+     * Optional integer arguments
+     */
+    public int arg1;
+    public int arg2;
+
+    /**
+     * Optional primitive argument, e.g. a byte count or a timestamp, without boxing it
+     * into obj
+     */
+    public long payload;
+
+    /**
+     * Optional object argument
+     */
+    public Object obj;
+
+    /**
+     * Time in milliseconds the event is due, used by the event queue. Once dispatched by
+     * an {@link EventLoop} it is the time of the dispatch, 0 with other dispatchers.
+     */
+    long when;
+
+    /**
+     * System.nanoTime() the event was sent or is due at, 0 if not measured, see
+     * {@link StateMetrics}
+     */
+    long sentNanos;
+
+    /**
+     * Sequence of the event in its {@link EventLog}, 0 if not logged
+     */
+    long logSeq;
+
+    /**
+     * Next event in the event queue
+     */
+    Event next;
+
+    /**
+     * Previous event in a slot of the {@link TimingWheel}
+     */
+    Event prev;
+
+    /**
+     * true while the event is waiting in the timing wheel
+     */
+    boolean inWheel;
+
+    /**
+     * Set when the event is cancelled while already in the ready queue, it is dropped
+     * instead of being dispatched
+     */
+    boolean cancelled;
+
+    /**
+     * Next event in the inbox of the loop, see {@link MpscEventQueue}
+     */
+    volatile Event inboxNext;
+
+    /**
+     * Queue operation carried through the inbox instead of an event, see EventLoop
+     */
+    int op;
+
+    /**
+     * Dispatcher which delivers the event
+     */
+    LoopDispatcher target;
+
+    /**
+     * Platform message this event was unwrapped from, null if none
+     */
+    private Object mSource;
+
+    /**
+     * Pool the event returns to when recycled, null if not pooled
+     */
+    EventPool mPool;
+    boolean mInPool;
+
+    public Event() {
+    }
+
+    @NonNull
+    public static Event obtain(int what) {
+        return obtain(what, 0, 0, null);
+    }
+
+    @NonNull
+    public static Event obtain(int what, Object obj) {
+        return obtain(what, 0, 0, obj);
+    }
+
+    @NonNull
+    public static Event obtain(int what, int arg1, int arg2) {
+        return obtain(what, arg1, arg2, null);
+    }
+
+    @NonNull
+    public static Event obtain(int what, int arg1, int arg2, Object obj) {
+        Event event = new Event();
+        event.what = what;
+        event.arg1 = arg1;
+        event.arg2 = arg2;
+        event.obj = obj;
+        return event;
+    }
+
+    /**
+     * Give a pooled event back to its pool, nothing happens for events not obtained from
+     * an {@link EventPool}. The machine recycles the events it processed, the event must
+     * not be used afterwards.
+     */
+    public void recycle() {
+        EventPool pool = mPool;
+        if (pool != null) {
+            pool.recycle(this);
+        }
+    }
+
+    /**
+     * @return the platform message (e.g. android.os.Message) this event was unwrapped from
+     */
+    @Nullable
+    public Object getSource() {
+        return mSource;
+    }
+
+    public void setSource(@Nullable Object source) {
+        mSource = source;
+    }
+
+    /**
+     * @return sequence of the event in its {@link EventLog}, 0 if not logged. A dispatcher
+     * which copies events into its own messages carries it over.
+     */
+    public long getLogSequence() {
+        return logSeq;
+    }
+
+    public void setLogSequence(long seq) {
+        logSeq = seq;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "Event{" +
+                "what=" + what +
+                ", arg1=" + arg1 +
+                ", arg2=" + arg2 +
+                ", payload=" + payload +
+                ", obj=" + obj +
+                '}';
+    }
+}
@@ -0,0 +1,49 @@
+package cn.senyo.state.core;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Events of one machine taken off the queue together in batch mode, see
+ * {@link Dispatcher#setBatchSize(int)}. Consumed in order with {@link #next()}.
+ *
+ * @author: Rony
+ * @email: luojun@skyruler.cn
+ * @date: Created 2021/1/5 15:45
+ */
+public final class EventBatch {
+    final Event[] mEvents;
+    int mPosition;
+    int mCount;
+
+    EventBatch(int capacity) {
+        mEvents = new Event[capacity];
+    }
+
+    /**
+     * @return the next event of the batch, null when the batch is exhausted
+     */
+    @Nullable
+    public Event next() {
+        if (mPosition >= mCount) {
+            return null;
+        }
+        Event event = mEvents[mPosition];
+        mEvents[mPosition++] = null;
+        return event;
+    }
+
+    /**
+     * @return number of events in the batch
+     */
+    public int size() {
+        return mCount;
+    }
+
+    void clear() {
+        for (int i = mPosition; i < mCount; i++) {
+            mEvents[i] = null;
+        }
+        mPosition = 0;
+        mCount = 0;
+    }
+}
@@ -0,0 +1,617 @@
+package cn.senyo.state.core;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead log of the events sent to state machines, so events accepted by
+ * {@link StateMachine#sendMessage(Event)} survive a crash of the process before they are
+ * processed. Enabled per machine with {@link StateMachine#setEventLog(EventLog)}.
+ * <p>
+ * Sending appends the event to a buffer and returns. A committer thread writes the buffer
+ * and forces it to disk once per commit, then hands the events to their machines, so an
+ * event is only processed once it is durable and one fsync covers every event sent to any
+ * machine of the log in the meantime. A commit starts commitIntervalMillis after the
+ * first pending event, or as soon as commitBytes are pending: a longer interval batches
+ * more events per fsync at the cost of their latency, 0 commits as soon as the previous
+ * commit is done.
+ * <p>
+ * On open the segments of the previous run are read back. A machine started or restored
+ * with the same name then gets its events past the position saved in its snapshot
+ * replayed before any new one, see {@link StateMachine#getEventLogPosition()}. Once all
+ * machines are snapshotted, {@link #discardBefore(long)} deletes the segments no longer
+ * needed. Machine names must be unique within a log. Event objects are not logged,
+ * recovered events have none.
+ *
+ * @author: Rony
+ * @email: luojun@skyruler.cn
+ * @date: Created 2021/1/5 15:45
+ */
+public final class EventLog implements Closeable {
+    private static final String TAG = "EventLog";
+
+    static final int MAGIC = 0x534d5731; // "SMW1"
+    static final int VERSION = 1;
+    static final String SUFFIX = ".wal";
+    static final int HEADER_BYTES = 8;
+
+    /**
+     * Records are framed by the length and CRC32 of their body, the body starts with the
+     * kind. A torn or corrupt record ends the segment.
+     */
+    static final int FRAME_BYTES = 8;
+    static final byte KIND_EVENT = 1;
+    static final byte KIND_NAME = 2;
+    static final int EVENT_BODY_BYTES = 41;
+
+    public static final long DEFAULT_COMMIT_INTERVAL_MILLIS = 2;
+    public static final int DEFAULT_COMMIT_BYTES = 64 << 10;
+    public static final int DEFAULT_SEGMENT_BYTES = 16 << 20;
+
+    private final File mDir;
+    private final String mName;
+    private final long mCommitIntervalNanos;
+    private final int mCommitBytes;
+    private final int mSegmentBytes;
+
+    /**
+     * Events of the previous run by machine name, taken by the machines as they register
+     */
+    private final Map<String, List<Record>> mRecovered = new HashMap<>();
+
+    /**
+     * Segment files oldest first with the last sequence they hold, the last one is written
+     */
+    private final List<Segment> mSegments = new ArrayList<>();
+    private long mNextNumber;
+    private FileChannel mChannel;
+
+    /**
+     * Guarded by this: registered machines, the pending records and their events
+     */
+    private final List<Writer> mWriters = new ArrayList<>();
+    private ByteBuffer mBuffer = ByteBuffer.allocate(4096);
+    private Event[] mEvents = new Event[64];
+    private Writer[] mTargets = new Writer[64];
+    private int mCount;
+    private long mFirstPendingNanos;
+    private boolean mClosed;
+
+    /**
+     * Last sequence given to an event
+     */
+    private volatile long mSeq;
+
+    /**
+     * Set once writing failed, events are then handed to the machines without logging
+     */
+    private volatile boolean mFailed;
+
+    private final CRC32 mCrc = new CRC32();
+    private final Thread mCommitter;
+
+    private EventLog(@NonNull File dir, @NonNull String name, long commitIntervalMillis,
+                     int commitBytes, int segmentBytes) {
+        mDir = dir;
+        mName = name;
+        mCommitIntervalNanos = commitIntervalMillis * 1000000L;
+        mCommitBytes = commitBytes;
+        mSegmentBytes = segmentBytes;
+        mCommitter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                commitLoop();
+            }
+        }, "EventLog-" + name);
+        mCommitter.setDaemon(true);
+    }
+
+    @NonNull
+    public static EventLog open(@NonNull File dir, @NonNull String name) throws IOException {
+        return open(dir, name, DEFAULT_COMMIT_INTERVAL_MILLIS, DEFAULT_COMMIT_BYTES,
+                DEFAULT_SEGMENT_BYTES);
+    }
+
+    /**
+     * @param dir                  directory of the segment files, created if needed
+     * @param name                 prefix of the segment files
+     * @param commitIntervalMillis longest wait of the first pending event for its commit
+     * @param commitBytes          pending bytes which start a commit without waiting
+     * @param segmentBytes         size after which the next segment file is started
+     */
+    @NonNull
+    public static EventLog open(@NonNull File dir, @NonNull String name,
+                                long commitIntervalMillis, int commitBytes, int segmentBytes)
+            throws IOException {
+        if (commitIntervalMillis < 0) {
+            throw new IllegalArgumentException("commitIntervalMillis must not be negative: "
+                    + commitIntervalMillis);
+        }
+        if (commitBytes <= 0 || segmentBytes <= 0) {
+            throw new IllegalArgumentException("commitBytes and segmentBytes must be positive");
+        }
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("cannot create " + dir);
+        }
+        EventLog log = new EventLog(dir, name, commitIntervalMillis, commitBytes, segmentBytes);
+        log.recover();
+        log.openSegment();
+        log.mCommitter.start();
+        return log;
+    }
+
+    /**
+     * @return the last sequence given to an event
+     */
+    public long getSequence() {
+        return mSeq;
+    }
+
+    /**
+     * Delete the segments which only hold events of sequence lower than seq, the lowest
+     * {@link StateMachine#getEventLogPosition()} of the machines of this log, read before
+     * their snapshots, plus one. The segment being written is kept.
+     */
+    public void discardBefore(long seq) {
+        synchronized (mSegments) {
+            while (mSegments.size() > 1 && mSegments.get(0).mLastSeq < seq) {
+                File file = mSegments.remove(0).mFile;
+                if (!file.delete()) {
+                    Log.e(TAG, "cannot delete " + file);
+                }
+            }
+        }
+    }
+
+    /**
+     * Commit the pending events and stop the committer. Events sent afterwards are handed
+     * to their machines without logging.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            notifyAll();
+        }
+        try {
+            mCommitter.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Register a machine, its events of the previous run are handed back to it.
+     */
+    @NonNull
+    synchronized Writer register(@NonNull String machineName, @NonNull Dispatcher dispatcher) {
+        for (Writer writer : mWriters) {
+            if (writer.mName.equals(machineName)) {
+                throw new IllegalArgumentException("machine name " + machineName
+                        + " is already registered in this log");
+            }
+        }
+        Writer writer = new Writer(this, mWriters.size(), machineName, dispatcher,
+                mRecovered.remove(machineName));
+        mWriters.add(writer);
+        putName(writer);
+        return writer;
+    }
+
+    /**
+     * Queue the event for the next commit, it is sent to the machine once durable.
+     */
+    void append(@NonNull Writer writer, @NonNull Event event) {
+        long time = EventLoop.uptimeMillis();
+        synchronized (this) {
+            if (!mClosed && !mFailed) {
+                long seq = mSeq + 1;
+                // before the sequence, see StateMachine.getEventLogPosition
+                writer.mLastAppended = seq;
+                mSeq = seq;
+                event.logSeq = seq;
+                ByteBuffer b = reserve(EVENT_BODY_BYTES);
+                int start = b.position();
+                b.put(KIND_EVENT);
+                b.putInt(writer.mId);
+                b.putLong(seq);
+                b.putLong(time);
+                b.putInt(event.what);
+                b.putInt(event.arg1);
+                b.putInt(event.arg2);
+                b.putLong(event.payload);
+                frame(b, start);
+                if (mCount == mEvents.length) {
+                    mEvents = Arrays.copyOf(mEvents, mCount * 2);
+                    mTargets = Arrays.copyOf(mTargets, mCount * 2);
+                }
+                mEvents[mCount] = event;
+                mTargets[mCount] = writer;
+                if (mCount++ == 0) {
+                    mFirstPendingNanos = System.nanoTime();
+                    notifyAll();
+                } else if (b.position() >= mCommitBytes) {
+                    notifyAll();
+                }
+                return;
+            }
+        }
+        writer.mDispatcher.sendEvent(event);
+    }
+
+    /**
+     * Reserve room for a frame and its body, the length and CRC are filled by frame.
+     */
+    private ByteBuffer reserve(int bodyBytes) {
+        ByteBuffer b = mBuffer;
+        if (b.remaining() < FRAME_BYTES + bodyBytes) {
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(b.capacity() * 2,
+                    b.position() + FRAME_BYTES + bodyBytes));
+            b.flip();
+            grown.put(b);
+            b = mBuffer = grown;
+        }
+        b.position(b.position() + FRAME_BYTES);
+        return b;
+    }
+
+    private void frame(@NonNull ByteBuffer b, int bodyStart) {
+        int length = b.position() - bodyStart;
+        mCrc.reset();
+        mCrc.update(b.array(), b.arrayOffset() + bodyStart, length);
+        b.putInt(bodyStart - FRAME_BYTES, length);
+        b.putInt(bodyStart - FRAME_BYTES + 4, (int) mCrc.getValue());
+    }
+
+    /**
+     * Append the name record of the machine, with the lock held.
+     */
+    private void putName(@NonNull Writer writer) {
+        byte[] name = writer.mName.getBytes(TransitionJournal.UTF_8);
+        ByteBuffer b = reserve(5 + name.length);
+        int start = b.position();
+        b.put(KIND_NAME);
+        b.putInt(writer.mId);
+        b.put(name);
+        frame(b, start);
+    }
+
+    private void commitLoop() {
+        ByteBuffer spare = ByteBuffer.allocate(mBuffer.capacity());
+        Event[] events = new Event[mEvents.length];
+        Writer[] targets = new Writer[mTargets.length];
+        for (; ; ) {
+            ByteBuffer buffer;
+            int count;
+            long lastSeq;
+            boolean closed;
+            synchronized (this) {
+                awaitCommit();
+                closed = mClosed;
+                lastSeq = mSeq;
+                buffer = mBuffer;
+                count = mCount;
+                spare.clear();
+                mBuffer = spare;
+                Event[] e = mEvents;
+                mEvents = events;
+                events = e;
+                Writer[] t = mTargets;
+                mTargets = targets;
+                targets = t;
+                mCount = 0;
+            }
+            buffer.flip();
+            if (buffer.hasRemaining() && !mFailed) {
+                try {
+                    write(buffer, lastSeq);
+                } catch (IOException e) {
+                    Log.e(TAG, "event log stopped, events are no longer durable: " + e);
+                    mFailed = true;
+                }
+            }
+            for (int i = 0; i < count; i++) {
+                targets[i].mDispatcher.sendEvent(events[i]);
+                events[i] = null;
+                targets[i] = null;
+            }
+            spare = buffer;
+            if (closed) {
+                closeChannel();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Wait for a commit to be due, with the lock held.
+     */
+    private void awaitCommit() {
+        while (!mClosed) {
+            if (mCount > 0 || mBuffer.position() > 0) {
+                long wait = mFirstPendingNanos + mCommitIntervalNanos - System.nanoTime();
+                if (wait <= 0 || mBuffer.position() >= mCommitBytes || mCount == 0) {
+                    return;
+                }
+                waitNanos(wait);
+            } else {
+                waitNanos(0);
+            }
+        }
+    }
+
+    private void waitNanos(long nanos) {
+        try {
+            if (nanos == 0) {
+                wait();
+            } else {
+                wait(nanos / 1000000L, (int) (nanos % 1000000L));
+            }
+        } catch (InterruptedException e) {
+            // checked again by the caller
+        }
+    }
+
+    /**
+     * Write and force the records, by the committer only. Starts the next segment first
+     * once the current one is full.
+     */
+    private void write(@NonNull ByteBuffer buffer, long lastSeq) throws IOException {
+        if (mChannel.position() >= mSegmentBytes) {
+            closeChannel();
+            openSegment();
+        }
+        while (buffer.hasRemaining()) {
+            mChannel.write(buffer);
+        }
+        mChannel.force(false);
+        synchronized (mSegments) {
+            mSegments.get(mSegments.size() - 1).mLastSeq = lastSeq;
+        }
+    }
+
+    /**
+     * Create the next segment file with the names of the registered machines.
+     */
+    private void openSegment() throws IOException {
+        File file = new File(mDir, mName + "-" + mNextNumber + SUFFIX);
+        mNextNumber++;
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(0);
+        FileChannel channel = raf.getChannel();
+        ByteBuffer names;
+        synchronized (this) {
+            ByteBuffer pending = mBuffer;
+            mBuffer = ByteBuffer.allocate(256);
+            mBuffer.putInt(MAGIC);
+            mBuffer.putInt(VERSION);
+            for (Writer writer : mWriters) {
+                putName(writer);
+            }
+            names = mBuffer;
+            mBuffer = pending;
+        }
+        names.flip();
+        while (names.hasRemaining()) {
+            channel.write(names);
+        }
+        mChannel = channel;
+        synchronized (mSegments) {
+            Segment segment = new Segment(file);
+            segment.mLastSeq = mSeq;
+            mSegments.add(segment);
+        }
+    }
+
+    private void closeChannel() {
+        try {
+            mChannel.force(false);
+            mChannel.close();
+        } catch (IOException e) {
+            Log.e(TAG, "cannot close segment: " + e);
+        }
+    }
+
+    /**
+     * Read the segments of the previous run, the sequence continues after them.
+     */
+    private void recover() throws IOException {
+        List<File> files = TransitionJournalReader.listSegments(mDir, mName, SUFFIX);
+        for (File file : files) {
+            Segment segment = new Segment(file);
+            segment.mLastSeq = readSegment(file, mRecovered);
+            mSegments.add(segment);
+            mSeq = Math.max(mSeq, segment.mLastSeq);
+            mNextNumber = TransitionJournalReader.segmentNumber(file, mName, SUFFIX) + 1;
+        }
+    }
+
+    /**
+     * Read the events of a log offline, e.g. as the input of a {@link ReplayRunner}.
+     *
+     * @return the events of the segments by machine name, in log order
+     */
+    @NonNull
+    public static Map<String, List<Record>> read(@NonNull File dir, @NonNull String name)
+            throws IOException {
+        Map<String, List<Record>> events = new HashMap<>();
+        for (File file : TransitionJournalReader.listSegments(dir, name, SUFFIX)) {
+            readSegment(file, events);
+        }
+        return events;
+    }
+
+    /**
+     * @return the last sequence of the segment
+     */
+    private static long readSegment(@NonNull File file, @NonNull Map<String, List<Record>> out)
+            throws IOException {
+        long lastSeq = 0;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                Log.e(TAG, "skipping " + file + ", not an event log segment");
+                return 0;
+            }
+            Map<Integer, String> names = new HashMap<>();
+            byte[] body = new byte[256];
+            CRC32 crc = new CRC32();
+            for (; ; ) {
+                int length = in.readInt();
+                int checksum = in.readInt();
+                if (length <= 0 || length > 1 << 16) {
+                    break;
+                }
+                if (body.length < length) {
+                    body = new byte[length];
+                }
+                in.readFully(body, 0, length);
+                crc.reset();
+                crc.update(body, 0, length);
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+                ByteBuffer b = ByteBuffer.wrap(body, 0, length);
+                byte kind = b.get();
+                int id = b.getInt();
+                if (kind == KIND_NAME) {
+                    names.put(id, new String(body, 5, length - 5, TransitionJournal.UTF_8));
+                } else if (kind == KIND_EVENT) {
+                    Record event = new Record();
+                    event.machine = names.get(id);
+                    event.seq = b.getLong();
+                    event.time = b.getLong();
+                    event.what = b.getInt();
+                    event.arg1 = b.getInt();
+                    event.arg2 = b.getInt();
+                    event.payload = b.getLong();
+                    lastSeq = event.seq;
+                    if (event.machine != null) {
+                        List<Record> list = out.get(event.machine);
+                        if (list == null) {
+                            list = new ArrayList<>();
+                            out.put(event.machine, list);
+                        }
+                        list.add(event);
+                    }
+                }
+            }
+        } catch (EOFException e) {
+            // torn by the crash
+        } finally {
+            in.close();
+        }
+        return lastSeq;
+    }
+
+    private static final class Segment {
+        final File mFile;
+        long mLastSeq;
+
+        Segment(@NonNull File file) {
+            mFile = file;
+        }
+    }
+
+    /**
+     * One logged event.
+     */
+    public static final class Record {
+        public String machine;
+        public long seq;
+
+        /**
+         * EventLoop.uptimeMillis() the event was sent at
+         */
+        public long time;
+        public int what;
+        public int arg1;
+        public int arg2;
+        public long payload;
+
+        @NonNull
+        @Override
+        public String toString() {
+            return machine + " #" + seq + " @" + time + " what=" + what + " arg1=" + arg1
+                    + " arg2=" + arg2 + " payload=" + payload;
+        }
+    }
+
+    /**
+     * Inbox of one machine in the log.
+     */
+    static final class Writer {
+        private final EventLog mLog;
+        final int mId;
+        final String mName;
+        final Dispatcher mDispatcher;
+
+        /**
+         * Sequence of the last event appended for this machine
+         */
+        volatile long mLastAppended;
+        private List<Record> mRecovered;
+
+        Writer(@NonNull EventLog log, int id, @NonNull String name,
+               @NonNull Dispatcher dispatcher, @Nullable List<Record> recovered) {
+            mLog = log;
+            mId = id;
+            mName = name;
+            mDispatcher = dispatcher;
+            mRecovered = recovered;
+            if (recovered != null && !recovered.isEmpty()) {
+                mLastAppended = recovered.get(recovered.size() - 1).seq;
+            }
+        }
+
+        void append(@NonNull Event event) {
+            mLog.append(this, event);
+        }
+
+        long getLogSequence() {
+            return mLog.mSeq;
+        }
+
+        /**
+         * @return the events of the previous run after the position, once
+         */
+        @NonNull
+        Event[] takeRecovered(@NonNull StateMachine machine, long position) {
+            List<Record> recovered = mRecovered;
+            mRecovered = null;
+            if (recovered == null) {
+                return new Event[0];
+            }
+            List<Event> events = new ArrayList<>();
+            for (Record r : recovered) {
+                if (r.seq > position) {
+                    Event event = machine.obtainEvent(r.what, r.arg1, r.arg2, r.payload, null);
+                    event.logSeq = r.seq;
+                    events.add(event);
+                }
+            }
+            return events.toArray(new Event[0]);
+        }
+    }
+}
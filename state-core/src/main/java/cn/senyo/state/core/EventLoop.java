@@ -0,0 +1,411 @@
+package cn.senyo.state.core;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A thread running an event queue, the pure JVM counterpart of android.os.HandlerThread
+ * and its Looper. Several {@link LoopDispatcher}s (and so several state machines) may
+ * share one loop.
+ * <p>
+ * Other threads never take a lock to send: their events and queue operations go through
+ * a lock-free {@link MpscEventQueue} inbox, which the loop thread moves into its own
+ * time ordered queue before picking the next event. The loop thread itself works on that
+ * queue directly.
+ * <p>
+ * Delayed events wait in a {@link TimingWheel} instead of the ordered queue, so arming
+ * and cancelling many timers costs O(1) each, and only move to the queue once due.
+ * <p>
+ * The loop only waits by parking, so it may run on a virtual thread, see
+ * {@link #EventLoop(String, ThreadFactory)}.
+ *
+ * @author: Rony
+ * @email: luojun@skyruler.cn
+ * @date: Created 2021/1/5 15:45
+ */
+public class EventLoop {
+    /**
+     * Event.op of inbox entries
+     */
+    private static final int OP_EVENT = 0;
+    private static final int OP_REMOVE = 1;
+    private static final int OP_REMOVE_ALL = 2;
+    private static final int OP_CANCEL = 3;
+
+    private final Thread mThread;
+    private final MpscEventQueue mInbox = new MpscEventQueue();
+
+    /**
+     * Queue operations sent by other threads, recycled by the loop thread once applied
+     */
+    private final EventPool mOps = new EventPool();
+
+    /**
+     * Pending events ordered by Event.when, only touched by the loop thread
+     */
+    private Event mEvents;
+    private Event mEventsTail;
+    private final TimingWheel mWheel = new TimingWheel(uptimeMillis());
+    private final TimingWheel.Sink mExpired = new TimingWheel.Sink() {
+        @Override
+        public void onExpired(@NonNull Event event) {
+            insertReady(event);
+        }
+    };
+    private volatile boolean mQuitting;
+
+    /**
+     * true while the loop thread is about to park, senders unpark it
+     */
+    private volatile boolean mWaiting;
+
+    public EventLoop(@NonNull String name) {
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, name);
+    }
+
+    /**
+     * Run the loop on a thread of the factory, e.g. {@link VirtualThreads#factory()} for a
+     * virtual thread which leaves its carrier while the loop waits or a machine blocks.
+     */
+    public EventLoop(@NonNull String name, @NonNull ThreadFactory threadFactory) {
+        mThread = threadFactory.newThread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        });
+        if (mThread == null) {
+            throw new IllegalArgumentException("thread factory refused to create " + name);
+        }
+        mThread.setName(name);
+    }
+
+    public void start() {
+        mThread.start();
+    }
+
+    /**
+     * Quit the loop, all pending events are discarded.
+     */
+    public void quit() {
+        mQuitting = true;
+        LockSupport.unpark(mThread);
+    }
+
+    @NonNull
+    public final Thread getThread() {
+        return mThread;
+    }
+
+    /**
+     * @return milliseconds since an arbitrary origin, not affected by wall clock changes
+     */
+    static long uptimeMillis() {
+        return System.nanoTime() / 1000000L;
+    }
+
+    /**
+     * Insert the event ordered by when, a when of 0 puts it at the front of the queue.
+     */
+    boolean enqueue(@NonNull Event event, long when) {
+        if (mQuitting) {
+            return false;
+        }
+        event.when = when;
+        event.op = OP_EVENT;
+        if (Thread.currentThread() == mThread) {
+            transferInbox();
+            insert(event);
+        } else {
+            send(event);
+        }
+        return true;
+    }
+
+    /**
+     * Put the events at the front of the queue, events[0] first. On the loop thread they
+     * are linked and spliced in at once.
+     */
+    void enqueueAtFront(@NonNull Event[] events, int count) {
+        if (count == 0) {
+            return;
+        }
+        if (mQuitting) {
+            for (int i = 0; i < count; i++) {
+                events[i].recycle();
+            }
+            return;
+        }
+        if (Thread.currentThread() == mThread) {
+            transferInbox();
+            Event last = events[count - 1];
+            for (int i = 0; i < count - 1; i++) {
+                events[i].when = 0;
+                events[i].next = events[i + 1];
+            }
+            last.when = 0;
+            last.next = mEvents;
+            if (mEvents == null) {
+                mEventsTail = last;
+            }
+            mEvents = events[0];
+        } else {
+            // every one goes to the front when moved out of the inbox, so send the last first
+            for (int i = count - 1; i >= 0; i--) {
+                events[i].when = 0;
+                events[i].op = OP_EVENT;
+                send(events[i]);
+            }
+        }
+    }
+
+    /**
+     * Remove the pending events of target, all of them if what is null, only the ones
+     * with the given obj if obj is not null.
+     */
+    void remove(@NonNull LoopDispatcher target, Integer what, @Nullable Object obj) {
+        if (Thread.currentThread() == mThread) {
+            transferInbox();
+            removePending(target, what == null ? 0 : what, obj, what == null);
+        } else {
+            // Applied by the loop thread in order, so only events sent before are removed.
+            Event op = mOps.obtain();
+            op.op = what == null ? OP_REMOVE_ALL : OP_REMOVE;
+            op.what = what == null ? 0 : what;
+            op.obj = obj;
+            op.target = target;
+            send(op);
+        }
+    }
+
+    /**
+     * Cancel an event of target sent before and not dispatched yet. A delayed event is
+     * unlinked from the timing wheel and recycled at once, a due one is dropped when it
+     * reaches the head of the queue. Events already dispatched are left alone.
+     */
+    void cancel(@NonNull LoopDispatcher target, @NonNull Event event) {
+        if (Thread.currentThread() == mThread) {
+            cancelPending(target, event);
+        } else {
+            Event op = mOps.obtain();
+            op.op = OP_CANCEL;
+            op.obj = event;
+            op.target = target;
+            send(op);
+        }
+    }
+
+    /**
+     * Move the due events of target directly following the head of the queue into the
+     * batch, so the order of the whole queue is unchanged. Loop thread only.
+     */
+    void drainTo(@NonNull LoopDispatcher target, @NonNull EventBatch batch) {
+        transferInbox();
+        long now = uptimeMillis();
+        Event[] events = batch.mEvents;
+        Event p = mEvents;
+        while (batch.mCount < events.length && p != null && p.target == target
+                && p.when <= now) {
+            Event n = p.next;
+            p.next = null;
+            if (p.cancelled) {
+                p.recycle();
+            } else {
+                p.when = now;
+                events[batch.mCount++] = p;
+            }
+            p = n;
+        }
+        mEvents = p;
+        if (p == null) {
+            mEventsTail = null;
+        }
+    }
+
+    /**
+     * Put the unconsumed rest of a batch back at the front of the queue, in order.
+     * Loop thread only.
+     */
+    void requeueAtFront(@NonNull EventBatch batch) {
+        if (mQuitting) {
+            batch.clear();
+            return;
+        }
+        for (int i = batch.mCount - 1; i >= batch.mPosition; i--) {
+            Event event = batch.mEvents[i];
+            batch.mEvents[i] = null;
+            event.when = 0;
+            insert(event);
+        }
+        batch.mCount = batch.mPosition;
+    }
+
+    private void send(@NonNull Event event) {
+        mInbox.offer(event);
+        if (mWaiting) {
+            LockSupport.unpark(mThread);
+        }
+    }
+
+    /**
+     * Apply everything other threads put into the inbox to the queue.
+     */
+    private void transferInbox() {
+        Event event;
+        while ((event = mInbox.poll()) != null) {
+            switch (event.op) {
+                case OP_REMOVE:
+                    removePending(event.target, event.what, event.obj, false);
+                    event.recycle();
+                    break;
+                case OP_REMOVE_ALL:
+                    removePending(event.target, 0, null, true);
+                    event.recycle();
+                    break;
+                case OP_CANCEL:
+                    cancelPending(event.target, (Event) event.obj);
+                    event.recycle();
+                    break;
+                default:
+                    insert(event);
+                    break;
+            }
+        }
+    }
+
+    private void insert(@NonNull Event event) {
+        long when = event.when;
+        if (when > mWheel.getTick() && when > uptimeMillis()) {
+            mWheel.add(event);
+        } else {
+            insertReady(event);
+        }
+    }
+
+    private void insertReady(@NonNull Event event) {
+        long when = event.when;
+        Event p = mEvents;
+        if (p == null) {
+            event.next = null;
+            mEvents = event;
+            mEventsTail = event;
+        } else if (when == 0 || when < p.when) {
+            event.next = p;
+            mEvents = event;
+        } else if (when >= mEventsTail.when) {
+            // common case, not delayed behind a later event
+            event.next = null;
+            mEventsTail.next = event;
+            mEventsTail = event;
+        } else {
+            Event prev;
+            for (; ; ) {
+                prev = p;
+                p = p.next;
+                if (when < p.when) {
+                    break;
+                }
+            }
+            event.next = p;
+            prev.next = event;
+        }
+    }
+
+    private void cancelPending(@NonNull LoopDispatcher target, @NonNull Event event) {
+        if (event.target != target) {
+            // dispatched and recycled already
+            return;
+        }
+        if (event.inWheel) {
+            mWheel.remove(event);
+            event.recycle();
+        } else {
+            event.cancelled = true;
+        }
+    }
+
+    private void removePending(@NonNull LoopDispatcher target, int what, @Nullable Object obj,
+                               boolean all) {
+        mWheel.remove(target, what, obj, all);
+        Event prev = null;
+        Event p = mEvents;
+        while (p != null) {
+            Event n = p.next;
+            if (p.target == target && (all || p.what == what && (obj == null || p.obj == obj))) {
+                if (prev == null) {
+                    mEvents = n;
+                } else {
+                    prev.next = n;
+                }
+                p.next = null;
+                p.recycle();
+            } else {
+                prev = p;
+            }
+            p = n;
+        }
+        mEventsTail = prev;
+    }
+
+    private Event next() {
+        for (; ; ) {
+            if (mQuitting) {
+                mEvents = null;
+                mEventsTail = null;
+                mWheel.clear();
+                return null;
+            }
+            transferInbox();
+            long now = uptimeMillis();
+            mWheel.advance(now, mExpired);
+            // the queue only holds due events, the later ones wait in the wheel
+            Event event = mEvents;
+            if (event != null) {
+                mEvents = event.next;
+                if (mEvents == null) {
+                    mEventsTail = null;
+                }
+                event.next = null;
+                if (event.cancelled) {
+                    event.recycle();
+                    continue;
+                }
+                // from here on the dispatch time, see Event.when
+                event.when = now;
+                return event;
+            }
+            long waitMillis = 0;
+            if (!mWheel.isEmpty()) {
+                waitMillis = Math.max(1, mWheel.nextDeadline() - now);
+            }
+            mWaiting = true;
+            // Checked after publishing mWaiting, a sender either sees it or we see its event.
+            if (mInbox.isEmpty() && !mQuitting) {
+                if (waitMillis == 0) {
+                    LockSupport.park(this);
+                } else {
+                    LockSupport.parkNanos(this, waitMillis * 1000000L);
+                }
+            }
+            mWaiting = false;
+            if (Thread.interrupted()) {
+                mQuitting = true;
+            }
+        }
+    }
+
+    private void loop() {
+        Event event;
+        while ((event = next()) != null) {
+            event.target.dispatch(event);
+        }
+    }
+}
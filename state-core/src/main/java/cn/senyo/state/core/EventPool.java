@@ -0,0 +1,172 @@
+package cn.senyo.state.core;
+
+import androidx.annotation.NonNull;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded pool of recycled {@link Event}s. Every state machine has its own, machines run
+ * by the same worker may share one with {@link StateMachine#setEventPool(EventPool)}.
+ * <p>
+ * Events taken from a pool go back to it once the machine has processed them, or when the
+ * dispatcher drops them, so in steady state sending an event allocates nothing. The pool
+ * only allocates while it is empty, recycled events beyond its capacity are left to the
+ * GC. obtain and recycle are lock-free and may be called from any thread.
+ * <p>
+ * The machine thread, which recycles most events and often sends to itself, is served by
+ * a stack without atomics. Events move to the other threads through a lock-free ring once
+ * that stack is full.
+ *
+ * @author: Rony
+ * @email: luojun@skyruler.cn
+ * @date: Created 2021/1/5 15:45
+ */
+public final class EventPool {
+    public static final int DEFAULT_CAPACITY = 32;
+
+    /**
+     * Events kept by the owner thread before recycling into the ring
+     */
+    private static final int LOCAL_CAPACITY = 16;
+
+    /**
+     * Thread running the machines of this pool, set by the first event they dispatch.
+     * Not volatile: other threads seeing it late only take the ring a few more times.
+     */
+    private Thread mOwner;
+    private final Event[] mLocal = new Event[LOCAL_CAPACITY];
+    private int mLocalSize;
+
+    /**
+     * Ring of free events, mSequences[i] tells whether slot i is free for the recycler at
+     * position p (== p) or holds the event of position p for obtain (== p + 1)
+     */
+    private final Event[] mEvents;
+    private final AtomicLongArray mSequences;
+    private final int mMask;
+    private final AtomicLong mHead = new AtomicLong();
+    private final AtomicLong mTail = new AtomicLong();
+
+    public EventPool() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity events kept for reuse, rounded up to a power of two
+     */
+    public EventPool(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        mEvents = new Event[size];
+        mSequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            mSequences.set(i, i);
+        }
+        mMask = size - 1;
+    }
+
+    /**
+     * @return a cleared event which goes back to this pool after being processed
+     */
+    @NonNull
+    public Event obtain() {
+        Event event;
+        if (mLocalSize > 0 && Thread.currentThread() == mOwner) {
+            // the slot is not cleared, the event comes back to it or is referenced anyway
+            event = mLocal[--mLocalSize];
+        } else {
+            event = obtainShared();
+        }
+        event.mInPool = false;
+        return event;
+    }
+
+    @NonNull
+    private Event obtainShared() {
+        Event event = poll();
+        if (event == null) {
+            event = new Event();
+            event.mPool = this;
+        }
+        return event;
+    }
+
+    /**
+     * Called on the machine thread, later calls from other threads are ignored.
+     */
+    void bindOwner() {
+        if (mOwner == null) {
+            synchronized (this) {
+                if (mOwner == null) {
+                    mOwner = Thread.currentThread();
+                }
+            }
+        }
+    }
+
+    void recycle(@NonNull Event event) {
+        if (event.mInPool) {
+            throw new IllegalStateException("Event already recycled: " + event);
+        }
+        event.mInPool = true;
+        event.what = 0;
+        event.arg1 = 0;
+        event.arg2 = 0;
+        event.payload = 0;
+        event.obj = null;
+        event.setSource(null);
+        event.target = null;
+        event.cancelled = false;
+        event.sentNanos = 0;
+        event.logSeq = 0;
+        event.when = 0;
+        if (mLocalSize < LOCAL_CAPACITY && Thread.currentThread() == mOwner) {
+            mLocal[mLocalSize++] = event;
+        } else {
+            recycleShared(event);
+        }
+    }
+
+    private void recycleShared(@NonNull Event event) {
+        for (; ; ) {
+            long tail = mTail.get();
+            int i = (int) tail & mMask;
+            long sequence = mSequences.get(i);
+            if (sequence == tail) {
+                if (mTail.compareAndSet(tail, tail + 1)) {
+                    mEvents[i] = event;
+                    mSequences.lazySet(i, tail + 1);
+                    return;
+                }
+            } else if (sequence < tail) {
+                // full, leave the event to the GC
+                event.mPool = null;
+                return;
+            }
+        }
+    }
+
+    private Event poll() {
+        for (; ; ) {
+            long head = mHead.get();
+            int i = (int) head & mMask;
+            long sequence = mSequences.get(i);
+            if (sequence == head + 1) {
+                if (mHead.compareAndSet(head, head + 1)) {
+                    Event event = mEvents[i];
+                    mEvents[i] = null;
+                    mSequences.lazySet(i, head + mMask + 1);
+                    return event;
+                }
+            } else if (sequence < head + 1) {
+                return null;
+            }
+        }
+    }
+}
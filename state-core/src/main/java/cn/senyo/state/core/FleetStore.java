@@ -0,0 +1,53 @@
+package cn.senyo.state.core;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Fixed-width record per machine of a {@link MachineFleet}: the index of its current
+ * state, its event counter and the wall clock deadline of its state timeout (0 for
+ * none). Kept in arrays on the heap by default, or in a file mapping with
+ * {@link MappedFleetStore}.
+ * <p>
+ * Fleets are flat, so the active stack of a machine is its current state alone and the
+ * record is all there is to it. Indices are only valid with the table they were written
+ * by, a store that outlives its fleet keeps the state codes with the records and
+ * translates them when a fleet with other states binds to it.
+ *
+ * @author: Rony
+ * @email: luojun@skyruler.cn
+ * @date: Created 2021/1/5 15:45
+ */
+public abstract class FleetStore {
+
+    FleetStore() {
+    }
+
+    /**
+     * @return number of machines
+     */
+    public abstract int size();
+
+    abstract int getState(int machine);
+
+    abstract void setState(int machine, int state);
+
+    abstract int getEvents(int machine);
+
+    abstract void setEvents(int machine, int events);
+
+    abstract long getDeadline(int machine);
+
+    abstract void setDeadline(int machine, long deadline);
+
+    /**
+     * Attach to a fleet: initialize new records to the initial state, check or translate
+     * the states of existing ones.
+     *
+     * @param codes   state codes of the fleet by index
+     * @param initial index of the initial state
+     * @return true if all records were put into the initial state, false if they were
+     * kept from a previous fleet
+     * @throws IllegalStateException if a stored machine is in a state the fleet lacks
+     */
+    abstract boolean bind(@NonNull int[] codes, int initial);
+}
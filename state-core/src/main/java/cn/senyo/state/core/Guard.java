@@ -0,0 +1,19 @@
+package cn.senyo.state.core;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Condition of a declared transition, see
+ * {@link StateMachine#addTransition(int, int, Guard, int)}.
+ *
+ * @author: Rony
+ * @email: luojun@skyruler.cn
+ * @date: Created 2021/1/5 15:45
+ */
+public interface Guard {
+
+    /**
+     * @return true if the transition should be taken for this event
+     */
+    boolean accept(@NonNull Event event);
+}
@@ -0,0 +1,71 @@
+package cn.senyo.state.core;
+
+import androidx.annotation.NonNull;
+
+import java.util.Arrays;
+
+/**
+ * {@link FleetStore} in arrays on the heap, the default of a {@link MachineFleet}.
+ * Deadlines are only allocated with the first timeout.
+ *
+ * @author: Rony
+ * @email: luojun@skyruler.cn
+ * @date: Created 2021/1/5 15:45
+ */
+final class HeapFleetStore extends FleetStore {
+    private final int[] mStates;
+    private final int[] mEvents;
+    private long[] mDeadlines;
+
+    HeapFleetStore(int size) {
+        mStates = new int[size];
+        mEvents = new int[size];
+    }
+
+    @Override
+    public int size() {
+        return mStates.length;
+    }
+
+    @Override
+    int getState(int machine) {
+        return mStates[machine];
+    }
+
+    @Override
+    void setState(int machine, int state) {
+        mStates[machine] = state;
+    }
+
+    @Override
+    int getEvents(int machine) {
+        return mEvents[machine];
+    }
+
+    @Override
+    void setEvents(int machine, int events) {
+        mEvents[machine] = events;
+    }
+
+    @Override
+    long getDeadline(int machine) {
+        return mDeadlines == null ? 0 : mDeadlines[machine];
+    }
+
+    @Override
+    void setDeadline(int machine, long deadline) {
+        if (mDeadlines == null) {
+            if (deadline == 0) {
+                return;
+            }
+            mDeadlines = new long[mStates.length];
+        }
+        mDeadlines[machine] = deadline;
+    }
+
+    @Override
+    boolean bind(@NonNull int[] codes, int initial) {
+        Arrays.fill(mStates, initial);
+        return true;
+    }
+}
@@ -0,0 +1,31 @@
+package cn.senyo.state.core;
+
+import androidx.annotation.NonNull;
+
+/**
+ * @author: Rony
+ * @email: luojun@skyruler.cn
+ * @date: Created 2021/1/5 15:40
+ */
+public interface IState {
+
+    /**
+     * Returned by processEvent to indicate the the event was processed.
+     */
+    boolean HANDLED = true;
+
+    /**
+     * Returned by processEvent to indicate the the event was NOT processed.
+     */
+    boolean NOT_HANDLED = false;
+
+    int getCode();
+
+    void enter();
+
+    void exit();
+
+    boolean processEvent(@NonNull Event event);
+
+    String getName();
+}
@@ -0,0 +1,51 @@
+package cn.senyo.state.core;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Minimal logging facade so the engine does not depend on android.util.Log.
+ * Platform adapters install their own {@link Printer}.
+ *
+ * @author: Rony
+ * @email: luojun@skyruler.cn
+ * @date: Created 2021/1/5 15:45
+ */
+public final class Log {
+    public static final int DEBUG = 3;
+    public static final int ERROR = 6;
+    public static final int ASSERT = 7;
+
+    public interface Printer {
+        void println(int priority, @NonNull String tag, @NonNull String msg);
+    }
+
+    private static volatile Printer sPrinter = new Printer() {
+        @Override
+        public void println(int priority, @NonNull String tag, @NonNull String msg) {
+            if (priority >= ERROR) {
+                System.err.println(tag + ": " + msg);
+            } else {
+                System.out.println(tag + ": " + msg);
+            }
+        }
+    };
+
+    private Log() {
+    }
+
+    public static void setPrinter(@NonNull Printer printer) {
+        sPrinter = printer;
+    }
+
+    public static void d(String tag, String msg) {
+        sPrinter.println(DEBUG, tag, msg);
+    }
+
+    public static void e(String tag, String msg) {
+        sPrinter.println(ERROR, tag, msg);
+    }
+
+    public static void wtf(String tag, String msg) {
+        sPrinter.println(ASSERT, tag, msg);
+    }
+}
@@ -0,0 +1,123 @@
+package cn.senyo.state.core;
+
+import androidx.annotation.NonNull;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of non negative values, nanoseconds usually, in power of two buckets: bucket
+ * i counts the values of bit length i, so [2^(i-1), 2^i). Recording is a few array stores
+ * and never allocates.
+ * <p>
+ * Only one thread may record, any thread may read. Reads are not synchronized with
+ * recording, {@link StateMetrics} makes its snapshots consistent.
+ *
+ * @author: Rony
+ * @email: luojun@skyruler.cn
+ * @date: Created 2021/1/5 15:45
+ */
+public final class LogHistogram {
+    public static final int BUCKETS = 64;
+
+    private static final int COUNT = BUCKETS;
+    private static final int SUM = BUCKETS + 1;
+    private static final int MAX = BUCKETS + 2;
+
+    /**
+     * The buckets followed by count, sum and max
+     */
+    private final AtomicLongArray mValues = new AtomicLongArray(BUCKETS + 3);
+
+    /**
+     * Single writer, the values are published with ordered stores instead of atomic
+     * increments.
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        int bucket = Math.min(BUCKETS - 1, BUCKETS - Long.numberOfLeadingZeros(value));
+        AtomicLongArray values = mValues;
+        values.lazySet(bucket, values.get(bucket) + 1);
+        values.lazySet(COUNT, values.get(COUNT) + 1);
+        values.lazySet(SUM, values.get(SUM) + value);
+        if (value > values.get(MAX)) {
+            values.lazySet(MAX, value);
+        }
+    }
+
+    @NonNull
+    public Snapshot snapshot() {
+        long[] values = new long[BUCKETS + 3];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = mValues.get(i);
+        }
+        return new Snapshot(values);
+    }
+
+    /**
+     * Immutable copy of a histogram.
+     */
+    public static final class Snapshot {
+        private final long[] mValues;
+
+        Snapshot(@NonNull long[] values) {
+            mValues = values;
+        }
+
+        public long getCount() {
+            return mValues[COUNT];
+        }
+
+        public long getSum() {
+            return mValues[SUM];
+        }
+
+        public long getMax() {
+            return mValues[MAX];
+        }
+
+        public double getMean() {
+            long count = getCount();
+            return count == 0 ? 0 : (double) getSum() / count;
+        }
+
+        /**
+         * @return number of values of bit length i, in [2^(i-1), 2^i)
+         */
+        public long getBucketCount(int i) {
+            return mValues[i];
+        }
+
+        /**
+         * @param percentile 0 to 100
+         * @return upper bound of the bucket holding the value at the percentile, capped
+         * by the max, 0 if empty
+         */
+        public long getValueAtPercentile(double percentile) {
+            long count = getCount();
+            if (count == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(count * Math.min(100, Math.max(0, percentile)) / 100);
+            rank = Math.max(1, rank);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += mValues[i];
+                if (seen >= rank) {
+                    long upper = i == 0 ? 0 : (i >= 63 ? Long.MAX_VALUE : (1L << i) - 1);
+                    return Math.min(upper, getMax());
+                }
+            }
+            return getMax();
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return "count=" + getCount() + " mean=" + (long) getMean()
+                    + " p50=" + getValueAtPercentile(50) + " p99=" + getValueAtPercentile(99)
+                    + " max=" + getMax();
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package cn.senyo.state.core;
+
+import androidx.annotation.NonNull;
+
+/**
+ * {@link Dispatcher} delivering events on an {@link EventLoop} thread.
+ *
+ * @author: Rony
+ * @email: luojun@skyruler.cn
+ * @date: Created 2021/1/5 15:45
+ */
+public class LoopDispatcher implements Dispatcher {
+    private final EventLoop mLoop;
+
+    /**
+     * true if the loop was created for this dispatcher and is quit on release
+     */
+    private final boolean mOwnsLoop;
+    private Target mTarget;
+    private volatile boolean mReleased;
+
+    /**
+     * Batch in flight, only non null on the loop thread while handleEvents runs
+     */
+    private EventBatch mBatch;
+
+    /**
+     * Reused for every batch, replaced only when the batch size changes
+     */
+    private EventBatch mBatchBuffer;
+    private volatile int mBatchSize = 1;
+
+    /**
+     * Events of this dispatcher in the timing wheel of the loop, loop thread only
+     */
+    int mWheelEvents;
+
+    public LoopDispatcher(@NonNull EventLoop loop) {
+        this(loop, false);
+    }
+
+    public LoopDispatcher(@NonNull EventLoop loop, boolean ownsLoop) {
+        mLoop = loop;
+        mOwnsLoop = ownsLoop;
+    }
+
+    @NonNull
+    public final EventLoop getLoop() {
+        return mLoop;
+    }
+
+    @Override
+    public void setTarget(@NonNull Target target) {
+        mTarget = target;
+    }
+
+    @Override
+    public boolean sendEvent(@NonNull Event event) {
+        return sendEventDelayed(event, 0);
+    }
+
+    @Override
+    public boolean sendEventDelayed(@NonNull Event event, long delayMillis) {
+        if (delayMillis < 0) {
+            delayMillis = 0;
+        }
+        return enqueue(event, EventLoop.uptimeMillis() + delayMillis);
+    }
+
+    @Override
+    public boolean sendEventAtFrontOfQueue(@NonNull Event event) {
+        requeueBatch();
+        return enqueue(event, 0);
+    }
+
+    @Override
+    public void sendEventsAtFrontOfQueue(@NonNull Event[] events, int count) {
+        requeueBatch();
+        if (mReleased) {
+            for (int i = 0; i < count; i++) {
+                events[i].recycle();
+            }
+            return;
+        }
+        for (int i = 0; i < count; i++) {
+            events[i].target = this;
+        }
+        mLoop.enqueueAtFront(events, count);
+    }
+
+    private boolean enqueue(Event event, long when) {
+        if (!mReleased) {
+            event.target = this;
+            if (mLoop.enqueue(event, when)) {
+                return true;
+            }
+        }
+        event.recycle();
+        return false;
+    }
+
+    @Override
+    public void removeEvents(int what) {
+        requeueBatch();
+        mLoop.remove(this, what, null);
+    }
+
+    @Override
+    public void removeEvents(int what, @NonNull Object obj) {
+        requeueBatch();
+        mLoop.remove(this, what, obj);
+    }
+
+    @Override
+    public void cancelEvent(@NonNull Event event) {
+        mLoop.cancel(this, event);
+    }
+
+    @Override
+    public void setBatchSize(int maxEvents) {
+        mBatchSize = Math.max(1, maxEvents);
+    }
+
+    /**
+     * The machine is changing the head of its queue while handling a batch, put the
+     * events not handled yet back first so the change applies to them as well.
+     */
+    private void requeueBatch() {
+        EventBatch batch = mBatch;
+        if (batch != null && Thread.currentThread() == mLoop.getThread()) {
+            mLoop.requeueAtFront(batch);
+        }
+    }
+
+    @Override
+    public void release() {
+        mReleased = true;
+        if (mOwnsLoop) {
+            // If we made the loop then quit it which stops the thread.
+            mLoop.quit();
+        } else {
+            mLoop.remove(this, null, null);
+        }
+    }
+
+    /**
+     * Events the target left in the batch go back to the queue, or to their pool if it
+     * quit in the middle of the batch.
+     */
+    private void finishBatch(@NonNull EventBatch batch) {
+        if (batch.mPosition < batch.mCount) {
+            if (mReleased) {
+                for (int i = batch.mPosition; i < batch.mCount; i++) {
+                    batch.mEvents[i].recycle();
+                }
+                batch.clear();
+            } else {
+                mLoop.requeueAtFront(batch);
+            }
+        }
+        batch.mPosition = 0;
+        batch.mCount = 0;
+    }
+
+    void dispatch(@NonNull Event event) {
+        if (mReleased) {
+            event.recycle();
+            return;
+        }
+        int batchSize = mBatchSize;
+        if (batchSize > 1 && mTarget instanceof BatchTarget) {
+            EventBatch batch = mBatchBuffer;
+            if (batch == null || batch.mEvents.length != batchSize) {
+                batch = new EventBatch(batchSize);
+                mBatchBuffer = batch;
+            }
+            batch.mEvents[batch.mCount++] = event;
+            mLoop.drainTo(this, batch);
+            mBatch = batch;
+            try {
+                ((BatchTarget) mTarget).handleEvents(batch);
+            } finally {
+                mBatch = null;
+                finishBatch(batch);
+            }
+        } else {
+            mTarget.handleEvent(event);
+        }
+    }
+}
@@ -0,0 +1,474 @@
+package cn.senyo.state.core;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Many flat machines of one transition table kept as struct of arrays: the current
+ * state index of machine i and its counter are fields of record i of a {@link FleetStore},
+ * with no object per machine. Events are applied in batches of (machine id, what) pairs
+ * by one loop over the dense [state][what] table, a few array accesses per event, so a
+ * million machines take some 8 MB and a core applies tens of millions of events per
+ * second. Build the fleet over a {@link MappedFleetStore} to keep the records off the
+ * heap in a file which a restarted process maps again.
+ * <p>
+ * Only declared transitions and state timeouts exist: no hierarchy, no enter or exit
+ * code, no guards, an event without a transition in the current state counts as
+ * unhandled. Timeouts are wall clock deadlines in the records, taken by {@link #expire()}.
+ * The {@link Listener} hears about the transitions of a batch once, after it is applied.
+ * <pre>
+ * MachineFleet fleet = new MachineFleet.Builder()
+ *         .addState(IDLE).addState(CONNECTED).setInitialState(IDLE)
+ *         .addTransition(IDLE, CMD_CONNECT, CONNECTED)
+ *         .build(1000000);
+ * fleet.apply(machineIds, whats, count);
+ * </pre>
+ * Not thread safe, one thread applies the events of a fleet, shard by machine id to use
+ * several cores.
+ *
+ * @author: Rony
+ * @email: luojun@skyruler.cn
+ * @date: Created 2021/1/5 15:45
+ */
+public final class MachineFleet {
+
+    /**
+     * Transitions of one {@link #apply} or {@link #expire} call, the arrays are only valid
+     * during the call.
+     */
+    public interface Listener {
+        void onTransitions(@NonNull int[] machines, @NonNull int[] fromStates,
+                           @NonNull int[] toStates, int count);
+    }
+
+    private final int[] mCodes;
+    private final Map<Integer, Integer> mIndexByCode;
+    private final int mInitial;
+
+    /**
+     * Target state index at [state * mWhatSpan + what], -1 if no transition
+     */
+    private final int[] mNext;
+    private final int mWhatSpan;
+
+    /**
+     * Timeout of each state in milliseconds, 0 for none, and the index of its target
+     */
+    private final long[] mTimeoutMillis;
+    private final int[] mTimeoutTargets;
+    private final boolean mHasTimeouts;
+
+    private final FleetStore mStore;
+    private final long[] mEnterCounts;
+    private long mUnhandled;
+
+    private Listener mListener;
+    private int[] mChangedMachines = new int[0];
+    private int[] mChangedFrom = new int[0];
+    private int[] mChangedTo = new int[0];
+
+    private MachineFleet(@NonNull Builder builder, @NonNull FleetStore store) {
+        int stateCount = builder.mCodes.size();
+        mCodes = new int[stateCount];
+        mIndexByCode = new HashMap<>();
+        for (int i = 0; i < stateCount; i++) {
+            mCodes[i] = builder.mCodes.get(i);
+            mIndexByCode.put(mCodes[i], i);
+        }
+        mInitial = indexOf(builder.mInitialCode);
+        int maxWhat = -1;
+        for (int[] transition : builder.mTransitions) {
+            maxWhat = Math.max(maxWhat, transition[1]);
+        }
+        mWhatSpan = maxWhat + 1;
+        mNext = new int[stateCount * mWhatSpan];
+        Arrays.fill(mNext, -1);
+        for (int[] transition : builder.mTransitions) {
+            int cell = indexOf(transition[0]) * mWhatSpan + transition[1];
+            // the first declared transition wins, as in StateMachine
+            if (mNext[cell] < 0) {
+                mNext[cell] = indexOf(transition[2]);
+            }
+        }
+        mTimeoutMillis = new long[stateCount];
+        mTimeoutTargets = new int[stateCount];
+        for (StateMachine.Timeout timeout : builder.mTimeouts) {
+            int state = indexOf(timeout.stateCode);
+            mTimeoutMillis[state] = timeout.millis;
+            mTimeoutTargets[state] = indexOf(timeout.targetCode);
+        }
+        mHasTimeouts = !builder.mTimeouts.isEmpty();
+        mStore = store;
+        mEnterCounts = new long[stateCount];
+        int size = store.size();
+        long now = System.currentTimeMillis();
+        if (store.bind(mCodes, mInitial)) {
+            mEnterCounts[mInitial] = size;
+            if (mTimeoutMillis[mInitial] > 0) {
+                for (int i = 0; i < size; i++) {
+                    store.setDeadline(i, now + mTimeoutMillis[mInitial]);
+                }
+            }
+            return;
+        }
+        // records of a previous fleet: each current state counts as entered once, and
+        // deadlines follow the timeouts of this table
+        for (int i = 0; i < size; i++) {
+            int state = store.getState(i);
+            mEnterCounts[state]++;
+            long millis = mTimeoutMillis[state];
+            long deadline = store.getDeadline(i);
+            if (millis == 0 && deadline != 0) {
+                store.setDeadline(i, 0);
+            } else if (millis > 0 && deadline == 0) {
+                store.setDeadline(i, now + millis);
+            }
+        }
+    }
+
+    /**
+     * @return index of the state of the code
+     * @throws IllegalArgumentException if no state has the code
+     */
+    public int indexOf(int code) {
+        Integer index = mIndexByCode.get(code);
+        if (index == null) {
+            throw new IllegalArgumentException("no state with code " + code);
+        }
+        return index;
+    }
+
+    public int getStateCount() {
+        return mCodes.length;
+    }
+
+    public int getStateCode(int stateIndex) {
+        return mCodes[stateIndex];
+    }
+
+    /**
+     * @return number of machines
+     */
+    public int size() {
+        return mStore.size();
+    }
+
+    @NonNull
+    public FleetStore getStore() {
+        return mStore;
+    }
+
+    public int getCurrentState(int machine) {
+        return mStore.getState(machine);
+    }
+
+    public int getCurrentStateCode(int machine) {
+        return mCodes[mStore.getState(machine)];
+    }
+
+    /**
+     * @return events applied to the machine since it was reset, handled or not
+     */
+    public int getEventCount(int machine) {
+        return mStore.getEvents(machine);
+    }
+
+    /**
+     * @return wall clock deadline of the timeout of the machine, 0 if none is armed
+     */
+    public long getDeadline(int machine) {
+        return mStore.getDeadline(machine);
+    }
+
+    /**
+     * @return times the state was entered across the fleet, initial states included; the
+     * states of records kept from a previous fleet count once
+     */
+    public long getEnterCount(int stateIndex) {
+        return mEnterCounts[stateIndex];
+    }
+
+    public long getUnhandledCount() {
+        return mUnhandled;
+    }
+
+    /**
+     * Put the machine back into the initial state with its counter cleared.
+     */
+    public void reset(int machine) {
+        mStore.setState(machine, mInitial);
+        mStore.setEvents(machine, 0);
+        mEnterCounts[mInitial]++;
+        armTimeout(machine, mInitial, System.currentTimeMillis());
+    }
+
+    /**
+     * Put the machine into the state directly, e.g. to load a fleet, counted as entered.
+     */
+    public void setCurrentState(int machine, int stateIndex) {
+        if (stateIndex < 0 || stateIndex >= mCodes.length) {
+            throw new IllegalArgumentException("no state at index " + stateIndex);
+        }
+        mStore.setState(machine, stateIndex);
+        mEnterCounts[stateIndex]++;
+        armTimeout(machine, stateIndex, System.currentTimeMillis());
+    }
+
+    public void setListener(@Nullable Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Apply one event.
+     *
+     * @return true if it caused a transition
+     */
+    public boolean apply(int machine, int what) {
+        FleetStore store = mStore;
+        store.setEvents(machine, store.getEvents(machine) + 1);
+        int from = store.getState(machine);
+        int target = what >= 0 && what < mWhatSpan ? mNext[from * mWhatSpan + what] : -1;
+        if (target < 0) {
+            mUnhandled++;
+            return false;
+        }
+        store.setState(machine, target);
+        mEnterCounts[target]++;
+        if (mHasTimeouts) {
+            armTimeout(machine, target, System.currentTimeMillis());
+        }
+        if (mListener != null) {
+            ensureChangeCapacity(1);
+            mChangedMachines[0] = machine;
+            mChangedFrom[0] = from;
+            mChangedTo[0] = target;
+            mListener.onTransitions(mChangedMachines, mChangedFrom, mChangedTo, 1);
+        }
+        return true;
+    }
+
+    /**
+     * Apply count events in order, machines[i] getting whats[i].
+     *
+     * @return number of transitions taken
+     */
+    public int apply(@NonNull int[] machines, @NonNull int[] whats, int count) {
+        if (count > machines.length || count > whats.length) {
+            throw new IllegalArgumentException("count " + count + " exceeds the arrays");
+        }
+        if (mListener == null) {
+            return applyQuiet(machines, whats, count);
+        }
+        int transitions = applyRecording(machines, whats, count);
+        if (transitions > 0) {
+            mListener.onTransitions(mChangedMachines, mChangedFrom, mChangedTo, transitions);
+        }
+        return transitions;
+    }
+
+    private int applyQuiet(@NonNull int[] machines, @NonNull int[] whats, int count) {
+        final FleetStore store = mStore;
+        final int[] next = mNext;
+        final long[] enters = mEnterCounts;
+        final int span = mWhatSpan;
+        final boolean timeouts = mHasTimeouts;
+        final long now = timeouts ? System.currentTimeMillis() : 0;
+        int transitions = 0;
+        for (int i = 0; i < count; i++) {
+            int machine = machines[i];
+            int what = whats[i];
+            store.setEvents(machine, store.getEvents(machine) + 1);
+            int target = what >= 0 && what < span
+                    ? next[store.getState(machine) * span + what] : -1;
+            if (target >= 0) {
+                store.setState(machine, target);
+                enters[target]++;
+                if (timeouts) {
+                    armTimeout(machine, target, now);
+                }
+                transitions++;
+            }
+        }
+        mUnhandled += count - transitions;
+        return transitions;
+    }
+
+    private int applyRecording(@NonNull int[] machines, @NonNull int[] whats, int count) {
+        ensureChangeCapacity(count);
+        final FleetStore store = mStore;
+        final int[] next = mNext;
+        final long[] enters = mEnterCounts;
+        final int span = mWhatSpan;
+        final boolean timeouts = mHasTimeouts;
+        final long now = timeouts ? System.currentTimeMillis() : 0;
+        int transitions = 0;
+        for (int i = 0; i < count; i++) {
+            int machine = machines[i];
+            int what = whats[i];
+            store.setEvents(machine, store.getEvents(machine) + 1);
+            int from = store.getState(machine);
+            int target = what >= 0 && what < span ? next[from * span + what] : -1;
+            if (target >= 0) {
+                store.setState(machine, target);
+                enters[target]++;
+                if (timeouts) {
+                    armTimeout(machine, target, now);
+                }
+                mChangedMachines[transitions] = machine;
+                mChangedFrom[transitions] = from;
+                mChangedTo[transitions] = target;
+                transitions++;
+            }
+        }
+        mUnhandled += count - transitions;
+        return transitions;
+    }
+
+    /**
+     * Take the timeouts due now, see {@link #expire(long)}.
+     */
+    public int expire() {
+        return expire(System.currentTimeMillis());
+    }
+
+    /**
+     * Take the timeout transition of every machine whose deadline is not after now, the
+     * target state arming its own timeout from now. Scans all records, call it about as
+     * often as the timeouts need to be accurate.
+     *
+     * @param now wall clock milliseconds
+     * @return number of transitions taken
+     */
+    public int expire(long now) {
+        if (!mHasTimeouts) {
+            return 0;
+        }
+        final FleetStore store = mStore;
+        final int size = store.size();
+        final boolean recording = mListener != null;
+        int transitions = 0;
+        for (int machine = 0; machine < size; machine++) {
+            long deadline = store.getDeadline(machine);
+            if (deadline == 0 || deadline > now) {
+                continue;
+            }
+            int from = store.getState(machine);
+            int target = mTimeoutTargets[from];
+            store.setState(machine, target);
+            mEnterCounts[target]++;
+            armTimeout(machine, target, now);
+            if (recording) {
+                ensureChangeCapacity(transitions + 1);
+                mChangedMachines[transitions] = machine;
+                mChangedFrom[transitions] = from;
+                mChangedTo[transitions] = target;
+            }
+            transitions++;
+        }
+        if (recording && transitions > 0) {
+            mListener.onTransitions(mChangedMachines, mChangedFrom, mChangedTo, transitions);
+        }
+        return transitions;
+    }
+
+    private void armTimeout(int machine, int state, long now) {
+        long millis = mTimeoutMillis[state];
+        if (millis > 0) {
+            mStore.setDeadline(machine, now + millis);
+        } else if (mHasTimeouts) {
+            mStore.setDeadline(machine, 0);
+        }
+    }
+
+    private void ensureChangeCapacity(int count) {
+        if (mChangedMachines.length < count) {
+            int capacity = Math.max(count, mChangedMachines.length * 2);
+            mChangedMachines = Arrays.copyOf(mChangedMachines, capacity);
+            mChangedFrom = Arrays.copyOf(mChangedFrom, capacity);
+            mChangedTo = Arrays.copyOf(mChangedTo, capacity);
+        }
+    }
+
+    /**
+     * Collects the states and transitions of the fleet, not thread safe.
+     */
+    public static final class Builder {
+        private final List<Integer> mCodes = new ArrayList<>();
+        private final List<int[]> mTransitions = new ArrayList<>();
+
+        private final List<StateMachine.Timeout> mTimeouts = new ArrayList<>();
+        private Integer mInitialCode;
+
+        @NonNull
+        public Builder addState(int code) {
+            if (mCodes.contains(code)) {
+                throw new RuntimeException("state code " + code + " added twice");
+            }
+            mCodes.add(code);
+            return this;
+        }
+
+        @NonNull
+        public Builder setInitialState(int code) {
+            mInitialCode = code;
+            return this;
+        }
+
+        /**
+         * @see StateMachine#addTransition(int, int, int)
+         */
+        @NonNull
+        public Builder addTransition(int sourceCode, int what, int targetCode) {
+            if (what < 0) {
+                throw new IllegalArgumentException("what must not be negative: " + what);
+            }
+            mTransitions.add(new int[]{sourceCode, what, targetCode});
+            return this;
+        }
+
+        /**
+         * Go to the target state once the machine has been in the state for timeoutMillis,
+         * when {@link MachineFleet#expire()} runs.
+         */
+        @NonNull
+        public Builder addTimeout(int stateCode, long timeoutMillis, int targetCode) {
+            if (timeoutMillis <= 0) {
+                throw new IllegalArgumentException("timeoutMillis must be positive: "
+                        + timeoutMillis);
+            }
+            mTimeouts.add(new StateMachine.Timeout(stateCode, timeoutMillis, targetCode));
+            return this;
+        }
+
+        /**
+         * @param size number of machines, all in the initial state, kept on the heap
+         * @throws IllegalArgumentException if a state code used is not added
+         */
+        @NonNull
+        public MachineFleet build(int size) {
+            if (size < 0) {
+                throw new IllegalArgumentException("size must not be negative: " + size);
+            }
+            return build(new HeapFleetStore(size));
+        }
+
+        /**
+         * @param store records of the machines, new ones are put into the initial state
+         * @throws IllegalArgumentException if a state code used is not added
+         * @throws IllegalStateException    if a stored machine is in a state not added
+         */
+        @NonNull
+        public MachineFleet build(@NonNull FleetStore store) {
+            if (mInitialCode == null) {
+                throw new RuntimeException("initial state not set");
+            }
+            return new MachineFleet(this, store);
+        }
+    }
+}
@@ -0,0 +1,358 @@
+package cn.senyo.state.core;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Arrays;
+
+/**
+ * Running machine of a shared {@link StateMachineDefinition}, the flyweight counterpart
+ * of {@link StateMachine}: it holds the index of its current state, the active states
+ * being that state and its ancestors, its {@link Dispatcher} as inbox and its context.
+ * Deferred events and armed timeouts only take room while there are any. The states of
+ * the definition get the instance with every call. Instances on the same loop may share
+ * an {@link EventPool} so sending allocates nothing.
+ * <p>
+ * Semantics follow StateMachine: events go to the current state first and up to its
+ * ancestors until one handles them, declared transitions take precedence over
+ * processEvent, transitionTo takes effect once the event is handled, exiting up to the
+ * deepest active ancestor of the destination and entering down to it, so a transition
+ * to the current state or an active ancestor exits and enters it again, after which the
+ * deferred events are put back at the front of the queue. Unlike StateMachine,
+ * transitionTo sends no state event and unhandled events are dropped.
+ * <p>
+ * Like StateMachine, the instance runs on its dispatcher thread; only the send and quit
+ * methods may be called from other threads.
+ *
+ * @param <C> type of the extended state
+ * @author: Rony
+ * @email: luojun@skyruler.cn
+ * @date: Created 2021/1/5 15:45
+ */
+public final class MachineInstance<C> implements Dispatcher.Target {
+    /**
+     * Same values as the internal events of StateMachine, for tools reading both
+     */
+    private static final int SM_QUIT_CMD = -1;
+    private static final int SM_INIT_CMD = -2;
+    private static final int SM_TIMEOUT_CMD = -3;
+
+    /**
+     * obj of the internal events, so no user event is mistaken for one
+     */
+    private static final Object INTERNAL = new Object();
+
+    private final StateMachineDefinition<C> mDefinition;
+    private final Dispatcher mDispatcher;
+    private final C mContext;
+
+    /**
+     * Null to allocate every event
+     */
+    private final EventPool mPool;
+
+    /**
+     * Index of the current state, -1 before start and once quit
+     */
+    private int mCurrent = -1;
+
+    /**
+     * Destination of transitionTo while an event is handled, -1 if none
+     */
+    private int mDest = -1;
+    private boolean mQuit;
+    private Event[] mDeferred;
+    private int mDeferredCount;
+
+    /**
+     * Armed timeout event by state index, allocated with the first one
+     */
+    private Event[] mTimeouts;
+
+    public MachineInstance(@NonNull StateMachineDefinition<C> definition,
+                           @NonNull EventLoop loop, C context) {
+        this(definition, new LoopDispatcher(loop), context);
+    }
+
+    public MachineInstance(@NonNull StateMachineDefinition<C> definition,
+                           @NonNull Dispatcher dispatcher, C context) {
+        this(definition, dispatcher, context, null);
+    }
+
+    public MachineInstance(@NonNull StateMachineDefinition<C> definition,
+                           @NonNull Dispatcher dispatcher, C context,
+                           @Nullable EventPool pool) {
+        mDefinition = definition;
+        mDispatcher = dispatcher;
+        mContext = context;
+        mPool = pool;
+        dispatcher.setTarget(this);
+    }
+
+    @NonNull
+    public StateMachineDefinition<C> getDefinition() {
+        return mDefinition;
+    }
+
+    public C getContext() {
+        return mContext;
+    }
+
+    /**
+     * @return code of the current state, -1 before start and once quit
+     */
+    public int getCurrentStateCode() {
+        int current = mCurrent;
+        return current < 0 ? -1 : mDefinition.mCodes[current];
+    }
+
+    /**
+     * @return true if the state of the code is the current state or one of its ancestors
+     */
+    public boolean isInState(int code) {
+        for (int i = mCurrent; i >= 0; i = mDefinition.mParents[i]) {
+            if (mDefinition.mCodes[i] == code) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Enter the initial state and its ancestors, on the dispatcher thread.
+     */
+    public void start() {
+        mDispatcher.sendEventAtFrontOfQueue(Event.obtain(SM_INIT_CMD, INTERNAL));
+    }
+
+    /**
+     * Exit the active states and release the dispatcher after the queued events.
+     */
+    public void quit() {
+        mDispatcher.sendEvent(Event.obtain(SM_QUIT_CMD, INTERNAL));
+    }
+
+    /**
+     * Exit the active states and release the dispatcher before the queued events.
+     */
+    public void quitNow() {
+        mDispatcher.sendEventAtFrontOfQueue(Event.obtain(SM_QUIT_CMD, INTERNAL));
+    }
+
+    @NonNull
+    public Event obtainEvent(int what, int arg1, int arg2, Object obj) {
+        if (mPool == null) {
+            return Event.obtain(what, arg1, arg2, obj);
+        }
+        Event event = mPool.obtain();
+        event.what = what;
+        event.arg1 = arg1;
+        event.arg2 = arg2;
+        event.obj = obj;
+        return event;
+    }
+
+    public void sendMessage(int what) {
+        sendMessage(obtainEvent(what, 0, 0, null));
+    }
+
+    public void sendMessage(int what, Object obj) {
+        sendMessage(obtainEvent(what, 0, 0, obj));
+    }
+
+    public void sendMessage(int what, int arg1, int arg2) {
+        sendMessage(obtainEvent(what, arg1, arg2, null));
+    }
+
+    public void sendMessage(int what, int arg1, int arg2, Object obj) {
+        sendMessage(obtainEvent(what, arg1, arg2, obj));
+    }
+
+    /**
+     * Send an event, the instance owns it afterwards.
+     */
+    public void sendMessage(@NonNull Event event) {
+        mDispatcher.sendEvent(event);
+    }
+
+    public void sendMessageDelayed(int what, long delayMillis) {
+        mDispatcher.sendEventDelayed(obtainEvent(what, 0, 0, null), delayMillis);
+    }
+
+    /**
+     * Go to the state of the code once the current event is handled, only valid while
+     * handling one.
+     *
+     * @throws IllegalArgumentException if no single state has the code
+     */
+    public void transitionTo(int code) {
+        mDest = mDefinition.indexOf(code);
+    }
+
+    public void transitionTo(@NonNull SharedState<C> state) {
+        transitionTo(state.getCode());
+    }
+
+    /**
+     * Keep a copy of the event, handled again after the next state change.
+     */
+    public void deferMessage(@NonNull Event event) {
+        Event copy = obtainEvent(event.what, event.arg1, event.arg2, event.obj);
+        copy.payload = event.payload;
+        if (mDeferred == null) {
+            mDeferred = new Event[4];
+        } else if (mDeferredCount == mDeferred.length) {
+            mDeferred = Arrays.copyOf(mDeferred, mDeferredCount * 2);
+        }
+        mDeferred[mDeferredCount++] = copy;
+    }
+
+    @Override
+    public void handleEvent(@NonNull Event event) {
+        if (mQuit) {
+            event.recycle();
+            return;
+        }
+        if (mPool != null) {
+            mPool.bindOwner();
+        }
+        if (event.obj == INTERNAL && event.what < 0) {
+            handleInternal(event);
+        } else {
+            process(event);
+            performTransitions();
+        }
+        event.recycle();
+    }
+
+    private void handleInternal(@NonNull Event event) {
+        switch (event.what) {
+            case SM_INIT_CMD:
+                if (mCurrent < 0) {
+                    enterDown(-1, mDefinition.mInitial);
+                    performTransitions();
+                }
+                break;
+            case SM_TIMEOUT_CMD:
+                int state = event.arg1;
+                if (mTimeouts != null && mTimeouts[state] == event) {
+                    mTimeouts[state] = null;
+                    mDest = mDefinition.mTimeoutTargets[state];
+                    performTransitions();
+                }
+                break;
+            default:
+                exitAll();
+                break;
+        }
+    }
+
+    private void process(@NonNull Event event) {
+        StateMachineDefinition<C> definition = mDefinition;
+        TransitionTable table = definition.mTable;
+        for (int i = mCurrent; i >= 0; i = definition.mParents[i]) {
+            if (table != null) {
+                int target = table.resolve(definition.mCodes[i], event);
+                if (target >= 0) {
+                    mDest = target;
+                    return;
+                }
+            }
+            if (definition.mStates[i].processEvent(this, event)) {
+                return;
+            }
+        }
+    }
+
+    private void performTransitions() {
+        if (mDest < 0) {
+            return;
+        }
+        StateMachineDefinition<C> definition = mDefinition;
+        while (mDest >= 0) {
+            int dest = mDest;
+            mDest = -1;
+            // the deepest active ancestor of dest, dest itself is always exited and
+            // entered again like in StateMachine
+            int common = definition.mParents[dest];
+            while (common >= 0 && !isActive(common)) {
+                common = definition.mParents[common];
+            }
+            while (mCurrent != common) {
+                int state = mCurrent;
+                disarmTimeout(state);
+                definition.mStates[state].exit(this);
+                mCurrent = definition.mParents[state];
+            }
+            enterDown(common, dest);
+        }
+        if (mDeferredCount > 0) {
+            mDispatcher.sendEventsAtFrontOfQueue(mDeferred, mDeferredCount);
+            Arrays.fill(mDeferred, 0, mDeferredCount, null);
+            mDeferredCount = 0;
+        }
+    }
+
+    private boolean isActive(int state) {
+        StateMachineDefinition<C> definition = mDefinition;
+        int current = mCurrent;
+        if (current < 0 || definition.mDepths[state] > definition.mDepths[current]) {
+            return false;
+        }
+        while (definition.mDepths[current] > definition.mDepths[state]) {
+            current = definition.mParents[current];
+        }
+        return current == state;
+    }
+
+    /**
+     * Enter the ancestors of dest below from, then dest.
+     */
+    private void enterDown(int from, int dest) {
+        if (dest == from) {
+            return;
+        }
+        enterDown(from, mDefinition.mParents[dest]);
+        mCurrent = dest;
+        armTimeout(dest);
+        mDefinition.mStates[dest].enter(this);
+    }
+
+    private void armTimeout(int state) {
+        if (!mDefinition.mHasTimeouts || mDefinition.mTimeoutMillis[state] == 0) {
+            return;
+        }
+        if (mTimeouts == null) {
+            mTimeouts = new Event[mDefinition.mStates.length];
+        }
+        Event timeout = obtainEvent(SM_TIMEOUT_CMD, state, 0, INTERNAL);
+        mTimeouts[state] = timeout;
+        mDispatcher.sendEventDelayed(timeout, mDefinition.mTimeoutMillis[state]);
+    }
+
+    private void disarmTimeout(int state) {
+        if (mTimeouts == null || mTimeouts[state] == null) {
+            return;
+        }
+        Event timeout = mTimeouts[state];
+        mTimeouts[state] = null;
+        // delivered anyway by dispatchers which cannot cancel, it no longer matches then
+        mDispatcher.cancelEvent(timeout);
+    }
+
+    private void exitAll() {
+        while (mCurrent >= 0) {
+            int state = mCurrent;
+            disarmTimeout(state);
+            mDefinition.mStates[state].exit(this);
+            mCurrent = mDefinition.mParents[state];
+        }
+        mQuit = true;
+        for (int i = 0; i < mDeferredCount; i++) {
+            mDeferred[i].recycle();
+        }
+        mDeferred = null;
+        mDeferredCount = 0;
+        mDispatcher.release();
+    }
+}
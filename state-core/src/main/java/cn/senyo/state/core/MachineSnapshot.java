@@ -0,0 +1,149 @@
+package cn.senyo.state.core;
+
+import androidx.annotation.NonNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Binary form of a running machine, see {@link StateMachine#snapshot()}: the active state
+ * stack as state indices, the armed timeouts with the time they had left, the deferred
+ * events and the bytes written by {@link StateMachine#onSaveState(java.io.DataOutput)}.
+ * <p>
+ * Layout, big endian: magic, version, number of states and a hash of their codes so a
+ * snapshot is only restored into a machine built the same way, the event log position,
+ * then each section as a count followed by its entries. About 30 bytes for a machine with
+ * nothing deferred.
+ *
+ * @author: Rony
+ * @email: luojun@skyruler.cn
+ * @date: Created 2021/1/5 15:45
+ */
+final class MachineSnapshot {
+    static final int MAGIC = 0x534d5331; // "SMS1"
+    static final int VERSION = 1;
+
+    int stateCount;
+    int codesHash;
+
+    /**
+     * {@link StateMachine#getEventLogPosition()}
+     */
+    long logPosition;
+
+    /**
+     * State indices from the root to the current state
+     */
+    int[] stack;
+
+    /**
+     * Indices of the states with an armed timeout and the milliseconds it had left
+     */
+    int[] timeoutStates;
+    long[] timeoutRemaining;
+
+    int[] deferredWhat;
+    int[] deferredArg1;
+    int[] deferredArg2;
+    long[] deferredPayload;
+
+    /**
+     * Extended state of the subclass, empty if it saved none
+     */
+    byte[] extended;
+
+    @NonNull
+    byte[] encode() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(32 + extended.length);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeShort(stateCount);
+            out.writeInt(codesHash);
+            out.writeLong(logPosition);
+            out.writeByte(stack.length);
+            for (int index : stack) {
+                out.writeShort(index);
+            }
+            out.writeShort(timeoutStates.length);
+            for (int i = 0; i < timeoutStates.length; i++) {
+                out.writeShort(timeoutStates[i]);
+                out.writeInt((int) Math.min(Integer.MAX_VALUE, timeoutRemaining[i]));
+            }
+            out.writeInt(deferredWhat.length);
+            for (int i = 0; i < deferredWhat.length; i++) {
+                out.writeInt(deferredWhat[i]);
+                out.writeInt(deferredArg1[i]);
+                out.writeInt(deferredArg2[i]);
+                out.writeLong(deferredPayload[i]);
+            }
+            out.writeInt(extended.length);
+            out.write(extended);
+        } catch (IOException e) {
+            // not thrown by a ByteArrayOutputStream
+            throw new RuntimeException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @throws IllegalArgumentException if the bytes are not a snapshot of this version
+     */
+    @NonNull
+    static MachineSnapshot decode(@NonNull byte[] bytes) {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        MachineSnapshot snapshot = new MachineSnapshot();
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IllegalArgumentException("not a state machine snapshot");
+            }
+            int version = in.readUnsignedByte();
+            if (version != VERSION) {
+                throw new IllegalArgumentException("unsupported snapshot version " + version);
+            }
+            snapshot.stateCount = in.readUnsignedShort();
+            snapshot.codesHash = in.readInt();
+            snapshot.logPosition = in.readLong();
+            snapshot.stack = new int[in.readUnsignedByte()];
+            for (int i = 0; i < snapshot.stack.length; i++) {
+                snapshot.stack[i] = in.readUnsignedShort();
+            }
+            int timeouts = in.readUnsignedShort();
+            snapshot.timeoutStates = new int[timeouts];
+            snapshot.timeoutRemaining = new long[timeouts];
+            for (int i = 0; i < timeouts; i++) {
+                snapshot.timeoutStates[i] = in.readUnsignedShort();
+                snapshot.timeoutRemaining[i] = in.readInt();
+            }
+            int deferred = in.readInt();
+            if (deferred < 0 || deferred > bytes.length / 20) {
+                throw new IllegalArgumentException("corrupt snapshot: " + deferred
+                        + " deferred events");
+            }
+            snapshot.deferredWhat = new int[deferred];
+            snapshot.deferredArg1 = new int[deferred];
+            snapshot.deferredArg2 = new int[deferred];
+            snapshot.deferredPayload = new long[deferred];
+            for (int i = 0; i < deferred; i++) {
+                snapshot.deferredWhat[i] = in.readInt();
+                snapshot.deferredArg1[i] = in.readInt();
+                snapshot.deferredArg2[i] = in.readInt();
+                snapshot.deferredPayload[i] = in.readLong();
+            }
+            int length = in.readInt();
+            if (length < 0 || length > bytes.length) {
+                throw new IllegalArgumentException("corrupt snapshot: " + length
+                        + " bytes of extended state");
+            }
+            snapshot.extended = new byte[length];
+            in.readFully(snapshot.extended);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("truncated snapshot", e);
+        }
+        return snapshot;
+    }
+}
@@ -0,0 +1,240 @@
+package cn.senyo.state.core;
+
+import androidx.annotation.NonNull;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * {@link FleetStore} in a memory-mapped file, so the records of tens of millions of
+ * machines take no heap and the collector never scans them, and a restarted process
+ * resumes the fleet by mapping the file again:
+ * <pre>
+ * MappedFleetStore store = MappedFleetStore.open(new File(dir, "probes.fleet"), 10000000);
+ * MachineFleet fleet = builder.build(store);
+ * </pre>
+ * A header keeps the state codes of the fleet which wrote the records, a fleet built with
+ * other states, added, removed or reordered, gets the stored indices translated by code.
+ * Writing the records is writing into the mapping, they survive a crash of the process;
+ * {@link #force()} writes them to the file to survive one of the system.
+ * <p>
+ * File layout: a header of {@link #HEADER_BYTES} with magic, version, record size, number
+ * of machines, number of states and the state codes, then a record of
+ * {@link #RECORD_BYTES} per machine: state index, event counter and timeout deadline in
+ * wall clock milliseconds, 0 for none.
+ *
+ * @author: Rony
+ * @email: luojun@skyruler.cn
+ * @date: Created 2021/1/5 15:45
+ */
+public final class MappedFleetStore extends FleetStore implements Closeable {
+    static final int MAGIC = 0x534d4631; // "SMF1"
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 4096;
+    static final int RECORD_BYTES = 16;
+    private static final int RECORD_SHIFT = 4;
+
+    /**
+     * Header offsets, the state codes follow STATE_COUNT
+     */
+    private static final int SIZE = 12;
+    private static final int STATE_COUNT = 16;
+    private static final int CODES = 20;
+    public static final int MAX_STATES = (HEADER_BYTES - CODES) / 4;
+
+    /**
+     * Records are mapped in chunks of 2^CHUNK_SHIFT, a single mapping cannot exceed 2 GB
+     */
+    private static final int CHUNK_SHIFT = 24;
+    private static final int CHUNK_MASK = (1 << CHUNK_SHIFT) - 1;
+
+    private final File mFile;
+    private final RandomAccessFile mRaf;
+    private final MappedByteBuffer mHeader;
+    private final MappedByteBuffer[] mChunks;
+    private final int mSize;
+
+    private MappedFleetStore(@NonNull File file, @NonNull RandomAccessFile raf, int size)
+            throws IOException {
+        mFile = file;
+        mRaf = raf;
+        mSize = size;
+        FileChannel channel = raf.getChannel();
+        mHeader = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES);
+        int chunks = (int) (((long) size + CHUNK_MASK) >>> CHUNK_SHIFT);
+        mChunks = new MappedByteBuffer[chunks];
+        for (int i = 0; i < chunks; i++) {
+            long first = (long) i << CHUNK_SHIFT;
+            long records = Math.min(1L << CHUNK_SHIFT, size - first);
+            mChunks[i] = channel.map(FileChannel.MapMode.READ_WRITE,
+                    HEADER_BYTES + (first << RECORD_SHIFT), records << RECORD_SHIFT);
+        }
+    }
+
+    /**
+     * Map the file, created with size machines if it does not exist or is empty.
+     *
+     * @throws IOException              if the file cannot be mapped or is no fleet store
+     * @throws IllegalArgumentException if the file holds another number of machines
+     */
+    @NonNull
+    public static MappedFleetStore open(@NonNull File file, int size) throws IOException {
+        if (size < 0) {
+            throw new IllegalArgumentException("size must not be negative: " + size);
+        }
+        long length = HEADER_BYTES + ((long) size << RECORD_SHIFT);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            boolean created = raf.length() == 0;
+            if (created) {
+                raf.setLength(length);
+            }
+            MappedFleetStore store = new MappedFleetStore(file, raf, size);
+            MappedByteBuffer header = store.mHeader;
+            if (created) {
+                header.putInt(4, VERSION);
+                header.putInt(8, RECORD_BYTES);
+                header.putInt(SIZE, size);
+                header.putInt(STATE_COUNT, 0);
+                header.putInt(0, MAGIC);
+            } else if (header.getInt(0) != MAGIC) {
+                throw new IOException(file + ": not a fleet store");
+            } else if (header.getInt(4) != VERSION || header.getInt(8) != RECORD_BYTES) {
+                throw new IOException(file + ": unsupported version " + header.getInt(4));
+            } else if (header.getInt(SIZE) != size || raf.length() != length) {
+                throw new IllegalArgumentException(file + " holds " + header.getInt(SIZE)
+                        + " machines, not " + size);
+            }
+            return store;
+        } catch (IOException | RuntimeException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    @NonNull
+    public File getFile() {
+        return mFile;
+    }
+
+    @Override
+    public int size() {
+        return mSize;
+    }
+
+    @Override
+    int getState(int machine) {
+        return mChunks[machine >>> CHUNK_SHIFT].getInt((machine & CHUNK_MASK) << RECORD_SHIFT);
+    }
+
+    @Override
+    void setState(int machine, int state) {
+        mChunks[machine >>> CHUNK_SHIFT].putInt((machine & CHUNK_MASK) << RECORD_SHIFT, state);
+    }
+
+    @Override
+    int getEvents(int machine) {
+        return mChunks[machine >>> CHUNK_SHIFT]
+                .getInt(((machine & CHUNK_MASK) << RECORD_SHIFT) + 4);
+    }
+
+    @Override
+    void setEvents(int machine, int events) {
+        mChunks[machine >>> CHUNK_SHIFT]
+                .putInt(((machine & CHUNK_MASK) << RECORD_SHIFT) + 4, events);
+    }
+
+    @Override
+    long getDeadline(int machine) {
+        return mChunks[machine >>> CHUNK_SHIFT]
+                .getLong(((machine & CHUNK_MASK) << RECORD_SHIFT) + 8);
+    }
+
+    @Override
+    void setDeadline(int machine, long deadline) {
+        mChunks[machine >>> CHUNK_SHIFT]
+                .putLong(((machine & CHUNK_MASK) << RECORD_SHIFT) + 8, deadline);
+    }
+
+    @Override
+    boolean bind(@NonNull int[] codes, int initial) {
+        if (codes.length > MAX_STATES) {
+            throw new IllegalArgumentException("a fleet store holds up to " + MAX_STATES
+                    + " states, not " + codes.length);
+        }
+        int storedCount = mHeader.getInt(STATE_COUNT);
+        if (storedCount == 0) {
+            // new, or never bound before the process died
+            for (int i = 0; i < mSize; i++) {
+                setState(i, initial);
+                setEvents(i, 0);
+                setDeadline(i, 0);
+            }
+            writeCodes(codes);
+            return true;
+        }
+        int[] translation = new int[storedCount];
+        boolean same = storedCount == codes.length;
+        for (int i = 0; i < storedCount; i++) {
+            int code = mHeader.getInt(CODES + i * 4);
+            translation[i] = -1;
+            for (int j = 0; j < codes.length; j++) {
+                if (codes[j] == code) {
+                    translation[i] = j;
+                    break;
+                }
+            }
+            same &= translation[i] == i;
+        }
+        if (same) {
+            return false;
+        }
+        // checked first so a failed bind leaves the records as they were
+        for (int i = 0; i < mSize; i++) {
+            int state = getState(i);
+            if (state < 0 || state >= storedCount || translation[state] < 0) {
+                throw new IllegalStateException(mFile + ": machine " + i + " is in state "
+                        + (state < 0 || state >= storedCount ? "index " + state
+                        : "code " + mHeader.getInt(CODES + state * 4))
+                        + " which the fleet lacks");
+            }
+        }
+        for (int i = 0; i < mSize; i++) {
+            setState(i, translation[getState(i)]);
+        }
+        writeCodes(codes);
+        return false;
+    }
+
+    private void writeCodes(@NonNull int[] codes) {
+        for (int i = 0; i < codes.length; i++) {
+            mHeader.putInt(CODES + i * 4, codes[i]);
+        }
+        mHeader.putInt(STATE_COUNT, codes.length);
+    }
+
+    /**
+     * Write the mapped records to the file. Not needed to survive a crash of the process,
+     * only of the system.
+     */
+    public void force() {
+        for (MappedByteBuffer chunk : mChunks) {
+            chunk.force();
+        }
+        mHeader.force();
+    }
+
+    /**
+     * Force and close the file. The fleet must not be used afterwards, the mapping is only
+     * released once collected.
+     */
+    @Override
+    public void close() throws IOException {
+        force();
+        mRaf.close();
+    }
+}
@@ -0,0 +1,105 @@
+package cn.senyo.state.core;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * Unbounded lock-free multi producer single consumer queue of events, linked through
+ * Event.inboxNext (D. Vyukov's intrusive MPSC node queue). offer may be called from any
+ * thread, poll and isEmpty only from the consumer thread.
+ * <p>
+ * The producers' tail and the consumer's head are kept on separate cache lines by the
+ * padding super classes, so sending does not invalidate the line the consumer reads.
+ *
+ * @author: Rony
+ * @email: luojun@skyruler.cn
+ * @date: Created 2021/1/5 15:45
+ */
+final class MpscEventQueue extends MpscEventQueuePad2 {
+    private static final AtomicReferenceFieldUpdater<MpscEventQueueTail, Event> TAIL =
+            AtomicReferenceFieldUpdater.newUpdater(MpscEventQueueTail.class, Event.class, "mTail");
+    private static final AtomicReferenceFieldUpdater<Event, Event> NEXT =
+            AtomicReferenceFieldUpdater.newUpdater(Event.class, Event.class, "inboxNext");
+
+    /**
+     * Placeholder node, the queue is empty when both head and tail point to it
+     */
+    private final Event mStub = new Event();
+
+    MpscEventQueue() {
+        mHead = mStub;
+        mTail = mStub;
+    }
+
+    void offer(@NonNull Event event) {
+        NEXT.lazySet(event, null);
+        Event prev = TAIL.getAndSet(this, event);
+        // Between the swap and this store the consumer sees a tail it cannot reach yet.
+        NEXT.lazySet(prev, event);
+    }
+
+    /**
+     * @return the oldest event, null if empty or if the producer of the next event has
+     * not linked it yet (isEmpty is false in that case)
+     */
+    @Nullable
+    Event poll() {
+        Event head = mHead;
+        Event next = head.inboxNext;
+        if (head == mStub) {
+            if (next == null) {
+                return null;
+            }
+            mHead = next;
+            head = next;
+            next = next.inboxNext;
+        }
+        if (next != null) {
+            mHead = next;
+            return head;
+        }
+        if (head != mTail) {
+            return null;
+        }
+        // head is the last event, put the stub behind it so it can be unlinked
+        offer(mStub);
+        next = head.inboxNext;
+        if (next != null) {
+            mHead = next;
+            return head;
+        }
+        return null;
+    }
+
+    boolean isEmpty() {
+        return mHead == mStub && mTail == mStub;
+    }
+}
+
+abstract class MpscEventQueuePad0 {
+    long p00, p01, p02, p03, p04, p05, p06, p07;
+}
+
+abstract class MpscEventQueueTail extends MpscEventQueuePad0 {
+    /**
+     * Last event offered, swapped by the producers
+     */
+    volatile Event mTail;
+}
+
+abstract class MpscEventQueuePad1 extends MpscEventQueueTail {
+    long p10, p11, p12, p13, p14, p15, p16, p17;
+}
+
+abstract class MpscEventQueueHead extends MpscEventQueuePad1 {
+    /**
+     * Next event to poll or the stub, only touched by the consumer
+     */
+    Event mHead;
+}
+
+abstract class MpscEventQueuePad2 extends MpscEventQueueHead {
+    long p20, p21, p22, p23, p24, p25, p26, p27;
+}
@@ -0,0 +1,324 @@
+package cn.senyo.state.core;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Replays recorded events through state machines on a {@link VirtualClock}, far faster
+ * than real time, and checks what the machines do against an expected trace.
+ * <p>
+ * The input is what an {@link EventLog} recorded: the events sent to each machine with
+ * the time they were sent at. They are delivered at the same offsets from the start of
+ * the run, delayed events and state timeouts fire in virtual time in between. The
+ * expected trace is what a {@link TransitionJournal} recorded for the same machines:
+ * every event with its current, handling and destination states, then the exits and
+ * enters it caused, states compared by index so the machines must be built the same
+ * way. The run stops at the first record which differs.
+ * <pre>
+ * ReplayRunner runner = new ReplayRunner();
+ * MyMachine sm = new MyMachine("session-1", runner.newDispatcher("session-1"));
+ * runner.add(sm);
+ * sm.start();
+ * runner.expect(TransitionJournalReader.read(journalDir, "ftp"));
+ * ReplayRunner.Result result = runner.run(EventLog.read(logDir, "ftp"));
+ * </pre>
+ * Everything runs on the calling thread, machines must be created with the dispatchers
+ * of the runner.
+ *
+ * @author: Rony
+ * @email: luojun@skyruler.cn
+ * @date: Created 2021/1/5 15:45
+ */
+public final class ReplayRunner {
+    /**
+     * Trace records kept per machine between two checks, the records of one event and
+     * of the inline events it causes must fit
+     */
+    public static final int TRACE_CAPACITY = 1024;
+
+    private final VirtualClock mClock;
+    private final Map<String, Entry> mEntries = new HashMap<>();
+    private final Map<Dispatcher, Entry> mByDispatcher = new HashMap<>();
+    private Result mResult;
+
+    /**
+     * Set once an expected trace is given, without one the machines are only run
+     */
+    private boolean mChecking;
+
+    public ReplayRunner() {
+        mClock = new VirtualClock();
+        mClock.setListener(new VirtualClock.Listener() {
+            @Override
+            public void onDispatched(@NonNull Dispatcher dispatcher) {
+                Entry entry = mByDispatcher.get(dispatcher);
+                if (mChecking && entry != null && entry.mMachine != null
+                        && mResult.mDivergence == null) {
+                    check(entry);
+                }
+            }
+        });
+        mResult = new Result();
+    }
+
+    @NonNull
+    public VirtualClock getClock() {
+        return mClock;
+    }
+
+    /**
+     * @return the dispatcher to create the machine of the name with
+     */
+    @NonNull
+    public Dispatcher newDispatcher(@NonNull String machineName) {
+        if (mEntries.containsKey(machineName)) {
+            throw new IllegalArgumentException("machine " + machineName + " already added");
+        }
+        Entry entry = new Entry(machineName, mClock.newDispatcher());
+        mEntries.put(machineName, entry);
+        mByDispatcher.put(entry.mDispatcher, entry);
+        return entry.mDispatcher;
+    }
+
+    /**
+     * Add a machine created with {@link #newDispatcher(String)}, before it is started or
+     * restored.
+     */
+    public void add(@NonNull StateMachine machine) {
+        Entry entry = mEntries.get(machine.getName());
+        if (entry == null) {
+            throw new IllegalArgumentException("no dispatcher for machine "
+                    + machine.getName());
+        }
+        machine.setTraceCapacity(TRACE_CAPACITY);
+        entry.mMachine = machine;
+    }
+
+    /**
+     * Check the machines against the journal records of the same names, the records
+     * of other machines are ignored.
+     */
+    public void expect(@NonNull List<TransitionJournalReader.Record> records) {
+        mChecking = true;
+        for (TransitionJournalReader.Record record : records) {
+            Entry entry = mEntries.get(record.machine);
+            if (entry != null) {
+                entry.mExpected.add(record);
+            }
+        }
+    }
+
+    /**
+     * Deliver the events to their machines in virtual time, then run until the time of
+     * the last one. Events of machines not added are ignored.
+     *
+     * @param input events by machine name, as {@link EventLog#read} returns them
+     */
+    @NonNull
+    public Result run(@NonNull Map<String, List<EventLog.Record>> input) {
+        List<EventLog.Record> events = new ArrayList<>();
+        for (Map.Entry<String, List<EventLog.Record>> e : input.entrySet()) {
+            if (mEntries.containsKey(e.getKey())) {
+                events.addAll(e.getValue());
+            }
+        }
+        // sequence order is the order the log accepted them in
+        Collections.sort(events, new Comparator<EventLog.Record>() {
+            @Override
+            public int compare(EventLog.Record a, EventLog.Record b) {
+                return Long.compare(a.seq, b.seq);
+            }
+        });
+        return run(events);
+    }
+
+    @NonNull
+    private Result run(@NonNull List<EventLog.Record> events) {
+        long startNanos = System.nanoTime();
+        long start = mClock.now();
+        long first = events.isEmpty() ? 0 : events.get(0).time;
+        long dispatched = mClock.getDispatchedCount();
+        for (EventLog.Record record : events) {
+            // times of several senders may be slightly out of log order
+            long time = Math.max(mClock.now(), start + record.time - first);
+            mClock.advanceTo(time);
+            if (mResult.mDivergence != null) {
+                break;
+            }
+            Entry entry = mEntries.get(record.machine);
+            StateMachine machine = entry.mMachine;
+            if (machine == null) {
+                continue;
+            }
+            machine.sendMessage(machine.obtainEvent(record.what, record.arg1, record.arg2,
+                    record.payload, null));
+            mResult.mInputEvents++;
+        }
+        if (mResult.mDivergence == null) {
+            mClock.advanceTo(mClock.now());
+        }
+        for (Entry entry : mEntries.values()) {
+            mResult.mUnmatched += entry.mExpected.size() - entry.mCursor;
+        }
+        mResult.mDispatched += mClock.getDispatchedCount() - dispatched;
+        mResult.mVirtualMillis += mClock.now() - start;
+        mResult.mElapsedNanos += System.nanoTime() - startNanos;
+        return mResult;
+    }
+
+    /**
+     * Compare the trace records written since the last check with the expected ones.
+     */
+    private void check(@NonNull Entry entry) {
+        TransitionTrace trace = entry.mTrace;
+        if (trace == null) {
+            trace = entry.mTrace = entry.mMachine.getTrace();
+            if (trace == null) {
+                return;
+            }
+            entry.resolveExpected();
+        }
+        long written = trace.getWritten();
+        if (written - entry.mChecked > trace.getCapacity()) {
+            diverge(entry, entry.mCursor, "more than " + trace.getCapacity()
+                    + " trace records for one event, records were lost");
+            return;
+        }
+        for (long n = entry.mChecked; n < written; n++) {
+            long states = trace.getRecordLong(n, 1);
+            long whatArg1 = trace.getRecordLong(n, 2);
+            long arg2 = trace.getRecordLong(n, 3) >>> 32;
+            int i = entry.mCursor;
+            if (i >= entry.mExpected.size()) {
+                diverge(entry, i, "unexpected " + describe(trace, n));
+                return;
+            }
+            if (states != entry.mStates[i] || whatArg1 != entry.mWhatArg1[i]
+                    || arg2 != entry.mArg2[i]) {
+                diverge(entry, i, "expected " + entry.mExpected.get(i)
+                        + "\n  but was " + describe(trace, n));
+                return;
+            }
+            entry.mCursor++;
+        }
+        entry.mChecked = written;
+    }
+
+    private void diverge(@NonNull Entry entry, int index, @NonNull String message) {
+        mResult.mDivergence = entry.mName + " record " + index + " at virtual "
+                + mClock.now() + "ms: " + message;
+    }
+
+    @NonNull
+    private static String describe(@NonNull TransitionTrace trace, long n) {
+        long[] record = new long[TransitionTrace.RECORD_LONGS];
+        for (int f = 0; f < record.length; f++) {
+            record[f] = trace.getRecordLong(n, f);
+        }
+        return TransitionTrace.Snapshot.decode(record, trace.getStateNames()).toString().trim();
+    }
+
+    private static final class Entry {
+        final String mName;
+        final Dispatcher mDispatcher;
+        StateMachine mMachine;
+        TransitionTrace mTrace;
+        final List<TransitionJournalReader.Record> mExpected = new ArrayList<>();
+
+        /**
+         * Expected records in the encoding of the trace, resolved on the first check
+         */
+        long[] mStates;
+        long[] mWhatArg1;
+        long[] mArg2;
+        int mCursor;
+        long mChecked;
+
+        Entry(@NonNull String name, @NonNull Dispatcher dispatcher) {
+            mName = name;
+            mDispatcher = dispatcher;
+        }
+
+        void resolveExpected() {
+            int count = mExpected.size();
+            mStates = new long[count];
+            mWhatArg1 = new long[count];
+            mArg2 = new long[count];
+            for (int i = 0; i < count; i++) {
+                TransitionJournalReader.Record record = mExpected.get(i);
+                mStates[i] = TransitionTrace.encodeStates(record.kind, record.stateIndex,
+                        record.handlerIndex, record.destIndex);
+                mWhatArg1[i] = ((long) record.what << 32) | (record.arg1 & 0xFFFFFFFFL);
+                mArg2[i] = record.arg2 & 0xFFFFFFFFL;
+            }
+        }
+    }
+
+    /**
+     * Outcome of a run.
+     */
+    public static final class Result {
+        private String mDivergence;
+        private long mInputEvents;
+        private long mDispatched;
+        private long mUnmatched;
+        private long mVirtualMillis;
+        private long mElapsedNanos;
+
+        /**
+         * @return description of the first record which differs, null if none did
+         */
+        @Nullable
+        public String getDivergence() {
+            return mDivergence;
+        }
+
+        public boolean isMatching() {
+            return mDivergence == null;
+        }
+
+        public long getInputEvents() {
+            return mInputEvents;
+        }
+
+        /**
+         * @return events dispatched, the inputs and the events the machines sent
+         */
+        public long getDispatchedEvents() {
+            return mDispatched;
+        }
+
+        /**
+         * @return expected records not reached by the end of the input
+         */
+        public long getUnmatchedRecords() {
+            return mUnmatched;
+        }
+
+        public long getVirtualMillis() {
+            return mVirtualMillis;
+        }
+
+        public long getElapsedNanos() {
+            return mElapsedNanos;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            double seconds = mElapsedNanos / 1e9;
+            return (mDivergence == null ? "matching" : "diverged: " + mDivergence)
+                    + "\n" + mInputEvents + " input events, " + mDispatched + " dispatched, "
+                    + mVirtualMillis + "ms virtual in " + (long) (seconds * 1000) + "ms, "
+                    + (long) (mDispatched / Math.max(seconds, 1e-9)) + " events/s, "
+                    + mUnmatched + " expected records not reached";
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package cn.senyo.state.core;
+
+import androidx.annotation.NonNull;
+
+/**
+ * State of a {@link StateMachineDefinition}, one object shared by every
+ * {@link MachineInstance} of the definition. The instance, and through it its context,
+ * is passed to each call, so a shared state keeps no per machine fields: anything a
+ * session needs to remember belongs in the context.
+ *
+ * @param <C> type of the extended state of the instances
+ * @author: Rony
+ * @email: luojun@skyruler.cn
+ * @date: Created 2021/1/5 15:45
+ */
+public abstract class SharedState<C> {
+    /**
+     * Returned by processEvent to indicate the the event was processed.
+     */
+    public static final boolean HANDLED = true;
+
+    /**
+     * Returned by processEvent to indicate the the event was NOT processed.
+     */
+    public static final boolean NOT_HANDLED = false;
+
+    private final int mCode;
+
+    protected SharedState(int code) {
+        mCode = code;
+    }
+
+    public final int getCode() {
+        return mCode;
+    }
+
+    public void enter(@NonNull MachineInstance<C> machine) {
+
+    }
+
+    public void exit(@NonNull MachineInstance<C> machine) {
+
+    }
+
+    /**
+     * @return HANDLED, or NOT_HANDLED to pass the event to the parent state
+     */
+    public boolean processEvent(@NonNull MachineInstance<C> machine, @NonNull Event event) {
+        return NOT_HANDLED;
+    }
+
+    public String getName() {
+        String name = getClass().getName();
+        int lastDollar = name.lastIndexOf('$');
+        return name.substring(lastDollar + 1);
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "SharedState{" +
+                "name=" + getName() +
+                ", code=" + mCode +
+                '}';
+    }
+}
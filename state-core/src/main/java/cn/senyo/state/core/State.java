@@ -0,0 +1,98 @@
+package cn.senyo.state.core;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.BitSet;
+
+/**
+ * @author: Rony
+ * @email: luojun@skyruler.cn
+ * @date: Created 2021/1/5 15:42
+ */
+public class State implements IState {
+
+    private final int mCode;
+
+    /**
+     * State machine this state was added to and its index there, kept on the state so
+     * the engine finds its StateInfo with an array load instead of a hash lookup
+     */
+    Object mOwner;
+    int mIndex = -1;
+
+    /**
+     * what values processEvent handles, null if not declared
+     */
+    BitSet mHandledEvents;
+
+    protected State(int code) {
+        mCode = code;
+    }
+
+    /**
+     * Declare the what values processEvent handles, so the machine passes any other event
+     * straight to the first ancestor which may handle it, or to unhandledEvent, without
+     * calling this state. Declared transitions from the state apply regardless. Call it
+     * in the constructor, before the machine starts; include the state events received
+     * from transitionTo, by default the code of the destination.
+     *
+     * @throws IllegalArgumentException if a what is negative
+     */
+    protected final void setHandledEvents(@NonNull int... whats) {
+        BitSet handled = new BitSet();
+        for (int what : whats) {
+            if (what < 0) {
+                throw new IllegalArgumentException("what must not be negative: " + what);
+            }
+            handled.set(what);
+        }
+        mHandledEvents = handled;
+    }
+
+    @Override
+    public int getCode() {
+        return mCode;
+    }
+
+    @Override
+    public void enter() {
+
+    }
+
+    @Override
+    public void exit() {
+
+    }
+
+    @Override
+    public boolean processEvent(@NonNull Event event) {
+        return false;
+    }
+
+    @Override
+    public String getName() {
+        String name = getClass().getName();
+        int lastDollar = name.lastIndexOf('$');
+        return name.substring(lastDollar + 1);
+    }
+
+    @Override
+    public int hashCode() {
+        return super.hashCode();
+    }
+
+    @Override
+    public boolean equals(@Nullable Object obj) {
+        return super.equals(obj);
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "State{" +
+                "name=" + getName() +
+                ", code=" + mCode +
+                '}';
+    }
+}
@@ -0,0 +1,2241 @@
+package cn.senyo.state.core;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Hierarchical state machine running on a pluggable {@link Dispatcher}.
+ *
+ * @author: Rony
+ * @email: luojun@skyruler.cn
+ * @date: Created 2021/1/5 15:45
+ */
+public class StateMachine {
+    public static final String TAG = "StateMachine";
+    /**
+     * Event.what value when quitting
+     */
+    private static final int SM_QUIT_CMD = -1;
+
+    /**
+     * Event.what value when initializing
+     */
+    private static final int SM_INIT_CMD = -2;
+
+    /**
+     * Event.what value of a state timeout, see {@link #addTimeout(int, long, int)}
+     */
+    private static final int SM_TIMEOUT_CMD = -3;
+
+    /**
+     * Default bound of state events handled inline for one queued event
+     */
+    public static final int DEFAULT_MAX_INLINE_TRANSITIONS = 32;
+
+    /**
+     * Records kept by the {@link TransitionTrace} unless set otherwise
+     */
+    public static final int DEFAULT_TRACE_CAPACITY = 128;
+
+    /**
+     * Largest what + 1 of the cached handler rows, see State#setHandledEvents
+     */
+    private static final int MAX_HANDLER_SPAN = 256;
+
+    private String mName;
+    private SmHandler mSmHandler;
+    private OnStateListener mStateListener;
+    private EventPool mEventPool = new EventPool();
+    private boolean mIsDbg;
+
+    /**
+     * Events sent are timestamped for the dispatch latency of {@link StateMetrics}
+     */
+    private boolean mMetricsEnabled;
+    private StateMetrics mMetrics;
+    private int mTraceCapacity = DEFAULT_TRACE_CAPACITY;
+    private TransitionTrace mTrace;
+    private TransitionJournal mJournal;
+
+    /**
+     * Set while the machine belongs to a {@link StateMachineRegistry}. Written by the
+     * registry and read by the machine thread once it has quit, both volatile with mQuit
+     * so either the registry sees the quit or the machine sees the entry.
+     */
+    volatile StateMachineRegistry.Entry<?, ?> mRegistryEntry;
+    private volatile boolean mQuit;
+
+    private void initStateMachine(String name, Dispatcher dispatcher) {
+        mName = name;
+        mSmHandler = new SmHandler(dispatcher, this);
+    }
+
+    protected StateMachine(String name) {
+        EventLoop loop = new EventLoop(name);
+        loop.start();
+
+        initStateMachine(name, new LoopDispatcher(loop, true));
+    }
+
+    /**
+     * Run the machine on its own loop on a thread of the factory, e.g.
+     * {@link VirtualThreads#factory()} so blocking calls in its states do not hold a
+     * platform thread.
+     */
+    protected StateMachine(String name, @NonNull ThreadFactory threadFactory) {
+        EventLoop loop = new EventLoop(name, threadFactory);
+        loop.start();
+
+        initStateMachine(name, new LoopDispatcher(loop, true));
+    }
+
+    protected StateMachine(String name, @NonNull EventLoop loop) {
+        initStateMachine(name, new LoopDispatcher(loop));
+    }
+
+    protected StateMachine(String name, @NonNull Dispatcher dispatcher) {
+        initStateMachine(name, dispatcher);
+    }
+
+    /**
+     * The listener is called on the machine thread from transitionTo, wrap a slow one in
+     * an {@link AsyncStateListener} to have it called on another thread. Not named
+     * setOnStateListener so it does not overload the one of the Android StateMachine,
+     * whose listener takes the Android IState.
+     */
+    public void setStateListener(@Nullable OnStateListener stateListener) {
+        mStateListener = stateListener;
+    }
+
+    /**
+     * Timeout declared by addTimeout, also by the builders of
+     * {@link StateMachineDefinition} and {@link MachineFleet}
+     */
+    static final class Timeout {
+        final int stateCode;
+        final long millis;
+        final int targetCode;
+
+        Timeout(int stateCode, long millis, int targetCode) {
+            this.stateCode = stateCode;
+            this.millis = millis;
+            this.targetCode = targetCode;
+        }
+    }
+
+    private static class SmHandler implements Dispatcher.BatchTarget {
+        /**
+         * true if StateMachine has quit
+         */
+        private boolean mHasQuit = false;
+
+        private final Dispatcher mDispatcher;
+        private StateMachine mStateMachine;
+        private Event mEvent;
+        private boolean mIsConstructionCompleted = false;
+        private Object mSmHandlerObj = new Object();
+        private int mStateStackTopIndex = -1;
+        private StateInfo[] mStateStack;
+        private StateInfo[] mTempStateStack;
+        private boolean mTransitionInProgress = false;
+        /**
+         * State used when state machine is quitting
+         */
+        private QuittingState mQuittingState = new QuittingState(SM_QUIT_CMD);
+        private int mTempStateStackCount;
+        private boolean mIsDbg;
+
+
+        private static class StateInfo {
+            /**
+             * The state
+             */
+            State state;
+
+            /**
+             * state.getCode(), cached for the transition table lookup
+             */
+            int code;
+
+            /**
+             * Dense index in order of addition, position in mStateInfo
+             */
+            int index;
+
+            /**
+             * Number of ancestors, set by completeConstruction
+             */
+            int depth;
+
+            /**
+             * The parent of this state, null if there is no parent
+             */
+            StateInfo parentStateInfo;
+
+            /**
+             * True when the state has been entered and on the stack
+             */
+            boolean active;
+
+            /**
+             * state.mHandledEvents, null if the state takes any event
+             */
+            BitSet handledEvents;
+
+            /**
+             * Declared timeout of the state, 0 if none, and the state it leads to
+             */
+            long timeoutMillis;
+            State timeoutTarget;
+
+            /**
+             * Timeout event armed on enter, null while not armed
+             */
+            Event timeoutEvent;
+
+            /**
+             * Generation of the armed timeout, bumped on every arm and cancel so a timeout
+             * still delivered after its cancellation is recognised as stale
+             */
+            int timeoutSeq;
+
+            /**
+             * EventLoop.uptimeMillis() the armed timeout is due at, for snapshots
+             */
+            long timeoutDeadline;
+
+            /**
+             * Convert StateInfo to string
+             */
+            @NonNull
+            @Override
+            public String toString() {
+                return "state=" + state.getName() + ",active=" + active + ",parent="
+                        + ((parentStateInfo == null) ? "null" : parentStateInfo.state.getName());
+            }
+        }
+
+        /**
+         * The states exited and entered by a transition from the state on top of the
+         * stack to a destination, computed once per (source, destination) pair.
+         */
+        private static class TransitionPath {
+            /**
+             * Common ancestor which stays active, null if there is none
+             */
+            final StateInfo commonStateInfo;
+
+            /**
+             * States to enter, outermost first
+             */
+            final StateInfo[] statesToEnter;
+
+            TransitionPath(StateInfo commonStateInfo, StateInfo[] statesToEnter) {
+                this.commonStateInfo = commonStateInfo;
+                this.statesToEnter = statesToEnter;
+            }
+        }
+
+        /**
+         * State entered when a valid quit message is handled.
+         */
+        private static class QuittingState extends State {
+            protected QuittingState(int code) {
+                super(code);
+            }
+
+            @Override
+            public boolean processEvent(@NonNull Event event) {
+                return NOT_HANDLED;
+            }
+        }
+
+
+        /**
+         * All of the states in the state machine by their index, State.mIndex of a state
+         * registered here points into this array
+         */
+        private StateInfo[] mStateInfo = new StateInfo[8];
+        private int mStateCount;
+
+        /**
+         * The initial state that will process the first message
+         */
+        private State mInitialState;
+
+        /**
+         * The destination state when transitionTo has been invoked
+         */
+        private State mDestState;
+
+        /**
+         * Transitions declared by addTransition, compiled in completeConstruction
+         */
+        private TransitionTable.Builder mTransitionBuilder = new TransitionTable.Builder();
+        private TransitionTable mTransitionTable;
+
+        /**
+         * Index of the first state at or above a state which may handle a what, by
+         * [state index][what] for what below mHandlerSpan, -1 if none; rows are built
+         * on first use. Null if no state declares its handled events
+         */
+        private int[][] mHandlerRows;
+        private int mHandlerSpan;
+
+        /**
+         * Timeouts declared by addTimeout, resolved in completeConstruction
+         */
+        private List<Timeout> mTimeouts = new ArrayList<>();
+
+        /**
+         * Transition paths by [source index][destination index], rows are allocated
+         * on the first transition out of a source
+         */
+        private TransitionPath[][] mTransitionPaths;
+
+        /**
+         * State events of transitions are handled in the same cycle instead of queued
+         */
+        private boolean mInlineTransitions;
+
+        /**
+         * Metrics of the machine, null when disabled
+         */
+        private StateMetrics mMetrics;
+
+        /**
+         * Dispatch latency of the current event, recorded with its handling, -1 if none
+         */
+        private long mLatencyNanos = -1;
+
+        /**
+         * Trace of the machine, null when disabled
+         */
+        private TransitionTrace mTrace;
+
+        /**
+         * Journal of the machine, null when disabled
+         */
+        private TransitionJournal.Writer mJournal;
+        private int mMaxInlineTransitions = DEFAULT_MAX_INLINE_TRANSITIONS;
+
+        /**
+         * State events waiting to be handled inline, in the order of the transitions
+         */
+        private ArrayDeque<Event> mInlineEvents;
+
+        /**
+         * Events deferred until the next transition, in the order they were deferred
+         */
+        private Event[] mDeferred;
+        private volatile int mDeferredCount;
+        private volatile long mDeferredTotal;
+
+        /**
+         * The event being processed was deferred, it must not be recycled
+         */
+        private boolean mEventDeferred;
+
+        /**
+         * Snapshot to resume from on the init event instead of entering the initial state
+         */
+        private MachineSnapshot mRestore;
+
+        /**
+         * Inbox of the machine in its event log, null if not logged
+         */
+        private EventLog.Writer mLogWriter;
+
+        /**
+         * Sequence of the last logged event taken from the queue
+         */
+        private volatile long mLogPosition;
+
+        private SmHandler(Dispatcher dispatcher, StateMachine stateMachine) {
+            mDispatcher = dispatcher;
+            mStateMachine = stateMachine;
+            dispatcher.setTarget(this);
+            addState(mQuittingState, null);
+        }
+
+        @Override
+        public void handleEvent(@NonNull Event event) {
+            if (!mHasQuit) {
+                if (mStateMachine != null && !isInternal(event)) {
+                    mStateMachine.onPreHandleEvent(event);
+                }
+                dispatchEvent(event);
+                if (mStateMachine != null && !isInternal(event)) {
+                    mStateMachine.onPostHandleEvent(event);
+                }
+            }
+        }
+
+        /**
+         * Batch mode: every event still runs through processMsg and performTransitions on
+         * its own, only the hooks are called once for the whole batch.
+         */
+        @Override
+        public void handleEvents(@NonNull EventBatch batch) {
+            StateMachine sm = mStateMachine;
+            if (mHasQuit || sm == null) {
+                return;
+            }
+            sm.onPreHandleBatch(batch.size());
+            int count = 0;
+            Event event;
+            while (!mHasQuit && (event = batch.next()) != null) {
+                dispatchEvent(event);
+                count++;
+            }
+            if (!mHasQuit) {
+                sm.onPostHandleBatch(count);
+            }
+        }
+
+        /**
+         * @return true for the events the machine sends itself, not seen by the hooks
+         */
+        private boolean isInternal(@NonNull Event event) {
+            int what = event.what;
+            return what == SM_INIT_CMD || what == SM_QUIT_CMD || what == SM_TIMEOUT_CMD;
+        }
+
+        private void dispatchEvent(@NonNull Event event) {
+            if (mIsDbg) {
+                Log.d(TAG, "handleEvent: E event.what=" + event.what);
+            }
+            mEvent = event;
+            if (event.logSeq != 0) {
+                // taken as processed from here on, a snapshot it causes includes it
+                mLogPosition = event.logSeq;
+            }
+            if (mMetrics != null && event.sentNanos != 0) {
+                mLatencyNanos = Math.max(0, System.nanoTime() - event.sentNanos);
+            }
+
+            /* State that processed the message */
+            State msgProcessedState = null;
+            if (mIsConstructionCompleted || (mEvent.what == SM_QUIT_CMD)) {
+                /* Normal path */
+                msgProcessedState = processMsg(event);
+                if (mTrace != null || mJournal != null) {
+                    traceEvent(event, msgProcessedState);
+                }
+            } else if (!mIsConstructionCompleted && (mEvent.what == SM_INIT_CMD)
+                    && (mEvent.obj == mSmHandlerObj)) {
+                /* Initial one time path. */
+                mIsConstructionCompleted = true;
+                mStateMachine.mEventPool.bindOwner();
+                if (mTrace != null) {
+                    mTrace.event(event, -1, -1, -1);
+                }
+                if (mJournal != null) {
+                    mJournal.event(event, -1, -1, -1);
+                }
+                if (mRestore != null) {
+                    resumeFromSnapshot();
+                } else {
+                    invokeEnterMethods(0);
+                }
+                if (mLogWriter != null) {
+                    replayLoggedEvents();
+                }
+            } else {
+                throw new RuntimeException("StateMachine.handleEvent: "
+                        + "The start method not called, received event: " + event);
+            }
+            if (mDestState != null) {
+                performTransitions(msgProcessedState, event);
+            }
+            if (mInlineEvents != null && !mInlineEvents.isEmpty()) {
+                processInlineEvents();
+            }
+            mEvent = null;
+            recycleProcessed(event);
+        }
+
+        private void traceEvent(@NonNull Event event, @Nullable State handler) {
+            int current = mStateStackTopIndex >= 0 ? mStateStack[mStateStackTopIndex].index : -1;
+            int handlerIndex = handler == null ? -1 : handler.mIndex;
+            int dest = mDestState == null ? -1 : mDestState.mIndex;
+            if (mTrace != null) {
+                mTrace.event(event, current, handlerIndex, dest);
+            }
+            if (mJournal != null) {
+                mJournal.event(event, current, handlerIndex, dest);
+            }
+        }
+
+        private void recycleProcessed(@NonNull Event event) {
+            if (mEventDeferred) {
+                mEventDeferred = false;
+            } else {
+                event.recycle();
+            }
+        }
+
+        /**
+         * @see StateMachine#deferMessage(Event)
+         */
+        private void deferMessage(@NonNull Event event) {
+            if (mIsDbg) {
+                Log.d(TAG, "deferMessage: event.what=" + event.what);
+            }
+            if (event == mEvent) {
+                if (event.mPool == null) {
+                    // the dispatcher may reuse it, keep a copy
+                    Event copy = mStateMachine.obtainEvent(event.what, event.arg1, event.arg2,
+                            event.payload, event.obj);
+                    copy.setSource(event.getSource());
+                    event = copy;
+                } else {
+                    mEventDeferred = true;
+                }
+            }
+            addDeferred(event);
+        }
+
+        private void addDeferred(@NonNull Event event) {
+            Event[] deferred = mDeferred;
+            int count = mDeferredCount;
+            if (deferred == null) {
+                deferred = mDeferred = new Event[4];
+            } else if (count == deferred.length) {
+                deferred = mDeferred = Arrays.copyOf(deferred, count * 2);
+            }
+            deferred[count] = event;
+            mDeferredCount = count + 1;
+            mDeferredTotal++;
+        }
+
+        /**
+         * Move the deferred events to the front of the queue in one dispatcher call, keeping
+         * the order they were deferred in.
+         */
+        private void moveDeferredMessageAtFrontOfQueue() {
+            int count = mDeferredCount;
+            if (count == 0) {
+                return;
+            }
+            if (mIsDbg) {
+                Log.d(TAG, "moveDeferredMessageAtFrontOfQueue: " + count + " events");
+            }
+            mDispatcher.sendEventsAtFrontOfQueue(mDeferred, count);
+            Arrays.fill(mDeferred, 0, count, null);
+            mDeferredCount = 0;
+        }
+
+        /**
+         * Run the state events of the transitions taken by the current event to completion,
+         * each one is handled by the state just entered as if it had come from the queue.
+         * A chain longer than mMaxInlineTransitions is taken as a transition loop, the
+         * remaining state events are queued so other events still get through.
+         */
+        private void processInlineEvents() {
+            ArrayDeque<Event> events = mInlineEvents;
+            int steps = 0;
+            Event event;
+            while (!mHasQuit && (event = events.poll()) != null) {
+                if (++steps > mMaxInlineTransitions) {
+                    Log.wtf(TAG, "processInlineEvents: transition loop detected after "
+                            + mMaxInlineTransitions + " inline transitions, in state "
+                            + getCurrentState().getName() + ", queueing the rest");
+                    mDispatcher.sendEvent(event);
+                    while ((event = events.poll()) != null) {
+                        mDispatcher.sendEvent(event);
+                    }
+                    return;
+                }
+                if (mIsDbg) {
+                    Log.d(TAG, "processInlineEvents: event.what=" + event.what);
+                }
+                mEvent = event;
+                State msgProcessedState = processMsg(event);
+                if (mTrace != null || mJournal != null) {
+                    traceEvent(event, msgProcessedState);
+                }
+                if (mDestState != null) {
+                    performTransitions(msgProcessedState, event);
+                }
+                recycleProcessed(event);
+            }
+            events.clear();
+        }
+
+        /**
+         * Queue the state event of a transition, or keep it for processInlineEvents.
+         */
+        private void sendStateEvent(@NonNull Event event) {
+            if (mInlineTransitions) {
+                if (mInlineEvents == null) {
+                    mInlineEvents = new ArrayDeque<>();
+                }
+                mInlineEvents.add(event);
+            } else {
+                mDispatcher.sendEvent(event);
+            }
+        }
+
+        public void setInitialState(@NonNull State initialState) {
+            if (mIsDbg) {
+                Log.d(TAG, "setInitialState: initialState=" + initialState.getName());
+            }
+            mInitialState = initialState;
+        }
+
+        /**
+         * Cleanup all the static variables and release the dispatcher after the SM has been quit.
+         */
+        private final void cleanupAfterQuitting() {
+            // The dispatcher stops the thread if it made one.
+            mDispatcher.release();
+
+            mStateMachine.mSmHandler = null;
+            mStateMachine.mQuit = true;
+            mStateMachine = null;
+            mEvent = null;
+            mStateStack = null;
+            mTempStateStack = null;
+            for (int i = 0; i < mStateCount; i++) {
+                mStateInfo[i].state.mOwner = null;
+            }
+            mStateInfo = null;
+            mStateCount = 0;
+            mInitialState = null;
+            mDestState = null;
+            mTransitionBuilder = null;
+            mTransitionTable = null;
+            mHandlerRows = null;
+            mTimeouts = null;
+            mTransitionPaths = null;
+            for (int i = 0; i < mDeferredCount; i++) {
+                mDeferred[i].recycle();
+            }
+            mDeferred = null;
+            mDeferredCount = 0;
+            mHasQuit = true;
+        }
+
+        /**
+         * Attach the declared timeouts to the states, targets are looked up by code like
+         * the ones of declared transitions.
+         */
+        private void resolveTimeouts() {
+            List<Timeout> timeouts = mTimeouts;
+            mTimeouts = null;
+            for (Timeout timeout : timeouts) {
+                State target = null;
+                for (int i = 0; i < mStateCount; i++) {
+                    State state = mStateInfo[i].state;
+                    if (state.getCode() == timeout.targetCode) {
+                        if (target != null) {
+                            throw new RuntimeException("timeout target code " + timeout.targetCode
+                                    + " is shared by several states");
+                        }
+                        target = state;
+                    }
+                }
+                if (target == null) {
+                    throw new RuntimeException("timeout target code " + timeout.targetCode
+                            + " is not a state of this machine");
+                }
+                boolean found = false;
+                for (int i = 0; i < mStateCount; i++) {
+                    StateInfo si = mStateInfo[i];
+                    if (si.code != timeout.stateCode) {
+                        continue;
+                    }
+                    if (si.timeoutMillis != 0) {
+                        throw new RuntimeException("state " + si.state.getName()
+                                + " already has a timeout");
+                    }
+                    si.timeoutMillis = timeout.millis;
+                    si.timeoutTarget = target;
+                    found = true;
+                }
+                if (!found) {
+                    throw new RuntimeException("timeout state code " + timeout.stateCode
+                            + " is not a state of this machine");
+                }
+            }
+        }
+
+        /**
+         * Set up the handler rows if any state declares the events it handles.
+         */
+        private void resolveHandlers() {
+            int span = -1;
+            for (int i = 0; i < mStateCount; i++) {
+                StateInfo si = mStateInfo[i];
+                si.handledEvents = si.state.mHandledEvents;
+                if (si.handledEvents != null) {
+                    span = Math.max(span, si.handledEvents.length());
+                }
+            }
+            if (span < 0) {
+                return;
+            }
+            if (mTransitionTable != null) {
+                span = Math.max(span, mTransitionTable.whatSpan());
+            }
+            // larger whats are looked up level by level, see firstHandler
+            mHandlerSpan = Math.min(span, MAX_HANDLER_SPAN);
+            mHandlerRows = new int[mStateCount][];
+        }
+
+        /**
+         * @return true unless the state declares its handled events without the what and
+         * has no declared transition for it
+         */
+        private boolean mayHandle(@NonNull StateInfo si, int what) {
+            return si.handledEvents == null
+                    || what >= 0 && si.handledEvents.get(what)
+                    || mTransitionTable != null && mTransitionTable.declares(si.code, what);
+        }
+
+        @NonNull
+        private int[] handlerRow(@NonNull StateInfo si) {
+            int[] row = mHandlerRows[si.index];
+            if (row == null) {
+                int[] parentRow = si.parentStateInfo == null
+                        ? null : handlerRow(si.parentStateInfo);
+                row = new int[mHandlerSpan];
+                for (int what = 0; what < row.length; what++) {
+                    if (mayHandle(si, what)) {
+                        row[what] = si.index;
+                    } else {
+                        row[what] = parentRow == null ? -1 : parentRow[what];
+                    }
+                }
+                mHandlerRows[si.index] = row;
+            }
+            return row;
+        }
+
+        /**
+         * @return the state or its first ancestor which may handle the what, null if none
+         */
+        @Nullable
+        private StateInfo firstHandler(@Nullable StateInfo si, int what) {
+            if (mHandlerRows == null || si == null) {
+                return si;
+            }
+            if (what >= 0 && what < mHandlerSpan) {
+                int index = handlerRow(si)[what];
+                return index < 0 ? null : mStateInfo[index];
+            }
+            while (si != null && !mayHandle(si, what)) {
+                si = si.parentStateInfo;
+            }
+            return si;
+        }
+
+        /**
+         * Complete the construction of the state machine.
+         */
+        private final void completeConstruction() {
+            if (mIsDbg) {
+                Log.d(TAG, "completeConstruction: E");
+            }
+
+            /**
+             * Determine the maximum depth of the state hierarchy
+             * so we can allocate the state stacks.
+             */
+            int maxDepth = 0;
+            for (int s = 0; s < mStateCount; s++) {
+                StateInfo si = mStateInfo[s];
+                int depth = 0;
+                for (StateInfo i = si; i != null; depth++) {
+                    i = i.parentStateInfo;
+                }
+                si.depth = depth - 1;
+                if (maxDepth < depth) {
+                    maxDepth = depth;
+                }
+            }
+            if (mIsDbg) {
+                Log.d(TAG, "completeConstruction: maxDepth=" + maxDepth);
+            }
+
+            mStateStack = new StateInfo[maxDepth];
+            mTempStateStack = new StateInfo[maxDepth];
+            mStateInfo = Arrays.copyOf(mStateInfo, mStateCount);
+            mTransitionPaths = new TransitionPath[mStateCount][];
+            setupInitialStateStack();
+            if (mStateMachine.mMetricsEnabled) {
+                String[] names = new String[mStateCount];
+                int[] codes = new int[mStateCount];
+                for (int i = 0; i < mStateCount; i++) {
+                    names[i] = mStateInfo[i].state.getName();
+                    codes[i] = mStateInfo[i].code;
+                }
+                mMetrics = new StateMetrics(names, codes);
+                mStateMachine.mMetrics = mMetrics;
+            }
+            if (mStateMachine.mTraceCapacity > 0 || mStateMachine.mJournal != null) {
+                String[] names = new String[mStateCount];
+                for (int i = 0; i < mStateCount; i++) {
+                    names[i] = mStateInfo[i].state.getName();
+                }
+                if (mStateMachine.mTraceCapacity > 0) {
+                    mTrace = new TransitionTrace(names, mStateMachine.mTraceCapacity);
+                    mStateMachine.mTrace = mTrace;
+                }
+                if (mStateMachine.mJournal != null) {
+                    mJournal = mStateMachine.mJournal.register(mStateMachine.getName(), names);
+                }
+            }
+
+            if (!mTransitionBuilder.isEmpty()) {
+                int[] codes = new int[mStateCount];
+                for (int i = 0; i < mStateCount; i++) {
+                    codes[i] = mStateInfo[i].code;
+                }
+                mTransitionTable = mTransitionBuilder.build(codes);
+            }
+            mTransitionBuilder = null;
+            resolveTimeouts();
+            resolveHandlers();
+
+            /** Sending SM_INIT_CMD message to invoke enter methods asynchronously */
+            mDispatcher.sendEventAtFrontOfQueue(Event.obtain(SM_INIT_CMD, mSmHandlerObj));
+
+            if (mIsDbg) {
+                Log.d(TAG, "completeConstruction: X");
+            }
+        }
+
+        /**
+         * Initialize StateStack to mInitialState.
+         */
+        private final void setupInitialStateStack() {
+            if (mIsDbg) {
+                Log.d(TAG, "setupInitialStateStack: E mInitialState=" + mInitialState.getName());
+            }
+
+            StateInfo curStateInfo = getStateInfo(mInitialState);
+            for (mTempStateStackCount = 0; curStateInfo != null; mTempStateStackCount++) {
+                mTempStateStack[mTempStateStackCount] = curStateInfo;
+                curStateInfo = curStateInfo.parentStateInfo;
+            }
+
+            // Empty the StateStack
+            mStateStackTopIndex = -1;
+
+            moveTempStateStackToStateStack();
+        }
+
+        /**
+         * Move the contents of the temporary stack to the state stack
+         * reversing the order of the items on the temporary stack as
+         * they are moved.
+         *
+         * @return index into mStateStack where entering needs to start
+         */
+        private final int moveTempStateStackToStateStack() {
+            int startingIndex = mStateStackTopIndex + 1;
+            int i = mTempStateStackCount - 1;
+            int j = startingIndex;
+            while (i >= 0) {
+                if (mIsDbg) {
+                    Log.d(TAG, "moveTempStackToStateStack: i=" + i + ",j=" + j);
+                }
+                mStateStack[j] = mTempStateStack[i];
+                j += 1;
+                i -= 1;
+            }
+
+            mStateStackTopIndex = j - 1;
+            if (mIsDbg) {
+                Log.d(TAG, "moveTempStackToStateStack: X mStateStackTop=" + mStateStackTopIndex
+                        + ",startingIndex=" + startingIndex + ",Top="
+                        + mStateStack[mStateStackTopIndex].state.getName());
+            }
+            return startingIndex;
+        }
+
+        /**
+         * Setup the mTempStateStack with the states we are going to enter.
+         * <p>
+         * This is found by searching up the destState's ancestors for a
+         * state that is already active i.e. StateInfo.active == true.
+         * The destStae and all of its inactive parents will be on the
+         * TempStateStack as the list of states to enter.
+         *
+         * @return StateInfo of the common ancestor for the destState and
+         * current state or null if there is no common parent.
+         */
+        private final StateInfo setupTempStateStackWithStatesToEnter(State destState) {
+            /**
+             * Search up the parent list of the destination state for an active
+             * state. Use a do while() loop as the destState must always be entered
+             * even if it is active. This can happen if we are exiting/entering
+             * the current state.
+             */
+            mTempStateStackCount = 0;
+            StateInfo curStateInfo = getStateInfo(destState);
+            do {
+                mTempStateStack[mTempStateStackCount++] = curStateInfo;
+                if (curStateInfo == null) {
+                    break;
+                }
+                curStateInfo = curStateInfo.parentStateInfo;
+            } while ((curStateInfo != null) && !curStateInfo.active);
+
+            if (mIsDbg) {
+                Log.d(TAG, "setupTempStateStackWithStatesToEnter: X mTempStateStackCount="
+                        + mTempStateStackCount + ",curStateInfo: " + curStateInfo);
+            }
+            return curStateInfo;
+        }
+
+
+        private void performTransitions(State msgProcessedState, Event event) {
+            State destState = mDestState;
+            if (destState != null) {
+                /**
+                 * Process the transitions including transitions in the enter/exit methods
+                 */
+                while (true) {
+                    if (mIsDbg) {
+                        Log.d(TAG, "handleEvent: new destination call exit/enter");
+                    }
+
+                    /**
+                     * Determine the states to exit and enter and return the
+                     * common ancestor state of the enter/exit states. Then
+                     * invoke the exit methods then the enter methods.
+                     */
+                    TransitionPath path = getTransitionPath(destState);
+                    // flag is cleared in invokeEnterMethods before entering the target state
+                    mTransitionInProgress = true;
+                    invokeExitMethods(path.commonStateInfo);
+                    int stateStackEnteringIndex = pushStatesToEnter(path.statesToEnter);
+                    invokeEnterMethods(stateStackEnteringIndex);
+
+                    /**
+                     * Since we have transitioned to a new state we need to have
+                     * any deferred messages moved to the front of the message queue
+                     * so they will be processed before any other messages in the
+                     * message queue.
+                     */
+                    moveDeferredMessageAtFrontOfQueue();
+
+                    if (destState != mDestState) {
+                        // A new mDestState so continue looping
+                        destState = mDestState;
+                    } else {
+                        // No change in mDestState so we're done
+                        break;
+                    }
+                }
+                mDestState = null;
+            }
+
+            /**
+             * After processing all transitions check and
+             * see if the last transition was to quit or halt.
+             */
+            if (destState != null) {
+                if (destState == mQuittingState) {
+                    /**
+                     * Call onQuitting to let subclasses cleanup.
+                     */
+                    StateMachine sm = mStateMachine;
+                    sm.onQuitting();
+                    cleanupAfterQuitting();
+                    if (sm.mRegistryEntry != null) {
+                        sm.mRegistryEntry.onQuit();
+                    }
+                }
+            }
+        }
+
+        /**
+         * The path from the state on top of the stack to destState. Computed with
+         * setupTempStateStackWithStatesToEnter on the first transition of the pair,
+         * afterwards it is replayed as is since the active states are always exactly
+         * the ancestors of the top state.
+         */
+        @NonNull
+        private TransitionPath getTransitionPath(@NonNull State destState) {
+            StateInfo destStateInfo = getStateInfo(destState);
+            if (destStateInfo == null) {
+                throw new RuntimeException("transitionTo a state not added: " + destState);
+            }
+            int source = mStateStack[mStateStackTopIndex].index;
+            TransitionPath[] row = mTransitionPaths[source];
+            if (row == null) {
+                row = new TransitionPath[mTransitionPaths.length];
+                mTransitionPaths[source] = row;
+            }
+            TransitionPath path = row[destStateInfo.index];
+            if (path == null) {
+                StateInfo commonStateInfo = setupTempStateStackWithStatesToEnter(destState);
+                StateInfo[] statesToEnter = new StateInfo[mTempStateStackCount];
+                for (int i = 0; i < mTempStateStackCount; i++) {
+                    statesToEnter[i] = mTempStateStack[mTempStateStackCount - 1 - i];
+                }
+                path = new TransitionPath(commonStateInfo, statesToEnter);
+                row[destStateInfo.index] = path;
+            }
+            return path;
+        }
+
+        /**
+         * Push the states to enter on top of the state stack.
+         *
+         * @return index into mStateStack where entering needs to start
+         */
+        private int pushStatesToEnter(@NonNull StateInfo[] statesToEnter) {
+            int startingIndex = mStateStackTopIndex + 1;
+            System.arraycopy(statesToEnter, 0, mStateStack, startingIndex, statesToEnter.length);
+            mStateStackTopIndex = startingIndex + statesToEnter.length - 1;
+            if (mIsDbg) {
+                Log.d(TAG, "pushStatesToEnter: X mStateStackTop=" + mStateStackTopIndex
+                        + ",startingIndex=" + startingIndex + ",Top="
+                        + mStateStack[mStateStackTopIndex].state.getName());
+            }
+            return startingIndex;
+        }
+
+        private void invokeExitMethods(StateInfo commonStateInfo) {
+            while ((mStateStackTopIndex >= 0)
+                    && (mStateStack[mStateStackTopIndex] != commonStateInfo)) {
+                State curState = mStateStack[mStateStackTopIndex].state;
+                if (mIsDbg) {
+                    Log.d(TAG, "invokeExitMethods: " + curState.getName());
+                }
+                cancelTimeout(mStateStack[mStateStackTopIndex]);
+                if (mTrace != null) {
+                    mTrace.exit(mStateStack[mStateStackTopIndex].index);
+                }
+                if (mJournal != null) {
+                    mJournal.exit(mStateStack[mStateStackTopIndex].index);
+                }
+                StateMetrics metrics = mMetrics;
+                if (metrics == null) {
+                    curState.exit();
+                } else {
+                    long start = System.nanoTime();
+                    curState.exit();
+                    long now = System.nanoTime();
+                    metrics.recordExit(mStateStack[mStateStackTopIndex].index, now - start, now);
+                }
+                mStateStack[mStateStackTopIndex].active = false;
+                mStateStackTopIndex -= 1;
+            }
+        }
+
+        private void invokeEnterMethods(int stateStackEnteringIndex) {
+            for (int i = stateStackEnteringIndex; i <= mStateStackTopIndex; i++) {
+                if (stateStackEnteringIndex == mStateStackTopIndex) {
+                    // Last enter state for transition
+                    mTransitionInProgress = false;
+                }
+                if (mIsDbg) {
+                    Log.d(TAG, "invokeEnterMethods: " + mStateStack[i].state.getName());
+                }
+                if (mTrace != null) {
+                    mTrace.enter(mStateStack[i].index);
+                }
+                if (mJournal != null) {
+                    mJournal.enter(mStateStack[i].index);
+                }
+                StateMetrics metrics = mMetrics;
+                if (metrics == null) {
+                    mStateStack[i].state.enter();
+                } else {
+                    long start = System.nanoTime();
+                    mStateStack[i].state.enter();
+                    long now = System.nanoTime();
+                    metrics.recordEnter(mStateStack[i].index, now - start, now);
+                }
+                mStateStack[i].active = true;
+                if (mStateStack[i].timeoutMillis > 0) {
+                    armTimeout(mStateStack[i]);
+                }
+            }
+            // ensure flag set to false if no methods called
+            mTransitionInProgress = false;
+        }
+
+        private void armTimeout(@NonNull StateInfo si) {
+            armTimeout(si, si.timeoutMillis);
+        }
+
+        private void armTimeout(@NonNull StateInfo si, long delayMillis) {
+            Event event = mStateMachine.obtainEvent(SM_TIMEOUT_CMD, ++si.timeoutSeq, 0, si);
+            si.timeoutEvent = event;
+            si.timeoutDeadline = EventLoop.uptimeMillis() + delayMillis;
+            mDispatcher.sendEventDelayed(event, delayMillis);
+        }
+
+        private void cancelTimeout(@NonNull StateInfo si) {
+            Event event = si.timeoutEvent;
+            if (event == null) {
+                return;
+            }
+            si.timeoutEvent = null;
+            if (event.what == SM_TIMEOUT_CMD && event.obj == si && event.arg1 == si.timeoutSeq) {
+                // still held by the dispatcher
+                mDispatcher.cancelEvent(event);
+            } else {
+                // copied and recycled on send, e.g. into a Message, remove the copy
+                mDispatcher.removeEvents(SM_TIMEOUT_CMD, si);
+            }
+            si.timeoutSeq++;
+        }
+
+        /**
+         * Take the transition of an armed timeout, a stale one is dropped.
+         *
+         * @return the state the timeout belongs to, null if stale
+         */
+        @Nullable
+        private State processTimeout(@NonNull Event event) {
+            StateInfo si = (StateInfo) event.obj;
+            if (!si.active || si.timeoutEvent == null || event.arg1 != si.timeoutSeq) {
+                return null;
+            }
+            si.timeoutEvent = null;
+            if (mIsDbg) {
+                Log.d(TAG, "processTimeout: " + si.state.getName() + " -> "
+                        + si.timeoutTarget.getName());
+            }
+            mStateMachine.transitionTo(si.timeoutTarget);
+            return si.state;
+        }
+
+        @Nullable
+        private State processMsg(@NonNull Event event) {
+            StateInfo curStateInfo = mStateStack[mStateStackTopIndex];
+            if (mIsDbg) {
+                Log.d(TAG, "processMsg: " + curStateInfo.state.getName());
+            }
+
+            if (isQuit(event)) {
+                transitionTo(mQuittingState);
+            } else if (event.what == SM_TIMEOUT_CMD && event.obj instanceof StateInfo) {
+                return processTimeout(event);
+            } else {
+                // states which declare their events and not this one are skipped
+                curStateInfo = firstHandler(curStateInfo, event.what);
+                while (curStateInfo != null && !processByTable(curStateInfo, event)
+                        && !curStateInfo.state.processEvent(event)) {
+                    /* Not processed */
+                    curStateInfo = firstHandler(curStateInfo.parentStateInfo, event.what);
+                    if (mIsDbg && curStateInfo != null) {
+                        Log.d(TAG, "processMsg: " + curStateInfo.state.getName());
+                    }
+                }
+                if (curStateInfo == null) {
+                    /* No parents left so it's not handled  */
+                    mStateMachine.unhandledEvent(event);
+                }
+                StateMetrics metrics = mMetrics;
+                if (metrics != null) {
+                    if (curStateInfo != null) {
+                        metrics.recordHandled(curStateInfo.index, event.what, mLatencyNanos);
+                    } else {
+                        metrics.recordUnhandled(mStateStack[mStateStackTopIndex].index,
+                                event.what, mLatencyNanos);
+                    }
+                    mLatencyNanos = -1;
+                }
+            }
+            return (curStateInfo != null) ? curStateInfo.state : null;
+        }
+
+        /**
+         * Take the declared transition of the state for this event if there is one,
+         * the same as the state calling transitionTo and returning HANDLED.
+         *
+         * @return true if a declared transition was taken
+         */
+        private boolean processByTable(@NonNull StateInfo stateInfo, @NonNull Event event) {
+            TransitionTable table = mTransitionTable;
+            if (table == null) {
+                return false;
+            }
+            int index = table.resolve(stateInfo.code, event);
+            if (index < 0) {
+                return false;
+            }
+            State target = mStateInfo[index].state;
+            if (mIsDbg) {
+                Log.d(TAG, "processByTable: " + stateInfo.state.getName() + " -> "
+                        + target.getName());
+            }
+            mStateMachine.transitionTo(target);
+            return true;
+        }
+
+        /**
+         * @return hash of the state codes in order of addition, a snapshot is only restored
+         * into a machine with the same states
+         */
+        private int hashStateCodes() {
+            int hash = 1;
+            for (int i = 0; i < mStateCount; i++) {
+                hash = 31 * hash + mStateInfo[i].code;
+            }
+            return hash;
+        }
+
+        /**
+         * @see StateMachine#snapshot()
+         */
+        @NonNull
+        private byte[] snapshot() {
+            if (!mIsConstructionCompleted) {
+                throw new IllegalStateException("snapshot before the machine has started");
+            }
+            if (mTransitionInProgress || mDestState != null) {
+                throw new IllegalStateException("snapshot during a transition");
+            }
+            MachineSnapshot snapshot = new MachineSnapshot();
+            snapshot.stateCount = mStateCount;
+            snapshot.codesHash = hashStateCodes();
+            snapshot.logPosition = getLogPosition();
+            snapshot.stack = new int[mStateStackTopIndex + 1];
+            int timeouts = 0;
+            for (int i = 0; i <= mStateStackTopIndex; i++) {
+                snapshot.stack[i] = mStateStack[i].index;
+                if (mStateStack[i].timeoutEvent != null) {
+                    timeouts++;
+                }
+            }
+            snapshot.timeoutStates = new int[timeouts];
+            snapshot.timeoutRemaining = new long[timeouts];
+            long now = EventLoop.uptimeMillis();
+            for (int i = 0, t = 0; i <= mStateStackTopIndex; i++) {
+                StateInfo si = mStateStack[i];
+                if (si.timeoutEvent != null) {
+                    snapshot.timeoutStates[t] = si.index;
+                    snapshot.timeoutRemaining[t++] = Math.max(0, si.timeoutDeadline - now);
+                }
+            }
+            int count = mDeferredCount;
+            snapshot.deferredWhat = new int[count];
+            snapshot.deferredArg1 = new int[count];
+            snapshot.deferredArg2 = new int[count];
+            snapshot.deferredPayload = new long[count];
+            for (int i = 0; i < count; i++) {
+                Event event = mDeferred[i];
+                if (event.obj != null) {
+                    throw new IllegalStateException("deferred event what=" + event.what
+                            + " carries an object, it cannot be saved");
+                }
+                snapshot.deferredWhat[i] = event.what;
+                snapshot.deferredArg1[i] = event.arg1;
+                snapshot.deferredArg2[i] = event.arg2;
+                snapshot.deferredPayload[i] = event.payload;
+            }
+            ByteArrayOutputStream extended = new ByteArrayOutputStream();
+            try {
+                mStateMachine.onSaveState(new DataOutputStream(extended));
+            } catch (IOException e) {
+                throw new RuntimeException("onSaveState failed", e);
+            }
+            snapshot.extended = extended.toByteArray();
+            return snapshot.encode();
+        }
+
+        /**
+         * Check the snapshot against the states of this machine and put its stack in place
+         * of the initial one, it is resumed by the init event.
+         *
+         * @see StateMachine#restore(byte[])
+         */
+        private void restore(@NonNull byte[] bytes) {
+            if (mTransitionBuilder == null) {
+                throw new RuntimeException("restore called after start");
+            }
+            MachineSnapshot snapshot = MachineSnapshot.decode(bytes);
+            if (snapshot.stateCount != mStateCount || snapshot.codesHash != hashStateCodes()) {
+                throw new IllegalArgumentException("snapshot of a machine with other states");
+            }
+            int[] stack = snapshot.stack;
+            if (stack.length == 0) {
+                throw new IllegalArgumentException("snapshot without a current state");
+            }
+            for (int i = 0; i < stack.length; i++) {
+                if (stack[i] >= mStateCount) {
+                    throw new IllegalArgumentException("snapshot state index " + stack[i]
+                            + " out of range");
+                }
+                StateInfo parent = mStateInfo[stack[i]].parentStateInfo;
+                if (parent != (i == 0 ? null : mStateInfo[stack[i - 1]])) {
+                    throw new IllegalArgumentException("snapshot stack is not a branch of "
+                            + "the state hierarchy");
+                }
+            }
+            for (int index : snapshot.timeoutStates) {
+                if (index >= mStateCount) {
+                    throw new IllegalArgumentException("snapshot state index " + index
+                            + " out of range");
+                }
+            }
+            mRestore = snapshot;
+            mLogPosition = snapshot.logPosition;
+            mInitialState = mStateInfo[stack[stack.length - 1]].state;
+            completeConstruction();
+        }
+
+        /**
+         * Mark the restored stack active without calling enter, re-arm the timeouts with
+         * the time they had left and defer the saved events again, then hand the extended
+         * state to the subclass.
+         */
+        private void resumeFromSnapshot() {
+            MachineSnapshot snapshot = mRestore;
+            mRestore = null;
+            StateMetrics metrics = mMetrics;
+            long now = metrics != null ? System.nanoTime() : 0;
+            for (int i = 0; i <= mStateStackTopIndex; i++) {
+                mStateStack[i].active = true;
+                if (metrics != null) {
+                    metrics.recordRestore(mStateStack[i].index, now);
+                }
+            }
+            for (int i = 0; i < snapshot.timeoutStates.length; i++) {
+                StateInfo si = mStateInfo[snapshot.timeoutStates[i]];
+                if (si.active && si.timeoutMillis > 0) {
+                    armTimeout(si, snapshot.timeoutRemaining[i]);
+                }
+            }
+            for (int i = 0; i < snapshot.deferredWhat.length; i++) {
+                addDeferred(mStateMachine.obtainEvent(snapshot.deferredWhat[i],
+                        snapshot.deferredArg1[i], snapshot.deferredArg2[i],
+                        snapshot.deferredPayload[i], null));
+            }
+            try {
+                mStateMachine.onRestoreState(new DataInputStream(
+                        new ByteArrayInputStream(snapshot.extended)));
+            } catch (IOException e) {
+                throw new RuntimeException("onRestoreState failed", e);
+            }
+        }
+
+        /**
+         * Put the events of the previous run the log still has for this machine, past the
+         * position restored from the snapshot, in front of the events sent since.
+         */
+        private void replayLoggedEvents() {
+            Event[] events = mLogWriter.takeRecovered(mStateMachine, mLogPosition);
+            if (events.length > 0) {
+                if (mIsDbg) {
+                    Log.d(TAG, "replayLoggedEvents: " + events.length + " events");
+                }
+                mDispatcher.sendEventsAtFrontOfQueue(events, events.length);
+            }
+        }
+
+        /**
+         * @see StateMachine#getEventLogPosition()
+         */
+        private long getLogPosition() {
+            EventLog.Writer writer = mLogWriter;
+            if (writer == null) {
+                return 0;
+            }
+            // read first, events appended afterwards get a higher sequence
+            long logged = writer.getLogSequence();
+            long position = mLogPosition;
+            return writer.mLastAppended <= position ? Math.max(logged, position) : position;
+        }
+
+        /**
+         * @see StateMachine#addTimeout(int, long, int)
+         */
+        private void addTimeout(int stateCode, long timeoutMillis, int targetCode) {
+            if (mTimeouts == null) {
+                throw new RuntimeException("addTimeout called after start");
+            }
+            if (timeoutMillis <= 0) {
+                throw new IllegalArgumentException("timeoutMillis must be positive");
+            }
+            mTimeouts.add(new Timeout(stateCode, timeoutMillis, targetCode));
+        }
+
+        /**
+         * @see StateMachine#addTransition(int, int, Guard, int)
+         */
+        private void addTransition(int sourceCode, int what, @Nullable Guard guard,
+                                   int targetCode) {
+            if (mTransitionBuilder == null) {
+                throw new RuntimeException("addTransition called after start");
+            }
+            mTransitionBuilder.add(sourceCode, what, guard, targetCode);
+        }
+
+        /**
+         * Add a new state to the state machine. Bottom up addition
+         * of states is allowed but the same state may only exist
+         * in one hierarchy.
+         *
+         * @param state  the state to add
+         * @param parent the parent of state
+         * @return stateInfo for this state
+         */
+        @NonNull
+        private final StateInfo addState(@NonNull State state, @Nullable State parent) {
+            if (mIsDbg) {
+                Log.d(TAG, "addStateInternal: E state=" + state.getName() + ",parent="
+                        + ((parent == null) ? "" : parent.getName()));
+            }
+            StateInfo parentStateInfo = null;
+            if (parent != null) {
+                parentStateInfo = getStateInfo(parent);
+                if (parentStateInfo == null) {
+                    // Recursively add our parent as it's not been added yet.
+                    parentStateInfo = addState(parent, null);
+                }
+            }
+            StateInfo stateInfo = getStateInfo(state);
+            if (stateInfo == null) {
+                if (state.mOwner != null) {
+                    throw new RuntimeException("state already added to another state machine");
+                }
+                if (mStateCount == mStateInfo.length) {
+                    mStateInfo = Arrays.copyOf(mStateInfo, mStateCount * 2);
+                }
+                stateInfo = new StateInfo();
+                stateInfo.index = mStateCount;
+                mStateInfo[mStateCount++] = stateInfo;
+                state.mOwner = this;
+                state.mIndex = stateInfo.index;
+            }
+
+            // Validate that we aren't adding the same state in two different hierarchies.
+            if ((stateInfo.parentStateInfo != null)
+                    && (stateInfo.parentStateInfo != parentStateInfo)) {
+                throw new RuntimeException("state already added");
+            }
+            stateInfo.state = state;
+            stateInfo.code = state.getCode();
+            stateInfo.parentStateInfo = parentStateInfo;
+            stateInfo.active = false;
+            if (mIsDbg) {
+                Log.d(TAG, "addStateInternal: X stateInfo: " + stateInfo);
+            }
+            return stateInfo;
+        }
+
+        /**
+         * @return the StateInfo of a state added to this machine, null otherwise
+         */
+        @Nullable
+        private StateInfo getStateInfo(@Nullable State state) {
+            if (state == null || state.mOwner != this) {
+                return null;
+            }
+            return mStateInfo[state.mIndex];
+        }
+
+        /**
+         * Validate that the event was sent by quit or quitNow.
+         */
+        private final boolean isQuit(@NonNull Event event) {
+            return (event.what == SM_QUIT_CMD) && (event.obj == mSmHandlerObj);
+        }
+
+        public void quit() {
+            if (mIsDbg) {
+                Log.d(TAG, "quit:");
+            }
+            mDispatcher.sendEvent(Event.obtain(SM_QUIT_CMD, mSmHandlerObj));
+        }
+
+        public void quitNow() {
+            if (mIsDbg) {
+                Log.d(TAG, "quitNow:");
+            }
+            mDispatcher.sendEventAtFrontOfQueue(Event.obtain(SM_QUIT_CMD, mSmHandlerObj));
+        }
+
+        /**
+         * @see StateMachine#transitionTo(IState)
+         */
+        private final void transitionTo(IState destState) {
+            if (mTransitionInProgress) {
+                Log.wtf(TAG, "transitionTo called while transition already in progress to " +
+                        mDestState + ", new target state=" + destState);
+            }
+            mDestState = (State) destState;
+            if (mIsDbg) {
+                Log.d(TAG, "transitionTo: destState=" + mDestState.getName());
+            }
+        }
+
+        /**
+         * @return current state
+         */
+        private final IState getCurrentState() {
+            return mStateStack[mStateStackTopIndex].state;
+        }
+
+        public void setDbg(boolean dbg) {
+            mIsDbg = dbg;
+        }
+    }
+
+    /**
+     * @return the name
+     */
+    public final String getName() {
+        return mName;
+    }
+
+    /**
+     * Called once the quitting state has been entered, before the dispatcher is released.
+     */
+    protected void onQuitting() {
+
+    }
+
+    protected void unhandledEvent(@NonNull Event event) {
+        Log.e(TAG, " - unhandledEvent: event.what=" + event.what);
+    }
+
+    protected void onPreHandleEvent(Event event) {
+    }
+
+    protected void onPostHandleEvent(Event event) {
+    }
+
+    /**
+     * Called before a batch of events is handled, in batch mode it replaces
+     * onPreHandleEvent which is not called for the events of the batch.
+     *
+     * @param count number of events taken off the queue
+     * @see #setBatchSize(int)
+     */
+    protected void onPreHandleBatch(int count) {
+    }
+
+    /**
+     * Called after a batch of events has been handled, not called if the machine quit
+     * while handling it.
+     *
+     * @param count number of events handled
+     */
+    protected void onPostHandleBatch(int count) {
+    }
+
+    /**
+     * Opt in to batch mode: up to maxEvents pending events are taken off the queue and
+     * handled in one dispatch, each one still processed and transitioned on its own.
+     * The per-event hooks are replaced by {@link #onPreHandleBatch(int)} and
+     * {@link #onPostHandleBatch(int)}. Ignored by dispatchers that cannot batch.
+     *
+     * @param maxEvents 1 (the default) to handle every event on its own
+     */
+    public final void setBatchSize(int maxEvents) {
+        SmHandler smh = mSmHandler;
+        if (smh == null) {
+            return;
+        }
+        smh.mDispatcher.setBatchSize(maxEvents);
+    }
+
+    protected void transitionTo(@NonNull IState destState) {
+        transitionTo(destState, destState.getCode());
+    }
+
+    protected void transitionTo(@NonNull IState destState, int stateEvent) {
+        transitionTo(destState, obtainEvent(stateEvent));
+    }
+
+    protected void transitionTo(@NonNull IState destState, @NonNull Event event) {
+        SmHandler smh = mSmHandler;
+        if (setDestState(destState) && smh != null) {
+            smh.sendStateEvent(event);
+        } else {
+            event.recycle();
+        }
+    }
+
+    /**
+     * By default the state event of a transition is sent to the queue and handled after
+     * the events already pending. Inline mode hands it to the new state right after the
+     * transition, within the handling of the event that caused it, and runs any further
+     * transitions to completion. At most {@link #setMaxInlineTransitions(int)} state
+     * events are handled inline per queued event, a longer chain is reported as a
+     * transition loop and the rest is queued. Call before {@link #start()}.
+     */
+    public final void setInlineTransitions(boolean inline) {
+        SmHandler smh = mSmHandler;
+        if (smh == null) {
+            return;
+        }
+        smh.mInlineTransitions = inline;
+    }
+
+    protected final boolean isInlineTransitions() {
+        SmHandler smh = mSmHandler;
+        return smh != null && smh.mInlineTransitions;
+    }
+
+    /**
+     * @param max bound of state events handled inline for one queued event,
+     *            {@link #DEFAULT_MAX_INLINE_TRANSITIONS} by default
+     */
+    public final void setMaxInlineTransitions(int max) {
+        if (max <= 0) {
+            throw new IllegalArgumentException("max must be positive: " + max);
+        }
+        SmHandler smh = mSmHandler;
+        if (smh == null) {
+            return;
+        }
+        smh.mMaxInlineTransitions = max;
+    }
+
+    /**
+     * Set the destination of the transition performed once the current event has been
+     * processed and notify the {@link OnStateListener}.
+     *
+     * @return true if the state event of the transition should be sent, false when
+     * quitting or initializing
+     */
+    protected final boolean setDestState(@NonNull IState destState) {
+        SmHandler smh = mSmHandler;
+        if (smh == null) {
+            return false;
+        }
+        smh.transitionTo(destState);
+        if (destState.getCode() == SM_QUIT_CMD || destState.getCode() == SM_INIT_CMD) {
+            return false;
+        }
+        if (mStateListener != null) {
+            mStateListener.onStateChanged(destState);
+        }
+        return true;
+    }
+
+    /**
+     * Set the initial state. This must be invoked before
+     * and messages are sent to the state machine.
+     *
+     * @param initialState is the state which will receive the first message.
+     */
+    public final void setInitialState(State initialState) {
+        mSmHandler.setInitialState(initialState);
+    }
+
+    /**
+     * Add a new state to the state machine
+     *
+     * @param state  the state to add
+     * @param parent the parent of state
+     */
+    public final void addState(State state, State parent) {
+        mSmHandler.addState(state, parent);
+    }
+
+    /**
+     * Add a new state to the state machine, parent will be null
+     *
+     * @param state to add
+     */
+    public final void addState(State state) {
+        mSmHandler.addState(state, null);
+    }
+
+    /**
+     * Declare a transition, equivalent to the state with sourceCode calling
+     * transitionTo(target) and returning HANDLED for what. The transitions are
+     * compiled into a dense [state code][what] table by {@link #start()} and are looked
+     * up before the state's processEvent, which stays the fallback for anything not
+     * declared. Must be invoked before start.
+     *
+     * @param sourceCode code of the state taking the transition, not negative
+     * @param what       event code, not negative
+     * @param targetCode code of the destination state, unique in this machine
+     */
+    public final void addTransition(int sourceCode, int what, int targetCode) {
+        mSmHandler.addTransition(sourceCode, what, null, targetCode);
+    }
+
+    /**
+     * Declare a guarded transition, see {@link #addTransition(int, int, int)}. Several
+     * transitions may be declared for the same source and what, the first one whose
+     * guard accepts the event is taken.
+     *
+     * @param guard condition of the transition, null always accepts
+     */
+    public final void addTransition(int sourceCode, int what, @Nullable Guard guard,
+                                    int targetCode) {
+        mSmHandler.addTransition(sourceCode, what, guard, targetCode);
+    }
+
+    /**
+     * Declare a timeout: timeoutMillis after the state with stateCode was entered, if it
+     * is still active, the machine transitions to the state with targetCode. The timer is
+     * armed on enter and cancelled on exit, both O(1) on the default dispatcher, and is
+     * not restarted by transitions between the children of the state. Must be invoked
+     * before start.
+     *
+     * @param stateCode     code of the timed state, every state with this code gets it
+     * @param timeoutMillis time allowed in the state, positive
+     * @param targetCode    code of the destination state, unique in this machine
+     */
+    public final void addTimeout(int stateCode, long timeoutMillis, int targetCode) {
+        mSmHandler.addTimeout(stateCode, timeoutMillis, targetCode);
+    }
+
+    /**
+     * Quit the state machine after all currently queued up messages are processed.
+     */
+    public final void quit() {
+        // mSmHandler can be null if the state machine is already stopped.
+        SmHandler smh = mSmHandler;
+        if (smh == null) {
+            return;
+        }
+
+        smh.quit();
+    }
+
+    /**
+     * Quit the state machine immediately all currently queued messages will be discarded.
+     */
+    public final void quitNow() {
+        // mSmHandler can be null if the state machine is already stopped.
+        SmHandler smh = mSmHandler;
+        if (smh == null) {
+            return;
+        }
+
+        smh.quitNow();
+    }
+
+    /**
+     * @return true once the machine has quit
+     */
+    final boolean hasQuit() {
+        return mQuit;
+    }
+
+    /**
+     * Start the state machine.
+     */
+    public void start() {
+        // mSmHandler can be null if the state machine has quit.
+        SmHandler smh = mSmHandler;
+        if (smh == null) {
+            return;
+        }
+
+        /** Send the complete construction message */
+        smh.completeConstruction();
+    }
+
+    /**
+     * Start the state machine from a {@link #snapshot()} instead of its initial state: the
+     * saved state stack becomes active without calling enter, timeouts are re-armed with
+     * the time they had left, the saved events are deferred again and
+     * {@link #onRestoreState(DataInput)} gets the extended state back. Call in place of
+     * {@link #start()}, once the states, transitions and timeouts are added as they were
+     * in the saved machine.
+     *
+     * @throws IllegalArgumentException if the snapshot is corrupt or of other states
+     */
+    public final void restore(@NonNull byte[] snapshot) {
+        SmHandler smh = mSmHandler;
+        if (smh == null) {
+            return;
+        }
+        smh.restore(snapshot);
+    }
+
+    /**
+     * Save the machine in a compact binary form, to restart it with {@link #restore(byte[])}
+     * in this or another process: the active state stack, armed timeouts, deferred events
+     * and what {@link #onSaveState(DataOutput)} writes. Events still in the queue belong to
+     * the dispatcher and are not saved, nor are the objects of events. Call on the machine
+     * thread between two events, e.g. from processEvent or a hook, not during a transition.
+     *
+     * @throws IllegalStateException if the machine is not running, is in a transition or
+     *                               a deferred event carries an object
+     */
+    @NonNull
+    public final byte[] snapshot() {
+        SmHandler smh = mSmHandler;
+        if (smh == null) {
+            throw new IllegalStateException("snapshot after quit");
+        }
+        return smh.snapshot();
+    }
+
+    /**
+     * Write the extended state of the machine, the fields its states depend on, for
+     * {@link #snapshot()}.
+     */
+    protected void onSaveState(@NonNull DataOutput out) throws IOException {
+    }
+
+    /**
+     * Read back what {@link #onSaveState(DataOutput)} wrote, on the machine thread before
+     * the first event of a restored machine.
+     */
+    protected void onRestoreState(@NonNull DataInput in) throws IOException {
+    }
+
+    /**
+     * Record per-state metrics, see {@link StateMetrics}. Disabled by default, when
+     * disabled the machine only pays a null check per enter, exit and event. Call before
+     * {@link #start()}.
+     */
+    public final void setMetricsEnabled(boolean enabled) {
+        mMetricsEnabled = enabled;
+    }
+
+    /**
+     * @return the metrics of the machine, null if not enabled or not started. They stay
+     * available after the machine has quit.
+     */
+    @Nullable
+    public final StateMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * Keep the last records of events, exits and enters in a binary ring, see
+     * {@link TransitionTrace}, {@link #DEFAULT_TRACE_CAPACITY} by default. 0 disables it.
+     * Call before {@link #start()}.
+     */
+    public final void setTraceCapacity(int records) {
+        if (records < 0) {
+            throw new IllegalArgumentException("records must not be negative: " + records);
+        }
+        mTraceCapacity = records;
+    }
+
+    /**
+     * @return the trace of the machine, null if disabled or not started. It stays
+     * available after the machine has quit.
+     */
+    @Nullable
+    public final TransitionTrace getTrace() {
+        return mTrace;
+    }
+
+    /**
+     * Append the events, exits and enters of this machine to a persistent journal, see
+     * {@link TransitionJournal}. Several machines may share one. Call before
+     * {@link #start()}.
+     */
+    public final void setJournal(@Nullable TransitionJournal journal) {
+        mJournal = journal;
+    }
+
+    /**
+     * Log the events sent with sendMessage to a write-ahead log before they are
+     * processed, see {@link EventLog}. Events of the previous run still in the log for a
+     * machine of the same name are replayed on start, or on restore past the position
+     * saved in the snapshot. Call before {@link #start()} or {@link #restore(byte[])}.
+     *
+     * @throws IllegalArgumentException if a machine of the same name is in the log
+     */
+    public final void setEventLog(@NonNull EventLog log) {
+        SmHandler smh = mSmHandler;
+        if (smh == null) {
+            return;
+        }
+        if (smh.mIsConstructionCompleted || smh.mTransitionBuilder == null) {
+            throw new RuntimeException("setEventLog called after start");
+        }
+        smh.mLogWriter = log.register(mName, smh.mDispatcher);
+    }
+
+    /**
+     * @return true if the events sent are logged, see {@link #setEventLog(EventLog)}
+     */
+    protected final boolean hasEventLog() {
+        SmHandler smh = mSmHandler;
+        return smh != null && smh.mLogWriter != null;
+    }
+
+    /**
+     * @return the log sequence up to which this machine needs no event from its log any
+     * more: the last logged event it took from its queue, or the sequence of the log when
+     * none of its events are in flight. {@link #snapshot()} saves it, the lowest position
+     * read before snapshotting the machines of a log plus one may be passed to
+     * {@link EventLog#discardBefore(long)}.
+     */
+    public final long getEventLogPosition() {
+        SmHandler smh = mSmHandler;
+        return smh == null ? 0 : smh.getLogPosition();
+    }
+
+    /**
+     * Share a pool between the machines run by the same worker instead of each machine
+     * keeping its own. Call before {@link #start()}.
+     */
+    public final void setEventPool(@NonNull EventPool pool) {
+        mEventPool = pool;
+    }
+
+    /**
+     * Get an event from the pool of this machine. It is recycled once processed, or
+     * dropped by the dispatcher, so it must not be kept or sent twice.
+     */
+    @NonNull
+    public final Event obtainEvent(int what) {
+        return obtainEvent(what, 0, 0, 0, null);
+    }
+
+    @NonNull
+    public final Event obtainEvent(int what, Object obj) {
+        return obtainEvent(what, 0, 0, 0, obj);
+    }
+
+    @NonNull
+    public final Event obtainEvent(int what, int arg1, int arg2) {
+        return obtainEvent(what, arg1, arg2, 0, null);
+    }
+
+    @NonNull
+    public final Event obtainEvent(int what, int arg1, int arg2, Object obj) {
+        return obtainEvent(what, arg1, arg2, 0, obj);
+    }
+
+    @NonNull
+    public final Event obtainEvent(int what, int arg1, int arg2, long payload, Object obj) {
+        Event event = mEventPool.obtain();
+        event.what = what;
+        event.arg1 = arg1;
+        event.arg2 = arg2;
+        event.payload = payload;
+        event.obj = obj;
+        return event;
+    }
+
+    /**
+     * Enqueue a message to this state machine.
+     * <p>
+     * Message is ignored if state machine has quit.
+     */
+    public void sendMessage(int what) {
+        sendMessage(obtainEvent(what));
+    }
+
+    /**
+     * Enqueue a message to this state machine.
+     * <p>
+     * Message is ignored if state machine has quit.
+     */
+    public void sendMessage(int what, Object obj) {
+        sendMessage(obtainEvent(what, obj));
+    }
+
+    /**
+     * Enqueue a message to this state machine.
+     * <p>
+     * Message is ignored if state machine has quit.
+     */
+    public void sendMessage(int what, int arg1) {
+        sendMessage(obtainEvent(what, arg1, 0));
+    }
+
+    /**
+     * Enqueue a message to this state machine.
+     * <p>
+     * Message is ignored if state machine has quit.
+     */
+    public void sendMessage(int what, int arg1, int arg2) {
+        sendMessage(obtainEvent(what, arg1, arg2));
+    }
+
+    /**
+     * Enqueue a message to this state machine.
+     * <p>
+     * Message is ignored if state machine has quit.
+     */
+    public void sendMessage(int what, int arg1, int arg2, Object obj) {
+        sendMessage(obtainEvent(what, arg1, arg2, obj));
+    }
+
+    /**
+     * Enqueue a message to this state machine, payload carries a primitive value such as
+     * a byte count or a timestamp without allocating.
+     * <p>
+     * Message is ignored if state machine has quit.
+     */
+    public void sendMessage(int what, int arg1, int arg2, long payload, Object obj) {
+        sendMessage(obtainEvent(what, arg1, arg2, payload, obj));
+    }
+
+    /**
+     * Enqueue a message to this state machine.
+     * <p>
+     * Message is ignored if state machine has quit.
+     */
+    public void sendMessage(@NonNull Event event) {
+        // mSmHandler can be null if the state machine has quit.
+        SmHandler smh = mSmHandler;
+        if (smh == null) {
+            event.recycle();
+            return;
+        }
+
+        if (mMetricsEnabled) {
+            event.sentNanos = System.nanoTime();
+        }
+        EventLog.Writer writer = smh.mLogWriter;
+        if (writer != null) {
+            // dispatched by the log once durable
+            writer.append(event);
+            return;
+        }
+        smh.mDispatcher.sendEvent(event);
+    }
+
+
+    /**
+     * Enqueue a message to this state machine after a delay.
+     * <p>
+     * Message is ignored if state machine has quit.
+     */
+    public void sendMessageDelayed(int what, long delayMillis) {
+        sendMessageDelayed(obtainEvent(what), delayMillis);
+    }
+
+    /**
+     * Enqueue a message to this state machine after a delay.
+     * <p>
+     * Message is ignored if state machine has quit.
+     */
+    public void sendMessageDelayed(int what, Object obj, long delayMillis) {
+        sendMessageDelayed(obtainEvent(what, obj), delayMillis);
+    }
+
+    /**
+     * Enqueue a message to this state machine after a delay.
+     * <p>
+     * Message is ignored if state machine has quit.
+     */
+    public void sendMessageDelayed(int what, int arg1, long delayMillis) {
+        sendMessageDelayed(obtainEvent(what, arg1, 0), delayMillis);
+    }
+
+    /**
+     * Enqueue a message to this state machine after a delay.
+     * <p>
+     * Message is ignored if state machine has quit.
+     */
+    public void sendMessageDelayed(int what, int arg1, int arg2, long delayMillis) {
+        sendMessageDelayed(obtainEvent(what, arg1, arg2), delayMillis);
+    }
+
+    /**
+     * Enqueue a message to this state machine after a delay.
+     * <p>
+     * Message is ignored if state machine has quit.
+     */
+    public void sendMessageDelayed(int what, int arg1, int arg2, Object obj,
+                                   long delayMillis) {
+        sendMessageDelayed(obtainEvent(what, arg1, arg2, obj), delayMillis);
+    }
+
+    /**
+     * Enqueue a message with a primitive payload to this state machine after a delay.
+     * <p>
+     * Message is ignored if state machine has quit.
+     */
+    public void sendMessageDelayed(int what, int arg1, int arg2, long payload, Object obj,
+                                   long delayMillis) {
+        sendMessageDelayed(obtainEvent(what, arg1, arg2, payload, obj), delayMillis);
+    }
+
+    /**
+     * Enqueue a message to this state machine after a delay.
+     * <p>
+     * Message is ignored if state machine has quit.
+     */
+    public void sendMessageDelayed(@NonNull Event event, long delayMillis) {
+        // mSmHandler can be null if the state machine has quit.
+        SmHandler smh = mSmHandler;
+        if (smh == null) {
+            event.recycle();
+            return;
+        }
+
+        if (mMetricsEnabled) {
+            event.sentNanos = System.nanoTime() + Math.max(0, delayMillis) * 1000000L;
+        }
+        smh.mDispatcher.sendEventDelayed(event, delayMillis);
+    }
+
+    /**
+     * Enqueue a message to the front of the queue for this state machine.
+     * Protected, may only be called by instances of StateMachine.
+     * <p>
+     * Message is ignored if state machine has quit.
+     */
+    protected final void sendMessageAtFrontOfQueue(int what) {
+        sendMessageAtFrontOfQueue(obtainEvent(what));
+    }
+
+    /**
+     * Enqueue a message to the front of the queue for this state machine.
+     * Protected, may only be called by instances of StateMachine.
+     * <p>
+     * Message is ignored if state machine has quit.
+     */
+    protected final void sendMessageAtFrontOfQueue(int what, Object obj) {
+        sendMessageAtFrontOfQueue(obtainEvent(what, obj));
+    }
+
+    /**
+     * Enqueue a message to the front of the queue for this state machine.
+     * Protected, may only be called by instances of StateMachine.
+     * <p>
+     * Message is ignored if state machine has quit.
+     */
+    protected final void sendMessageAtFrontOfQueue(int what, int arg1) {
+        sendMessageAtFrontOfQueue(obtainEvent(what, arg1, 0));
+    }
+
+
+    /**
+     * Enqueue a message to the front of the queue for this state machine.
+     * Protected, may only be called by instances of StateMachine.
+     * <p>
+     * Message is ignored if state machine has quit.
+     */
+    protected final void sendMessageAtFrontOfQueue(int what, int arg1, int arg2) {
+        sendMessageAtFrontOfQueue(obtainEvent(what, arg1, arg2));
+    }
+
+    /**
+     * Enqueue a message to the front of the queue for this state machine.
+     * Protected, may only be called by instances of StateMachine.
+     * <p>
+     * Message is ignored if state machine has quit.
+     */
+    protected final void sendMessageAtFrontOfQueue(int what, int arg1, int arg2, Object obj) {
+        sendMessageAtFrontOfQueue(obtainEvent(what, arg1, arg2, obj));
+    }
+
+    /**
+     * Enqueue a message to the front of the queue for this state machine.
+     * Protected, may only be called by instances of StateMachine.
+     * <p>
+     * Message is ignored if state machine has quit.
+     */
+    protected final void sendMessageAtFrontOfQueue(@NonNull Event event) {
+        // mSmHandler can be null if the state machine has quit.
+        SmHandler smh = mSmHandler;
+        if (smh == null) {
+            event.recycle();
+            return;
+        }
+
+        if (mMetricsEnabled) {
+            event.sentNanos = System.nanoTime();
+        }
+        smh.mDispatcher.sendEventAtFrontOfQueue(event);
+    }
+
+    /**
+     * Defer the event until the next transition, it is then put back at the front of the
+     * queue together with the other deferred events, in the order they were deferred.
+     * Usually called from processEvent with the event being processed, which is then not
+     * recycled. Deferred events are dropped when the machine quits.
+     */
+    protected final void deferMessage(@NonNull Event event) {
+        SmHandler smh = mSmHandler;
+        if (smh == null) {
+            event.recycle();
+            return;
+        }
+        smh.deferMessage(event);
+    }
+
+    /**
+     * @return number of events currently deferred
+     */
+    public final int getDeferredMessageCount() {
+        SmHandler smh = mSmHandler;
+        return smh == null ? 0 : smh.mDeferredCount;
+    }
+
+    /**
+     * @return number of events deferred since the machine was created
+     */
+    public final long getDeferredMessageTotal() {
+        SmHandler smh = mSmHandler;
+        return smh == null ? 0 : smh.mDeferredTotal;
+    }
+
+    /**
+     * Removes a message from the message queue.
+     * Protected, may only be called by instances of StateMachine.
+     */
+    protected final void removeMessages(int what) {
+        // mSmHandler can be null if the state machine has quit.
+        SmHandler smh = mSmHandler;
+        if (smh == null) {
+            return;
+        }
+
+        smh.mDispatcher.removeEvents(what);
+    }
+
+    /**
+     * @return current state
+     */
+    @Nullable
+    public final IState getCurrentState() {
+        // mSmHandler can be null if the state machine has quit.
+        SmHandler smh = mSmHandler;
+        if (smh == null) {
+            return null;
+        }
+        return smh.getCurrentState();
+    }
+
+    public boolean isDbg() {
+        return mIsDbg;
+    }
+
+    public void setDbg(boolean dbg) {
+        mIsDbg = dbg;
+        SmHandler smh = mSmHandler;
+        if (smh != null) {
+            smh.setDbg(dbg);
+        }
+    }
+
+    /**
+     * 状态监听
+     */
+    public interface OnStateListener {
+        /**
+         * 状态切换回调
+         *
+         * @param state 状态
+         */
+        void onStateChanged(IState state);
+    }
+}
@@ -0,0 +1,215 @@
+package cn.senyo.state.core;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable topology of a state machine, built once and shared by any number of
+ * {@link MachineInstance}s on any threads: the {@link SharedState}s with their parents,
+ * the initial state, the declared transitions compiled into a table and the state
+ * timeouts. Instances only keep what differs between them, the index of their current
+ * state, their queue and their context.
+ * <pre>
+ * StateMachineDefinition&lt;Session&gt; ftp = new StateMachineDefinition.Builder&lt;Session&gt;()
+ *         .addState(idle)
+ *         .addState(connected)
+ *         .addState(transferring, connected)
+ *         .setInitialState(idle)
+ *         .addTransition(IDLE, CMD_CONNECT, CONNECTED)
+ *         .addTimeout(CONNECTED, 30000, IDLE)
+ *         .build();
+ * MachineInstance&lt;Session&gt; sm = new MachineInstance&lt;&gt;(ftp, loop, new Session(id));
+ * sm.start();
+ * </pre>
+ * States are identified by index in order of addition, parents before their children.
+ *
+ * @param <C> type of the extended state of the instances
+ * @author: Rony
+ * @email: luojun@skyruler.cn
+ * @date: Created 2021/1/5 15:45
+ */
+public final class StateMachineDefinition<C> {
+    final SharedState<C>[] mStates;
+    final int[] mCodes;
+
+    /**
+     * Index of the parent of each state, -1 for a root
+     */
+    final int[] mParents;
+    final int[] mDepths;
+    final int mInitial;
+
+    /**
+     * Null if no transition is declared
+     */
+    final TransitionTable mTable;
+
+    /**
+     * Timeout of each state in milliseconds, 0 for none, and the index of its target
+     */
+    final long[] mTimeoutMillis;
+    final int[] mTimeoutTargets;
+    final boolean mHasTimeouts;
+    private final Map<Integer, Integer> mIndexByCode;
+
+    private StateMachineDefinition(@NonNull Builder<C> builder) {
+        int count = builder.mStates.size();
+        @SuppressWarnings("unchecked")
+        SharedState<C>[] states = (SharedState<C>[]) new SharedState<?>[count];
+        mStates = builder.mStates.toArray(states);
+        mCodes = new int[count];
+        mParents = new int[count];
+        mDepths = new int[count];
+        mIndexByCode = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            mCodes[i] = mStates[i].getCode();
+            mParents[i] = builder.mParents.get(i);
+            mDepths[i] = mParents[i] < 0 ? 0 : mDepths[mParents[i]] + 1;
+            if (mIndexByCode.put(mCodes[i], i) != null) {
+                // ambiguous codes only fail when used by a transition or timeout
+                mIndexByCode.put(mCodes[i], -1);
+            }
+        }
+        mInitial = builder.mStates.indexOf(builder.mInitialState);
+        mTable = builder.mTransitions.isEmpty() ? null : builder.mTransitions.build(mCodes);
+        mTimeoutMillis = new long[count];
+        mTimeoutTargets = new int[count];
+        for (StateMachine.Timeout timeout : builder.mTimeouts) {
+            int state = indexOf(timeout.stateCode);
+            mTimeoutMillis[state] = timeout.millis;
+            mTimeoutTargets[state] = indexOf(timeout.targetCode);
+        }
+        mHasTimeouts = !builder.mTimeouts.isEmpty();
+    }
+
+    /**
+     * @return number of states
+     */
+    public int getStateCount() {
+        return mStates.length;
+    }
+
+    @NonNull
+    public SharedState<C> getState(int index) {
+        return mStates[index];
+    }
+
+    /**
+     * @return index of the state of the code
+     * @throws IllegalArgumentException if no state or several states have the code
+     */
+    public int indexOf(int code) {
+        Integer index = mIndexByCode.get(code);
+        if (index == null) {
+            throw new IllegalArgumentException("no state with code " + code);
+        }
+        if (index < 0) {
+            throw new IllegalArgumentException("state code " + code
+                    + " is shared by several states");
+        }
+        return index;
+    }
+
+    /**
+     * @return index of the parent of the state, -1 for a root
+     */
+    public int getParent(int index) {
+        return mParents[index];
+    }
+
+    public int getInitialState() {
+        return mInitial;
+    }
+
+    /**
+     * Collects the states, transitions and timeouts, not thread safe.
+     */
+    public static final class Builder<C> {
+        private final List<SharedState<C>> mStates = new ArrayList<>();
+        private final List<Integer> mParents = new ArrayList<>();
+        private final TransitionTable.Builder mTransitions = new TransitionTable.Builder();
+
+        private final List<StateMachine.Timeout> mTimeouts = new ArrayList<>();
+        private SharedState<C> mInitialState;
+
+        @NonNull
+        public Builder<C> addState(@NonNull SharedState<C> state) {
+            return addState(state, null);
+        }
+
+        /**
+         * @param parent added before, null for a root state
+         */
+        @NonNull
+        public Builder<C> addState(@NonNull SharedState<C> state, @Nullable SharedState<C> parent) {
+            if (mStates.contains(state)) {
+                throw new RuntimeException("state " + state.getName() + " added twice");
+            }
+            int parentIndex = -1;
+            if (parent != null) {
+                parentIndex = mStates.indexOf(parent);
+                if (parentIndex < 0) {
+                    throw new RuntimeException("parent " + parent.getName() + " of "
+                            + state.getName() + " must be added first");
+                }
+            }
+            mStates.add(state);
+            mParents.add(parentIndex);
+            return this;
+        }
+
+        @NonNull
+        public Builder<C> setInitialState(@NonNull SharedState<C> state) {
+            mInitialState = state;
+            return this;
+        }
+
+        /**
+         * @see StateMachine#addTransition(int, int, int)
+         */
+        @NonNull
+        public Builder<C> addTransition(int sourceCode, int what, int targetCode) {
+            return addTransition(sourceCode, what, null, targetCode);
+        }
+
+        /**
+         * @see StateMachine#addTransition(int, int, Guard, int)
+         */
+        @NonNull
+        public Builder<C> addTransition(int sourceCode, int what, @Nullable Guard guard,
+                                        int targetCode) {
+            mTransitions.add(sourceCode, what, guard, targetCode);
+            return this;
+        }
+
+        /**
+         * @see StateMachine#addTimeout(int, long, int)
+         */
+        @NonNull
+        public Builder<C> addTimeout(int stateCode, long timeoutMillis, int targetCode) {
+            if (timeoutMillis <= 0) {
+                throw new IllegalArgumentException("timeoutMillis must be positive: "
+                        + timeoutMillis);
+            }
+            mTimeouts.add(new StateMachine.Timeout(stateCode, timeoutMillis, targetCode));
+            return this;
+        }
+
+        /**
+         * @throws RuntimeException if there is no initial state or a transition or timeout
+         *                          refers to a code of no single state
+         */
+        @NonNull
+        public StateMachineDefinition<C> build() {
+            if (mInitialState == null || !mStates.contains(mInitialState)) {
+                throw new RuntimeException("initial state not set or not added");
+            }
+            return new StateMachineDefinition<>(this);
+        }
+    }
+}
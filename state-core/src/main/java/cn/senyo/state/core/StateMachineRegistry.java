@@ -0,0 +1,293 @@
+package cn.senyo.state.core;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Live state machines by key, e.g. one session machine per session id, created by a
+ * {@link Factory} on the first event sent to their key and removed once they quit.
+ * <pre>
+ * StateMachineRegistry&lt;String, FtpStateMachine&gt; sessions = new StateMachineRegistry&lt;&gt;(
+ *         new StateMachineRegistry.Factory&lt;String, FtpStateMachine&gt;() {
+ *             public FtpStateMachine create(String id) {
+ *                 FtpStateMachine sm = new FtpStateMachine(id);
+ *                 sm.start();
+ *                 return sm;
+ *             }
+ *         }, 5 * 60 * 1000);
+ * sessions.sendMessage(sessionId, CMD_CONNECT);
+ * </pre>
+ * Lookups never lock: machines are kept in a ConcurrentHashMap read without locking, so
+ * routing scales with the cores. Only the creation of a machine takes a lock, one of
+ * {@link #LOCK_STRIPES} picked by the hash of the key, so each key gets exactly one
+ * machine and creations of different keys rarely wait for each other.
+ * <p>
+ * A machine leaves the registry when it quits, on its own or through
+ * {@link #quit(Object)}, right after its onQuitting(); the next event of its key creates a
+ * new one. An event racing with the quit of its machine may be dropped. With an idle
+ * time, machines no event was sent to for that long are quit by a daemon thread.
+ *
+ * @author: Rony
+ * @email: luojun@skyruler.cn
+ * @date: Created 2021/1/5 15:45
+ */
+public final class StateMachineRegistry<K, M extends StateMachine> {
+    private static final String TAG = "StateMachineRegistry";
+    public static final int LOCK_STRIPES = 64;
+
+    /**
+     * Creates the machine of a key.
+     */
+    public interface Factory<K, M extends StateMachine> {
+        /**
+         * Called once per key and life of its machine, under the creation lock of the key.
+         *
+         * @return a new machine, started or restored
+         */
+        @NonNull
+        M create(@NonNull K key);
+    }
+
+    private final Factory<K, M> mFactory;
+    private final ConcurrentHashMap<K, Entry<K, M>> mEntries;
+    private final Object[] mLocks = new Object[LOCK_STRIPES];
+    private final long mIdleMillis;
+    private final Thread mEvictor;
+    private volatile boolean mClosed;
+
+    public StateMachineRegistry(@NonNull Factory<K, M> factory) {
+        this(factory, 0);
+    }
+
+    /**
+     * @param idleMillis quit machines which got no event for that long, 0 to keep them
+     */
+    public StateMachineRegistry(@NonNull Factory<K, M> factory, long idleMillis) {
+        if (idleMillis < 0) {
+            throw new IllegalArgumentException("idleMillis must not be negative: " + idleMillis);
+        }
+        mFactory = factory;
+        mIdleMillis = idleMillis;
+        mEntries = new ConcurrentHashMap<>(256, 0.75f);
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            mLocks[i] = new Object();
+        }
+        if (idleMillis > 0) {
+            mEvictor = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    evictLoop();
+                }
+            }, TAG + "-evictor");
+            mEvictor.setDaemon(true);
+            mEvictor.start();
+        } else {
+            mEvictor = null;
+        }
+    }
+
+    /**
+     * Registry side of a machine, referenced by the machine to leave the registry when it
+     * quits.
+     */
+    static final class Entry<K, M extends StateMachine> {
+        final StateMachineRegistry<K, M> mRegistry;
+        final K mKey;
+        final M mMachine;
+
+        /**
+         * EventLoop.uptimeMillis() of the last event routed to the machine
+         */
+        volatile long mLastActive;
+
+        Entry(@NonNull StateMachineRegistry<K, M> registry, @NonNull K key, @NonNull M machine) {
+            mRegistry = registry;
+            mKey = key;
+            mMachine = machine;
+            mLastActive = EventLoop.uptimeMillis();
+        }
+
+        /**
+         * Called on the machine thread once it has quit.
+         */
+        void onQuit() {
+            mRegistry.mEntries.remove(mKey, this);
+        }
+
+        void touch() {
+            long now = EventLoop.uptimeMillis();
+            // skip the store while still in the same millisecond, most events are
+            if (mLastActive != now) {
+                mLastActive = now;
+            }
+        }
+    }
+
+    /**
+     * @return the live machine of the key, null if none
+     */
+    @Nullable
+    public M get(@NonNull K key) {
+        Entry<K, M> entry = mEntries.get(key);
+        return entry == null ? null : entry.mMachine;
+    }
+
+    /**
+     * @return the live machine of the key, created by the factory if none
+     * @throws IllegalStateException if the registry is closed
+     */
+    @NonNull
+    public M getOrCreate(@NonNull K key) {
+        return entry(key).mMachine;
+    }
+
+    @NonNull
+    private Entry<K, M> entry(@NonNull K key) {
+        Entry<K, M> entry = mEntries.get(key);
+        if (entry != null) {
+            return entry;
+        }
+        synchronized (mLocks[stripe(key)]) {
+            if (mClosed) {
+                throw new IllegalStateException("registry closed");
+            }
+            entry = mEntries.get(key);
+            if (entry != null) {
+                return entry;
+            }
+            M machine = mFactory.create(key);
+            if (machine.mRegistryEntry != null) {
+                throw new IllegalStateException("machine " + machine.getName()
+                        + " already belongs to a registry");
+            }
+            entry = new Entry<>(this, key, machine);
+            machine.mRegistryEntry = entry;
+            mEntries.put(key, entry);
+            if (machine.hasQuit()) {
+                // quit before it was registered, onQuit found nothing to remove
+                mEntries.remove(key, entry);
+            }
+            return entry;
+        }
+    }
+
+    private static int stripe(@NonNull Object key) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        return h & (LOCK_STRIPES - 1);
+    }
+
+    /**
+     * Send an event to the machine of the key, created first if there is none.
+     */
+    public void sendMessage(@NonNull K key, int what) {
+        sendMessage(key, what, 0, 0, 0, null);
+    }
+
+    public void sendMessage(@NonNull K key, int what, Object obj) {
+        sendMessage(key, what, 0, 0, 0, obj);
+    }
+
+    public void sendMessage(@NonNull K key, int what, int arg1) {
+        sendMessage(key, what, arg1, 0, 0, null);
+    }
+
+    public void sendMessage(@NonNull K key, int what, int arg1, int arg2) {
+        sendMessage(key, what, arg1, arg2, 0, null);
+    }
+
+    public void sendMessage(@NonNull K key, int what, int arg1, int arg2, Object obj) {
+        sendMessage(key, what, arg1, arg2, 0, obj);
+    }
+
+    public void sendMessage(@NonNull K key, int what, int arg1, int arg2, long payload,
+                            Object obj) {
+        Entry<K, M> entry = entry(key);
+        entry.touch();
+        M machine = entry.mMachine;
+        machine.sendMessage(machine.obtainEvent(what, arg1, arg2, payload, obj));
+    }
+
+    /**
+     * Quit the machine of the key after its queued events, it leaves the registry once
+     * it has quit.
+     *
+     * @return false if the key had no machine
+     */
+    public boolean quit(@NonNull K key) {
+        Entry<K, M> entry = mEntries.get(key);
+        if (entry == null) {
+            return false;
+        }
+        entry.mMachine.quit();
+        return true;
+    }
+
+    /**
+     * @return number of live machines
+     */
+    public int size() {
+        return mEntries.size();
+    }
+
+    /**
+     * @return the keys of the live machines, a copy
+     */
+    @NonNull
+    public List<K> keys() {
+        return new ArrayList<>(mEntries.keySet());
+    }
+
+    /**
+     * Quit the machines which got no event for idleMillis, as the evictor thread does.
+     *
+     * @return number of machines asked to quit
+     */
+    public int evictIdle(long idleMillis) {
+        long now = EventLoop.uptimeMillis();
+        int count = 0;
+        for (Entry<K, M> entry : mEntries.values()) {
+            if (now - entry.mLastActive >= idleMillis) {
+                entry.mMachine.quit();
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private void evictLoop() {
+        long interval = Math.max(10, mIdleMillis / 4);
+        while (!mClosed) {
+            try {
+                Thread.sleep(interval);
+            } catch (InterruptedException e) {
+                return;
+            }
+            int count = evictIdle(mIdleMillis);
+            if (count > 0) {
+                Log.d(TAG, "evicted " + count + " idle machines");
+            }
+        }
+    }
+
+    /**
+     * Stop the evictor and quit all machines, no machine is created afterwards.
+     */
+    public void close() {
+        for (Object lock : mLocks) {
+            synchronized (lock) {
+                mClosed = true;
+            }
+        }
+        if (mEvictor != null) {
+            mEvictor.interrupt();
+        }
+        for (Entry<K, M> entry : mEntries.values()) {
+            entry.mMachine.quit();
+        }
+    }
+}
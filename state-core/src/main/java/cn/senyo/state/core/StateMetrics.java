@@ -0,0 +1,316 @@
+package cn.senyo.state.core;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * Metrics of one state machine, enabled by {@link StateMachine#setMetricsEnabled(boolean)}:
+ * time in state, enter and exit durations, dispatch latency from enqueue to processEvent,
+ * and handled/unhandled counts per state and event what.
+ * <p>
+ * The machine thread is the only writer, so the counters are plain per-state arrays
+ * published with ordered stores, there is nothing to contend on. {@link #snapshot()} may
+ * be called from any thread and returns values taken between two records.
+ *
+ * @author: Rony
+ * @email: luojun@skyruler.cn
+ * @date: Created 2021/1/5 15:45
+ */
+public final class StateMetrics {
+    /**
+     * Event whats counted one by one, larger or negative ones share one count
+     */
+    public static final int MAX_WHAT = 128;
+
+    private static final int ENTER_COUNT = 0;
+    private static final int HANDLED = 1;
+    private static final int UNHANDLED = HANDLED + MAX_WHAT + 2;
+    private static final int STRIDE = UNHANDLED + MAX_WHAT + 2;
+
+    private final String[] mNames;
+    private final int[] mCodes;
+
+    /**
+     * [state index * STRIDE]: enter count, then handled and unhandled each as total, per
+     * what and the rest
+     */
+    private final AtomicLongArray mCounts;
+    private final LogHistogram[] mTimeInState;
+    private final LogHistogram[] mEnterNanos;
+    private final LogHistogram[] mExitNanos;
+    private final LogHistogram mDispatchLatency = new LogHistogram();
+
+    /**
+     * System.nanoTime() each state was entered at, writer only
+     */
+    private final long[] mEnteredAt;
+
+    /**
+     * Odd while a record is in progress
+     */
+    private volatile long mVersion;
+    private static final AtomicLongFieldUpdater<StateMetrics> VERSION =
+            AtomicLongFieldUpdater.newUpdater(StateMetrics.class, "mVersion");
+
+    StateMetrics(@NonNull String[] names, @NonNull int[] codes) {
+        int count = names.length;
+        mNames = names;
+        mCodes = codes;
+        mCounts = new AtomicLongArray(count * STRIDE);
+        mTimeInState = newHistograms(count);
+        mEnterNanos = newHistograms(count);
+        mExitNanos = newHistograms(count);
+        mEnteredAt = new long[count];
+    }
+
+    private static LogHistogram[] newHistograms(int count) {
+        LogHistogram[] histograms = new LogHistogram[count];
+        for (int i = 0; i < count; i++) {
+            histograms[i] = new LogHistogram();
+        }
+        return histograms;
+    }
+
+    private static int whatSlot(int what) {
+        return what >= 0 && what < MAX_WHAT ? 1 + what : 1 + MAX_WHAT;
+    }
+
+    private void increment(int i) {
+        mCounts.lazySet(i, mCounts.get(i) + 1);
+    }
+
+    /**
+     * The volatile store keeps the records after it, the closing one only needs to be
+     * ordered after them.
+     */
+    private void begin() {
+        mVersion = mVersion + 1;
+    }
+
+    private void end() {
+        VERSION.lazySet(this, mVersion + 1);
+    }
+
+    void recordEnter(int state, long durationNanos, long now) {
+        begin();
+        increment(state * STRIDE + ENTER_COUNT);
+        mEnterNanos[state].record(durationNanos);
+        mEnteredAt[state] = now;
+        end();
+    }
+
+    /**
+     * A state active in a restored snapshot, its time in state starts now
+     */
+    void recordRestore(int state, long now) {
+        begin();
+        mEnteredAt[state] = now;
+        end();
+    }
+
+    void recordExit(int state, long durationNanos, long now) {
+        begin();
+        mExitNanos[state].record(durationNanos);
+        mTimeInState[state].record(now - durationNanos - mEnteredAt[state]);
+        end();
+    }
+
+    /**
+     * @param latencyNanos dispatch latency of the event, negative if not measured
+     */
+    void recordHandled(int state, int what, long latencyNanos) {
+        record(state * STRIDE + HANDLED, what, latencyNanos);
+    }
+
+    void recordUnhandled(int state, int what, long latencyNanos) {
+        record(state * STRIDE + UNHANDLED, what, latencyNanos);
+    }
+
+    private void record(int base, int what, long latencyNanos) {
+        begin();
+        increment(base);
+        increment(base + whatSlot(what));
+        if (latencyNanos >= 0) {
+            mDispatchLatency.record(latencyNanos);
+        }
+        end();
+    }
+
+    /**
+     * @return a consistent copy of all metrics
+     */
+    @NonNull
+    public Snapshot snapshot() {
+        for (; ; ) {
+            long version = mVersion;
+            if ((version & 1) == 0) {
+                Snapshot snapshot = copy();
+                if (mVersion == version) {
+                    return snapshot;
+                }
+            }
+            Thread.yield();
+        }
+    }
+
+    private Snapshot copy() {
+        int count = mNames.length;
+        StateSnapshot[] states = new StateSnapshot[count];
+        for (int i = 0; i < count; i++) {
+            long[] counts = new long[STRIDE];
+            for (int j = 0; j < STRIDE; j++) {
+                counts[j] = mCounts.get(i * STRIDE + j);
+            }
+            states[i] = new StateSnapshot(mNames[i], mCodes[i], counts,
+                    mTimeInState[i].snapshot(), mEnterNanos[i].snapshot(),
+                    mExitNanos[i].snapshot());
+        }
+        return new Snapshot(states, mDispatchLatency.snapshot());
+    }
+
+    /**
+     * Immutable copy of the metrics of a machine.
+     */
+    public static final class Snapshot {
+        private final StateSnapshot[] mStates;
+        private final LogHistogram.Snapshot mDispatchLatency;
+
+        Snapshot(@NonNull StateSnapshot[] states, @NonNull LogHistogram.Snapshot dispatchLatency) {
+            mStates = states;
+            mDispatchLatency = dispatchLatency;
+        }
+
+        /**
+         * @return the states in order of addition
+         */
+        @NonNull
+        public StateSnapshot[] getStates() {
+            return mStates.clone();
+        }
+
+        /**
+         * @return the first state with the code, null if none
+         */
+        @Nullable
+        public StateSnapshot getState(int code) {
+            for (StateSnapshot state : mStates) {
+                if (state.getCode() == code) {
+                    return state;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Nanoseconds from the enqueue of an event, or from its due time if delayed, to its
+         * processing. Only events sent through the StateMachine send methods are measured.
+         */
+        @NonNull
+        public LogHistogram.Snapshot getDispatchLatency() {
+            return mDispatchLatency;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder("dispatchLatency: ").append(mDispatchLatency);
+            for (StateSnapshot state : mStates) {
+                sb.append('\n').append(state);
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * Metrics of one state. Time in state is recorded on exit, the current visit of an
+     * active state is not included.
+     */
+    public static final class StateSnapshot {
+        private final String mName;
+        private final int mCode;
+        private final long[] mCounts;
+        private final LogHistogram.Snapshot mTimeInState;
+        private final LogHistogram.Snapshot mEnterDuration;
+        private final LogHistogram.Snapshot mExitDuration;
+
+        StateSnapshot(@NonNull String name, int code, @NonNull long[] counts,
+                      @NonNull LogHistogram.Snapshot timeInState,
+                      @NonNull LogHistogram.Snapshot enterDuration,
+                      @NonNull LogHistogram.Snapshot exitDuration) {
+            mName = name;
+            mCode = code;
+            mCounts = counts;
+            mTimeInState = timeInState;
+            mEnterDuration = enterDuration;
+            mExitDuration = exitDuration;
+        }
+
+        @NonNull
+        public String getName() {
+            return mName;
+        }
+
+        public int getCode() {
+            return mCode;
+        }
+
+        public long getEnterCount() {
+            return mCounts[ENTER_COUNT];
+        }
+
+        /**
+         * @return events processed by this state, including the ones its children passed up
+         */
+        public long getHandledCount() {
+            return mCounts[HANDLED];
+        }
+
+        /**
+         * @return handled events with the what, the ones out of [0, MAX_WHAT) are counted
+         * together under any such what
+         */
+        public long getHandledCount(int what) {
+            return mCounts[HANDLED + whatSlot(what)];
+        }
+
+        /**
+         * @return events no state handled while this one was the current state
+         */
+        public long getUnhandledCount() {
+            return mCounts[UNHANDLED];
+        }
+
+        public long getUnhandledCount(int what) {
+            return mCounts[UNHANDLED + whatSlot(what)];
+        }
+
+        /**
+         * @return nanoseconds between enter and exit of the completed visits
+         */
+        @NonNull
+        public LogHistogram.Snapshot getTimeInState() {
+            return mTimeInState;
+        }
+
+        @NonNull
+        public LogHistogram.Snapshot getEnterDuration() {
+            return mEnterDuration;
+        }
+
+        @NonNull
+        public LogHistogram.Snapshot getExitDuration() {
+            return mExitDuration;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return mName + ": entered=" + getEnterCount() + " handled=" + getHandledCount()
+                    + " unhandled=" + getUnhandledCount() + " timeInState(" + mTimeInState + ")"
+                    + " enter(" + mEnterDuration + ") exit(" + mExitDuration + ")";
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package cn.senyo.state.core;
+
+import androidx.annotation.NonNull;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Registers {@link StateMetrics} with the platform MBean server. Kept apart from the
+ * metrics so runtimes without javax.management (Android) never load it.
+ *
+ * @author: Rony
+ * @email: luojun@skyruler.cn
+ * @date: Created 2021/1/5 15:45
+ */
+public final class StateMetricsJmx implements StateMetricsMXBean {
+    private static final String DOMAIN = "cn.senyo.state";
+
+    private final StateMetrics mMetrics;
+
+    private StateMetricsJmx(@NonNull StateMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    /**
+     * @param name unique name of the machine, the key of the registered bean
+     * @return the name the bean is registered with
+     */
+    @NonNull
+    public static ObjectName register(@NonNull StateMetrics metrics, @NonNull String name) {
+        try {
+            ObjectName objectName = objectName(name);
+            getServer().registerMBean(new StateMetricsJmx(metrics), objectName);
+            return objectName;
+        } catch (JMException e) {
+            throw new IllegalStateException("cannot register metrics of " + name, e);
+        }
+    }
+
+    public static void unregister(@NonNull String name) {
+        try {
+            ObjectName objectName = objectName(name);
+            MBeanServer server = getServer();
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+        } catch (JMException e) {
+            throw new IllegalStateException("cannot unregister metrics of " + name, e);
+        }
+    }
+
+    private static ObjectName objectName(String name) throws JMException {
+        return new ObjectName(DOMAIN + ":type=StateMetrics,name=" + ObjectName.quote(name));
+    }
+
+    private static MBeanServer getServer() {
+        return ManagementFactory.getPlatformMBeanServer();
+    }
+
+    @Override
+    public String[] getStates() {
+        StateMetrics.StateSnapshot[] states = mMetrics.snapshot().getStates();
+        String[] names = new String[states.length];
+        for (int i = 0; i < states.length; i++) {
+            names[i] = states[i].getName();
+        }
+        return names;
+    }
+
+    @Override
+    public long[] getEnterCounts() {
+        StateMetrics.StateSnapshot[] states = mMetrics.snapshot().getStates();
+        long[] values = new long[states.length];
+        for (int i = 0; i < states.length; i++) {
+            values[i] = states[i].getEnterCount();
+        }
+        return values;
+    }
+
+    @Override
+    public long[] getHandledCounts() {
+        StateMetrics.StateSnapshot[] states = mMetrics.snapshot().getStates();
+        long[] values = new long[states.length];
+        for (int i = 0; i < states.length; i++) {
+            values[i] = states[i].getHandledCount();
+        }
+        return values;
+    }
+
+    @Override
+    public long[] getUnhandledCounts() {
+        StateMetrics.StateSnapshot[] states = mMetrics.snapshot().getStates();
+        long[] values = new long[states.length];
+        for (int i = 0; i < states.length; i++) {
+            values[i] = states[i].getUnhandledCount();
+        }
+        return values;
+    }
+
+    @Override
+    public long[] getMeanTimeInState() {
+        StateMetrics.StateSnapshot[] states = mMetrics.snapshot().getStates();
+        long[] values = new long[states.length];
+        for (int i = 0; i < states.length; i++) {
+            values[i] = (long) states[i].getTimeInState().getMean();
+        }
+        return values;
+    }
+
+    @Override
+    public long[] getMaxTimeInState() {
+        StateMetrics.StateSnapshot[] states = mMetrics.snapshot().getStates();
+        long[] values = new long[states.length];
+        for (int i = 0; i < states.length; i++) {
+            values[i] = states[i].getTimeInState().getMax();
+        }
+        return values;
+    }
+
+    @Override
+    public long getDispatchLatencyP50() {
+        return mMetrics.snapshot().getDispatchLatency().getValueAtPercentile(50);
+    }
+
+    @Override
+    public long getDispatchLatencyP99() {
+        return mMetrics.snapshot().getDispatchLatency().getValueAtPercentile(99);
+    }
+
+    @Override
+    public long getDispatchLatencyMax() {
+        return mMetrics.snapshot().getDispatchLatency().getMax();
+    }
+}
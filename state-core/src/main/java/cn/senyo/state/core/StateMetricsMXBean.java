@@ -0,0 +1,29 @@
+package cn.senyo.state.core;
+
+/**
+ * JMX view of {@link StateMetrics}, registered by {@link StateMetricsJmx}. The arrays are
+ * indexed like {@link #getStates()}, durations are in nanoseconds.
+ *
+ * @author: Rony
+ * @email: luojun@skyruler.cn
+ * @date: Created 2021/1/5 15:45
+ */
+public interface StateMetricsMXBean {
+    String[] getStates();
+
+    long[] getEnterCounts();
+
+    long[] getHandledCounts();
+
+    long[] getUnhandledCounts();
+
+    long[] getMeanTimeInState();
+
+    long[] getMaxTimeInState();
+
+    long getDispatchLatencyP50();
+
+    long getDispatchLatencyP99();
+
+    long getDispatchLatencyMax();
+}
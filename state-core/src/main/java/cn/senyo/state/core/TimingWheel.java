@@ -0,0 +1,194 @@
+package cn.senyo.state.core;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Hashed timing wheel of delayed events with a tick of one millisecond, owned by the
+ * {@link EventLoop} thread. Events are kept in the slot of their due time modulo the
+ * wheel size, in intrusive doubly linked lists (Event.prev/next), so adding and
+ * cancelling are O(1) whatever the number of pending timers. Timers further away than
+ * one rotation simply stay in their slot until the rotation they are due in.
+ * <p>
+ * The slots are only allocated with the first timer, a loop per machine costs little
+ * while its machine arms none.
+ * <p>
+ * The next deadline is kept as a lower bound: cancelling the earliest timer leaves it in
+ * place, the loop then wakes once for nothing, and once the tick passes it the bound is
+ * moved to the first non-empty slot ahead, never more than one rotation of slots away.
+ * No timer list is ever walked to find it.
+ *
+ * @author: Rony
+ * @email: luojun@skyruler.cn
+ * @date: Created 2021/1/5 15:45
+ */
+final class TimingWheel {
+    private static final int SLOTS = 1024;
+    private static final int MASK = SLOTS - 1;
+
+    private Event[] mSlots;
+
+    /**
+     * Time up to which the slots have been processed, events due at or before it are
+     * never added
+     */
+    private long mTick;
+    private int mSize;
+
+    /**
+     * No event in the wheel is due before it, Long.MAX_VALUE if empty, stale once the
+     * tick has reached it
+     */
+    private long mNextDeadline = Long.MAX_VALUE;
+
+    /**
+     * Slots visited looking for the next deadline or for the events of a target, for
+     * tests
+     */
+    long mScannedSlots;
+
+    interface Sink {
+        void onExpired(@NonNull Event event);
+    }
+
+    TimingWheel(long now) {
+        mTick = now;
+    }
+
+    long getTick() {
+        return mTick;
+    }
+
+    boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    /**
+     * @param event due after getTick()
+     */
+    void add(@NonNull Event event) {
+        if (mSlots == null) {
+            mSlots = new Event[SLOTS];
+        }
+        int i = (int) event.when & MASK;
+        Event head = mSlots[i];
+        event.prev = null;
+        event.next = head;
+        if (head != null) {
+            head.prev = event;
+        }
+        mSlots[i] = event;
+        event.inWheel = true;
+        event.target.mWheelEvents++;
+        mSize++;
+        if (event.when < mNextDeadline) {
+            mNextDeadline = event.when;
+        }
+    }
+
+    void remove(@NonNull Event event) {
+        Event prev = event.prev;
+        Event next = event.next;
+        if (prev == null) {
+            mSlots[(int) event.when & MASK] = next;
+        } else {
+            prev.next = next;
+        }
+        if (next != null) {
+            next.prev = prev;
+        }
+        event.prev = null;
+        event.next = null;
+        event.inWheel = false;
+        event.target.mWheelEvents--;
+        mSize--;
+        if (mSize == 0) {
+            mNextDeadline = Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Hand every event due at or before now to sink, slot by slot in time order.
+     */
+    void advance(long now, @NonNull Sink sink) {
+        if (now <= mTick) {
+            return;
+        }
+        if (mSize == 0) {
+            mTick = now;
+            return;
+        }
+        long from = mTick + 1;
+        // after a long pause one rotation visits every slot
+        long to = Math.min(now, mTick + SLOTS);
+        for (long t = from; t <= to && mSize > 0; t++) {
+            Event p = mSlots[(int) t & MASK];
+            while (p != null) {
+                Event n = p.next;
+                if (p.when <= now) {
+                    remove(p);
+                    sink.onExpired(p);
+                }
+                p = n;
+            }
+        }
+        mTick = now;
+    }
+
+    /**
+     * @return a time no event is due before, at most the earliest due time, Long.MAX_VALUE
+     * if the wheel is empty
+     */
+    long nextDeadline() {
+        if (mSize == 0 || mNextDeadline > mTick) {
+            return mNextDeadline;
+        }
+        // the slots before the first non-empty one hold nothing due in this rotation
+        long to = mTick + SLOTS;
+        for (long t = mTick + 1; t <= to; t++) {
+            mScannedSlots++;
+            if (mSlots[(int) t & MASK] != null) {
+                mNextDeadline = t;
+                return t;
+            }
+        }
+        throw new IllegalStateException("Timing wheel of " + mSize + " events has no event");
+    }
+
+    /**
+     * Remove the events of target with the given what, and obj unless null, all of them
+     * if all is true, recycling them. Slots are visited in due order until every event of
+     * target has been seen, a target with none costs nothing and one with only near
+     * timers stops early.
+     */
+    void remove(@NonNull LoopDispatcher target, int what, @Nullable Object obj, boolean all) {
+        int left = target.mWheelEvents;
+        long to = mTick + SLOTS;
+        for (long t = mTick + 1; t <= to && left > 0; t++) {
+            mScannedSlots++;
+            Event p = mSlots[(int) t & MASK];
+            while (p != null) {
+                Event n = p.next;
+                if (p.target == target) {
+                    left--;
+                    if (all || p.what == what && (obj == null || p.obj == obj)) {
+                        remove(p);
+                        p.recycle();
+                    }
+                }
+                p = n;
+            }
+        }
+    }
+
+    void clear() {
+        if (mSlots == null) {
+            return;
+        }
+        for (int i = 0; i < SLOTS; i++) {
+            mSlots[i] = null;
+        }
+        mSize = 0;
+        mNextDeadline = Long.MAX_VALUE;
+    }
+}
@@ -0,0 +1,326 @@
+package cn.senyo.state.core;
+
+import androidx.annotation.NonNull;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Persistent journal of the events, exits and enters of state machines, for post-mortem
+ * analysis once the process is gone. Records are appended to memory-mapped segment files
+ * in a directory, the oldest segments are deleted beyond a maximum, so what the machines
+ * did last survives a crash of the process without any file I/O on the way: appending
+ * is reserving space with an atomic add and writing into the mapping. Only opening the
+ * next segment touches the file system. Decode the files with
+ * {@link TransitionJournalReader}.
+ * <p>
+ * One journal may be shared by all machines of the process, see
+ * {@link StateMachine#setJournal(TransitionJournal)}. A new journal in the same directory
+ * continues the numbering, the segments of a previous run are kept.
+ *
+ * @author: Rony
+ * @email: luojun@skyruler.cn
+ * @date: Created 2021/1/5 15:45
+ */
+public final class TransitionJournal implements Closeable {
+    private static final String TAG = "TransitionJournal";
+
+    static final int MAGIC = 0x534d4a31; // "SMJ1"
+    static final int VERSION = 1;
+    static final String SUFFIX = ".journal";
+
+    /**
+     * Segment header: magic, version, record size, segment number, then wall clock and
+     * EventLoop.uptimeMillis() at creation to convert the record times
+     */
+    static final int HEADER_BYTES = 64;
+    static final int RECORD_BYTES = 40;
+
+    static final int KIND_EVENT = TransitionTrace.KIND_EVENT;
+    static final int KIND_EXIT = TransitionTrace.KIND_EXIT;
+    static final int KIND_ENTER = TransitionTrace.KIND_ENTER;
+
+    /**
+     * A chunk of a machine name (index -1) or state name, see writeName
+     */
+    static final int KIND_NAME = 4;
+    static final int NAME_CHUNK_BYTES = 24;
+
+    public static final int DEFAULT_SEGMENT_BYTES = 4 << 20;
+    public static final int DEFAULT_MAX_SEGMENTS = 8;
+
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File mDir;
+    private final String mName;
+    private final int mSegmentBytes;
+    private final int mMaxSegments;
+
+    /**
+     * Machines registered so far, their names are repeated at the start of every segment
+     * so each one decodes on its own
+     */
+    private final List<Writer> mWriters = new ArrayList<>();
+    private final List<File> mFiles = new ArrayList<>();
+    private long mNextNumber;
+
+    /**
+     * Segment appended to, null once closed or after an I/O error
+     */
+    private volatile Segment mSegment;
+
+    private TransitionJournal(@NonNull File dir, @NonNull String name, int segmentBytes,
+                              int maxSegments) {
+        mDir = dir;
+        mName = name;
+        mSegmentBytes = segmentBytes;
+        mMaxSegments = maxSegments;
+    }
+
+    @NonNull
+    public static TransitionJournal open(@NonNull File dir, @NonNull String name)
+            throws IOException {
+        return open(dir, name, DEFAULT_SEGMENT_BYTES, DEFAULT_MAX_SEGMENTS);
+    }
+
+    /**
+     * @param dir          directory of the segment files, created if needed
+     * @param name         prefix of the segment files
+     * @param segmentBytes size of a segment file
+     * @param maxSegments  segment files kept, older ones are deleted
+     */
+    @NonNull
+    public static TransitionJournal open(@NonNull File dir, @NonNull String name,
+                                         int segmentBytes, int maxSegments) throws IOException {
+        if (segmentBytes < HEADER_BYTES + RECORD_BYTES * 16) {
+            throw new IllegalArgumentException("segmentBytes too small: " + segmentBytes);
+        }
+        if (maxSegments < 1) {
+            throw new IllegalArgumentException("maxSegments must be positive: " + maxSegments);
+        }
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("cannot create " + dir);
+        }
+        TransitionJournal journal = new TransitionJournal(dir, name, segmentBytes, maxSegments);
+        for (File file : TransitionJournalReader.listSegments(dir, name, SUFFIX)) {
+            journal.mFiles.add(file);
+            journal.mNextNumber = TransitionJournalReader.segmentNumber(file, name, SUFFIX) + 1;
+        }
+        synchronized (journal) {
+            journal.mSegment = journal.newSegment();
+        }
+        return journal;
+    }
+
+    /**
+     * Write the mapped records to the file. Not needed to survive a crash of the process,
+     * only of the system.
+     */
+    public void flush() {
+        Segment segment = mSegment;
+        if (segment != null) {
+            segment.mBuffer.force();
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        Segment segment = mSegment;
+        mSegment = null;
+        if (segment != null) {
+            segment.mBuffer.force();
+        }
+    }
+
+    /**
+     * Register a machine, its names are journaled with its records.
+     */
+    @NonNull
+    synchronized Writer register(@NonNull String machineName, @NonNull String[] stateNames) {
+        Writer writer = new Writer(this, mWriters.size(), machineName, stateNames);
+        mWriters.add(writer);
+        Segment segment = mSegment;
+        if (segment != null) {
+            writeNames(segment, writer);
+        }
+        return writer;
+    }
+
+    private void append(int kind, int machine, long time, int what, int arg1, int arg2,
+                        int state, int handler, int dest, int seq) {
+        for (; ; ) {
+            Segment segment = mSegment;
+            if (segment == null) {
+                return;
+            }
+            int pos = segment.reserve();
+            if (pos >= 0) {
+                MappedByteBuffer b = segment.mBuffer;
+                b.putInt(pos + 4, machine);
+                b.putLong(pos + 8, time);
+                b.putInt(pos + 16, what);
+                b.putInt(pos + 20, arg1);
+                b.putInt(pos + 24, arg2);
+                b.putShort(pos + 28, (short) state);
+                b.putShort(pos + 30, (short) handler);
+                b.putShort(pos + 32, (short) dest);
+                b.putInt(pos + 36, seq);
+                // last, the reader skips records with a kind of 0 as never written
+                b.putInt(pos, kind);
+                return;
+            }
+            rotate(segment);
+        }
+    }
+
+    private synchronized void rotate(@NonNull Segment full) {
+        if (mSegment != full) {
+            // closed or rotated by another writer
+            return;
+        }
+        try {
+            mSegment = newSegment();
+        } catch (IOException e) {
+            Log.e(TAG, "journal stopped, cannot open the next segment: " + e);
+            mSegment = null;
+        }
+    }
+
+    /**
+     * Map the next segment file, with the names of the registered machines, and delete
+     * the oldest ones beyond the maximum. Called with the lock held.
+     */
+    private Segment newSegment() throws IOException {
+        File file = new File(mDir, mName + "-" + mNextNumber + SUFFIX);
+        MappedByteBuffer buffer;
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(0);
+            raf.setLength(mSegmentBytes);
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, mSegmentBytes);
+        } finally {
+            // the mapping stays valid once the channel is closed
+            raf.close();
+        }
+        buffer.putInt(4, VERSION);
+        buffer.putInt(8, RECORD_BYTES);
+        buffer.putLong(16, mNextNumber);
+        buffer.putLong(24, System.currentTimeMillis());
+        buffer.putLong(32, EventLoop.uptimeMillis());
+        buffer.putInt(0, MAGIC);
+        Segment segment = new Segment(buffer, mSegmentBytes);
+        for (Writer writer : mWriters) {
+            writeNames(segment, writer);
+        }
+        mNextNumber++;
+        mFiles.add(file);
+        while (mFiles.size() > mMaxSegments) {
+            File oldest = mFiles.remove(0);
+            if (!oldest.delete()) {
+                Log.e(TAG, "cannot delete " + oldest);
+            }
+        }
+        return segment;
+    }
+
+    private void writeNames(@NonNull Segment segment, @NonNull Writer writer) {
+        writeName(segment, writer.mId, -1, writer.mMachineName);
+        for (int i = 0; i < writer.mStateNames.length; i++) {
+            writeName(segment, writer.mId, i, writer.mStateNames[i]);
+        }
+    }
+
+    /**
+     * A name as chunks of NAME_CHUNK_BYTES UTF-8 bytes: machine, index, chunk number and
+     * length in place of the time, the bytes in place of the event fields.
+     */
+    private void writeName(@NonNull Segment segment, int machine, int index,
+                           @NonNull String name) {
+        byte[] bytes = name.getBytes(UTF_8);
+        int chunk = 0;
+        do {
+            int pos = segment.reserve();
+            if (pos < 0) {
+                // a segment too small for the names, they are repeated in the next one
+                return;
+            }
+            int offset = chunk * NAME_CHUNK_BYTES;
+            int length = Math.min(NAME_CHUNK_BYTES, bytes.length - offset);
+            MappedByteBuffer b = segment.mBuffer;
+            b.putInt(pos + 4, machine);
+            b.putInt(pos + 8, index);
+            b.putShort(pos + 12, (short) chunk);
+            b.putShort(pos + 14, (short) length);
+            for (int i = 0; i < length; i++) {
+                b.put(pos + 16 + i, bytes[offset + i]);
+            }
+            b.putInt(pos, KIND_NAME);
+            chunk++;
+        } while (chunk * NAME_CHUNK_BYTES < bytes.length);
+    }
+
+    private static final class Segment {
+        final MappedByteBuffer mBuffer;
+        final int mCapacity;
+        final AtomicInteger mPosition = new AtomicInteger(HEADER_BYTES);
+
+        Segment(@NonNull MappedByteBuffer buffer, int capacity) {
+            mBuffer = buffer;
+            mCapacity = capacity;
+        }
+
+        /**
+         * @return offset of a record to write, -1 if the segment is full
+         */
+        int reserve() {
+            int pos = mPosition.getAndAdd(RECORD_BYTES);
+            return pos >= 0 && pos <= mCapacity - RECORD_BYTES ? pos : -1;
+        }
+    }
+
+    /**
+     * Journal of one machine, written by its thread only.
+     */
+    static final class Writer {
+        private final TransitionJournal mJournal;
+        final int mId;
+        final String mMachineName;
+        final String[] mStateNames;
+        private int mEventSeq;
+        private long mEventTime;
+
+        Writer(@NonNull TransitionJournal journal, int id, @NonNull String machineName,
+               @NonNull String[] stateNames) {
+            mJournal = journal;
+            mId = id;
+            mMachineName = machineName;
+            mStateNames = stateNames;
+        }
+
+        /**
+         * @see TransitionTrace#event(Event, int, int, int)
+         */
+        void event(@NonNull Event event, int state, int handler, int dest) {
+            mEventSeq++;
+            mEventTime = event.when != 0 ? event.when : EventLoop.uptimeMillis();
+            mJournal.append(KIND_EVENT, mId, mEventTime, event.what, event.arg1, event.arg2,
+                    state, handler, dest, mEventSeq);
+        }
+
+        void exit(int state) {
+            mJournal.append(KIND_EXIT, mId, mEventTime, 0, 0, 0, state, -1, -1, mEventSeq);
+        }
+
+        void enter(int state) {
+            mJournal.append(KIND_ENTER, mId, mEventTime, 0, 0, 0, state, -1, -1, mEventSeq);
+        }
+    }
+}
@@ -0,0 +1,299 @@
+package cn.senyo.state.core;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Offline decoder of the segment files of a {@link TransitionJournal}, oldest first.
+ * <p>
+ * From the command line:
+ * {@code java -cp state-core.jar cn.senyo.state.core.TransitionJournalReader <dir> <name>}
+ * prints one line per record.
+ *
+ * @author: Rony
+ * @email: luojun@skyruler.cn
+ * @date: Created 2021/1/5 15:45
+ */
+public final class TransitionJournalReader {
+
+    /**
+     * One decoded record.
+     */
+    public static final class Record {
+        /**
+         * {@link TransitionTrace#KIND_EVENT}, KIND_EXIT or KIND_ENTER
+         */
+        public int kind;
+        public long segment;
+
+        /**
+         * Wall clock time in milliseconds
+         */
+        public long time;
+        public String machine;
+        public int what;
+        public int arg1;
+        public int arg2;
+
+        /**
+         * Current state of an event, the exited or entered state otherwise, null if none
+         */
+        public String state;
+        public String handler;
+        public String dest;
+
+        /**
+         * Indices of the states in order of addition, -1 if none
+         */
+        public int stateIndex;
+        public int handlerIndex;
+        public int destIndex;
+
+        /**
+         * Sequence of the event in its machine, shared by the exits and enters it caused
+         */
+        public int eventSeq;
+
+        @NonNull
+        @Override
+        public String toString() {
+            SimpleDateFormat format = new SimpleDateFormat("MM-dd HH:mm:ss.SSS", Locale.US);
+            StringBuilder sb = new StringBuilder(format.format(new Date(time)))
+                    .append(' ').append(machine).append(" #").append(eventSeq).append(' ');
+            switch (kind) {
+                case TransitionJournal.KIND_EVENT:
+                    sb.append("event what=").append(what).append(" arg1=").append(arg1)
+                            .append(" arg2=").append(arg2).append(" in ").append(state)
+                            .append(" handled by ").append(handler);
+                    if (dest != null) {
+                        sb.append(" -> ").append(dest);
+                    }
+                    break;
+                case TransitionJournal.KIND_EXIT:
+                    sb.append("exit ").append(state);
+                    break;
+                default:
+                    sb.append("enter ").append(state);
+                    break;
+            }
+            return sb.toString();
+        }
+    }
+
+    private TransitionJournalReader() {
+    }
+
+    /**
+     * Segments are named name-number with the suffix of their kind, shared with
+     * {@link EventLog}.
+     *
+     * @return the segment files, oldest first
+     */
+    @NonNull
+    static List<File> listSegments(@NonNull File dir, @NonNull final String name,
+                                   @NonNull final String suffix) {
+        List<File> files = new ArrayList<>();
+        File[] all = dir.listFiles();
+        if (all == null) {
+            return files;
+        }
+        for (File file : all) {
+            if (segmentNumber(file, name, suffix) >= 0) {
+                files.add(file);
+            }
+        }
+        Collections.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(segmentNumber(a, name, suffix),
+                        segmentNumber(b, name, suffix));
+            }
+        });
+        return files;
+    }
+
+    /**
+     * @return the number of a segment file, -1 for other files
+     */
+    static long segmentNumber(@NonNull File file, @NonNull String name, @NonNull String suffix) {
+        String fileName = file.getName();
+        String prefix = name + "-";
+        if (!fileName.startsWith(prefix) || !fileName.endsWith(suffix)) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(fileName.substring(prefix.length(),
+                    fileName.length() - suffix.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Decode all segments of the journal, oldest first.
+     */
+    @NonNull
+    public static List<Record> read(@NonNull File dir, @NonNull String name) throws IOException {
+        List<Record> records = new ArrayList<>();
+        for (File file : listSegments(dir, name, TransitionJournal.SUFFIX)) {
+            readSegment(file, records);
+        }
+        return records;
+    }
+
+    private static void readSegment(@NonNull File file, @NonNull List<Record> out)
+            throws IOException {
+        ByteBuffer b = ByteBuffer.wrap(readFully(file));
+        if (b.capacity() < TransitionJournal.HEADER_BYTES
+                || b.getInt(0) != TransitionJournal.MAGIC) {
+            // created but never initialized, or not a segment
+            return;
+        }
+        if (b.getInt(4) != TransitionJournal.VERSION) {
+            throw new IOException(file + ": unsupported version " + b.getInt(4));
+        }
+        int recordBytes = b.getInt(8);
+        long segment = b.getLong(16);
+        long wallBase = b.getLong(24);
+        long uptimeBase = b.getLong(32);
+
+        // names are repeated in every segment, ids are per run so per segment too
+        Map<Integer, String> machines = new HashMap<>();
+        Map<Integer, List<String>> states = new HashMap<>();
+        Map<Long, byte[]> pendingNames = new HashMap<>();
+        for (int pos = TransitionJournal.HEADER_BYTES; pos + recordBytes <= b.capacity();
+             pos += recordBytes) {
+            int kind = b.getInt(pos);
+            if (kind == 0) {
+                continue;
+            }
+            int machine = b.getInt(pos + 4);
+            if (kind == TransitionJournal.KIND_NAME) {
+                readName(b, pos, machine, pendingNames, machines, states);
+                continue;
+            }
+            if (kind < TransitionJournal.KIND_EVENT || kind > TransitionJournal.KIND_ENTER) {
+                // torn by the crash
+                continue;
+            }
+            List<String> names = states.get(machine);
+            Record record = new Record();
+            record.kind = kind;
+            record.segment = segment;
+            record.time = wallBase + b.getLong(pos + 8) - uptimeBase;
+            String machineName = machines.get(machine);
+            record.machine = machineName != null ? machineName : "machine" + machine;
+            record.what = b.getInt(pos + 16);
+            record.arg1 = b.getInt(pos + 20);
+            record.arg2 = b.getInt(pos + 24);
+            record.stateIndex = stateIndex(b.getShort(pos + 28));
+            record.handlerIndex = stateIndex(b.getShort(pos + 30));
+            record.destIndex = stateIndex(b.getShort(pos + 32));
+            record.state = stateName(names, record.stateIndex);
+            record.handler = stateName(names, record.handlerIndex);
+            record.dest = stateName(names, record.destIndex);
+            record.eventSeq = b.getInt(pos + 36);
+            out.add(record);
+        }
+    }
+
+    private static void readName(@NonNull ByteBuffer b, int pos, int machine,
+                                 @NonNull Map<Long, byte[]> pending,
+                                 @NonNull Map<Integer, String> machines,
+                                 @NonNull Map<Integer, List<String>> states) {
+        int index = b.getInt(pos + 8);
+        int chunk = b.getShort(pos + 12);
+        int length = b.getShort(pos + 14);
+        if (length < 0 || length > TransitionJournal.NAME_CHUNK_BYTES) {
+            return;
+        }
+        long key = ((long) machine << 32) | (index & 0xFFFFFFFFL);
+        byte[] previous = chunk == 0 ? new byte[0] : pending.get(key);
+        if (previous == null) {
+            return;
+        }
+        byte[] bytes = Arrays.copyOf(previous, previous.length + length);
+        for (int i = 0; i < length; i++) {
+            bytes[previous.length + i] = b.get(pos + 16 + i);
+        }
+        pending.put(key, bytes);
+        String name = new String(bytes, TransitionJournal.UTF_8);
+        if (index < 0) {
+            machines.put(machine, name);
+        } else {
+            List<String> names = states.get(machine);
+            if (names == null) {
+                names = new ArrayList<>();
+                states.put(machine, names);
+            }
+            while (names.size() <= index) {
+                names.add(null);
+            }
+            names.set(index, name);
+        }
+    }
+
+    private static int stateIndex(short bits) {
+        return bits < 0 ? -1 : bits;
+    }
+
+    @Nullable
+    private static String stateName(@Nullable List<String> names, int index) {
+        if (index < 0) {
+            return null;
+        }
+        String name = names != null && index < names.size() ? names.get(index) : null;
+        return name != null ? name : "state" + index;
+    }
+
+    private static byte[] readFully(@NonNull File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] bytes = new byte[(int) file.length()];
+            int offset = 0;
+            while (offset < bytes.length) {
+                int n = in.read(bytes, offset, bytes.length - offset);
+                if (n < 0) {
+                    return Arrays.copyOf(bytes, offset);
+                }
+                offset += n;
+            }
+            return bytes;
+        } finally {
+            in.close();
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        PrintStream out = System.out;
+        if (args.length != 2) {
+            out.println("usage: TransitionJournalReader <dir> <name>");
+            return;
+        }
+        long segment = -1;
+        for (Record record : read(new File(args[0]), args[1])) {
+            if (record.segment != segment) {
+                segment = record.segment;
+                out.println("--- segment " + segment);
+            }
+            out.println(record);
+        }
+    }
+}
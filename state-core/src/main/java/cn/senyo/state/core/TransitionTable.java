@@ -0,0 +1,196 @@
+package cn.senyo.state.core;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Declared transitions compiled into a dense [state code][what] table. Targets are
+ * state indices, so one table serves {@link StateMachine} and
+ * {@link StateMachineDefinition} alike.
+ * <p>
+ * A cell is 0 when nothing is declared, target index + 1 for an unguarded
+ * transition, or -(guarded row index + 1) when guards have to be evaluated.
+ *
+ * @author: Rony
+ * @email: luojun@skyruler.cn
+ * @date: Created 2021/1/5 15:45
+ */
+final class TransitionTable {
+    private final int[][] mCells;
+    private final GuardedRow[] mGuardedRows;
+
+    /**
+     * Candidate transitions of one (state code, what) pair in declaration order,
+     * a null guard always accepts.
+     */
+    private static final class GuardedRow {
+        final Guard[] guards;
+        final int[] targets;
+
+        GuardedRow(Guard[] guards, int[] targets) {
+            this.guards = guards;
+            this.targets = targets;
+        }
+    }
+
+    private TransitionTable(int[][] cells, GuardedRow[] guardedRows) {
+        mCells = cells;
+        mGuardedRows = guardedRows;
+    }
+
+    /**
+     * @return the index of the target state declared for the state code and event, -1 if
+     * none applies and the state has to process the event itself
+     */
+    int resolve(int code, @NonNull Event event) {
+        if (code < 0 || code >= mCells.length) {
+            return -1;
+        }
+        int[] row = mCells[code];
+        int what = event.what;
+        if (row == null || what < 0 || what >= row.length) {
+            return -1;
+        }
+        int cell = row[what];
+        if (cell > 0) {
+            return cell - 1;
+        }
+        if (cell == 0) {
+            return -1;
+        }
+        GuardedRow guarded = mGuardedRows[-cell - 1];
+        for (int i = 0; i < guarded.guards.length; i++) {
+            Guard guard = guarded.guards[i];
+            if (guard == null || guard.accept(event)) {
+                return guarded.targets[i];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return true if any transition is declared for the state code and what, guarded
+     * or not
+     */
+    boolean declares(int code, int what) {
+        if (code < 0 || code >= mCells.length) {
+            return false;
+        }
+        int[] row = mCells[code];
+        return row != null && what >= 0 && what < row.length && row[what] != 0;
+    }
+
+    /**
+     * @return one more than the largest what of a declared transition
+     */
+    int whatSpan() {
+        int span = 0;
+        for (int[] row : mCells) {
+            if (row != null) {
+                span = Math.max(span, row.length);
+            }
+        }
+        return span;
+    }
+
+    static final class Builder {
+        private static final class Entry {
+            final int sourceCode;
+            final int what;
+            final Guard guard;
+            final int targetCode;
+
+            Entry(int sourceCode, int what, Guard guard, int targetCode) {
+                this.sourceCode = sourceCode;
+                this.what = what;
+                this.guard = guard;
+                this.targetCode = targetCode;
+            }
+        }
+
+        private final List<Entry> mEntries = new ArrayList<>();
+
+        void add(int sourceCode, int what, @Nullable Guard guard, int targetCode) {
+            if (sourceCode < 0 || what < 0) {
+                throw new IllegalArgumentException("state code and what must not be negative: "
+                        + "sourceCode=" + sourceCode + ", what=" + what);
+            }
+            mEntries.add(new Entry(sourceCode, what, guard, targetCode));
+        }
+
+        boolean isEmpty() {
+            return mEntries.isEmpty();
+        }
+
+        /**
+         * @param codes codes of all states of the machine by index, targets are looked up
+         *              by code
+         */
+        @NonNull
+        TransitionTable build(@NonNull int[] codes) {
+            Map<Integer, Integer> byCode = new HashMap<>();
+            Map<Integer, Boolean> duplicated = new HashMap<>();
+            for (int i = 0; i < codes.length; i++) {
+                if (byCode.put(codes[i], i) != null) {
+                    duplicated.put(codes[i], Boolean.TRUE);
+                }
+            }
+
+            int maxCode = -1;
+            Map<Integer, Integer> maxWhat = new HashMap<>();
+            for (Entry entry : mEntries) {
+                maxCode = Math.max(maxCode, entry.sourceCode);
+                Integer max = maxWhat.get(entry.sourceCode);
+                maxWhat.put(entry.sourceCode, max == null ? entry.what : Math.max(max, entry.what));
+            }
+            int[][] cells = new int[maxCode + 1][];
+            for (Map.Entry<Integer, Integer> e : maxWhat.entrySet()) {
+                cells[e.getKey()] = new int[e.getValue() + 1];
+            }
+
+            List<List<Entry>> guardedEntries = new ArrayList<>();
+            for (Entry entry : mEntries) {
+                if (duplicated.containsKey(entry.targetCode)) {
+                    throw new RuntimeException("transition target code " + entry.targetCode
+                            + " is shared by several states");
+                }
+                Integer target = byCode.get(entry.targetCode);
+                if (target == null) {
+                    throw new RuntimeException("transition target code " + entry.targetCode
+                            + " is not a state of this machine");
+                }
+                int[] row = cells[entry.sourceCode];
+                int cell = row[entry.what];
+                if (cell == 0 && entry.guard == null) {
+                    row[entry.what] = target + 1;
+                } else if (cell <= 0) {
+                    if (cell == 0) {
+                        guardedEntries.add(new ArrayList<Entry>());
+                        cell = -guardedEntries.size();
+                        row[entry.what] = cell;
+                    }
+                    guardedEntries.get(-cell - 1).add(entry);
+                }
+                // else an unguarded transition is already declared, later ones are unreachable
+            }
+
+            GuardedRow[] guardedRows = new GuardedRow[guardedEntries.size()];
+            for (int i = 0; i < guardedRows.length; i++) {
+                List<Entry> entries = guardedEntries.get(i);
+                Guard[] guards = new Guard[entries.size()];
+                int[] rowTargets = new int[entries.size()];
+                for (int j = 0; j < guards.length; j++) {
+                    guards[j] = entries.get(j).guard;
+                    rowTargets[j] = byCode.get(entries.get(j).targetCode);
+                }
+                guardedRows[i] = new GuardedRow(guards, rowTargets);
+            }
+            return new TransitionTable(cells, guardedRows);
+        }
+    }
+}
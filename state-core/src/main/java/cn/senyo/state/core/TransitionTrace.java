@@ -0,0 +1,277 @@
+package cn.senyo.state.core;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * Fixed size ring of binary records of what a state machine did: every dispatched event
+ * with the current, handling and destination states, then the exit and enter of each
+ * state it caused. Records are four longs written in place, so tracing stays cheap enough
+ * to keep on in production, and the last records are dumped with {@link #snapshot()}
+ * when a machine misbehaves. Enabled by {@link StateMachine#setTraceCapacity(int)}.
+ * <p>
+ * Times are {@link EventLoop#uptimeMillis()} milliseconds of the dispatch of the event,
+ * exits and enters carry the time of their event. On an {@link EventLoop} the queue
+ * provides it, so a record is only a few stores.
+ * <p>
+ * The machine thread is the only writer, snapshots may be taken from any thread.
+ *
+ * @author: Rony
+ * @email: luojun@skyruler.cn
+ * @date: Created 2021/1/5 15:45
+ */
+public final class TransitionTrace {
+    public static final int KIND_EVENT = 1;
+    public static final int KIND_EXIT = 2;
+    public static final int KIND_ENTER = 3;
+
+    /**
+     * Longs per record: time, kind and states, what and arg1, arg2 and event sequence
+     */
+    static final int RECORD_LONGS = 4;
+    private static final int NONE = 0xFFFF;
+
+    private final String[] mStateNames;
+    private final long[] mRecords;
+    private final int mMask;
+
+    /**
+     * Sequence and time of the last event, enter and exit records carry them
+     */
+    private int mEventSeq;
+    private long mEventTime;
+
+    /**
+     * Records written so far, published after each record
+     */
+    private volatile long mWritten;
+    private static final AtomicLongFieldUpdater<TransitionTrace> WRITTEN =
+            AtomicLongFieldUpdater.newUpdater(TransitionTrace.class, "mWritten");
+
+    /**
+     * @param capacity number of records kept, rounded up to a power of two
+     */
+    TransitionTrace(@NonNull String[] stateNames, int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        mStateNames = stateNames;
+        mRecords = new long[size * RECORD_LONGS];
+        mMask = size - 1;
+    }
+
+    public int getCapacity() {
+        return mMask + 1;
+    }
+
+    /**
+     * @param state    index of the current state, -1 before the initial enter
+     * @param handler  index of the state which handled the event, -1 if none
+     * @param dest     index of the destination state, -1 if no transition
+     */
+    void event(@NonNull Event event, int state, int handler, int dest) {
+        mEventSeq++;
+        mEventTime = event.when != 0 ? event.when : EventLoop.uptimeMillis();
+        write(KIND_EVENT, state, handler, dest, event.what, event.arg1, event.arg2);
+    }
+
+    void exit(int state) {
+        write(KIND_EXIT, state, -1, -1, 0, 0, 0);
+    }
+
+    void enter(int state) {
+        write(KIND_ENTER, state, -1, -1, 0, 0, 0);
+    }
+
+    private void write(int kind, int a, int b, int c, int what, int arg1, int arg2) {
+        long written = mWritten;
+        int i = ((int) written & mMask) * RECORD_LONGS;
+        long[] records = mRecords;
+        records[i] = mEventTime;
+        records[i + 1] = encodeStates(kind, a, b, c);
+        records[i + 2] = ((long) what << 32) | (arg1 & 0xFFFFFFFFL);
+        records[i + 3] = ((long) arg2 << 32) | (mEventSeq & 0xFFFFFFFFL);
+        WRITTEN.lazySet(this, written + 1);
+    }
+
+    /**
+     * @return the second long of a record: kind and the three state indices, -1 for none
+     */
+    static long encodeStates(int kind, int a, int b, int c) {
+        return ((long) kind << 48) | ((long) (a & NONE) << 32) | ((long) (b & NONE) << 16)
+                | (c & NONE);
+    }
+
+    /**
+     * @return number of records written so far
+     */
+    long getWritten() {
+        return mWritten;
+    }
+
+    /**
+     * @return long field of the record written n-th, for the writer thread while it is
+     * still in the ring
+     */
+    long getRecordLong(long n, int field) {
+        return mRecords[((int) n & mMask) * RECORD_LONGS + field];
+    }
+
+    @NonNull
+    String[] getStateNames() {
+        return mStateNames;
+    }
+
+    /**
+     * @return the records still in the ring, oldest first
+     */
+    @NonNull
+    public Snapshot snapshot() {
+        long before = mWritten;
+        long[] copy = mRecords.clone();
+        long after = mWritten;
+        int capacity = mMask + 1;
+        // the slot written last may be partly overwritten by the record in progress
+        long first = Math.max(0, after - capacity + 1);
+        int count = (int) Math.max(0, before - first);
+        long[] records = new long[count * RECORD_LONGS];
+        for (int n = 0; n < count; n++) {
+            int i = ((int) (first + n) & mMask) * RECORD_LONGS;
+            System.arraycopy(copy, i, records, n * RECORD_LONGS, RECORD_LONGS);
+        }
+        return new Snapshot(records, mStateNames);
+    }
+
+    /**
+     * Decoded view of trace records.
+     */
+    public static final class Snapshot {
+        private final long[] mRecords;
+        private final String[] mStateNames;
+
+        Snapshot(@NonNull long[] records, @NonNull String[] stateNames) {
+            mRecords = records;
+            mStateNames = stateNames;
+        }
+
+        /**
+         * Decode records dumped with {@link #getRecords()}, e.g. saved by a device.
+         *
+         * @param stateNames names by state index, as {@link #getStateNames()} returned
+         */
+        @NonNull
+        public static Snapshot decode(@NonNull long[] records, @NonNull String[] stateNames) {
+            if (records.length % RECORD_LONGS != 0) {
+                throw new IllegalArgumentException("not a trace: " + records.length + " longs");
+            }
+            return new Snapshot(records.clone(), stateNames.clone());
+        }
+
+        /**
+         * @return the raw records, RECORD_LONGS longs each, for a binary dump
+         */
+        @NonNull
+        public long[] getRecords() {
+            return mRecords.clone();
+        }
+
+        @NonNull
+        public String[] getStateNames() {
+            return mStateNames.clone();
+        }
+
+        public int size() {
+            return mRecords.length / RECORD_LONGS;
+        }
+
+        /**
+         * @return time in milliseconds of the record
+         */
+        public long getTime(int i) {
+            return mRecords[i * RECORD_LONGS];
+        }
+
+        public int getKind(int i) {
+            return (int) (mRecords[i * RECORD_LONGS + 1] >>> 48) & 0xFF;
+        }
+
+        /**
+         * @return index of the current state for an event, of the exited or entered state
+         * otherwise, -1 if none
+         */
+        public int getState(int i) {
+            return index(mRecords[i * RECORD_LONGS + 1] >>> 32);
+        }
+
+        public int getHandlerState(int i) {
+            return index(mRecords[i * RECORD_LONGS + 1] >>> 16);
+        }
+
+        public int getDestState(int i) {
+            return index(mRecords[i * RECORD_LONGS + 1]);
+        }
+
+        private static int index(long bits) {
+            int index = (int) bits & NONE;
+            return index == NONE ? -1 : index;
+        }
+
+        public int getWhat(int i) {
+            return (int) (mRecords[i * RECORD_LONGS + 2] >> 32);
+        }
+
+        public int getArg1(int i) {
+            return (int) mRecords[i * RECORD_LONGS + 2];
+        }
+
+        public int getArg2(int i) {
+            return (int) (mRecords[i * RECORD_LONGS + 3] >> 32);
+        }
+
+        /**
+         * @return sequence of the event, shared by the exits and enters it caused
+         */
+        public int getEventSeq(int i) {
+            return (int) mRecords[i * RECORD_LONGS + 3];
+        }
+
+        @Nullable
+        public String getStateName(int index) {
+            return index >= 0 && index < mStateNames.length ? mStateNames[index] : null;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            long start = size() == 0 ? 0 : getTime(0);
+            for (int i = 0; i < size(); i++) {
+                sb.append('+').append(getTime(i) - start).append("ms #")
+                        .append(getEventSeq(i)).append(' ');
+                switch (getKind(i)) {
+                    case KIND_EVENT:
+                        sb.append("event what=").append(getWhat(i))
+                                .append(" arg1=").append(getArg1(i))
+                                .append(" arg2=").append(getArg2(i))
+                                .append(" in ").append(getStateName(getState(i)))
+                                .append(" handled by ").append(getStateName(getHandlerState(i)));
+                        if (getDestState(i) >= 0) {
+                            sb.append(" -> ").append(getStateName(getDestState(i)));
+                        }
+                        break;
+                    case KIND_EXIT:
+                        sb.append("exit ").append(getStateName(getState(i)));
+                        break;
+                    case KIND_ENTER:
+                        sb.append("enter ").append(getStateName(getState(i)));
+                        break;
+                    default:
+                        sb.append("kind ").append(getKind(i));
+                        break;
+                }
+                sb.append('\n');
+            }
+            return sb.toString();
+        }
+    }
+}
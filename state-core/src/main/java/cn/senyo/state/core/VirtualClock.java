@@ -0,0 +1,338 @@
+package cn.senyo.state.core;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Arrays;
+
+/**
+ * Single threaded event queue on a virtual clock, for deterministic replay: nothing runs
+ * until {@link #advanceTo(long)} is called, which dispatches the queued events, then the
+ * delayed events and state timeouts due by the given time in due order, moving the clock
+ * to each due time in turn. No real time passes, so a day of delays runs as fast as the
+ * machines process events.
+ * <p>
+ * Every machine gets a dispatcher from {@link #newDispatcher()}, all of them share the
+ * clock and one queue, so the order of events across machines is reproducible. Not thread
+ * safe, events must be sent from the thread driving the clock.
+ *
+ * @author: Rony
+ * @email: luojun@skyruler.cn
+ * @date: Created 2021/1/5 15:45
+ */
+public final class VirtualClock {
+
+    /**
+     * Called after each dispatched event, see {@link #setListener(Listener)}
+     */
+    public interface Listener {
+        void onDispatched(@NonNull Dispatcher dispatcher);
+    }
+
+    private long mNow;
+    private Listener mListener;
+    private long mDispatched;
+
+    /**
+     * Ready events, a ring with its targets alongside
+     */
+    private Event[] mReady = new Event[64];
+    private ClockDispatcher[] mReadyTargets = new ClockDispatcher[64];
+    private int mHead;
+    private int mTail;
+
+    /**
+     * Delayed events, a binary heap on due time then order of sending. Cancelled events
+     * stay in until they are due and are dropped then.
+     */
+    private Event[] mHeap = new Event[64];
+    private ClockDispatcher[] mHeapTargets = new ClockDispatcher[64];
+    private long[] mHeapWhen = new long[64];
+    private long[] mHeapOrder = new long[64];
+    private int mHeapSize;
+    private long mOrder;
+
+    public VirtualClock() {
+        this(0);
+    }
+
+    public VirtualClock(long startMillis) {
+        mNow = startMillis;
+    }
+
+    /**
+     * @return the virtual time in milliseconds
+     */
+    public long now() {
+        return mNow;
+    }
+
+    /**
+     * @return number of events dispatched so far
+     */
+    public long getDispatchedCount() {
+        return mDispatched;
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    @NonNull
+    public Dispatcher newDispatcher() {
+        return new ClockDispatcher(this);
+    }
+
+    /**
+     * @return the due time of the earliest delayed event, Long.MAX_VALUE if none
+     */
+    public long nextDeadline() {
+        return mHeapSize == 0 ? Long.MAX_VALUE : mHeapWhen[0];
+    }
+
+    /**
+     * Dispatch the queued events and everything due by time, events they send included,
+     * then leave the clock at time, or where it is if already later.
+     */
+    public void advanceTo(long time) {
+        for (; ; ) {
+            runReady();
+            if (mHeapSize == 0 || mHeapWhen[0] > time) {
+                break;
+            }
+            mNow = Math.max(mNow, mHeapWhen[0]);
+            // all the events due now, in order, before the ones they send
+            while (mHeapSize > 0 && mHeapWhen[0] <= mNow) {
+                ClockDispatcher target = mHeapTargets[0];
+                addLast(pollHeap(), target);
+            }
+        }
+        mNow = Math.max(mNow, time);
+    }
+
+    private void runReady() {
+        while (mHead != mTail) {
+            int mask = mReady.length - 1;
+            Event event = mReady[mHead];
+            ClockDispatcher target = mReadyTargets[mHead];
+            mReady[mHead] = null;
+            mReadyTargets[mHead] = null;
+            mHead = (mHead + 1) & mask;
+            if (event.cancelled || target.mReleased) {
+                event.recycle();
+                continue;
+            }
+            event.when = mNow;
+            mDispatched++;
+            target.mTarget.handleEvent(event);
+            if (mListener != null) {
+                mListener.onDispatched(target);
+            }
+        }
+    }
+
+    private void addLast(@NonNull Event event, @NonNull ClockDispatcher target) {
+        mReady[mTail] = event;
+        mReadyTargets[mTail] = target;
+        mTail = (mTail + 1) & (mReady.length - 1);
+        if (mTail == mHead) {
+            growReady();
+        }
+    }
+
+    private void addFirst(@NonNull Event event, @NonNull ClockDispatcher target) {
+        mHead = (mHead - 1) & (mReady.length - 1);
+        mReady[mHead] = event;
+        mReadyTargets[mHead] = target;
+        if (mTail == mHead) {
+            growReady();
+        }
+    }
+
+    /**
+     * The ring is full, head == tail: unroll it into twice the room.
+     */
+    private void growReady() {
+        int length = mReady.length;
+        Event[] ready = new Event[length * 2];
+        ClockDispatcher[] targets = new ClockDispatcher[length * 2];
+        int first = length - mHead;
+        System.arraycopy(mReady, mHead, ready, 0, first);
+        System.arraycopy(mReady, 0, ready, first, mHead);
+        System.arraycopy(mReadyTargets, mHead, targets, 0, first);
+        System.arraycopy(mReadyTargets, 0, targets, first, mHead);
+        mReady = ready;
+        mReadyTargets = targets;
+        mHead = 0;
+        mTail = length;
+    }
+
+    private void addDelayed(@NonNull Event event, @NonNull ClockDispatcher target, long when) {
+        if (mHeapSize == mHeap.length) {
+            int length = mHeapSize * 2;
+            mHeap = Arrays.copyOf(mHeap, length);
+            mHeapTargets = Arrays.copyOf(mHeapTargets, length);
+            mHeapWhen = Arrays.copyOf(mHeapWhen, length);
+            mHeapOrder = Arrays.copyOf(mHeapOrder, length);
+        }
+        long order = ++mOrder;
+        int i = mHeapSize++;
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (!before(when, order, parent)) {
+                break;
+            }
+            move(parent, i);
+            i = parent;
+        }
+        set(i, event, target, when, order);
+    }
+
+    @NonNull
+    private Event pollHeap() {
+        Event first = mHeap[0];
+        int last = --mHeapSize;
+        Event event = mHeap[last];
+        ClockDispatcher target = mHeapTargets[last];
+        long when = mHeapWhen[last];
+        long order = mHeapOrder[last];
+        mHeap[last] = null;
+        mHeapTargets[last] = null;
+        int i = 0;
+        if (last > 0) {
+            for (; ; ) {
+                int child = 2 * i + 1;
+                if (child >= last) {
+                    break;
+                }
+                if (child + 1 < last
+                        && before(mHeapWhen[child + 1], mHeapOrder[child + 1], child)) {
+                    child++;
+                }
+                if (before(when, order, child)) {
+                    break;
+                }
+                move(child, i);
+                i = child;
+            }
+            set(i, event, target, when, order);
+        }
+        return first;
+    }
+
+    private boolean before(long when, long order, int i) {
+        return when < mHeapWhen[i] || (when == mHeapWhen[i] && order < mHeapOrder[i]);
+    }
+
+    private void move(int from, int to) {
+        set(to, mHeap[from], mHeapTargets[from], mHeapWhen[from], mHeapOrder[from]);
+    }
+
+    private void set(int i, Event event, ClockDispatcher target, long when, long order) {
+        mHeap[i] = event;
+        mHeapTargets[i] = target;
+        mHeapWhen[i] = when;
+        mHeapOrder[i] = order;
+    }
+
+    /**
+     * Mark the pending events of target as cancelled, all of them if all is true.
+     */
+    private void remove(@NonNull ClockDispatcher target, int what, @Nullable Object obj,
+                        boolean all) {
+        int mask = mReady.length - 1;
+        for (int i = mHead; i != mTail; i = (i + 1) & mask) {
+            if (mReadyTargets[i] == target && matches(mReady[i], what, obj, all)) {
+                mReady[i].cancelled = true;
+            }
+        }
+        for (int i = 0; i < mHeapSize; i++) {
+            if (mHeapTargets[i] == target && matches(mHeap[i], what, obj, all)) {
+                mHeap[i].cancelled = true;
+            }
+        }
+    }
+
+    private static boolean matches(@NonNull Event event, int what, @Nullable Object obj,
+                                   boolean all) {
+        return all || event.what == what && (obj == null || event.obj == obj);
+    }
+
+    private static final class ClockDispatcher implements Dispatcher {
+        private final VirtualClock mClock;
+        private Target mTarget;
+        private boolean mReleased;
+
+        ClockDispatcher(@NonNull VirtualClock clock) {
+            mClock = clock;
+        }
+
+        @Override
+        public void setTarget(@NonNull Target target) {
+            mTarget = target;
+        }
+
+        @Override
+        public boolean sendEvent(@NonNull Event event) {
+            return sendEventDelayed(event, 0);
+        }
+
+        @Override
+        public boolean sendEventDelayed(@NonNull Event event, long delayMillis) {
+            if (mReleased) {
+                event.recycle();
+                return false;
+            }
+            if (delayMillis <= 0) {
+                mClock.addLast(event, this);
+            } else {
+                mClock.addDelayed(event, this, mClock.mNow + delayMillis);
+            }
+            return true;
+        }
+
+        @Override
+        public boolean sendEventAtFrontOfQueue(@NonNull Event event) {
+            if (mReleased) {
+                event.recycle();
+                return false;
+            }
+            mClock.addFirst(event, this);
+            return true;
+        }
+
+        @Override
+        public void sendEventsAtFrontOfQueue(@NonNull Event[] events, int count) {
+            for (int i = count - 1; i >= 0; i--) {
+                sendEventAtFrontOfQueue(events[i]);
+            }
+        }
+
+        @Override
+        public void removeEvents(int what) {
+            mClock.remove(this, what, null, false);
+        }
+
+        @Override
+        public void removeEvents(int what, @NonNull Object obj) {
+            mClock.remove(this, what, obj, false);
+        }
+
+        @Override
+        public void cancelEvent(@NonNull Event event) {
+            // still queued, the engine only cancels events it has not seen dispatched
+            event.cancelled = true;
+        }
+
+        @Override
+        public void setBatchSize(int maxEvents) {
+            // Events are dispatched one by one in virtual time.
+        }
+
+        @Override
+        public void release() {
+            mReleased = true;
+            mClock.remove(this, 0, null, true);
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package cn.senyo.state.core;
+
+import androidx.annotation.NonNull;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Access to the virtual threads of JDK 21 while the library itself targets Java 8 and
+ * Android, through reflection.
+ * <p>
+ * A machine on a virtual thread keeps its own serial loop, but blocking in enter(), exit()
+ * or processEvent(), such as a socket connect, only parks the virtual thread and frees
+ * its carrier for the other machines. Tens of thousands of machines may each block this way
+ * on a few platform threads:
+ * <pre>
+ * MyMachine sm = new MyMachine("session-1", VirtualThreads.factory());
+ * </pre>
+ * Avoid blocking inside synchronized blocks, which pins the carrier before JDK 24.
+ *
+ * @author: Rony
+ * @email: luojun@skyruler.cn
+ * @date: Created 2021/1/5 15:45
+ */
+public final class VirtualThreads {
+    private static final ThreadFactory FACTORY = lookupFactory();
+
+    private VirtualThreads() {
+    }
+
+    private static ThreadFactory lookupFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (Exception e) {
+            // before JDK 21, or a preview not enabled, or Android
+            return null;
+        }
+    }
+
+    /**
+     * @return true if this runtime has virtual threads
+     */
+    public static boolean isAvailable() {
+        return FACTORY != null;
+    }
+
+    /**
+     * @return factory of virtual threads, thread safe and shared
+     * @throws IllegalStateException if the runtime has no virtual threads
+     */
+    @NonNull
+    public static ThreadFactory factory() {
+        if (FACTORY == null) {
+            throw new IllegalStateException("virtual threads need JDK 21 or later");
+        }
+        return FACTORY;
+    }
+}
@@ -0,0 +1,139 @@
+package cn.senyo.state.core;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Delivery policies of {@link AsyncStateListener}, driven by an executor which only runs
+ * the drain when told to.
+ */
+public class AsyncStateListenerTest {
+    private static final State A = new TestState(1);
+    private static final State B = new TestState(2);
+    private static final State C = new TestState(3);
+    private static final State D = new TestState(4);
+
+    private static class TestState extends State {
+        TestState(int code) {
+            super(code);
+        }
+    }
+
+    private static class ManualExecutor implements Executor {
+        final ArrayDeque<Runnable> mTasks = new ArrayDeque<>();
+        boolean mRejecting;
+
+        @Override
+        public void execute(@NonNull Runnable task) {
+            if (mRejecting) {
+                throw new RejectedExecutionException("rejecting");
+            }
+            mTasks.add(task);
+        }
+
+        void runAll() {
+            Runnable task;
+            while ((task = mTasks.poll()) != null) {
+                task.run();
+            }
+        }
+    }
+
+    private static class Recorder implements StateMachine.OnStateListener {
+        final List<Integer> mCodes = new ArrayList<>();
+
+        @Override
+        public void onStateChanged(IState state) {
+            mCodes.add(state.getCode());
+        }
+    }
+
+    @Test
+    public void latestCoalescesUndeliveredStates() {
+        ManualExecutor executor = new ManualExecutor();
+        Recorder recorder = new Recorder();
+        AsyncStateListener listener = new AsyncStateListener(recorder, executor);
+        listener.onStateChanged(A);
+        listener.onStateChanged(B);
+        listener.onStateChanged(C);
+        // one drain scheduled however many states arrive before it runs
+        assertEquals(1, executor.mTasks.size());
+        executor.runAll();
+        assertEquals("[3]", recorder.mCodes.toString());
+        assertEquals(2, listener.getDroppedCount());
+
+        listener.onStateChanged(D);
+        assertEquals(1, executor.mTasks.size());
+        executor.runAll();
+        assertEquals("[3, 4]", recorder.mCodes.toString());
+        assertEquals(2, listener.getDroppedCount());
+    }
+
+    @Test
+    public void allDeliversInOrderAndDropsWhenFull() {
+        ManualExecutor executor = new ManualExecutor();
+        Recorder recorder = new Recorder();
+        // rounded up to 4
+        AsyncStateListener listener = new AsyncStateListener(recorder, executor,
+                AsyncStateListener.POLICY_ALL, 3);
+        for (int i = 0; i < 6; i++) {
+            listener.onStateChanged(i % 2 == 0 ? A : B);
+        }
+        assertEquals(1, executor.mTasks.size());
+        assertEquals(2, listener.getDroppedCount());
+        executor.runAll();
+        assertEquals("[1, 2, 1, 2]", recorder.mCodes.toString());
+
+        // the drained slots are free again
+        listener.onStateChanged(C);
+        listener.onStateChanged(D);
+        executor.runAll();
+        assertEquals("[1, 2, 1, 2, 3, 4]", recorder.mCodes.toString());
+        assertEquals(2, listener.getDroppedCount());
+    }
+
+    @Test
+    public void rejectedDrainIsScheduledAgainByTheNextState() {
+        ManualExecutor executor = new ManualExecutor();
+        Recorder recorder = new Recorder();
+        AsyncStateListener listener = new AsyncStateListener(recorder, executor,
+                AsyncStateListener.POLICY_ALL, 4);
+        executor.mRejecting = true;
+        listener.onStateChanged(A);
+        assertTrue(executor.mTasks.isEmpty());
+
+        executor.mRejecting = false;
+        listener.onStateChanged(B);
+        executor.runAll();
+        // the state buffered while rejected is not lost
+        assertEquals("[1, 2]", recorder.mCodes.toString());
+        assertEquals(0, listener.getDroppedCount());
+    }
+
+    @Test
+    public void invalidArgumentsAreRejected() {
+        Recorder recorder = new Recorder();
+        ManualExecutor executor = new ManualExecutor();
+        try {
+            new AsyncStateListener(recorder, executor, 7, 1);
+            fail("unknown policy accepted");
+        } catch (IllegalArgumentException expected) {
+            // policy
+        }
+        try {
+            new AsyncStateListener(recorder, executor, AsyncStateListener.POLICY_ALL, 0);
+            fail("empty buffer accepted");
+        } catch (IllegalArgumentException expected) {
+            // capacity
+        }
+    }
+}
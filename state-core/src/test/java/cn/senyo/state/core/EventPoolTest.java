@@ -0,0 +1,114 @@
+package cn.senyo.state.core;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Recycling into {@link EventPool} from the owner thread, through its local stack, and
+ * from other threads, through the ring.
+ */
+public class EventPoolTest {
+
+    private static void runOnOtherThread(Runnable task) throws InterruptedException {
+        Thread thread = new Thread(task);
+        thread.start();
+        thread.join();
+    }
+
+    @Test
+    public void ownerReusesItsEventsCleared() {
+        EventPool pool = new EventPool(4);
+        pool.bindOwner();
+        Event event = pool.obtain();
+        event.what = 1;
+        event.arg1 = 2;
+        event.payload = 3;
+        event.obj = "obj";
+        event.recycle();
+        assertTrue(event.mInPool);
+
+        Event again = pool.obtain();
+        assertSame(event, again);
+        assertFalse(again.mInPool);
+        assertEquals(0, again.what);
+        assertEquals(0, again.arg1);
+        assertEquals(0, again.payload);
+        assertNull(again.obj);
+        try {
+            again.recycle();
+            again.recycle();
+            fail("recycled twice");
+        } catch (IllegalStateException expected) {
+            // already in the pool
+        }
+    }
+
+    @Test
+    public void foreignThreadsRecycleThroughTheRing() throws InterruptedException {
+        final EventPool pool = new EventPool(4);
+        pool.bindOwner();
+        final Event event = pool.obtain();
+        runOnOtherThread(new Runnable() {
+            @Override
+            public void run() {
+                // a later bind from another thread is ignored
+                pool.bindOwner();
+                event.recycle();
+            }
+        });
+        assertTrue(event.mInPool);
+        // the local stack is empty, the owner falls back to the ring
+        assertSame(event, pool.obtain());
+
+        final Event owned = pool.obtain();
+        owned.recycle();
+        final AtomicReference<Event> obtained = new AtomicReference<>();
+        runOnOtherThread(new Runnable() {
+            @Override
+            public void run() {
+                obtained.set(pool.obtain());
+            }
+        });
+        // kept on the owner stack, out of reach of the other thread
+        assertNotSame(owned, obtained.get());
+        assertSame(pool, obtained.get().mPool);
+    }
+
+    @Test
+    public void fullRingLeavesEventsToTheGc() throws InterruptedException {
+        final EventPool pool = new EventPool(2);
+        final Event[] events = new Event[3];
+        runOnOtherThread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < events.length; i++) {
+                    events[i] = pool.obtain();
+                }
+                for (Event event : events) {
+                    event.recycle();
+                }
+            }
+        });
+        assertSame(pool, events[0].mPool);
+        assertSame(pool, events[1].mPool);
+        // dropped, a later recycle of it does not reach the pool
+        assertNull(events[2].mPool);
+
+        final Event[] obtained = new Event[3];
+        runOnOtherThread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < obtained.length; i++) {
+                    obtained[i] = pool.obtain();
+                }
+            }
+        });
+        assertSame(events[0], obtained[0]);
+        assertSame(events[1], obtained[1]);
+        assertNotSame(events[2], obtained[2]);
+        assertSame(pool, obtained[2].mPool);
+    }
+}
@@ -0,0 +1,158 @@
+package cn.senyo.state.core;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * The lock-free inbox of {@link EventLoop}: order per producer, and no wakeup lost
+ * between a sender and the loop thread parking.
+ */
+public class MpscEventQueueTest {
+    private static final int PRODUCERS = 4;
+    private static final int EVENTS_PER_PRODUCER = 50000;
+
+    @Test
+    public void singleThreadIsFifo() {
+        MpscEventQueue queue = new MpscEventQueue();
+        assertTrue(queue.isEmpty());
+        assertNull(queue.poll());
+        for (int i = 0; i < 3; i++) {
+            queue.offer(Event.obtain(i));
+        }
+        assertFalse(queue.isEmpty());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(i, queue.poll().what);
+        }
+        assertNull(queue.poll());
+        assertTrue(queue.isEmpty());
+        // usable again once the stub went round
+        queue.offer(Event.obtain(7));
+        assertEquals(7, queue.poll().what);
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void producersKeepTheirOwnOrder() throws InterruptedException {
+        final MpscEventQueue queue = new MpscEventQueue();
+        final CountDownLatch go = new CountDownLatch(1);
+        Thread[] producers = new Thread[PRODUCERS];
+        for (int p = 0; p < PRODUCERS; p++) {
+            final int producer = p;
+            producers[p] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        go.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < EVENTS_PER_PRODUCER; i++) {
+                        queue.offer(Event.obtain(producer, i, 0));
+                    }
+                }
+            });
+            producers[p].start();
+        }
+        go.countDown();
+
+        int[] next = new int[PRODUCERS];
+        int received = 0;
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (received < PRODUCERS * EVENTS_PER_PRODUCER) {
+            Event event = queue.poll();
+            if (event == null) {
+                // empty, or a producer between its swap and its link
+                assertTrue("events lost", System.nanoTime() < deadline);
+                Thread.yield();
+                continue;
+            }
+            assertEquals("order of producer " + event.what, next[event.what], event.arg1);
+            next[event.what]++;
+            received++;
+        }
+        for (Thread producer : producers) {
+            producer.join();
+        }
+        assertNull(queue.poll());
+        assertTrue(queue.isEmpty());
+        for (int p = 0; p < PRODUCERS; p++) {
+            assertEquals(EVENTS_PER_PRODUCER, next[p]);
+        }
+    }
+
+    /**
+     * The loop parks without a timeout when it has no timers, a lost wakeup would leave
+     * the handshake waiting forever.
+     */
+    @Test
+    public void parkedLoopIsWokenForEveryEvent() throws InterruptedException {
+        EventLoop loop = new EventLoop("wakeup");
+        final Semaphore handled = new Semaphore(0);
+        LoopDispatcher dispatcher = new LoopDispatcher(loop, true);
+        dispatcher.setTarget(new Dispatcher.Target() {
+            @Override
+            public void handleEvent(@NonNull Event event) {
+                handled.release();
+            }
+        });
+        loop.start();
+        try {
+            for (int i = 0; i < 20000; i++) {
+                dispatcher.sendEvent(Event.obtain(i));
+                assertTrue("wakeup lost at " + i, handled.tryAcquire(5, TimeUnit.SECONDS));
+            }
+        } finally {
+            dispatcher.release();
+        }
+    }
+
+    @Test
+    public void parkedLoopSeesConcurrentSenders() throws InterruptedException {
+        EventLoop loop = new EventLoop("senders");
+        final AtomicInteger handled = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(1);
+        final int total = PRODUCERS * EVENTS_PER_PRODUCER;
+        final LoopDispatcher dispatcher = new LoopDispatcher(loop, true);
+        dispatcher.setTarget(new Dispatcher.Target() {
+            @Override
+            public void handleEvent(@NonNull Event event) {
+                if (handled.incrementAndGet() == total) {
+                    done.countDown();
+                }
+            }
+        });
+        loop.start();
+        Thread[] senders = new Thread[PRODUCERS];
+        for (int p = 0; p < PRODUCERS; p++) {
+            senders[p] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < EVENTS_PER_PRODUCER; i++) {
+                        dispatcher.sendEvent(Event.obtain(i));
+                        if ((i & 1023) == 0) {
+                            // let the loop run dry and park now and then
+                            Thread.yield();
+                        }
+                    }
+                }
+            });
+            senders[p].start();
+        }
+        try {
+            assertTrue("stuck at " + handled.get(), done.await(30, TimeUnit.SECONDS));
+        } finally {
+            for (Thread sender : senders) {
+                sender.join();
+            }
+            dispatcher.release();
+        }
+    }
+}
@@ -0,0 +1,1105 @@
+package cn.senyo.state.core;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs the engine on a plain JVM thread, no Android runtime required.
+ */
+public class StateMachineTest {
+    private static final int CMD_NEXT = 100;
+    private static final int CMD_UP = 101;
+    private static final int CMD_JUMP = 102;
+    private static final int CMD_DEFER = 103;
+    private static final int CMD_IGNORED = 104;
+    private static final int CMD_SNAPSHOT = 105;
+
+    private static class TestMachine extends StateMachine {
+        final List<String> mLog = new ArrayList<>();
+        final CountDownLatch mQuitLatch = new CountDownLatch(1);
+        final CountDownLatch mResume = new CountDownLatch(1);
+        final List<Integer> mBatches = new ArrayList<>();
+        boolean mLogUnhandled;
+        long mDeferredTotal;
+        int mSessions;
+        byte[] mSnapshot;
+        final ParentState mParent = new ParentState();
+        final ChildState mChild1 = new ChildState(1);
+        final ChildState mChild2 = new ChildState(2);
+
+        TestMachine() {
+            super("TestMachine");
+            addStates();
+        }
+
+        TestMachine(@NonNull Dispatcher dispatcher) {
+            super("TestMachine", dispatcher);
+            addStates();
+        }
+
+        TestMachine(@NonNull ThreadFactory threadFactory) {
+            super("TestMachine", threadFactory);
+            addStates();
+        }
+
+        private void addStates() {
+            addState(mParent);
+            addState(mChild1, mParent);
+            addState(mChild2, mParent);
+            setInitialState(mChild1);
+        }
+
+        @Override
+        protected void unhandledEvent(@NonNull Event event) {
+            if (mLogUnhandled) {
+                mLog.add("unhandled " + event.what);
+            }
+        }
+
+        @Override
+        protected void onPreHandleBatch(int count) {
+            mBatches.add(count);
+        }
+
+        @Override
+        protected void onSaveState(@NonNull DataOutput out) throws IOException {
+            out.writeInt(mSessions);
+        }
+
+        @Override
+        protected void onRestoreState(@NonNull DataInput in) throws IOException {
+            mSessions = in.readInt();
+        }
+
+        @Override
+        protected void onQuitting() {
+            mDeferredTotal = getDeferredMessageTotal();
+            mQuitLatch.countDown();
+        }
+
+        class ParentState extends State {
+            ParentState() {
+                super(10);
+            }
+
+            @Override
+            public void enter() {
+                mLog.add("enter parent");
+            }
+
+            @Override
+            public void exit() {
+                mLog.add("exit parent");
+            }
+
+            @Override
+            public boolean processEvent(@NonNull Event event) {
+                if (event.what == CMD_UP) {
+                    mLog.add("parent handled " + event.arg1);
+                    if (event.arg1 < 0) {
+                        // hold the loop thread so the following events queue up
+                        try {
+                            mResume.await(5, TimeUnit.SECONDS);
+                        } catch (InterruptedException ignored) {
+                        }
+                    } else if (event.arg1 == 1) {
+                        sendMessageAtFrontOfQueue(CMD_UP, 100);
+                    }
+                    return HANDLED;
+                }
+                if (event.what == CMD_SNAPSHOT) {
+                    mSnapshot = snapshot();
+                    return HANDLED;
+                }
+                return NOT_HANDLED;
+            }
+        }
+
+        class ChildState extends State {
+            ChildState(int code) {
+                super(code);
+            }
+
+            @Override
+            public void enter() {
+                mLog.add("enter child" + getCode());
+            }
+
+            @Override
+            public void exit() {
+                mLog.add("exit child" + getCode());
+            }
+
+            @Override
+            public boolean processEvent(@NonNull Event event) {
+                if (event.what == CMD_NEXT) {
+                    transitionTo(this == mChild1 ? mChild2 : mChild1);
+                    return HANDLED;
+                }
+                if (event.what == CMD_DEFER) {
+                    if (this == mChild1) {
+                        deferMessage(event);
+                    } else {
+                        mLog.add("child2 handled " + event.arg1);
+                    }
+                    return HANDLED;
+                }
+                return NOT_HANDLED;
+            }
+        }
+    }
+
+    @Test
+    public void transitionsWithinHierarchy() throws InterruptedException {
+        TestMachine sm = new TestMachine();
+        sm.start();
+        sm.sendMessage(CMD_NEXT);
+        sm.sendMessage(CMD_UP, 7);
+        sm.quit();
+        assertTrue(sm.mQuitLatch.await(5, TimeUnit.SECONDS));
+
+        List<String> expected = new ArrayList<>();
+        expected.add("enter parent");
+        expected.add("enter child1");
+        expected.add("exit child1");
+        expected.add("enter child2");
+        expected.add("parent handled 7");
+        expected.add("exit child2");
+        expected.add("exit parent");
+        assertEquals(expected, sm.mLog);
+    }
+
+    /**
+     * Two branches under a root, each child added before its parent, so the parents get
+     * their index first and the root the last one.
+     */
+    private static class OutOfOrderMachine extends StateMachine {
+        final List<String> mLog = new ArrayList<>();
+
+        OutOfOrderMachine(@NonNull Dispatcher dispatcher) {
+            super("OutOfOrderMachine", dispatcher);
+            State root = new LoggingState("root", 30);
+            State a = new LoggingState("a", 31);
+            State a1 = new LoggingState("a1", 32);
+            State b = new LoggingState("b", 33);
+            State b1 = new LoggingState("b1", 34);
+            addState(a1, a);
+            addState(b1, b);
+            addState(a, root);
+            addState(b, root);
+            setInitialState(a1);
+            addTransition(32, CMD_NEXT, 34);
+            addTransition(34, CMD_NEXT, 32);
+        }
+
+        class LoggingState extends State {
+            private final String mLabel;
+
+            LoggingState(@NonNull String label, int code) {
+                super(code);
+                mLabel = label;
+            }
+
+            @Override
+            public void enter() {
+                mLog.add("enter " + mLabel);
+            }
+
+            @Override
+            public void exit() {
+                mLog.add("exit " + mLabel);
+            }
+        }
+    }
+
+    @Test
+    public void cachedPathsFollowParentsAddedAfterTheirChildren() {
+        VirtualClock clock = new VirtualClock();
+        OutOfOrderMachine sm = new OutOfOrderMachine(clock.newDispatcher());
+        sm.start();
+        // the second round replays the cached paths
+        for (int i = 0; i < 4; i++) {
+            sm.sendMessage(CMD_NEXT);
+        }
+        sm.quit();
+        clock.advanceTo(0);
+
+        List<String> expected = new ArrayList<>();
+        expected.add("enter root");
+        expected.add("enter a");
+        expected.add("enter a1");
+        for (int i = 0; i < 2; i++) {
+            expected.add("exit a1");
+            expected.add("exit a");
+            expected.add("enter b");
+            expected.add("enter b1");
+            expected.add("exit b1");
+            expected.add("exit b");
+            expected.add("enter a");
+            expected.add("enter a1");
+        }
+        expected.add("exit a1");
+        expected.add("exit a");
+        expected.add("exit root");
+        assertEquals(expected, sm.mLog);
+    }
+
+    @Test
+    public void declaredTransitionsTakePrecedenceOverProcessEvent() throws InterruptedException {
+        TestMachine sm = new TestMachine();
+        // child1 goes to child2 only for positive arg1, the parent always handles CMD_UP
+        sm.addTransition(1, CMD_JUMP, new Guard() {
+            @Override
+            public boolean accept(@NonNull Event event) {
+                return event.arg1 > 0;
+            }
+        }, 2);
+        sm.addTransition(1, CMD_UP, 2);
+        sm.start();
+        sm.sendMessage(CMD_JUMP, 0);
+        sm.sendMessage(CMD_JUMP, 1);
+        sm.sendMessage(CMD_UP, 3);
+        sm.quit();
+        assertTrue(sm.mQuitLatch.await(5, TimeUnit.SECONDS));
+
+        List<String> expected = new ArrayList<>();
+        expected.add("enter parent");
+        expected.add("enter child1");
+        expected.add("exit child1");
+        expected.add("enter child2");
+        expected.add("parent handled 3");
+        expected.add("exit child2");
+        expected.add("exit parent");
+        assertEquals(expected, sm.mLog);
+    }
+
+    @Test
+    public void batchModeKeepsEventOrder() throws InterruptedException {
+        TestMachine sm = new TestMachine();
+        sm.setBatchSize(8);
+        sm.start();
+        sm.sendMessage(CMD_UP, -1);
+        sm.sendMessage(CMD_UP, 1);
+        sm.sendMessage(CMD_NEXT);
+        sm.sendMessage(CMD_UP, 2);
+        sm.quit();
+        sm.mResume.countDown();
+        assertTrue(sm.mQuitLatch.await(5, TimeUnit.SECONDS));
+
+        List<String> expected = new ArrayList<>();
+        expected.add("enter parent");
+        expected.add("enter child1");
+        expected.add("parent handled -1");
+        expected.add("parent handled 1");
+        // sent to the front while the rest of the batch was pending
+        expected.add("parent handled 100");
+        expected.add("exit child1");
+        expected.add("enter child2");
+        expected.add("parent handled 2");
+        expected.add("exit child2");
+        expected.add("exit parent");
+        assertEquals(expected, sm.mLog);
+        // the front event and the requeued rest of the batch are drained together
+        assertEquals(Integer.valueOf(4), sm.mBatches.get(sm.mBatches.size() - 1));
+    }
+
+    @Test
+    public void eventsLeftInTheBatchByQuitAreRecycled() throws InterruptedException {
+        TestMachine sm = new TestMachine();
+        sm.setBatchSize(8);
+        sm.start();
+        sm.sendMessage(CMD_UP, -1);
+        sm.sendMessage(CMD_UP, 5);
+        sm.quit();
+        // drained into the same batch as the quit, after it
+        Event left1 = sm.obtainEvent(CMD_UP, 6, 0);
+        Event left2 = sm.obtainEvent(CMD_UP, 7, 0);
+        sm.sendMessage(left1);
+        sm.sendMessage(left2);
+        sm.mResume.countDown();
+        assertTrue(sm.mQuitLatch.await(5, TimeUnit.SECONDS));
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!(left1.mInPool && left2.mInPool) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertTrue(left1.mInPool);
+        assertTrue(left2.mInPool);
+        assertFalse(sm.mLog.contains("parent handled 6"));
+        assertTrue(sm.mLog.contains("parent handled 5"));
+    }
+
+    @Test
+    public void inlineTransitionsHandleStateEventBeforeQueuedEvents() throws InterruptedException {
+        TestMachine sm = new TestMachine();
+        sm.mLogUnhandled = true;
+        sm.setInlineTransitions(true);
+        sm.start();
+        sm.sendMessage(CMD_NEXT);
+        sm.sendMessage(CMD_UP, 7);
+        sm.quit();
+        assertTrue(sm.mQuitLatch.await(5, TimeUnit.SECONDS));
+
+        List<String> expected = new ArrayList<>();
+        expected.add("enter parent");
+        expected.add("enter child1");
+        expected.add("exit child1");
+        expected.add("enter child2");
+        // the state event of child2 reaches it before CMD_UP which was already queued
+        expected.add("unhandled 2");
+        expected.add("parent handled 7");
+        expected.add("exit child2");
+        expected.add("exit parent");
+        assertEquals(expected, sm.mLog);
+    }
+
+    @Test
+    public void deferredEventsAreRequeuedInOrderAfterTransition() throws InterruptedException {
+        TestMachine sm = new TestMachine();
+        sm.start();
+        sm.sendMessage(CMD_DEFER, 1);
+        sm.sendMessage(CMD_DEFER, 2);
+        sm.sendMessage(CMD_NEXT);
+        sm.sendMessage(CMD_UP, 3);
+        sm.quit();
+        assertTrue(sm.mQuitLatch.await(5, TimeUnit.SECONDS));
+
+        List<String> expected = new ArrayList<>();
+        expected.add("enter parent");
+        expected.add("enter child1");
+        expected.add("exit child1");
+        expected.add("enter child2");
+        // ahead of CMD_UP which was queued before the transition
+        expected.add("child2 handled 1");
+        expected.add("child2 handled 2");
+        expected.add("parent handled 3");
+        expected.add("exit child2");
+        expected.add("exit parent");
+        assertEquals(expected, sm.mLog);
+        assertEquals(2, sm.mDeferredTotal);
+    }
+
+    @Test
+    public void stateTimeoutIsArmedOnEnterAndCancelledOnExit() {
+        VirtualClock clock = new VirtualClock();
+        TestMachine sm = new TestMachine(clock.newDispatcher());
+        sm.addTimeout(2, 50, 1);
+        sm.start();
+        sm.sendMessage(CMD_NEXT);
+        clock.advanceTo(30);
+        assertEquals(2, sm.getCurrentState().getCode());
+        // the timeout of the first visit of child2, due at 50, is cancelled by leaving it
+        sm.sendMessage(CMD_NEXT);
+        sm.sendMessage(CMD_NEXT);
+        clock.advanceTo(79);
+        assertEquals(2, sm.getCurrentState().getCode());
+        clock.advanceTo(80);
+        assertEquals(1, sm.getCurrentState().getCode());
+        sm.quit();
+        clock.advanceTo(80);
+        assertEquals(0, sm.mQuitLatch.getCount());
+
+        List<String> expected = new ArrayList<>();
+        expected.add("enter parent");
+        expected.add("enter child1");
+        expected.add("exit child1");
+        expected.add("enter child2");
+        expected.add("exit child2");
+        expected.add("enter child1");
+        expected.add("exit child1");
+        expected.add("enter child2");
+        // timed out
+        expected.add("exit child2");
+        expected.add("enter child1");
+        expected.add("exit child1");
+        expected.add("exit parent");
+        assertEquals(expected, sm.mLog);
+    }
+
+    /**
+     * Sends copies and recycles the originals like the Handler adapter, cancelEvent cannot
+     * find anything then.
+     */
+    private static class CopyingDispatcher implements Dispatcher {
+        final Dispatcher mQueue;
+        // internal events of the engine
+        final List<Integer> mDelivered = new ArrayList<>();
+
+        CopyingDispatcher(@NonNull Dispatcher queue) {
+            mQueue = queue;
+        }
+
+        private static Event copy(@NonNull Event event) {
+            Event copy = Event.obtain(event.what, event.arg1, event.arg2, event.obj);
+            event.recycle();
+            return copy;
+        }
+
+        @Override
+        public void setTarget(@NonNull final Target target) {
+            mQueue.setTarget(new Target() {
+                @Override
+                public void handleEvent(@NonNull Event event) {
+                    if (event.what < 0) {
+                        mDelivered.add(event.what);
+                    }
+                    target.handleEvent(event);
+                }
+            });
+        }
+
+        @Override
+        public boolean sendEvent(@NonNull Event event) {
+            return mQueue.sendEvent(copy(event));
+        }
+
+        @Override
+        public boolean sendEventDelayed(@NonNull Event event, long delayMillis) {
+            return mQueue.sendEventDelayed(copy(event), delayMillis);
+        }
+
+        @Override
+        public boolean sendEventAtFrontOfQueue(@NonNull Event event) {
+            return mQueue.sendEventAtFrontOfQueue(copy(event));
+        }
+
+        @Override
+        public void sendEventsAtFrontOfQueue(@NonNull Event[] events, int count) {
+            for (int i = count - 1; i >= 0; i--) {
+                sendEventAtFrontOfQueue(events[i]);
+            }
+        }
+
+        @Override
+        public void removeEvents(int what) {
+            mQueue.removeEvents(what);
+        }
+
+        @Override
+        public void removeEvents(int what, @NonNull Object obj) {
+            mQueue.removeEvents(what, obj);
+        }
+
+        @Override
+        public void cancelEvent(@NonNull Event event) {
+            // recycled on send
+        }
+
+        @Override
+        public void setBatchSize(int maxEvents) {
+            mQueue.setBatchSize(maxEvents);
+        }
+
+        @Override
+        public void release() {
+            mQueue.release();
+        }
+    }
+
+    @Test
+    public void cancelledTimeoutIsRemovedFromDispatcherWhichCopiesEvents() {
+        VirtualClock clock = new VirtualClock();
+        CopyingDispatcher dispatcher = new CopyingDispatcher(clock.newDispatcher());
+        TestMachine sm = new TestMachine(dispatcher);
+        sm.addTimeout(2, 50, 1);
+        sm.start();
+        sm.sendMessage(CMD_NEXT);
+        sm.sendMessage(CMD_NEXT);
+        sm.sendMessage(CMD_NEXT);
+        clock.advanceTo(30);
+        assertEquals(2, sm.getCurrentState().getCode());
+        clock.advanceTo(50);
+        assertEquals(1, sm.getCurrentState().getCode());
+        sm.quit();
+        clock.advanceTo(50);
+        assertEquals(0, sm.mQuitLatch.getCount());
+
+        // init, the second timeout and quit, the copy of the first timeout is gone
+        List<Integer> expected = new ArrayList<>();
+        expected.add(-2);
+        expected.add(-3);
+        expected.add(-1);
+        assertEquals(expected, dispatcher.mDelivered);
+    }
+
+    @Test
+    public void metricsCountEntersAndHandledEventsPerState() throws InterruptedException {
+        TestMachine sm = new TestMachine();
+        sm.setMetricsEnabled(true);
+        sm.start();
+        sm.sendMessage(CMD_NEXT);
+        sm.sendMessage(CMD_UP, 7);
+        sm.sendMessage(CMD_JUMP);
+        sm.quit();
+        assertTrue(sm.mQuitLatch.await(5, TimeUnit.SECONDS));
+
+        StateMetrics.Snapshot snapshot = sm.getMetrics().snapshot();
+        StateMetrics.StateSnapshot child1 = snapshot.getState(1);
+        StateMetrics.StateSnapshot child2 = snapshot.getState(2);
+        StateMetrics.StateSnapshot parent = snapshot.getState(10);
+        assertEquals(1, child1.getEnterCount());
+        assertEquals(1, child1.getHandledCount(CMD_NEXT));
+        assertEquals(1, child1.getTimeInState().getCount());
+        assertEquals(1, child2.getEnterCount());
+        assertEquals(1, child2.getUnhandledCount(CMD_JUMP));
+        assertEquals(1, parent.getHandledCount(CMD_UP));
+        assertEquals(0, parent.getHandledCount(CMD_NEXT));
+        assertEquals(3, snapshot.getDispatchLatency().getCount());
+    }
+
+    @Test
+    public void traceRecordsEventsWithTheirExitsAndEnters() throws InterruptedException {
+        TestMachine sm = new TestMachine();
+        sm.start();
+        sm.sendMessage(CMD_NEXT);
+        sm.quit();
+        assertTrue(sm.mQuitLatch.await(5, TimeUnit.SECONDS));
+
+        TransitionTrace.Snapshot trace = sm.getTrace().snapshot();
+        int next = -1;
+        for (int i = 0; i < trace.size(); i++) {
+            if (trace.getKind(i) == TransitionTrace.KIND_EVENT && trace.getWhat(i) == CMD_NEXT) {
+                next = i;
+            }
+        }
+        assertTrue(next >= 0);
+        assertEquals(sm.mChild1.mIndex, trace.getHandlerState(next));
+        assertEquals(sm.mChild2.mIndex, trace.getDestState(next));
+        assertEquals("ChildState", trace.getStateName(trace.getDestState(next)));
+        assertEquals(TransitionTrace.KIND_EXIT, trace.getKind(next + 1));
+        assertEquals(sm.mChild1.mIndex, trace.getState(next + 1));
+        assertEquals(TransitionTrace.KIND_ENTER, trace.getKind(next + 2));
+        assertEquals(sm.mChild2.mIndex, trace.getState(next + 2));
+        assertEquals(trace.getEventSeq(next), trace.getEventSeq(next + 2));
+
+        TransitionTrace.Snapshot decoded = TransitionTrace.Snapshot.decode(trace.getRecords(),
+                trace.getStateNames());
+        assertEquals(trace.toString(), decoded.toString());
+    }
+
+    @Test
+    public void journalSurvivesRotationAndDecodes() throws InterruptedException, IOException {
+        File dir = new File(System.getProperty("java.io.tmpdir"),
+                "journal-" + System.nanoTime());
+        TransitionJournal journal = TransitionJournal.open(dir, "test", 1024, 4);
+        TestMachine sm = new TestMachine();
+        sm.setJournal(journal);
+        sm.start();
+        for (int i = 0; i < 50; i++) {
+            sm.sendMessage(CMD_IGNORED, i);
+        }
+        sm.sendMessage(CMD_NEXT);
+        sm.quit();
+        assertTrue(sm.mQuitLatch.await(5, TimeUnit.SECONDS));
+        journal.close();
+
+        assertEquals(4, TransitionJournalReader.listSegments(dir, "test",
+                TransitionJournal.SUFFIX).size());
+        List<TransitionJournalReader.Record> records = TransitionJournalReader.read(dir, "test");
+        int next = -1;
+        for (int i = 0; i < records.size(); i++) {
+            TransitionJournalReader.Record record = records.get(i);
+            assertEquals(sm.getName(), record.machine);
+            if (record.kind == TransitionJournal.KIND_EVENT && record.what == CMD_NEXT) {
+                next = i;
+            }
+        }
+        assertTrue(next >= 0);
+        assertEquals("ChildState", records.get(next).dest);
+        assertEquals(TransitionJournal.KIND_EXIT, records.get(next + 1).kind);
+        assertEquals(TransitionJournal.KIND_ENTER, records.get(next + 2).kind);
+        assertEquals(records.get(next).eventSeq, records.get(next + 2).eventSeq);
+        for (File file : TransitionJournalReader.listSegments(dir, "test",
+                TransitionJournal.SUFFIX)) {
+            assertTrue(file.delete());
+        }
+        assertTrue(dir.delete());
+    }
+
+    @Test
+    public void restoredMachineResumesWithoutEnteringItsStates() throws InterruptedException {
+        TestMachine saved = new TestMachine();
+        saved.mSessions = 42;
+        saved.start();
+        saved.sendMessage(CMD_DEFER, 1);
+        saved.sendMessage(CMD_SNAPSHOT);
+        saved.quit();
+        assertTrue(saved.mQuitLatch.await(5, TimeUnit.SECONDS));
+        assertNotNull(saved.mSnapshot);
+
+        TestMachine sm = new TestMachine();
+        sm.restore(saved.mSnapshot);
+        sm.sendMessage(CMD_NEXT);
+        sm.quit();
+        assertTrue(sm.mQuitLatch.await(5, TimeUnit.SECONDS));
+
+        assertEquals(42, sm.mSessions);
+        List<String> expected = new ArrayList<>();
+        expected.add("exit child1");
+        expected.add("enter child2");
+        // deferred before the snapshot, requeued by the first transition after restore
+        expected.add("child2 handled 1");
+        expected.add("exit child2");
+        expected.add("exit parent");
+        assertEquals(expected, sm.mLog);
+    }
+
+    @Test
+    public void loggedEventsAfterTheSnapshotAreReplayedOnRestore()
+            throws InterruptedException, IOException {
+        File dir = new File(System.getProperty("java.io.tmpdir"), "wal-" + System.nanoTime());
+        EventLog log = EventLog.open(dir, "test", 0, EventLog.DEFAULT_COMMIT_BYTES,
+                EventLog.DEFAULT_SEGMENT_BYTES);
+        TestMachine crashed = new TestMachine();
+        crashed.setEventLog(log);
+        crashed.start();
+        crashed.sendMessage(CMD_SNAPSHOT);
+        crashed.sendMessage(CMD_UP, 5);
+        crashed.sendMessage(CMD_UP, 6);
+        // commits and dispatches what is pending, as if the process died right after
+        log.close();
+        crashed.quit();
+        assertTrue(crashed.mQuitLatch.await(5, TimeUnit.SECONDS));
+
+        log = EventLog.open(dir, "test", 0, EventLog.DEFAULT_COMMIT_BYTES,
+                EventLog.DEFAULT_SEGMENT_BYTES);
+        TestMachine sm = new TestMachine();
+        sm.setEventLog(log);
+        sm.restore(crashed.mSnapshot);
+        sm.sendMessage(CMD_UP, 7);
+        log.close();
+        sm.quit();
+        assertTrue(sm.mQuitLatch.await(5, TimeUnit.SECONDS));
+
+        List<String> expected = new ArrayList<>();
+        expected.add("parent handled 5");
+        expected.add("parent handled 6");
+        expected.add("parent handled 7");
+        expected.add("exit child1");
+        expected.add("exit parent");
+        assertEquals(expected, sm.mLog);
+        File[] files = dir.listFiles();
+        assertNotNull(files);
+        for (File file : files) {
+            assertTrue(file.delete());
+        }
+        assertTrue(dir.delete());
+    }
+
+    @Test
+    public void replayOnVirtualClockMatchesTheRecordedJournal()
+            throws InterruptedException, IOException {
+        File dir = new File(System.getProperty("java.io.tmpdir"), "replay-" + System.nanoTime());
+        TransitionJournal journal = TransitionJournal.open(dir, "journal");
+        EventLog log = EventLog.open(dir, "events", 0, EventLog.DEFAULT_COMMIT_BYTES,
+                EventLog.DEFAULT_SEGMENT_BYTES);
+        TestMachine recorded = new TestMachine();
+        recorded.addTimeout(2, 50, 1);
+        recorded.setJournal(journal);
+        recorded.setEventLog(log);
+        recorded.start();
+        recorded.sendMessage(CMD_NEXT);
+        // child2 times out back to child1 in between
+        Thread.sleep(200);
+        recorded.sendMessage(CMD_UP, 3);
+        log.close();
+        recorded.quit();
+        assertTrue(recorded.mQuitLatch.await(5, TimeUnit.SECONDS));
+        journal.close();
+
+        ReplayRunner runner = new ReplayRunner();
+        TestMachine sm = new TestMachine(runner.newDispatcher("TestMachine"));
+        sm.addTimeout(2, 50, 1);
+        runner.add(sm);
+        sm.start();
+        runner.expect(TransitionJournalReader.read(dir, "journal"));
+        ReplayRunner.Result result = runner.run(EventLog.read(dir, "events"));
+        assertTrue(result.toString(), result.isMatching());
+        assertEquals(2, result.getInputEvents());
+        assertTrue(result.getVirtualMillis() >= 200);
+        List<String> expected = new ArrayList<>(recorded.mLog);
+        // quit is not an input
+        expected.remove(expected.size() - 1);
+        expected.remove(expected.size() - 1);
+        assertEquals(expected, sm.mLog);
+
+        // the same input without the timeout stays in child2
+        runner = new ReplayRunner();
+        sm = new TestMachine(runner.newDispatcher("TestMachine"));
+        runner.add(sm);
+        sm.start();
+        runner.expect(TransitionJournalReader.read(dir, "journal"));
+        result = runner.run(EventLog.read(dir, "events"));
+        assertNotNull(result.getDivergence());
+
+        File[] files = dir.listFiles();
+        assertNotNull(files);
+        for (File file : files) {
+            assertTrue(file.delete());
+        }
+        assertTrue(dir.delete());
+    }
+
+    @Test
+    public void machineRunsOnThreadOfFactory() throws InterruptedException {
+        final ThreadFactory base = VirtualThreads.isAvailable()
+                ? VirtualThreads.factory() : Executors.defaultThreadFactory();
+        final List<Thread> created = new ArrayList<>();
+        TestMachine sm = new TestMachine(new ThreadFactory() {
+            @Override
+            public Thread newThread(@NonNull Runnable r) {
+                Thread thread = base.newThread(r);
+                created.add(thread);
+                return thread;
+            }
+        });
+        sm.start();
+        sm.sendMessage(CMD_NEXT);
+        sm.quit();
+        assertTrue(sm.mQuitLatch.await(5, TimeUnit.SECONDS));
+
+        assertEquals(1, created.size());
+        assertEquals("TestMachine", created.get(0).getName());
+        created.get(0).join(5000);
+        assertFalse(created.get(0).isAlive());
+        assertEquals("enter child2", sm.mLog.get(3));
+    }
+
+    @Test
+    public void registryRoutesByKeyAndForgetsQuitMachines() throws InterruptedException {
+        final List<TestMachine> created = new ArrayList<>();
+        StateMachineRegistry<String, TestMachine> registry = new StateMachineRegistry<>(
+                new StateMachineRegistry.Factory<String, TestMachine>() {
+                    @NonNull
+                    @Override
+                    public TestMachine create(@NonNull String key) {
+                        TestMachine sm = new TestMachine();
+                        sm.start();
+                        created.add(sm);
+                        return sm;
+                    }
+                }, 100);
+        registry.sendMessage("a", CMD_NEXT);
+        registry.sendMessage("b", CMD_NEXT);
+        registry.sendMessage("a", CMD_UP, 1);
+        assertEquals(2, registry.size());
+        assertEquals(2, created.size());
+        assertSame(created.get(0), registry.get("a"));
+
+        assertTrue(registry.quit("a"));
+        assertTrue(created.get(0).mQuitLatch.await(5, TimeUnit.SECONDS));
+        assertTrue(created.get(0).mLog.contains("parent handled 1"));
+        waitForSize(registry, 1);
+        assertNull(registry.get("a"));
+        assertNotSame(created.get(0), registry.getOrCreate("a"));
+
+        // both idle from here on
+        assertTrue(created.get(1).mQuitLatch.await(5, TimeUnit.SECONDS));
+        assertTrue(created.get(2).mQuitLatch.await(5, TimeUnit.SECONDS));
+        waitForSize(registry, 0);
+        registry.close();
+    }
+
+    private static void waitForSize(StateMachineRegistry<?, ?> registry, int size)
+            throws InterruptedException {
+        for (int i = 0; i < 500 && registry.size() != size; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(size, registry.size());
+    }
+
+    @Test
+    public void instancesShareOneDefinition() {
+        SharedState<List<String>> parent = new SharedState<List<String>>(10) {
+            @Override
+            public void enter(@NonNull MachineInstance<List<String>> machine) {
+                machine.getContext().add("enter parent");
+            }
+
+            @Override
+            public boolean processEvent(@NonNull MachineInstance<List<String>> machine,
+                                        @NonNull Event event) {
+                machine.getContext().add("parent handled " + event.arg1);
+                return HANDLED;
+            }
+        };
+        SharedState<List<String>> child1 = new SharedState<List<String>>(1) {
+            @Override
+            public void exit(@NonNull MachineInstance<List<String>> machine) {
+                machine.getContext().add("exit child1");
+            }
+
+            @Override
+            public boolean processEvent(@NonNull MachineInstance<List<String>> machine,
+                                        @NonNull Event event) {
+                if (event.what == CMD_DEFER) {
+                    machine.deferMessage(event);
+                    return HANDLED;
+                }
+                return NOT_HANDLED;
+            }
+        };
+        SharedState<List<String>> child2 = new SharedState<List<String>>(2) {
+            @Override
+            public void enter(@NonNull MachineInstance<List<String>> machine) {
+                machine.getContext().add("enter child2");
+            }
+        };
+        StateMachineDefinition<List<String>> definition =
+                new StateMachineDefinition.Builder<List<String>>()
+                        .addState(parent)
+                        .addState(child1, parent)
+                        .addState(child2, parent)
+                        .setInitialState(child1)
+                        .addTransition(1, CMD_NEXT, 2)
+                        .addTimeout(2, 100, 1)
+                        .build();
+
+        VirtualClock clock = new VirtualClock();
+        MachineInstance<List<String>> a = new MachineInstance<List<String>>(definition,
+                clock.newDispatcher(), new ArrayList<String>());
+        MachineInstance<List<String>> b = new MachineInstance<List<String>>(definition,
+                clock.newDispatcher(), new ArrayList<String>());
+        a.start();
+        b.start();
+        a.sendMessage(CMD_DEFER, 5, 0);
+        a.sendMessage(CMD_NEXT);
+        b.sendMessage(CMD_UP, 7, 0);
+        clock.advanceTo(50);
+        assertEquals(2, a.getCurrentStateCode());
+        assertTrue(a.isInState(10));
+        assertEquals(1, b.getCurrentStateCode());
+
+        List<String> expected = new ArrayList<>();
+        expected.add("enter parent");
+        expected.add("exit child1");
+        expected.add("enter child2");
+        // deferred in child1, handled by the parent after the change
+        expected.add("parent handled 5");
+        assertEquals(expected, a.getContext());
+
+        clock.advanceTo(150);
+        assertEquals(1, a.getCurrentStateCode());
+        a.quit();
+        b.quit();
+        clock.advanceTo(150);
+        assertEquals(-1, a.getCurrentStateCode());
+        assertEquals("[enter parent, parent handled 7, exit child1]", b.getContext().toString());
+    }
+
+    private static SharedState<List<String>> loggingState(final int code) {
+        return new SharedState<List<String>>(code) {
+            @Override
+            public void enter(@NonNull MachineInstance<List<String>> machine) {
+                machine.getContext().add("enter " + code);
+            }
+
+            @Override
+            public void exit(@NonNull MachineInstance<List<String>> machine) {
+                machine.getContext().add("exit " + code);
+            }
+        };
+    }
+
+    @Test
+    public void instanceTransitionToItselfOrAnAncestorExitsAndEntersIt() {
+        SharedState<List<String>> parent = loggingState(10);
+        SharedState<List<String>> child1 = loggingState(1);
+        StateMachineDefinition<List<String>> definition =
+                new StateMachineDefinition.Builder<List<String>>()
+                        .addState(parent)
+                        .addState(child1, parent)
+                        .addState(loggingState(2), parent)
+                        .setInitialState(child1)
+                        .addTransition(1, CMD_NEXT, 1)
+                        .addTransition(2, CMD_UP, 10)
+                        .addTimeout(1, 100, 2)
+                        .build();
+        VirtualClock clock = new VirtualClock();
+        MachineInstance<List<String>> sm = new MachineInstance<List<String>>(definition,
+                clock.newDispatcher(), new ArrayList<String>());
+        sm.start();
+        clock.advanceTo(60);
+        sm.sendMessage(CMD_NEXT);
+        clock.advanceTo(60);
+
+        // the timeout is armed again by entering child1 again
+        clock.advanceTo(159);
+        assertEquals(1, sm.getCurrentStateCode());
+        clock.advanceTo(160);
+        assertEquals(2, sm.getCurrentStateCode());
+
+        sm.sendMessage(CMD_UP);
+        clock.advanceTo(160);
+        assertEquals(10, sm.getCurrentStateCode());
+
+        List<String> expected = new ArrayList<>();
+        expected.add("enter 10");
+        expected.add("enter 1");
+        // to itself
+        expected.add("exit 1");
+        expected.add("enter 1");
+        // timed out
+        expected.add("exit 1");
+        expected.add("enter 2");
+        // to the parent
+        expected.add("exit 2");
+        expected.add("exit 10");
+        expected.add("enter 10");
+        assertEquals(expected, sm.getContext());
+    }
+
+    @Test
+    public void fleetAppliesBatchesOverTheTable() {
+        MachineFleet fleet = new MachineFleet.Builder()
+                .addState(1)
+                .addState(2)
+                .setInitialState(1)
+                .addTransition(1, CMD_NEXT, 2)
+                .addTransition(2, CMD_UP, 1)
+                .build(4);
+        final List<String> changes = new ArrayList<>();
+        fleet.setListener(new MachineFleet.Listener() {
+            @Override
+            public void onTransitions(@NonNull int[] machines, @NonNull int[] fromStates,
+                                      @NonNull int[] toStates, int count) {
+                for (int i = 0; i < count; i++) {
+                    changes.add(machines[i] + ":" + fromStates[i] + "->" + toStates[i]);
+                }
+            }
+        });
+        int[] machines = {0, 1, 0, 3, 0};
+        int[] whats = {CMD_NEXT, CMD_UP, CMD_UP, CMD_NEXT, CMD_IGNORED};
+        assertEquals(3, fleet.apply(machines, whats, machines.length));
+
+        assertEquals("[0:0->1, 0:1->0, 3:0->1]", changes.toString());
+        assertEquals(1, fleet.getCurrentStateCode(0));
+        assertEquals(1, fleet.getCurrentStateCode(1));
+        assertEquals(2, fleet.getCurrentStateCode(3));
+        assertEquals(3, fleet.getEventCount(0));
+        assertEquals(2, fleet.getUnhandledCount());
+        assertEquals(4 + 1, fleet.getEnterCount(0));
+        assertEquals(2, fleet.getEnterCount(1));
+    }
+
+    @Test
+    public void mappedFleetResumesFromItsFile() throws IOException {
+        File file = new File(System.getProperty("java.io.tmpdir"),
+                "fleet-" + System.nanoTime() + ".fleet");
+        file.deleteOnExit();
+        MappedFleetStore store = MappedFleetStore.open(file, 3);
+        MachineFleet fleet = new MachineFleet.Builder()
+                .addState(1)
+                .addState(2)
+                .setInitialState(1)
+                .addTransition(1, CMD_NEXT, 2)
+                .addTimeout(2, 1000, 1)
+                .build(store);
+        fleet.apply(new int[]{0, 2, 2}, new int[]{CMD_NEXT, CMD_IGNORED, CMD_NEXT}, 3);
+        long deadline = fleet.getDeadline(2);
+        assertTrue(deadline > 0);
+        assertEquals(0, fleet.getDeadline(1));
+        store.close();
+
+        // another process, with a state added before the stored ones
+        store = MappedFleetStore.open(file, 3);
+        fleet = new MachineFleet.Builder()
+                .addState(3)
+                .addState(1)
+                .addState(2)
+                .setInitialState(1)
+                .addTimeout(2, 1000, 1)
+                .build(store);
+        assertEquals(2, fleet.getCurrentStateCode(0));
+        assertEquals(1, fleet.getCurrentStateCode(1));
+        assertEquals(2, fleet.getCurrentStateCode(2));
+        assertEquals(2, fleet.getEventCount(2));
+        assertEquals(2, fleet.getEnterCount(fleet.indexOf(2)));
+        assertEquals(deadline, fleet.getDeadline(2));
+
+        assertEquals(0, fleet.expire(deadline - 1));
+        assertEquals(2, fleet.expire(deadline));
+        assertEquals(1, fleet.getCurrentStateCode(0));
+        assertEquals(1, fleet.getCurrentStateCode(2));
+        assertEquals(0, fleet.getDeadline(2));
+        store.close();
+
+        try {
+            MappedFleetStore.open(file, 4);
+            fail("opened with another size");
+        } catch (IllegalArgumentException expected) {
+            // holds 3 machines
+        }
+        assertTrue(file.delete());
+    }
+
+    @Test
+    public void declaredEventsSkipStatesWhichDoNotHandleThem() throws InterruptedException {
+        final List<String> log = new ArrayList<>();
+        final CountDownLatch quit = new CountDownLatch(1);
+        class LoggingState extends State {
+            LoggingState(int code, int... handled) {
+                super(code);
+                setHandledEvents(handled);
+            }
+
+            @Override
+            public boolean processEvent(@NonNull Event event) {
+                log.add(getCode() + " got " + event.what);
+                return getCode() == 10 ? HANDLED : NOT_HANDLED;
+            }
+        }
+        StateMachine sm = new StateMachine("Declared") {
+            @Override
+            protected void unhandledEvent(@NonNull Event event) {
+                log.add("unhandled " + event.what);
+            }
+
+            @Override
+            protected void onQuitting() {
+                quit.countDown();
+            }
+        };
+        State parent = new LoggingState(10, CMD_UP);
+        State child = new LoggingState(1, CMD_NEXT);
+        sm.addState(parent);
+        sm.addState(child, parent);
+        sm.addState(new LoggingState(2, CMD_UP), parent);
+        sm.setInitialState(child);
+        // declared transitions apply whatever the state declares
+        sm.addTransition(1, CMD_JUMP, 2);
+        sm.start();
+        sm.sendMessage(CMD_UP);
+        sm.sendMessage(CMD_IGNORED);
+        sm.sendMessage(5000);
+        sm.sendMessage(CMD_NEXT);
+        sm.sendMessage(CMD_JUMP);
+        sm.sendMessage(CMD_UP);
+        sm.quit();
+        assertTrue(quit.await(5, TimeUnit.SECONDS));
+
+        List<String> expected = new ArrayList<>();
+        expected.add("10 got " + CMD_UP);
+        expected.add("unhandled " + CMD_IGNORED);
+        expected.add("unhandled 5000");
+        expected.add("1 got " + CMD_NEXT);
+        expected.add("unhandled " + CMD_NEXT);
+        expected.add("2 got " + CMD_UP);
+        expected.add("10 got " + CMD_UP);
+        assertEquals(expected, log);
+    }
+}
@@ -0,0 +1,147 @@
+package cn.senyo.state.core;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Expiry order and next deadline of the {@link TimingWheel}.
+ */
+public class TimingWheelTest {
+
+    private static final class CollectingSink implements TimingWheel.Sink {
+        final List<Long> mExpired = new ArrayList<>();
+
+        @Override
+        public void onExpired(@NonNull Event event) {
+            mExpired.add(event.when);
+        }
+    }
+
+    // never started, the wheel only counts the timers of its targets
+    private static final EventLoop LOOP = new EventLoop("TimingWheelTest");
+    private static final LoopDispatcher TARGET = new LoopDispatcher(LOOP);
+
+    private static Event timer(long when) {
+        return timer(when, TARGET);
+    }
+
+    private static Event timer(long when, @NonNull LoopDispatcher target) {
+        Event event = new Event();
+        event.when = when;
+        event.target = target;
+        return event;
+    }
+
+    @Test
+    public void eventsExpireInDueOrderAcrossRotations() {
+        TimingWheel wheel = new TimingWheel(0);
+        // same slot, three rotations apart
+        wheel.add(timer(2058));
+        wheel.add(timer(10));
+        wheel.add(timer(1034));
+        wheel.add(timer(500));
+        assertEquals(10, wheel.nextDeadline());
+
+        CollectingSink sink = new CollectingSink();
+        wheel.advance(600, sink);
+        wheel.advance(1034, sink);
+        List<Long> expected = new ArrayList<>();
+        expected.add(10L);
+        expected.add(500L);
+        expected.add(1034L);
+        assertEquals(expected, sink.mExpired);
+        long deadline = wheel.nextDeadline();
+        assertTrue(deadline > 1034 && deadline <= 2058);
+
+        wheel.advance(2058, sink);
+        assertEquals(2058L, (long) sink.mExpired.get(3));
+        assertTrue(wheel.isEmpty());
+        assertEquals(Long.MAX_VALUE, wheel.nextDeadline());
+    }
+
+    @Test
+    public void cancellingTheEarliestOfManyTimersDoesNotScanThem() {
+        TimingWheel wheel = new TimingWheel(0);
+        int count = 100000;
+        Event[] timers = new Event[count];
+        for (int i = 0; i < count; i++) {
+            timers[i] = timer(10 + i);
+            wheel.add(timers[i]);
+        }
+        assertEquals(10, wheel.nextDeadline());
+        assertEquals(0, wheel.mScannedSlots);
+
+        // the bound stays, the loop would wake at 10 for nothing
+        wheel.remove(timers[0]);
+        assertEquals(10, wheel.nextDeadline());
+        CollectingSink sink = new CollectingSink();
+        wheel.advance(10, sink);
+        assertTrue(sink.mExpired.isEmpty());
+        assertEquals(11, wheel.nextDeadline());
+        assertEquals(1, wheel.mScannedSlots);
+
+        // every slot is taken, the scan stops at the first one ahead
+        for (int i = 1; i < 100; i++) {
+            wheel.remove(timers[i]);
+        }
+        wheel.advance(11, sink);
+        long deadline = wheel.nextDeadline();
+        assertTrue(deadline > 11 && deadline <= 110);
+        assertEquals(2, wheel.mScannedSlots);
+        assertTrue(sink.mExpired.isEmpty());
+    }
+
+    @Test
+    public void farTimerIsFoundWithinOneRotation() {
+        TimingWheel wheel = new TimingWheel(0);
+        Event near = timer(5);
+        wheel.add(near);
+        wheel.add(timer(100000));
+        wheel.remove(near);
+        CollectingSink sink = new CollectingSink();
+        wheel.advance(5, sink);
+        // a lower bound, at most one early wakeup per rotation until it is due
+        long deadline = wheel.nextDeadline();
+        assertTrue(deadline > 5 && deadline <= 100000);
+        assertTrue(wheel.mScannedSlots <= 1024);
+        wheel.advance(100000, sink);
+        assertEquals(1, sink.mExpired.size());
+        assertEquals(100000L, (long) sink.mExpired.get(0));
+    }
+
+    @Test
+    public void removingEventsOfTargetOnlyScansUntilItsLastTimer() {
+        TimingWheel wheel = new TimingWheel(0);
+        LoopDispatcher other = new LoopDispatcher(LOOP);
+        for (int i = 0; i < 1000; i++) {
+            wheel.add(timer(20 + i, other));
+        }
+        Event timeout = timer(10);
+        timeout.what = 1;
+        wheel.add(timeout);
+        wheel.add(timer(15));
+
+        // nothing of the target in the wheel, no slot visited
+        wheel.remove(new LoopDispatcher(LOOP), 1, null, false);
+        assertEquals(0, wheel.mScannedSlots);
+
+        wheel.remove(TARGET, 1, null, false);
+        assertEquals(15, wheel.mScannedSlots);
+        assertFalse(timeout.inWheel);
+        assertEquals(1, TARGET.mWheelEvents);
+        assertEquals(1000, other.mWheelEvents);
+
+        wheel.remove(TARGET, 0, null, true);
+        assertEquals(0, TARGET.mWheelEvents);
+        CollectingSink sink = new CollectingSink();
+        wheel.advance(20, sink);
+        assertEquals(1, sink.mExpired.size());
+        assertEquals(20L, (long) sink.mExpired.get(0));
+    }
+}
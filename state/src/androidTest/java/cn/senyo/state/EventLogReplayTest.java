@@ -0,0 +1,161 @@
+package cn.senyo.state;
+
+import android.os.Message;
+
+import androidx.annotation.NonNull;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import cn.senyo.state.core.EventLog;
+
+import static org.junit.Assert.*;
+
+/**
+ * Android machines logging their input to an {@link EventLog} and replaying it after a
+ * restart, on a device for the Looper.
+ */
+@RunWith(AndroidJUnit4.class)
+public class EventLogReplayTest {
+    private static final int CMD_NEXT = 1;
+    private static final int CMD_GO = 2;
+    private static final int CMD_DATA = 3;
+    private static final int CMD_FORWARDED = 4;
+    private static final String NAME = "LoggedMachine";
+
+    private File mDir;
+
+    private static class LoggedMachine extends StateMachine {
+        final List<String> mLog = new ArrayList<>();
+        final CountDownLatch mInSecond = new CountDownLatch(1);
+        final CountDownLatch mForwarded = new CountDownLatch(1);
+        final CountDownLatch mQuit = new CountDownLatch(1);
+
+        LoggedMachine() {
+            super(NAME);
+            final State second = new State(20) {
+                @Override
+                public boolean processMessage(@NonNull Message msg) {
+                    mLog.add("second " + msg.what + " " + msg.arg1);
+                    mInSecond.countDown();
+                    return HANDLED;
+                }
+            };
+            State first = new State(10) {
+                @Override
+                public boolean processMessage(@NonNull Message msg) {
+                    switch (msg.what) {
+                        case CMD_NEXT:
+                            transitionTo(second, obtainMessage(CMD_GO, 7, 0));
+                            return HANDLED;
+                        case CMD_DATA:
+                            Message copy = Message.obtain(msg);
+                            copy.what = CMD_FORWARDED;
+                            sendMessage(copy);
+                            return HANDLED;
+                        case CMD_FORWARDED:
+                            mLog.add("first " + msg.what + " " + getPayload(msg));
+                            mForwarded.countDown();
+                            return HANDLED;
+                        default:
+                            return NOT_HANDLED;
+                    }
+                }
+            };
+            addState(first);
+            addState(second);
+            setInitialState(first);
+        }
+
+        @Override
+        protected void onQuitting() {
+            mQuit.countDown();
+        }
+    }
+
+    private EventLog openLog() throws IOException {
+        return EventLog.open(mDir, "events", 0, EventLog.DEFAULT_COMMIT_BYTES,
+                EventLog.DEFAULT_SEGMENT_BYTES);
+    }
+
+    @Before
+    public void setUp() {
+        mDir = new File(System.getProperty("java.io.tmpdir"), "wal-" + System.nanoTime());
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                assertTrue(file.delete());
+            }
+        }
+        mDir.delete();
+    }
+
+    @Test
+    public void stateEventIsNotLoggedAndArrivesOnceOnReplay()
+            throws InterruptedException, IOException {
+        EventLog log = openLog();
+        LoggedMachine crashed = new LoggedMachine();
+        crashed.setEventLog(log);
+        crashed.start();
+        crashed.sendMessage(CMD_NEXT);
+        assertTrue(crashed.mInSecond.await(5, TimeUnit.SECONDS));
+        log.close();
+        crashed.quit();
+        assertTrue(crashed.mQuit.await(5, TimeUnit.SECONDS));
+
+        List<EventLog.Record> records = EventLog.read(mDir, "events").get(NAME);
+        assertNotNull(records);
+        assertEquals(1, records.size());
+        assertEquals(CMD_NEXT, records.get(0).what);
+
+        log = openLog();
+        LoggedMachine sm = new LoggedMachine();
+        sm.setEventLog(log);
+        sm.start();
+        assertTrue(sm.mInSecond.await(5, TimeUnit.SECONDS));
+        log.close();
+        sm.quit();
+        assertTrue(sm.mQuit.await(5, TimeUnit.SECONDS));
+
+        List<String> expected = new ArrayList<>();
+        expected.add("second 2 7");
+        assertEquals(expected, sm.mLog);
+    }
+
+    @Test
+    public void forwardedMessageKeepsItsPayloadInTheLog()
+            throws InterruptedException, IOException {
+        EventLog log = openLog();
+        LoggedMachine sm = new LoggedMachine();
+        sm.setEventLog(log);
+        sm.start();
+        sm.sendMessage(CMD_DATA, 0, 0, 42L, null);
+        assertTrue(sm.mForwarded.await(5, TimeUnit.SECONDS));
+        log.close();
+        sm.quit();
+        assertTrue(sm.mQuit.await(5, TimeUnit.SECONDS));
+        assertEquals("first 4 42", sm.mLog.get(0));
+
+        Map<String, List<EventLog.Record>> events = EventLog.read(mDir, "events");
+        List<EventLog.Record> records = events.get(NAME);
+        assertNotNull(records);
+        assertEquals(2, records.size());
+        assertEquals(CMD_FORWARDED, records.get(1).what);
+        assertEquals(42L, records.get(1).payload);
+    }
+}
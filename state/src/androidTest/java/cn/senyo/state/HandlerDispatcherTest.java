@@ -0,0 +1,91 @@
+package cn.senyo.state;
+
+import android.os.Message;
+
+import androidx.annotation.NonNull;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Events carried by Messages through {@link HandlerDispatcher}, on a device for the
+ * Looper.
+ */
+@RunWith(AndroidJUnit4.class)
+public class HandlerDispatcherTest {
+    private static final int CMD_DATA = 1;
+    private static final int CMD_DEFERRED = 2;
+    private static final int CMD_NEXT = 3;
+
+    private static class PayloadMachine extends StateMachine {
+        final List<String> mLog = new ArrayList<>();
+        final CountDownLatch mQuit = new CountDownLatch(1);
+
+        PayloadMachine() {
+            super("PayloadMachine");
+            final State second = new State(20) {
+                @Override
+                public boolean processMessage(@NonNull Message msg) {
+                    mLog.add("second " + msg.what + " " + getPayload(msg));
+                    return HANDLED;
+                }
+            };
+            State first = new State(10) {
+                @Override
+                public boolean processMessage(@NonNull Message msg) {
+                    switch (msg.what) {
+                        case CMD_DATA:
+                            mLog.add("first " + msg.what + " " + msg.arg1 + " " + msg.arg2
+                                    + " " + getPayload(msg));
+                            return HANDLED;
+                        case CMD_DEFERRED:
+                            deferMessage(msg);
+                            return HANDLED;
+                        case CMD_NEXT:
+                            transitionTo(second);
+                            return HANDLED;
+                        default:
+                            return NOT_HANDLED;
+                    }
+                }
+            };
+            addState(first);
+            addState(second);
+            setInitialState(first);
+        }
+
+        @Override
+        protected void onQuitting() {
+            mQuit.countDown();
+        }
+    }
+
+    @Test
+    public void payloadTravelsInTheMessage() throws InterruptedException {
+        PayloadMachine sm = new PayloadMachine();
+        sm.start();
+        sm.sendMessage(CMD_DATA, 1, 2, 1L << 40, null);
+        sm.sendMessage(CMD_DATA);
+        sm.sendMessage(CMD_DEFERRED, 0, 0, -5L, null);
+        sm.sendMessage(CMD_NEXT);
+        sm.quit();
+        assertTrue(sm.mQuit.await(5, TimeUnit.SECONDS));
+
+        List<String> expected = new ArrayList<>();
+        expected.add("first 1 1 2 " + (1L << 40));
+        expected.add("first 1 0 0 0");
+        // kept by the deferred copy
+        expected.add("second 2 -5");
+        // the state event, after the deferred message put back at the front
+        expected.add("second 20 0");
+        assertEquals(expected, sm.mLog);
+    }
+}
@@ -0,0 +1,104 @@
+package cn.senyo.state;
+
+import android.os.Looper;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Machines pinned to the threads of a {@link LooperPool}, on a device for the loopers.
+ */
+@RunWith(AndroidJUnit4.class)
+public class LooperPoolTest {
+
+    private static class PooledMachine extends StateMachine {
+        final CountDownLatch mEntered = new CountDownLatch(1);
+        final CountDownLatch mQuit = new CountDownLatch(1);
+        volatile Looper mLooper;
+
+        PooledMachine(LooperPool pool) {
+            super("PooledMachine", pool);
+            State idle = new State(1) {
+                @Override
+                public void enter() {
+                    mLooper = Looper.myLooper();
+                    mEntered.countDown();
+                }
+            };
+            addState(idle);
+            setInitialState(idle);
+        }
+
+        @Override
+        protected void onQuitting() {
+            mQuit.countDown();
+        }
+    }
+
+    @Test
+    public void slotsGoToTheLeastLoadedThreadAndComeBack() {
+        LooperPool pool = new LooperPool("slots", 3);
+        assertEquals(0, pool.acquire());
+        assertEquals(1, pool.acquire());
+        assertEquals(2, pool.acquire());
+        // ties go to the lowest index
+        assertEquals(0, pool.acquire());
+        assertArrayEquals(new int[]{2, 1, 1}, pool.getLoads());
+
+        pool.release(1);
+        assertEquals(1, pool.acquire());
+        pool.release(2);
+        pool.release(2);
+        // never below zero
+        assertArrayEquals(new int[]{2, 1, 0}, pool.getLoads());
+        pool.shutdown();
+        assertArrayEquals(new int[]{0, 0, 0}, pool.getLoads());
+        try {
+            pool.acquire();
+            fail("acquired from a shut down pool");
+        } catch (IllegalStateException expected) {
+            // shut down
+        }
+    }
+
+    @Test
+    public void machinesShareThreadsAndReleaseTheirSlotOnQuit() throws InterruptedException {
+        LooperPool pool = new LooperPool("shared", 2);
+        PooledMachine[] machines = new PooledMachine[3];
+        for (int i = 0; i < machines.length; i++) {
+            machines[i] = new PooledMachine(pool);
+            machines[i].start();
+        }
+        for (PooledMachine machine : machines) {
+            assertTrue(machine.mEntered.await(5, TimeUnit.SECONDS));
+        }
+        assertArrayEquals(new int[]{2, 1}, pool.getLoads());
+        assertSame(machines[0].mLooper, machines[2].mLooper);
+        assertNotSame(machines[0].mLooper, machines[1].mLooper);
+        assertNotSame(Looper.getMainLooper(), machines[0].mLooper);
+
+        machines[0].quit();
+        assertTrue(machines[0].mQuit.await(5, TimeUnit.SECONDS));
+        // the slot is released right after onQuitting, on the pool thread
+        long deadline = System.currentTimeMillis() + 5000;
+        while (pool.getLoads()[0] != 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertArrayEquals(new int[]{1, 1}, pool.getLoads());
+
+        // the looper is not quit with the machine, the other one on it keeps running
+        PooledMachine next = new PooledMachine(pool);
+        next.start();
+        assertTrue(next.mEntered.await(5, TimeUnit.SECONDS));
+        assertSame(machines[2].mLooper, next.mLooper);
+        assertArrayEquals(new int[]{2, 1}, pool.getLoads());
+        pool.shutdown();
+    }
+}
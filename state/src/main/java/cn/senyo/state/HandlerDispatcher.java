@@ -0,0 +1,198 @@
+package cn.senyo.state;
+
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+
+import androidx.annotation.NonNull;
+
+import cn.senyo.state.core.Dispatcher;
+import cn.senyo.state.core.Event;
+
+/**
+ * {@link Dispatcher} backed by an android.os.Handler, events travel through the
+ * Looper queue as plain Messages.
+ *
+ * @author: Rony
+ * @email: luojun@skyruler.cn
+ * @date: Created 2021/1/5 15:45
+ */
+final class HandlerDispatcher extends Handler implements Dispatcher {
+    /**
+     * Thread created for this dispatcher, null if running on a caller's looper
+     */
+    private HandlerThread mSmThread;
+
+    /**
+     * Pool and slot the looper was taken from, null if not pooled
+     */
+    private LooperPool mPool;
+    private int mPoolSlot = -1;
+    private Target mTarget;
+    private volatile boolean mReleased;
+
+    /**
+     * Reused for every dispatched message, events are handled one at a time
+     */
+    private final Event mEvent = new Event();
+
+    /**
+     * Key of the event log sequence in the data of a Message, only set for logged events
+     */
+    private static final String KEY_LOG_SEQUENCE = "cn.senyo.state.logSequence";
+
+    /**
+     * Key of Event.payload in the data of a Message, only set when not 0
+     */
+    private static final String KEY_PAYLOAD = "cn.senyo.state.payload";
+
+    HandlerDispatcher(@NonNull Looper looper) {
+        super(looper);
+    }
+
+    @NonNull
+    static HandlerDispatcher create(String name) {
+        HandlerThread smThread = new HandlerThread(name);
+        smThread.start();
+        HandlerDispatcher dispatcher = new HandlerDispatcher(smThread.getLooper());
+        dispatcher.mSmThread = smThread;
+        return dispatcher;
+    }
+
+    /**
+     * Create a dispatcher pinned to a thread of the pool.
+     */
+    @NonNull
+    static HandlerDispatcher create(@NonNull LooperPool pool) {
+        int slot = pool.acquire();
+        HandlerDispatcher dispatcher = new HandlerDispatcher(pool.getLooper(slot));
+        dispatcher.mPool = pool;
+        dispatcher.mPoolSlot = slot;
+        return dispatcher;
+    }
+
+    @Override
+    public void setTarget(@NonNull Target target) {
+        mTarget = target;
+    }
+
+    @Override
+    public void handleMessage(@NonNull Message msg) {
+        if (mReleased) {
+            return;
+        }
+        Event event = mEvent;
+        event.what = msg.what;
+        event.arg1 = msg.arg1;
+        event.arg2 = msg.arg2;
+        event.obj = msg.obj;
+        event.setSource(msg);
+        Bundle data = msg.peekData();
+        event.setLogSequence(data != null ? data.getLong(KEY_LOG_SEQUENCE) : 0);
+        event.payload = data != null ? data.getLong(KEY_PAYLOAD) : 0;
+        try {
+            mTarget.handleEvent(event);
+        } finally {
+            event.obj = null;
+            event.setSource(null);
+        }
+    }
+
+    /**
+     * @return the payload of the event the message was sent for, 0 if none
+     */
+    static long getPayload(@NonNull Message msg) {
+        Bundle data = msg.peekData();
+        return data != null ? data.getLong(KEY_PAYLOAD) : 0;
+    }
+
+    /**
+     * The event is recycled, the Message carries its content from now on.
+     */
+    @NonNull
+    private Message toMessage(@NonNull Event event) {
+        Object source = event.getSource();
+        Message msg;
+        if (source instanceof Message && ((Message) source).getTarget() == this) {
+            // a deferred message keeps its copy, data included
+            msg = (Message) source;
+        } else {
+            msg = Message.obtain(this, event.what, event.arg1, event.arg2, event.obj);
+        }
+        if (event.getLogSequence() != 0) {
+            msg.getData().putLong(KEY_LOG_SEQUENCE, event.getLogSequence());
+        }
+        if (event.payload != 0) {
+            msg.getData().putLong(KEY_PAYLOAD, event.payload);
+        }
+        event.recycle();
+        return msg;
+    }
+
+    @Override
+    public boolean sendEvent(@NonNull Event event) {
+        return !mReleased && sendMessage(toMessage(event));
+    }
+
+    @Override
+    public boolean sendEventDelayed(@NonNull Event event, long delayMillis) {
+        return !mReleased && sendMessageDelayed(toMessage(event), delayMillis);
+    }
+
+    @Override
+    public boolean sendEventAtFrontOfQueue(@NonNull Event event) {
+        return !mReleased && sendMessageAtFrontOfQueue(toMessage(event));
+    }
+
+    @Override
+    public void sendEventsAtFrontOfQueue(@NonNull Event[] events, int count) {
+        // the Looper queue has no splice, last one first keeps the order
+        for (int i = count - 1; i >= 0; i--) {
+            sendEventAtFrontOfQueue(events[i]);
+        }
+    }
+
+    @Override
+    public void removeEvents(int what) {
+        removeMessages(what);
+    }
+
+    @Override
+    public void removeEvents(int what, @NonNull Object obj) {
+        removeMessages(what, obj);
+    }
+
+    @Override
+    public void cancelEvent(@NonNull Event event) {
+        // The event was copied into a Message and recycled when sent, there is nothing
+        // left to look it up by, see removeEvents(int, Object).
+    }
+
+    @Override
+    public void setBatchSize(int maxEvents) {
+        // The Looper queue cannot be drained from outside, messages are handled one at a time.
+    }
+
+    @Override
+    public void release() {
+        mReleased = true;
+        if (mSmThread != null) {
+            // If we made the thread then quit looper which stops the thread.
+            getLooper().quit();
+            mSmThread = null;
+        } else {
+            // The looper is shared, only drop our own messages.
+            removeCallbacksAndMessages(null);
+            if (mPool != null) {
+                mPool.release(mPoolSlot);
+                mPool = null;
+            }
+        }
+    }
+
+    boolean isReleased() {
+        return mReleased;
+    }
+}
@@ -0,0 +1,111 @@
+package cn.senyo.state;
+
+import android.os.HandlerThread;
+import android.os.Looper;
+
+import androidx.annotation.NonNull;
+
+/**
+ * A fixed set of HandlerThreads shared by many state machines. Each machine created with
+ * {@link StateMachine#StateMachine(String, LooperPool)} is pinned to the least loaded
+ * thread, and quitting the machine gives its slot back without quitting the looper.
+ * Threads are started on first use.
+ *
+ * @author: Rony
+ * @email: luojun@skyruler.cn
+ * @date: Created 2021/1/5 15:45
+ */
+public final class LooperPool {
+    private static LooperPool sDefault;
+
+    private final String mName;
+    private final HandlerThread[] mThreads;
+
+    /**
+     * Number of machines currently pinned to each thread
+     */
+    private final int[] mLoads;
+    private boolean mShutdown;
+
+    public LooperPool(@NonNull String name, int size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("size must be positive: " + size);
+        }
+        mName = name;
+        mThreads = new HandlerThread[size];
+        mLoads = new int[size];
+    }
+
+    /**
+     * @return process wide pool with one thread per available processor
+     */
+    @NonNull
+    public static synchronized LooperPool getDefault() {
+        if (sDefault == null) {
+            sDefault = new LooperPool("StateMachinePool",
+                    Runtime.getRuntime().availableProcessors());
+        }
+        return sDefault;
+    }
+
+    public int size() {
+        return mThreads.length;
+    }
+
+    /**
+     * @return number of machines pinned to each thread
+     */
+    @NonNull
+    public synchronized int[] getLoads() {
+        return mLoads.clone();
+    }
+
+    /**
+     * Pin a machine to the least loaded thread, lowest index first.
+     *
+     * @return the slot, give it back with {@link #release(int)}
+     */
+    synchronized int acquire() {
+        if (mShutdown) {
+            throw new IllegalStateException("LooperPool " + mName + " is shut down");
+        }
+        int slot = 0;
+        for (int i = 1; i < mLoads.length; i++) {
+            if (mLoads[i] < mLoads[slot]) {
+                slot = i;
+            }
+        }
+        if (mThreads[slot] == null) {
+            HandlerThread thread = new HandlerThread(mName + "-" + slot);
+            thread.start();
+            mThreads[slot] = thread;
+        }
+        mLoads[slot]++;
+        return slot;
+    }
+
+    @NonNull
+    synchronized Looper getLooper(int slot) {
+        return mThreads[slot].getLooper();
+    }
+
+    synchronized void release(int slot) {
+        if (mLoads[slot] > 0) {
+            mLoads[slot]--;
+        }
+    }
+
+    /**
+     * Quit all threads of the pool, machines still pinned to them stop receiving messages.
+     */
+    public synchronized void shutdown() {
+        mShutdown = true;
+        for (int i = 0; i < mThreads.length; i++) {
+            if (mThreads[i] != null) {
+                mThreads[i].quit();
+                mThreads[i] = null;
+            }
+            mLoads[i] = 0;
+        }
+    }
+}